@@ -122,6 +122,29 @@ public class BundleConstants {
      */
     public static final String CONFIG_WRITE_TIMEOUT = "writeTimeoutMillis";
 
+    /**
+     * Close a connection that has sent us nothing for this many millis while
+     * no request is outstanding. 0 or not set turns this off.
+     */
+    public static final String CONFIG_READ_IDLE_TIMEOUT = "readIdleTimeoutMillis";
+
+    /**
+     * Close a connection we have not been able to write anything to for this
+     * many millis while a request is outstanding. 0 or not set turns this off.
+     */
+    public static final String CONFIG_WRITE_IDLE_TIMEOUT = "writeIdleTimeoutMillis";
+
+    /**
+     * Close a kept alive connection after this many millis with no traffic
+     * in either direction and no request outstanding. 0 turns this off.
+     */
+    public static final String CONFIG_KEEP_ALIVE_TIMEOUT = "keepAliveTimeoutMillis";
+
+    /**
+     * Default keep alive timeout (30 seconds).
+     */
+    public static final String CONFIG_KEEP_ALIVE_TIMEOUT_DEFAULT = "30000";
+
     /**
      * Connection should reuse Addresses.
      */
@@ -147,4 +170,313 @@ public class BundleConstants {
      */
     public static final String  CONFIG_TCP_NODELAY = "tcpNoDelay";
 
-}
\ No newline at end of file
+    /**
+     * Number of threads in the execution stage that runs our servlets. Requests
+     * are handed to this stage after they are decoded so a slow servlet does
+     * not stall the Netty I/O worker that other connections are sharing.
+     */
+    public static final String  CONFIG_EXECUTOR_THREADS = "executorThreads";
+
+    /**
+     * Default number of execution stage threads.
+     */
+    public static final String  CONFIG_EXECUTOR_THREADS_DEFAULT = "16";
+
+    /**
+     * How the execution stage runs our servlets. Must be either "pool" to use
+     * a fixed pool of platform threads or "virtual" to start a virtual thread
+     * for each request. If the JVM does not support virtual threads we fall
+     * back to the pool.
+     */
+    public static final String  CONFIG_EXECUTION_MODE = "executionMode";
+
+    /**
+     * Execution mode value for running servlets on the platform thread pool.
+     */
+    public static final String  EXECUTION_MODE_POOL = "pool";
+
+    /**
+     * Execution mode value for running servlets on virtual threads.
+     */
+    public static final String  EXECUTION_MODE_VIRTUAL = "virtual";
+
+    /**
+     * Maximum number of bytes of queued events a single channel may have
+     * waiting in the execution stage before we stop reading from it.
+     */
+    public static final String  CONFIG_EXECUTOR_CHANNEL_MEMORY = "executorMaxChannelMemorySize";
+
+    /**
+     * Default per channel execution stage memory limit (1MB).
+     */
+    public static final String  CONFIG_EXECUTOR_CHANNEL_MEMORY_DEFAULT = "1048576";
+
+    /**
+     * Maximum number of bytes of queued events for all channels of a server
+     * waiting in the execution stage.
+     */
+    public static final String  CONFIG_EXECUTOR_TOTAL_MEMORY = "executorMaxTotalMemorySize";
+
+    /**
+     * Default total execution stage memory limit (64MB).
+     */
+    public static final String  CONFIG_EXECUTOR_TOTAL_MEMORY_DEFAULT = "67108864";
+
+    /**
+     * Size in bytes of the pooled direct buffers response bodies are encoded
+     * into.
+     */
+    public static final String  CONFIG_RESPONSE_CHUNK_SIZE = "responseChunkSize";
+
+    /**
+     * Default response buffer size (8K).
+     */
+    public static final String  CONFIG_RESPONSE_CHUNK_SIZE_DEFAULT = "8192";
+
+    /**
+     * Maximum number of idle response buffers a server keeps pooled.
+     */
+    public static final String  CONFIG_RESPONSE_BUFFER_POOL_SIZE = "responseBufferPoolSize";
+
+    /**
+     * Default number of pooled response buffers.
+     */
+    public static final String  CONFIG_RESPONSE_BUFFER_POOL_SIZE_DEFAULT = "256";
+
+    /**
+     * Maximum number of connections a single listener (port or ssl.port) will
+     * have open at once. 0 or not set means no limit.
+     */
+    public static final String  CONFIG_MAX_CONNECTIONS = "maxConnections";
+
+    /**
+     * Maximum number of requests a single listener will have received but not
+     * yet answered before it stops admitting new connections. 0 or not set
+     * means no limit.
+     */
+    public static final String  CONFIG_MAX_PENDING_REQUESTS = "maxPendingRequests";
+
+    /**
+     * What a listener does with a new connection once it is over one of the
+     * limits above. Must be either "pause" to stop accepting until there is
+     * room again, leaving new connections queued in the kernel, or "reject" to
+     * accept the connection and answer it with a 503.
+     */
+    public static final String  CONFIG_ADMISSION_MODE = "admissionMode";
+
+    /**
+     * Admission mode value for pausing accepts.
+     */
+    public static final String  ADMISSION_MODE_PAUSE = "pause";
+
+    /**
+     * Admission mode value for rejecting connections.
+     */
+    public static final String  ADMISSION_MODE_REJECT = "reject";
+
+    /**
+     * In the pause admission mode the longest a listener will stop accepting
+     * before it rejects the connection it is holding. 0 or not set means wait
+     * until there is room.
+     */
+    public static final String  CONFIG_ADMISSION_WAIT = "admissionWaitMillis";
+
+    /**
+     * Maximum number of pipelined requests a connection may have unanswered
+     * before we stop reading from it. Pipelined requests are worked in
+     * parallel, set this to 1 to work them one at a time.
+     */
+    public static final String  CONFIG_MAX_PIPELINED = "maxPipelinedRequests";
+
+    /**
+     * Default maximum pipelined requests per connection.
+     */
+    public static final String  CONFIG_MAX_PIPELINED_DEFAULT = "8";
+
+    /**
+     * Largest request body in bytes we will accept. Chunked request bodies
+     * are put back together before the request is handed on so this bounds
+     * how much of one we hold in memory.
+     */
+    public static final String  CONFIG_MAX_REQUEST_CONTENT = "maxRequestContentLength";
+
+    /**
+     * Default maximum request body size (1MB).
+     */
+    public static final String  CONFIG_MAX_REQUEST_CONTENT_DEFAULT = "1048576";
+
+    /**
+     * Should the plain (non SSL) listener also speak cleartext HTTP/2 (h2c)?
+     * Clients can then either start with the HTTP/2 preface or upgrade from
+     * HTTP/1.1 with Upgrade: h2c. True or False.
+     */
+    public static final String  CONFIG_HTTP2 = "h2c";
+
+    /**
+     * Default for h2c.
+     */
+    public static final String  CONFIG_HTTP2_DEFAULT = "false";
+
+    /**
+     * Maximum number of streams a client may have open at once on an HTTP/2
+     * connection. Like pipelined requests these are worked in parallel.
+     */
+    public static final String  CONFIG_HTTP2_MAX_STREAMS = "http2MaxConcurrentStreams";
+
+    /**
+     * Default maximum concurrent HTTP/2 streams.
+     */
+    public static final String  CONFIG_HTTP2_MAX_STREAMS_DEFAULT = "100";
+
+    /**
+     * Path of the key store holding the certificate and private key of the
+     * SSL listener. If not set the standard javax.net.ssl.keyStore system
+     * property is used.
+     */
+    public static final String  CONFIG_SSL_KEYSTORE = "ssl.keystore";
+
+    /**
+     * Password of the SSL key store. Defaults to the
+     * javax.net.ssl.keyStorePassword system property.
+     */
+    public static final String  CONFIG_SSL_KEYSTORE_PASSWORD = "ssl.keystore.password";
+
+    /**
+     * Password of the private key if it is not the same as the key stores.
+     */
+    public static final String  CONFIG_SSL_KEY_PASSWORD = "ssl.key.password";
+
+    /**
+     * Type of the SSL key store, JKS, PKCS12 etc. Defaults to the
+     * javax.net.ssl.keyStoreType system property or the JVMs default type.
+     */
+    public static final String  CONFIG_SSL_KEYSTORE_TYPE = "ssl.keystore.type";
+
+    /**
+     * Number of TLS sessions the SSL listener keeps so returning clients can
+     * resume them instead of doing a full handshake. 0 means no limit.
+     * Resuming from stateless session tickets (RFC 5077, and the TLS 1.3
+     * equivalent) is a JVM wide choice we don't make for the rest of the
+     * framework. Start the JVM with
+     * -Djdk.tls.server.enableSessionTicketExtension=true (Java 13 or later)
+     * to turn it on.
+     */
+    public static final String  CONFIG_SSL_SESSION_CACHE_SIZE = "ssl.sessionCacheSize";
+
+    /**
+     * Default TLS session cache size.
+     */
+    public static final String  CONFIG_SSL_SESSION_CACHE_SIZE_DEFAULT = "20480";
+
+    /**
+     * How long in seconds a TLS session can be resumed for.
+     */
+    public static final String  CONFIG_SSL_SESSION_TIMEOUT = "ssl.sessionTimeout";
+
+    /**
+     * Default TLS session timeout (24 hours).
+     */
+    public static final String  CONFIG_SSL_SESSION_TIMEOUT_DEFAULT = "86400";
+
+    /**
+     * Should responses be gzip or deflate encoded for clients that accept
+     * it? True or False.
+     */
+    public static final String  CONFIG_COMPRESSION = "compression";
+
+    /**
+     * Default for compression.
+     */
+    public static final String  CONFIG_COMPRESSION_DEFAULT = "true";
+
+    /**
+     * Deflate level used to compress responses, 1 (fastest) to 9 (smallest).
+     */
+    public static final String  CONFIG_COMPRESSION_LEVEL = "compressionLevel";
+
+    /**
+     * Default compression level.
+     */
+    public static final String  CONFIG_COMPRESSION_LEVEL_DEFAULT = "6";
+
+    /**
+     * Responses with a body smaller than this many bytes are sent as is.
+     */
+    public static final String  CONFIG_COMPRESSION_MIN_SIZE = "compressionMinSize";
+
+    /**
+     * Default minimum size of a compressed response.
+     */
+    public static final String  CONFIG_COMPRESSION_MIN_SIZE_DEFAULT = "1024";
+
+    /**
+     * Comma separated list of Content-Type prefixes that are never
+     * compressed, normally formats that are compressed already.
+     */
+    public static final String  CONFIG_COMPRESSION_EXCLUDED_TYPES = "compressionExcludedTypes";
+
+    /**
+     * Default excluded content types.
+     */
+    public static final String  CONFIG_COMPRESSION_EXCLUDED_TYPES_DEFAULT =
+            "image/,audio/,video/,application/zip,application/gzip,application/x-gzip," +
+            "application/x-compress,application/x-bzip2,application/x-7z-compressed," +
+            "application/x-rar-compressed,application/pdf,application/octet-stream";
+
+    /**
+     * Total bytes of resource responses kept in memory. Hot resources
+     * registered with registerResources are answered from here without
+     * going back to their HttpContext. 0 turns the cache off.
+     */
+    public static final String  CONFIG_RESOURCE_CACHE_SIZE = "resourceCacheSize";
+
+    /**
+     * Default resource cache size, 16MB.
+     */
+    public static final String  CONFIG_RESOURCE_CACHE_SIZE_DEFAULT = "16777216";
+
+    /**
+     * Resources larger than this many bytes are never cached.
+     */
+    public static final String  CONFIG_RESOURCE_CACHE_MAX_ENTRY = "resourceCacheMaxEntrySize";
+
+    /**
+     * Default largest cached resource, 1MB.
+     */
+    public static final String  CONFIG_RESOURCE_CACHE_MAX_ENTRY_DEFAULT = "1048576";
+
+    /**
+     * Seconds a session may go unused before it expires. 0 and sessions
+     * never expire.
+     */
+    public static final String  CONFIG_SESSION_TIMEOUT = "sessionTimeout";
+
+    /**
+     * Default session timeout, 30 minutes.
+     */
+    public static final String  CONFIG_SESSION_TIMEOUT_DEFAULT = "1800";
+
+    /**
+     * Bytes of direct memory session attributes are kept in, outside the
+     * heap. Least recently used sessions are evicted when it is full. 0 keeps
+     * session attributes on the heap, otherwise at least 4096.
+     */
+    public static final String  CONFIG_SESSION_OFF_HEAP_SIZE = "sessionOffHeapSize";
+
+    /**
+     * Default off heap session store size, off.
+     */
+    public static final String  CONFIG_SESSION_OFF_HEAP_SIZE_DEFAULT = "0";
+
+    /**
+     * Should sessions be written to a file in the bundle's data area so they
+     * survive the server or the bundle being restarted? True or False.
+     */
+    public static final String  CONFIG_SESSION_PERSISTENCE = "sessionPersistence";
+
+    /**
+     * Default for sessionPersistence.
+     */
+    public static final String  CONFIG_SESSION_PERSISTENCE_DEFAULT = "false";
+
+}
@@ -44,6 +44,14 @@ public class DefaultHttpContext implements HttpContext {
         this.bundle = bundle;
     }
 
+    /**
+     * The bundle whose resources this context serves.
+     * @return
+     */
+    public Bundle getBundle() {
+        return bundle;
+    }
+
 
     @Override
     public boolean handleSecurity(HttpServletRequest request,
@@ -21,6 +21,7 @@
 
 package org.jhserv.jacks.httpservice;
 
+import org.jhserv.jacks.httpservice.server.ServletRegistrations;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.ServiceFactory;
 import org.osgi.framework.ServiceRegistration;
@@ -37,14 +38,26 @@ import org.osgi.framework.ServiceRegistration;
  */
 public class HttpServiceFactory implements ServiceFactory {
 
+    /**
+     * Registrations of the server this factory hands out services for.
+     */
+    private final ServletRegistrations registrations;
+
+    public HttpServiceFactory(ServletRegistrations registrations) {
+        this.registrations = registrations;
+    }
+
     @Override
     public Object getService(Bundle bundle, ServiceRegistration sr) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return new HttpServiceImpl(bundle, registrations);
     }
 
+    /**
+     * The bundle is done with us so everything it registered goes away.
+     */
     @Override
     public void ungetService(Bundle bundle, ServiceRegistration sr, Object serviceInstance) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        ((HttpServiceImpl)serviceInstance).unregisterAll();
     }
 
 }
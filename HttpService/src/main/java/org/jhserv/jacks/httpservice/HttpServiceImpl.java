@@ -22,8 +22,12 @@
 package org.jhserv.jacks.httpservice;
 
 import java.util.Dictionary;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
+import org.jhserv.jacks.httpservice.server.ResourceServlet;
+import org.jhserv.jacks.httpservice.server.ServletExecuter;
 import org.jhserv.jacks.httpservice.server.ServletRegistrations;
 import org.osgi.framework.Bundle;
 import org.osgi.service.http.HttpContext;
@@ -42,6 +46,12 @@ public class HttpServiceImpl implements HttpService {
     private final Bundle bundle;
     private final ServletRegistrations registrations;
 
+    /**
+     * Aliases registered through this instance, so they can be removed when
+     * the bundle lets go of the service.
+     */
+    private final Set<String> aliases = new CopyOnWriteArraySet<String>();
+
     public HttpServiceImpl(Bundle bundle, ServletRegistrations registrations) {
         this.bundle = bundle;
         this.registrations = registrations;
@@ -53,20 +63,56 @@ public class HttpServiceImpl implements HttpService {
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    /**
+     * Register resources under an alias. Requests under the alias are
+     * answered with the resource the HttpContext gives for the alias
+     * replaced by name. See 102.3 of the HttpService spec.
+     */
     @Override
     public void registerResources(String alias, String name, HttpContext context)
             throws NamespaceException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        if(alias == null || !alias.startsWith("/") ||
+                (alias.length() > 1 && alias.endsWith("/"))) {
+            throw new IllegalArgumentException("Invalid alias " + alias);
+        }
+        if(name == null || (name.length() > 1 && name.endsWith("/"))) {
+            throw new IllegalArgumentException("Invalid resource name " + name);
+        }
+        if(context == null) {
+            context = createDefaultHttpContext();
+        }
+        ResourceServlet servlet = new ResourceServlet(alias, name, context, bundle);
+        try {
+            registrations.register(new ServletExecuter(servlet, null, alias, context));
+            aliases.add(alias);
+        } catch(ServletException e) {
+            // Only thrown for a servlet that is already registered and ours
+            // was just created.
+            throw new IllegalStateException(e);
+        }
     }
 
     @Override
     public void unregister(String alias) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        if(!aliases.remove(alias) || registrations.unregister(alias) == null) {
+            throw new IllegalArgumentException("Nothing is registered under " + alias
+                    + " by " + bundle.getSymbolicName());
+        }
+    }
+
+    /**
+     * Remove everything registered through this instance.
+     */
+    void unregisterAll() {
+        for(String alias : aliases) {
+            aliases.remove(alias);
+            registrations.unregister(alias);
+        }
     }
 
     @Override
     public HttpContext createDefaultHttpContext() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return new DefaultHttpContext(bundle);
     }
 
 }
@@ -255,6 +255,30 @@ public class Utils {
             }
         }
 
+        value = (String)conf.get(BundleConstants.CONFIG_READ_IDLE_TIMEOUT);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_READ_IDLE_TIMEOUT,
+                        "This field must be a number.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_WRITE_IDLE_TIMEOUT);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_WRITE_IDLE_TIMEOUT,
+                        "This field must be a number.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_KEEP_ALIVE_TIMEOUT);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_KEEP_ALIVE_TIMEOUT,
+                        "This field must be a number.");
+            }
+        }
+
         value = (String)conf.get(BundleConstants.CONFIG_REUSE_ADDRESS);
         if(value != null) {
             if(!isTrueFalse(value)) {
@@ -295,6 +319,206 @@ public class Utils {
             }
         }
 
+        value = (String)conf.get(BundleConstants.CONFIG_EXECUTOR_THREADS);
+        if(value != null) {
+            if(!isANumber(value) || Integer.parseInt(value) < 1) {
+                throw new ConfigurationException(BundleConstants.CONFIG_EXECUTOR_THREADS,
+                        "This field must be a number greater than 0.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_EXECUTION_MODE);
+        if(value != null) {
+            if(!value.equalsIgnoreCase(BundleConstants.EXECUTION_MODE_POOL) &&
+                    !value.equalsIgnoreCase(BundleConstants.EXECUTION_MODE_VIRTUAL)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_EXECUTION_MODE,
+                        "This field must be set to pool or virtual.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_EXECUTOR_CHANNEL_MEMORY);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_EXECUTOR_CHANNEL_MEMORY,
+                        "This field must be a number.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_EXECUTOR_TOTAL_MEMORY);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_EXECUTOR_TOTAL_MEMORY,
+                        "This field must be a number.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_RESPONSE_CHUNK_SIZE);
+        if(value != null) {
+            // Must have room for at least one encoded char.
+            if(!isANumber(value) || Integer.parseInt(value) < 16) {
+                throw new ConfigurationException(BundleConstants.CONFIG_RESPONSE_CHUNK_SIZE,
+                        "This field must be a number of at least 16.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_RESPONSE_BUFFER_POOL_SIZE);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_RESPONSE_BUFFER_POOL_SIZE,
+                        "This field must be a number.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_MAX_CONNECTIONS);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_MAX_CONNECTIONS,
+                        "This field must be a number.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_MAX_PENDING_REQUESTS);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_MAX_PENDING_REQUESTS,
+                        "This field must be a number.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_ADMISSION_MODE);
+        if(value != null) {
+            if(!value.equalsIgnoreCase(BundleConstants.ADMISSION_MODE_PAUSE) &&
+                    !value.equalsIgnoreCase(BundleConstants.ADMISSION_MODE_REJECT)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_ADMISSION_MODE,
+                        "This field must be set to pause or reject.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_ADMISSION_WAIT);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_ADMISSION_WAIT,
+                        "This field must be a number.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_MAX_PIPELINED);
+        if(value != null) {
+            if(!isANumber(value) || Integer.parseInt(value) < 1) {
+                throw new ConfigurationException(BundleConstants.CONFIG_MAX_PIPELINED,
+                        "This field must be a number greater than 0.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_MAX_REQUEST_CONTENT);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_MAX_REQUEST_CONTENT,
+                        "This field must be a number.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_HTTP2);
+        if(value != null) {
+            if(!isTrueFalse(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_HTTP2,
+                        "This field must be True or False");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_HTTP2_MAX_STREAMS);
+        if(value != null) {
+            if(!isANumber(value) || Integer.parseInt(value) < 1) {
+                throw new ConfigurationException(BundleConstants.CONFIG_HTTP2_MAX_STREAMS,
+                        "This field must be a number greater than 0.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_SSL_SESSION_CACHE_SIZE);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_SSL_SESSION_CACHE_SIZE,
+                        "This field must be a number.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_SSL_SESSION_TIMEOUT);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_SSL_SESSION_TIMEOUT,
+                        "This field must be a number.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_COMPRESSION);
+        if(value != null) {
+            if(!isTrueFalse(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_COMPRESSION,
+                        "This field must be True or False");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_COMPRESSION_LEVEL);
+        if(value != null) {
+            if(!isANumber(value) || Integer.parseInt(value) < 1 || Integer.parseInt(value) > 9) {
+                throw new ConfigurationException(BundleConstants.CONFIG_COMPRESSION_LEVEL,
+                        "This field must be a number from 1 to 9.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_COMPRESSION_MIN_SIZE);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_COMPRESSION_MIN_SIZE,
+                        "This field must be a number.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_RESOURCE_CACHE_SIZE);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_RESOURCE_CACHE_SIZE,
+                        "This field must be a number.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_RESOURCE_CACHE_MAX_ENTRY);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_RESOURCE_CACHE_MAX_ENTRY,
+                        "This field must be a number.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_SESSION_TIMEOUT);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_SESSION_TIMEOUT,
+                        "This field must be a number.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_SESSION_OFF_HEAP_SIZE);
+        if(value != null) {
+            if(!isANumber(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_SESSION_OFF_HEAP_SIZE,
+                        "This field must be a number.");
+            }
+            long size = Long.parseLong(value);
+            if(size != 0 && size < 4096) {
+                throw new ConfigurationException(BundleConstants.CONFIG_SESSION_OFF_HEAP_SIZE,
+                        "This field must be 0 or at least 4096.");
+            }
+        }
+
+        value = (String)conf.get(BundleConstants.CONFIG_SESSION_PERSISTENCE);
+        if(value != null) {
+            if(!isTrueFalse(value)) {
+                throw new ConfigurationException(BundleConstants.CONFIG_SESSION_PERSISTENCE,
+                        "This field must be True or False");
+            }
+        }
+
     }
 
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.http2;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Decodes HPACK header blocks (RFC 7541) received from a client. One
+ * decoder belongs to one connection and must see every header block of the
+ * connection in order, since each block can change the dynamic table the
+ * next one refers to.
+ *
+ * @author rjackson
+ */
+public final class HpackDecoder {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final HpackTable table;
+
+    /**
+     * The table size we told the client it may use. It can shrink the table
+     * below this but not grow it past it.
+     */
+    private final int maxTableSize;
+
+    private final int maxHeaderListSize;
+
+    /**
+     * @param maxTableSize Our SETTINGS_HEADER_TABLE_SIZE.
+     * @param maxHeaderListSize Largest decoded header list we accept,
+     * counted the same way as SETTINGS_MAX_HEADER_LIST_SIZE.
+     */
+    public HpackDecoder(int maxTableSize, int maxHeaderListSize) {
+        this.table = new HpackTable(maxTableSize);
+        this.maxTableSize = maxTableSize;
+        this.maxHeaderListSize = maxHeaderListSize;
+    }
+
+    /**
+     * Decode a complete header block.
+     *
+     * @param block The block, it is read to the end.
+     * @param headers Decoded headers are added to this as name then value.
+     * Names are exactly as sent, the client is required to send them lower
+     * case.
+     * @throws Http2Exception A COMPRESSION_ERROR if the block is malformed,
+     * which is always fatal to the connection.
+     */
+    public void decode(ChannelBuffer block, List<String> headers) throws Http2Exception {
+        int listSize = 0;
+        boolean headerSeen = false;
+        while(block.readable()) {
+            int b = block.getUnsignedByte(block.readerIndex());
+            String name;
+            String value;
+            if((b & 0x80) != 0) {
+                // Indexed header field
+                int index = decodeInt(block, 7);
+                if(index == 0) {
+                    throw compressionError("Indexed header field with index 0");
+                }
+                name = table.name(index);
+                value = table.value(index);
+            } else if((b & 0x40) != 0) {
+                // Literal with incremental indexing
+                int index = decodeInt(block, 6);
+                name = index == 0 ? decodeString(block) : table.name(index);
+                value = decodeString(block);
+                table.add(name, value);
+            } else if((b & 0x20) != 0) {
+                // Dynamic table size update, only allowed before the first
+                // header of a block.
+                int size = decodeInt(block, 5);
+                if(headerSeen || size > maxTableSize) {
+                    throw compressionError("Invalid dynamic table size update " + size);
+                }
+                table.setMaxSize(size);
+                continue;
+            } else {
+                // Literal without indexing (0000) or never indexed (0001)
+                int index = decodeInt(block, 4);
+                name = index == 0 ? decodeString(block) : table.name(index);
+                value = decodeString(block);
+            }
+            headerSeen = true;
+            listSize += name.length() + value.length() + HpackTable.ENTRY_OVERHEAD;
+            if(listSize > maxHeaderListSize) {
+                throw compressionError("Header list larger than " + maxHeaderListSize);
+            }
+            headers.add(name);
+            headers.add(value);
+        }
+    }
+
+    /**
+     * Decode an HPACK integer whose first byte uses the low prefixBits bits.
+     */
+    static int decodeInt(ChannelBuffer in, int prefixBits) throws Http2Exception {
+        int mask = (1 << prefixBits) - 1;
+        int value = in.readUnsignedByte() & mask;
+        if(value < mask) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            if(!in.readable()) {
+                throw compressionError("Truncated integer");
+            }
+            b = in.readUnsignedByte();
+            if(shift > 28 || (shift == 28 && (b & 0x7f) > 7)) {
+                throw compressionError("Integer overflow");
+            }
+            value += (b & 0x7f) << shift;
+            if(value < 0) {
+                throw compressionError("Integer overflow");
+            }
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return value;
+    }
+
+    private static String decodeString(ChannelBuffer in) throws Http2Exception {
+        if(!in.readable()) {
+            throw compressionError("Truncated string");
+        }
+        boolean huffman = (in.getUnsignedByte(in.readerIndex()) & 0x80) != 0;
+        int length = decodeInt(in, 7);
+        if(length > in.readableBytes()) {
+            throw compressionError("Truncated string");
+        }
+        if(huffman) {
+            return HpackHuffman.decode(in, length);
+        }
+        String value = in.toString(in.readerIndex(), length, ISO_8859_1.name());
+        in.skipBytes(length);
+        return value;
+    }
+
+    private static Http2Exception compressionError(String message) {
+        return Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, message);
+    }
+}
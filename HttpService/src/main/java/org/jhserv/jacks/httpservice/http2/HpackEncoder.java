@@ -0,0 +1,185 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.http2;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Encodes HPACK header blocks (RFC 7541) sent to a client. Headers that are
+ * likely to repeat on the next response (content-type, server, cache-control
+ * and so on) are added to the dynamic table so from then on they cost one or
+ * two bytes. Values that change with every response are sent as literals so
+ * they don't push the useful entries out of the table, and credentials are
+ * marked never indexed. Strings are Huffman encoded when that is shorter.
+ *
+ * One encoder belongs to one connection and the blocks it produces must be
+ * written in the order they were encoded. Not thread safe.
+ *
+ * @author rjackson
+ */
+public final class HpackEncoder {
+
+    /**
+     * Headers whose values change too often to be worth a table entry.
+     */
+    private static final Set<String> NOT_INDEXED = new HashSet<String>();
+
+    /**
+     * Headers that must never be put in a table by anyone along the way.
+     */
+    private static final Set<String> NEVER_INDEXED = new HashSet<String>();
+
+    static {
+        NOT_INDEXED.add(":path");
+        NOT_INDEXED.add("content-length");
+        NOT_INDEXED.add("content-range");
+        NOT_INDEXED.add("date");
+        NOT_INDEXED.add("etag");
+        NOT_INDEXED.add("expires");
+        NOT_INDEXED.add("last-modified");
+        NOT_INDEXED.add("location");
+        NEVER_INDEXED.add("authorization");
+        NEVER_INDEXED.add("cookie");
+        NEVER_INDEXED.add("proxy-authorization");
+        NEVER_INDEXED.add("set-cookie");
+    }
+
+    private final HpackTable table;
+
+    /**
+     * Largest table size we are willing to use whatever the client allows.
+     */
+    private final int maxTableSize;
+
+    /**
+     * Smallest table size set since the last block, -1 if none. The client
+     * has to be told about it at the start of the next block.
+     */
+    private int pendingSizeUpdate = -1;
+
+    /**
+     * @param maxTableSize Largest dynamic table we will use.
+     */
+    public HpackEncoder(int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        // Until the client says otherwise the table is the default 4096.
+        this.table = new HpackTable(Math.min(maxTableSize, 4096));
+        if(table.getMaxSize() != 4096) {
+            pendingSizeUpdate = table.getMaxSize();
+        }
+    }
+
+    /**
+     * The client sent a new SETTINGS_HEADER_TABLE_SIZE.
+     */
+    public void setMaxTableSize(int size) {
+        size = Math.min(size, maxTableSize);
+        if(pendingSizeUpdate < 0 || size < pendingSizeUpdate) {
+            pendingSizeUpdate = size;
+        }
+        table.setMaxSize(size);
+    }
+
+    /**
+     * Encode a complete header block.
+     *
+     * @param headers Names and values, name first. Names must be lower case.
+     * @param out
+     */
+    public void encode(List<String> headers, ChannelBuffer out) {
+        if(pendingSizeUpdate >= 0) {
+            if(pendingSizeUpdate < table.getMaxSize()) {
+                // The table shrank and grew again, the client must see
+                // the smallest size first.
+                encodeInt(out, 0x20, 5, pendingSizeUpdate);
+            }
+            encodeInt(out, 0x20, 5, table.getMaxSize());
+            pendingSizeUpdate = -1;
+        }
+        for(int i = 0; i < headers.size(); i += 2) {
+            encodeHeader(headers.get(i), headers.get(i + 1), out);
+        }
+    }
+
+    private void encodeHeader(String name, String value, ChannelBuffer out) {
+        if(NEVER_INDEXED.contains(name)) {
+            encodeLiteral(out, 0x10, 4, table.find(name, ""), name, value);
+            return;
+        }
+        int index = table.find(name, value);
+        if(index > 0) {
+            encodeInt(out, 0x80, 7, index);
+        } else if(NOT_INDEXED.contains(name)) {
+            encodeLiteral(out, 0x00, 4, index, name, value);
+        } else {
+            encodeLiteral(out, 0x40, 6, index, name, value);
+            table.add(name, value);
+        }
+    }
+
+    /**
+     * @param index Minus the index of an entry with the same name, or 0 to
+     * send the name as a literal too. Full matches are never passed here.
+     */
+    private static void encodeLiteral(ChannelBuffer out, int pattern, int prefixBits,
+            int index, String name, String value) {
+        if(index < 0) {
+            encodeInt(out, pattern, prefixBits, -index);
+        } else {
+            encodeInt(out, pattern, prefixBits, 0);
+            encodeString(out, name);
+        }
+        encodeString(out, value);
+    }
+
+    static void encodeInt(ChannelBuffer out, int pattern, int prefixBits, int value) {
+        int mask = (1 << prefixBits) - 1;
+        if(value < mask) {
+            out.writeByte((byte)(pattern | value));
+            return;
+        }
+        out.writeByte((byte)(pattern | mask));
+        value -= mask;
+        while(value >= 0x80) {
+            out.writeByte((byte)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((byte)value);
+    }
+
+    private static void encodeString(ChannelBuffer out, String value) {
+        int huffmanLength = HpackHuffman.encodedLength(value);
+        if(huffmanLength < value.length()) {
+            encodeInt(out, 0x80, 7, huffmanLength);
+            HpackHuffman.encode(value, out);
+        } else {
+            encodeInt(out, 0x00, 7, value.length());
+            for(int i = 0; i < value.length(); i++) {
+                out.writeByte((byte)value.charAt(i));
+            }
+        }
+    }
+}
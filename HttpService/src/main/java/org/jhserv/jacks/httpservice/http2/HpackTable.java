@@ -0,0 +1,267 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.http2;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The HPACK header table (RFC 7541 section 2.3): the 61 entry static table
+ * followed by a size bounded dynamic table of recently sent headers. Index 1
+ * is the first static entry, index 62 the newest dynamic entry.
+ *
+ * Names and values are kept as ISO-8859-1 strings so one char is one octet
+ * and entry sizes can be worked out from the string lengths.
+ *
+ * Not thread safe, each side of a connection owns its own table.
+ *
+ * @author rjackson
+ */
+final class HpackTable {
+
+    private static final String[][] STATIC = {
+        {":authority", ""},
+        {":method", "GET"},
+        {":method", "POST"},
+        {":path", "/"},
+        {":path", "/index.html"},
+        {":scheme", "http"},
+        {":scheme", "https"},
+        {":status", "200"},
+        {":status", "204"},
+        {":status", "206"},
+        {":status", "304"},
+        {":status", "400"},
+        {":status", "404"},
+        {":status", "500"},
+        {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"},
+        {"accept-language", ""},
+        {"accept-ranges", ""},
+        {"accept", ""},
+        {"access-control-allow-origin", ""},
+        {"age", ""},
+        {"allow", ""},
+        {"authorization", ""},
+        {"cache-control", ""},
+        {"content-disposition", ""},
+        {"content-encoding", ""},
+        {"content-language", ""},
+        {"content-length", ""},
+        {"content-location", ""},
+        {"content-range", ""},
+        {"content-type", ""},
+        {"cookie", ""},
+        {"date", ""},
+        {"etag", ""},
+        {"expect", ""},
+        {"expires", ""},
+        {"from", ""},
+        {"host", ""},
+        {"if-match", ""},
+        {"if-modified-since", ""},
+        {"if-none-match", ""},
+        {"if-range", ""},
+        {"if-unmodified-since", ""},
+        {"last-modified", ""},
+        {"link", ""},
+        {"location", ""},
+        {"max-forwards", ""},
+        {"proxy-authenticate", ""},
+        {"proxy-authorization", ""},
+        {"range", ""},
+        {"referer", ""},
+        {"refresh", ""},
+        {"retry-after", ""},
+        {"server", ""},
+        {"set-cookie", ""},
+        {"strict-transport-security", ""},
+        {"transfer-encoding", ""},
+        {"user-agent", ""},
+        {"vary", ""},
+        {"via", ""},
+        {"www-authenticate", ""}
+    };
+
+    static final int STATIC_LENGTH = STATIC.length;
+
+    /**
+     * Per entry overhead added to the name and value lengths.
+     */
+    static final int ENTRY_OVERHEAD = 32;
+
+    /**
+     * Static table lookups. Keys are "name" for the first entry with that
+     * name and "name\0value" for entries with a value.
+     */
+    private static final Map<String, Integer> STATIC_INDEX = buildStaticIndex();
+
+    // Dynamic table ring buffer, newest entry at head - 1.
+    private String[] names = new String[16];
+    private String[] values = new String[16];
+    private int head;
+    private int count;
+    private int size;
+    private int maxSize;
+
+    HpackTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Number of entries in the static and dynamic tables together.
+     * @return
+     */
+    int length() {
+        return STATIC_LENGTH + count;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    String name(int index) throws Http2Exception {
+        if(index <= STATIC_LENGTH) {
+            checkIndex(index);
+            return STATIC[index - 1][0];
+        }
+        return names[slot(index)];
+    }
+
+    String value(int index) throws Http2Exception {
+        if(index <= STATIC_LENGTH) {
+            checkIndex(index);
+            return STATIC[index - 1][1];
+        }
+        return values[slot(index)];
+    }
+
+    /**
+     * Add an entry to the dynamic table, evicting the oldest entries to make
+     * room. An entry bigger than the whole table just empties it.
+     */
+    void add(String name, String value) {
+        int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+        evict(maxSize - entrySize);
+        if(entrySize > maxSize) {
+            return;
+        }
+        if(count == names.length) {
+            grow();
+        }
+        names[head] = name;
+        values[head] = value;
+        head = (head + 1) % names.length;
+        count++;
+        size += entrySize;
+    }
+
+    /**
+     * Change the maximum size of the dynamic table.
+     */
+    void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evict(maxSize);
+    }
+
+    /**
+     * Find a header in the table.
+     *
+     * @return The index of an entry matching both name and value, or minus
+     * the index of an entry matching only the name, or 0 if neither is found.
+     */
+    int find(String name, String value) {
+        Integer index = STATIC_INDEX.get(name + '\0' + value);
+        if(index != null) {
+            return index;
+        }
+        int nameIndex = 0;
+        for(int i = 0; i < count; i++) {
+            int s = (head - 1 - i + names.length) % names.length;
+            if(names[s].equals(name)) {
+                if(values[s].equals(value)) {
+                    return STATIC_LENGTH + 1 + i;
+                }
+                if(nameIndex == 0) {
+                    nameIndex = STATIC_LENGTH + 1 + i;
+                }
+            }
+        }
+        index = STATIC_INDEX.get(name);
+        if(index != null) {
+            return -index;
+        }
+        return -nameIndex;
+    }
+
+    private int slot(int index) throws Http2Exception {
+        int dynamic = index - STATIC_LENGTH - 1;
+        if(dynamic >= count) {
+            throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR,
+                    "Header table index out of range " + index);
+        }
+        return (head - 1 - dynamic + names.length) % names.length;
+    }
+
+    private void checkIndex(int index) throws Http2Exception {
+        if(index < 1) {
+            throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR,
+                    "Header table index out of range " + index);
+        }
+    }
+
+    private void evict(int targetSize) {
+        while(count > 0 && size > targetSize) {
+            int oldest = (head - count + names.length) % names.length;
+            size -= names[oldest].length() + values[oldest].length() + ENTRY_OVERHEAD;
+            names[oldest] = null;
+            values[oldest] = null;
+            count--;
+        }
+    }
+
+    private void grow() {
+        String[] newNames = new String[names.length * 2];
+        String[] newValues = new String[values.length * 2];
+        for(int i = 0; i < count; i++) {
+            int s = (head - count + i + names.length) % names.length;
+            newNames[i] = names[s];
+            newValues[i] = values[s];
+        }
+        names = newNames;
+        values = newValues;
+        head = count;
+    }
+
+    private static Map<String, Integer> buildStaticIndex() {
+        Map<String, Integer> index = new HashMap<String, Integer>();
+        for(int i = STATIC.length - 1; i >= 0; i--) {
+            // Walk backwards so the first entry with a name wins.
+            index.put(STATIC[i][0], i + 1);
+            if(!STATIC[i][1].isEmpty()) {
+                index.put(STATIC[i][0] + '\0' + STATIC[i][1], i + 1);
+            }
+        }
+        return index;
+    }
+}
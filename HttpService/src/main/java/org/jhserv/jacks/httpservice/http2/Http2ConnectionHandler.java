@@ -0,0 +1,907 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.http2;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jhserv.jacks.httpservice.server.PipelinedRequest;
+import org.jhserv.jacks.httpservice.server.PipelinedResponse;
+
+/**
+ * Server side of an HTTP/2 connection (RFC 7540). This replaces the HTTP/1.1
+ * codec, aggregator and sequencer in a pipeline once a connection has
+ * switched to HTTP/2, either by starting with the connection preface (prior
+ * knowledge) or through an Upgrade: h2c request.
+ *
+ * Every stream the client opens is turned into an HttpRequest and handed up
+ * the pipeline as a PipelinedRequest whose sequence is the stream id, so the
+ * rest of the pipeline and the execution stage work it exactly like an
+ * HTTP/1.1 request. Streams are independent so their requests run in
+ * parallel and responses go out as soon as they are ready, in whatever order
+ * that turns out to be. The PipelinedResponses written back are turned into
+ * HEADERS and DATA frames for the matching stream. DATA frames respect the
+ * clients flow control windows, anything that does not fit yet waits for a
+ * WINDOW_UPDATE.
+ *
+ * What we don't do: server push, stream priorities (streams with data to
+ * send simply take turns) and trailers on responses.
+ *
+ * Frames are read on the I/O thread and responses are written from the
+ * execution stage, so all connection state is guarded by this handler's
+ * monitor. Frames are always sent down while holding it so the wire order
+ * matches the order the HPACK encoder and flow control windows saw them in.
+ * A new instance is needed for every connection.
+ *
+ * @author rjackson
+ */
+@ChannelPipelineCoverage("one")
+public class Http2ConnectionHandler extends SimpleChannelHandler {
+
+    /**
+     * What every HTTP/2 client sends first.
+     */
+    public static final byte[] PREFACE =
+            "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charset.forName("US-ASCII"));
+
+    // Frame types
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    // Frame flags
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    // Settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int MAX_FRAME_SIZE_LIMIT = 16777215;
+    private static final int HEADER_TABLE_SIZE = 4096;
+    private static final int MAX_HEADER_LIST_SIZE = 65536;
+
+    private final int maxConcurrentStreams;
+    private final int maxContentLength;
+
+    private final HpackDecoder hpackDecoder =
+            new HpackDecoder(HEADER_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+    private final HpackEncoder hpackEncoder = new HpackEncoder(HEADER_TABLE_SIZE);
+
+    /**
+     * Open streams in the order they were opened. Streams with data waiting
+     * take turns in this order.
+     */
+    private final Map<Integer, Stream> streams = new LinkedHashMap<Integer, Stream>();
+
+    private ChannelBuffer cumulation = ChannelBuffers.EMPTY_BUFFER;
+    private boolean prefaceReceived;
+    private boolean prefaceSent;
+    private boolean goingAway;
+    private boolean goAwaySent;
+    private int lastStreamId;
+
+    // Header block being put back together from HEADERS and CONTINUATION.
+    private int headerStreamId;
+    private boolean headerEndStream;
+    private ChannelBuffer headerBlock;
+
+    // What the client told us in its SETTINGS.
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int connectionSendWindow = DEFAULT_WINDOW_SIZE;
+
+    /**
+     * @param maxConcurrentStreams Most streams a client may have open at once.
+     * @param maxContentLength Largest request body we accept on a stream.
+     */
+    public Http2ConnectionHandler(int maxConcurrentStreams, int maxContentLength) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.maxContentLength = maxContentLength;
+    }
+
+    /**
+     * Take over a connection that asked to upgrade with an Upgrade: h2c
+     * request the server has just answered with 101 Switching Protocols.
+     * The upgrade request becomes stream 1 which is already half closed,
+     * the caller must send the returned request up the pipeline from our
+     * context.
+     *
+     * @param ctx Our context.
+     * @param request The upgrade request.
+     * @param settings The decoded HTTP2-Settings header.
+     * @return
+     * @throws Http2Exception If the settings are not valid.
+     */
+    public synchronized PipelinedRequest upgrade(ChannelHandlerContext ctx, HttpRequest request,
+            ChannelBuffer settings) throws Http2Exception {
+        if(settings.readableBytes() % 6 != 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Bad HTTP2-Settings");
+        }
+        // The 101 acknowledges these settings so no ACK is sent.
+        applySettings(settings);
+        sendPreface(ctx);
+        request.removeHeader(HttpHeaders.Names.UPGRADE);
+        request.removeHeader(HttpHeaders.Names.CONNECTION);
+        request.removeHeader("HTTP2-Settings");
+        Stream stream = new Stream(1, peerInitialWindowSize);
+        stream.remoteClosed = true;
+        streams.put(1, stream);
+        lastStreamId = 1;
+        return new PipelinedRequest(request, 1);
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if(!(e.getMessage() instanceof ChannelBuffer)) {
+            super.messageReceived(ctx, e);
+            return;
+        }
+        List<PipelinedRequest> ready = new ArrayList<PipelinedRequest>();
+        synchronized(this) {
+            cumulation = ChannelBuffers.wrappedBuffer(cumulation, (ChannelBuffer)e.getMessage());
+            try {
+                sendPreface(ctx);
+                readFrames(ctx, ready);
+            } catch(Http2Exception ex) {
+                goAway(ctx, ex.getErrorCode(), ex.getMessage());
+                return;
+            }
+            // Keep only what is left of a partial frame.
+            cumulation = cumulation.readable() ?
+                    ChannelBuffers.copiedBuffer(cumulation) : ChannelBuffers.EMPTY_BUFFER;
+        }
+        // Handing requests to the execution stage can block when it is full,
+        // so do it without holding our monitor.
+        for(PipelinedRequest request : ready) {
+            Channels.fireMessageReceived(ctx, request, e.getRemoteAddress());
+        }
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if(!(e.getMessage() instanceof PipelinedResponse)) {
+            super.writeRequested(ctx, e);
+            return;
+        }
+        PipelinedResponse response = (PipelinedResponse)e.getMessage();
+        Object message = response.getMessage();
+        synchronized(this) {
+            Stream stream = streams.get(response.getSequence());
+            if(stream == null || stream.localClosed) {
+                // The client reset the stream, nobody wants this any more.
+                e.getFuture().setFailure(new IOException("Stream " +
+                        response.getSequence() + " is closed"));
+                return;
+            }
+            if(message instanceof HttpResponse) {
+                HttpResponse httpResponse = (HttpResponse)message;
+                ChannelBuffer content = httpResponse.getContent();
+                boolean hasContent = !httpResponse.isChunked() &&
+                        content != null && content.readable();
+                // A fixed length body may follow as raw buffers, the
+                // PipelinedResponse knows whether this is the end.
+                boolean endStream = response.isLast() && !hasContent;
+                writeHeaders(ctx, stream, httpResponse, endStream,
+                        hasContent ? null : e.getFuture());
+                if(hasContent) {
+                    stream.pending.add(new PendingData(content.slice(), response.isLast(),
+                            e.getFuture()));
+                }
+            } else if(message instanceof HttpChunk) {
+                HttpChunk chunk = (HttpChunk)message;
+                stream.pending.add(new PendingData(chunk.getContent().slice(),
+                        response.isLast(), e.getFuture()));
+            } else if(message instanceof ChannelBuffer) {
+                stream.pending.add(new PendingData(((ChannelBuffer)message).slice(),
+                        response.isLast(), e.getFuture()));
+            } else {
+                e.getFuture().setFailure(new IllegalArgumentException(
+                        "Can't send " + message.getClass().getName()));
+                return;
+            }
+            flush(ctx);
+        }
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        List<Stream> closed;
+        synchronized(this) {
+            closed = new ArrayList<Stream>(streams.values());
+            streams.clear();
+        }
+        for(Stream stream : closed) {
+            stream.fail(new ClosedChannelException());
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    //************* Reading frames ********************************************
+
+    private void readFrames(ChannelHandlerContext ctx, List<PipelinedRequest> ready)
+            throws Http2Exception {
+        if(!prefaceReceived) {
+            int length = Math.min(cumulation.readableBytes(), PREFACE.length);
+            for(int i = 0; i < length; i++) {
+                if(cumulation.getByte(cumulation.readerIndex() + i) != PREFACE[i]) {
+                    throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Bad preface");
+                }
+            }
+            if(length < PREFACE.length) {
+                return;
+            }
+            cumulation.skipBytes(PREFACE.length);
+            prefaceReceived = true;
+        }
+        while(cumulation.readableBytes() >= FRAME_HEADER_LENGTH) {
+            int start = cumulation.readerIndex();
+            int length = cumulation.getUnsignedMedium(start);
+            if(length > DEFAULT_MAX_FRAME_SIZE) {
+                throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR,
+                        "Frame of " + length + " bytes");
+            }
+            if(cumulation.readableBytes() < FRAME_HEADER_LENGTH + length) {
+                return;
+            }
+            int type = cumulation.getUnsignedByte(start + 3);
+            int flags = cumulation.getUnsignedByte(start + 4);
+            int streamId = cumulation.getInt(start + 5) & 0x7fffffff;
+            cumulation.skipBytes(FRAME_HEADER_LENGTH);
+            ChannelBuffer payload = cumulation.readSlice(length);
+            try {
+                readFrame(ctx, type, flags, streamId, payload, ready);
+            } catch(Http2Exception ex) {
+                if(ex.isConnectionError()) {
+                    throw ex;
+                }
+                resetStream(ctx, ex.getStreamId(), ex.getErrorCode());
+            }
+        }
+    }
+
+    private void readFrame(ChannelHandlerContext ctx, int type, int flags, int streamId,
+            ChannelBuffer payload, List<PipelinedRequest> ready) throws Http2Exception {
+        if(headerBlock != null && (type != CONTINUATION || streamId != headerStreamId)) {
+            throw protocolError("Expected CONTINUATION for stream " + headerStreamId);
+        }
+        switch(type) {
+            case DATA:
+                readData(ctx, flags, streamId, payload, ready);
+                break;
+            case HEADERS:
+                readHeaders(ctx, flags, streamId, payload, ready);
+                break;
+            case CONTINUATION:
+                if(headerBlock == null) {
+                    throw protocolError("Unexpected CONTINUATION");
+                }
+                appendHeaders(payload);
+                if((flags & FLAG_END_HEADERS) != 0) {
+                    endHeaders(ctx, ready);
+                }
+                break;
+            case PRIORITY:
+                if(streamId == 0) {
+                    throw protocolError("PRIORITY on stream 0");
+                }
+                if(payload.readableBytes() != 5) {
+                    throw Http2Exception.stream(streamId, Http2Exception.FRAME_SIZE_ERROR,
+                            "PRIORITY length");
+                }
+                break;
+            case RST_STREAM:
+                if(streamId == 0 || streamId > lastStreamId) {
+                    throw protocolError("RST_STREAM on idle stream " + streamId);
+                }
+                if(payload.readableBytes() != 4) {
+                    throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR,
+                            "RST_STREAM length");
+                }
+                Stream reset = streams.remove(streamId);
+                if(reset != null) {
+                    reset.fail(new IOException("Stream " + streamId + " reset by client"));
+                }
+                break;
+            case SETTINGS:
+                readSettings(ctx, flags, streamId, payload);
+                break;
+            case PUSH_PROMISE:
+                throw protocolError("Clients can't push");
+            case PING:
+                if(streamId != 0) {
+                    throw protocolError("PING on stream " + streamId);
+                }
+                if(payload.readableBytes() != 8) {
+                    throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR,
+                            "PING length");
+                }
+                if((flags & FLAG_ACK) == 0) {
+                    writeFrame(ctx, PING, FLAG_ACK, 0, ChannelBuffers.copiedBuffer(payload), null);
+                }
+                break;
+            case GOAWAY:
+                // Finish what we have and then close.
+                goingAway = true;
+                closeIfDone(ctx);
+                break;
+            case WINDOW_UPDATE:
+                readWindowUpdate(ctx, streamId, payload);
+                break;
+            default:
+                // Unknown frame types must be ignored.
+                break;
+        }
+    }
+
+    private void readData(ChannelHandlerContext ctx, int flags, int streamId,
+            ChannelBuffer payload, List<PipelinedRequest> ready) throws Http2Exception {
+        if(streamId == 0) {
+            throw protocolError("DATA on stream 0");
+        }
+        int frameLength = payload.readableBytes();
+        ChannelBuffer data = unpad(flags, payload);
+        // We don't hold back on reading so just give the window straight
+        // back, the execution stage limits how much we queue.
+        if(frameLength > 0) {
+            writeWindowUpdate(ctx, 0, frameLength);
+        }
+        Stream stream = streams.get(streamId);
+        if(stream == null || stream.remoteClosed) {
+            if(streamId > lastStreamId) {
+                throw protocolError("DATA on idle stream " + streamId);
+            }
+            throw Http2Exception.stream(streamId, Http2Exception.STREAM_CLOSED,
+                    "DATA on closed stream " + streamId);
+        }
+        if(frameLength > 0 && (flags & FLAG_END_STREAM) == 0) {
+            writeWindowUpdate(ctx, streamId, frameLength);
+        }
+        if(stream.content.readableBytes() + data.readableBytes() > maxContentLength) {
+            streams.remove(streamId);
+            throw Http2Exception.stream(streamId, Http2Exception.CANCEL,
+                    "Request body larger than " + maxContentLength);
+        }
+        stream.content.writeBytes(data);
+        if((flags & FLAG_END_STREAM) != 0) {
+            stream.remoteClosed = true;
+            ready.add(stream.toRequest());
+        }
+    }
+
+    private void readHeaders(ChannelHandlerContext ctx, int flags, int streamId,
+            ChannelBuffer payload, List<PipelinedRequest> ready) throws Http2Exception {
+        if(streamId == 0 || (streamId & 1) == 0) {
+            throw protocolError("HEADERS on stream " + streamId);
+        }
+        ChannelBuffer fragment = unpad(flags, payload);
+        if((flags & FLAG_PRIORITY) != 0) {
+            if(fragment.readableBytes() < 5) {
+                throw protocolError("HEADERS priority too short");
+            }
+            fragment.skipBytes(5);
+        }
+        headerStreamId = streamId;
+        headerEndStream = (flags & FLAG_END_STREAM) != 0;
+        headerBlock = ChannelBuffers.dynamicBuffer();
+        appendHeaders(fragment);
+        if((flags & FLAG_END_HEADERS) != 0) {
+            endHeaders(ctx, ready);
+        }
+    }
+
+    /**
+     * Add a fragment to the header block being put back together. A block
+     * can't decode to fewer bytes than it takes on the wire, so one already
+     * past MAX_HEADER_LIST_SIZE is refused before a client can keep us
+     * buffering CONTINUATION frames forever.
+     */
+    private void appendHeaders(ChannelBuffer fragment) throws Http2Exception {
+        if(headerBlock.readableBytes() + fragment.readableBytes() > MAX_HEADER_LIST_SIZE) {
+            throw Http2Exception.connection(Http2Exception.ENHANCE_YOUR_CALM,
+                    "Header block larger than " + MAX_HEADER_LIST_SIZE);
+        }
+        headerBlock.writeBytes(fragment);
+    }
+
+    /**
+     * A complete header block has arrived. It is decoded even if the stream
+     * is refused so our HPACK table stays in step with the clients.
+     */
+    private void endHeaders(ChannelHandlerContext ctx, List<PipelinedRequest> ready)
+            throws Http2Exception {
+        int streamId = headerStreamId;
+        boolean endStream = headerEndStream;
+        ChannelBuffer block = headerBlock;
+        headerBlock = null;
+        headerStreamId = 0;
+
+        List<String> headers = new ArrayList<String>();
+        hpackDecoder.decode(block, headers);
+
+        Stream stream = streams.get(streamId);
+        if(stream != null) {
+            // Trailers, which must end the stream. We don't pass them on.
+            if(stream.remoteClosed || !endStream) {
+                throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR,
+                        "HEADERS on half closed stream " + streamId);
+            }
+            stream.remoteClosed = true;
+            ready.add(stream.toRequest());
+            return;
+        }
+        if(streamId <= lastStreamId) {
+            throw Http2Exception.connection(Http2Exception.STREAM_CLOSED,
+                    "HEADERS on closed stream " + streamId);
+        }
+        lastStreamId = streamId;
+        if(goingAway) {
+            return;
+        }
+        if(streams.size() >= maxConcurrentStreams) {
+            throw Http2Exception.stream(streamId, Http2Exception.REFUSED_STREAM,
+                    "Too many streams");
+        }
+        stream = new Stream(streamId, peerInitialWindowSize);
+        stream.request = toRequest(streamId, headers);
+        streams.put(streamId, stream);
+        if(endStream) {
+            stream.remoteClosed = true;
+            ready.add(stream.toRequest());
+        }
+    }
+
+    private void readSettings(ChannelHandlerContext ctx, int flags, int streamId,
+            ChannelBuffer payload) throws Http2Exception {
+        if(streamId != 0) {
+            throw protocolError("SETTINGS on stream " + streamId);
+        }
+        if((flags & FLAG_ACK) != 0) {
+            if(payload.readable()) {
+                throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR,
+                        "SETTINGS ACK with payload");
+            }
+            return;
+        }
+        if(payload.readableBytes() % 6 != 0) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS length");
+        }
+        applySettings(payload);
+        writeFrame(ctx, SETTINGS, FLAG_ACK, 0, ChannelBuffers.EMPTY_BUFFER, null);
+        // A bigger initial window may let waiting data go.
+        flush(ctx);
+    }
+
+    private void applySettings(ChannelBuffer payload) throws Http2Exception {
+        while(payload.readable()) {
+            int id = payload.readUnsignedShort();
+            long value = payload.readUnsignedInt();
+            switch(id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    hpackEncoder.setMaxTableSize((int)Math.min(value, Integer.MAX_VALUE));
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if(value > 1) {
+                        throw protocolError("ENABLE_PUSH " + value);
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if(value > Integer.MAX_VALUE) {
+                        throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR,
+                                "INITIAL_WINDOW_SIZE " + value);
+                    }
+                    int delta = (int)value - peerInitialWindowSize;
+                    // RFC 7540 6.9.2, a window pushed past 2^31-1 by the
+                    // change is an error on the whole connection.
+                    for(Stream stream : streams.values()) {
+                        if((long)stream.sendWindow + delta > Integer.MAX_VALUE) {
+                            throw Http2Exception.connection(
+                                    Http2Exception.FLOW_CONTROL_ERROR,
+                                    "Stream " + stream.id + " window overflow");
+                        }
+                    }
+                    peerInitialWindowSize = (int)value;
+                    for(Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if(value < DEFAULT_MAX_FRAME_SIZE || value > MAX_FRAME_SIZE_LIMIT) {
+                        throw protocolError("MAX_FRAME_SIZE " + value);
+                    }
+                    peerMaxFrameSize = (int)value;
+                    break;
+                default:
+                    // MAX_CONCURRENT_STREAMS only limits pushes which we
+                    // never do. MAX_HEADER_LIST_SIZE is advisory and
+                    // unknown settings must be ignored.
+                    break;
+            }
+        }
+    }
+
+    private void readWindowUpdate(ChannelHandlerContext ctx, int streamId,
+            ChannelBuffer payload) throws Http2Exception {
+        if(payload.readableBytes() != 4) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR,
+                    "WINDOW_UPDATE length");
+        }
+        int increment = payload.readInt() & 0x7fffffff;
+        if(streamId == 0) {
+            if(increment == 0) {
+                throw protocolError("WINDOW_UPDATE of 0");
+            }
+            if(connectionSendWindow + increment < 0) {
+                throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR,
+                        "Connection window overflow");
+            }
+            connectionSendWindow += increment;
+        } else {
+            if(increment == 0) {
+                throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR,
+                        "WINDOW_UPDATE of 0");
+            }
+            Stream stream = streams.get(streamId);
+            if(stream == null) {
+                if(streamId > lastStreamId) {
+                    throw protocolError("WINDOW_UPDATE on idle stream " + streamId);
+                }
+                return;
+            }
+            if(stream.sendWindow + increment < 0) {
+                streams.remove(streamId);
+                stream.fail(new IOException("Stream " + streamId + " window overflow"));
+                throw Http2Exception.stream(streamId, Http2Exception.FLOW_CONTROL_ERROR,
+                        "Stream window overflow");
+            }
+            stream.sendWindow += increment;
+        }
+        flush(ctx);
+    }
+
+    private ChannelBuffer unpad(int flags, ChannelBuffer payload) throws Http2Exception {
+        if((flags & FLAG_PADDED) == 0) {
+            return payload;
+        }
+        if(!payload.readable()) {
+            throw protocolError("Missing pad length");
+        }
+        int padding = payload.readUnsignedByte();
+        if(padding > payload.readableBytes()) {
+            throw protocolError("Padding longer than frame");
+        }
+        return payload.readSlice(payload.readableBytes() - padding);
+    }
+
+    /**
+     * Turn a decoded request header list into an HttpRequest.
+     */
+    private HttpRequest toRequest(int streamId, List<String> headers) throws Http2Exception {
+        String method = null;
+        String path = null;
+        String authority = null;
+        List<String> regular = new ArrayList<String>();
+        for(int i = 0; i < headers.size(); i += 2) {
+            String name = headers.get(i);
+            String value = headers.get(i + 1);
+            if(name.startsWith(":")) {
+                if(!regular.isEmpty()) {
+                    throw malformed(streamId, "Pseudo header after regular header");
+                }
+                if(name.equals(":method")) {
+                    method = value;
+                } else if(name.equals(":path")) {
+                    path = value;
+                } else if(name.equals(":authority")) {
+                    authority = value;
+                } else if(!name.equals(":scheme")) {
+                    throw malformed(streamId, "Unknown pseudo header " + name);
+                }
+            } else {
+                if(!name.toLowerCase(Locale.ENGLISH).equals(name)) {
+                    throw malformed(streamId, "Upper case header " + name);
+                }
+                regular.add(name);
+                regular.add(value);
+            }
+        }
+        if(method == null || path == null || path.isEmpty()) {
+            throw malformed(streamId, "Missing :method or :path");
+        }
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+                HttpMethod.valueOf(method), path);
+        for(int i = 0; i < regular.size(); i += 2) {
+            request.addHeader(regular.get(i), regular.get(i + 1));
+        }
+        if(authority != null && !request.containsHeader(HttpHeaders.Names.HOST)) {
+            request.setHeader(HttpHeaders.Names.HOST, authority);
+        }
+        return request;
+    }
+
+    private static Http2Exception malformed(int streamId, String message) {
+        return Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, message);
+    }
+
+    private static Http2Exception protocolError(String message) {
+        return Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, message);
+    }
+
+    //************* Writing frames ********************************************
+
+    private void sendPreface(ChannelHandlerContext ctx) {
+        if(prefaceSent) {
+            return;
+        }
+        prefaceSent = true;
+        ChannelBuffer settings = ChannelBuffers.buffer(18);
+        settings.writeShort((short)SETTINGS_MAX_CONCURRENT_STREAMS);
+        settings.writeInt(maxConcurrentStreams);
+        settings.writeShort((short)SETTINGS_ENABLE_PUSH);
+        settings.writeInt(0);
+        settings.writeShort((short)SETTINGS_MAX_HEADER_LIST_SIZE);
+        settings.writeInt(MAX_HEADER_LIST_SIZE);
+        writeFrame(ctx, SETTINGS, 0, 0, settings, null);
+    }
+
+    private void writeHeaders(ChannelHandlerContext ctx, Stream stream, HttpResponse response,
+            boolean endStream, ChannelFuture future) {
+        List<String> headers = new ArrayList<String>();
+        headers.add(":status");
+        headers.add(String.valueOf(response.getStatus().getCode()));
+        for(String name : response.getHeaderNames()) {
+            String lowerName = name.toLowerCase(Locale.ENGLISH);
+            if(isConnectionHeader(lowerName)) {
+                continue;
+            }
+            for(String value : response.getHeaders(name)) {
+                headers.add(lowerName);
+                headers.add(value);
+            }
+        }
+        ChannelBuffer block = ChannelBuffers.dynamicBuffer(256);
+        hpackEncoder.encode(headers, block);
+
+        int type = HEADERS;
+        int flags = endStream ? FLAG_END_STREAM : 0;
+        do {
+            int length = Math.min(block.readableBytes(), peerMaxFrameSize);
+            ChannelBuffer fragment = block.readSlice(length);
+            boolean last = !block.readable();
+            writeFrame(ctx, type, flags | (last ? FLAG_END_HEADERS : 0), stream.id, fragment,
+                    last ? future : null);
+            type = CONTINUATION;
+            flags = 0;
+        } while(block.readable());
+        if(endStream) {
+            endLocal(ctx, stream);
+        }
+    }
+
+    /**
+     * Send as much waiting data as the flow control windows allow. Streams
+     * take turns one frame at a time so one big response can't use up the
+     * whole connection window.
+     */
+    private void flush(ChannelHandlerContext ctx) {
+        boolean progress = true;
+        while(progress) {
+            progress = false;
+            Iterator<Stream> i = new ArrayList<Stream>(streams.values()).iterator();
+            while(i.hasNext()) {
+                Stream stream = i.next();
+                PendingData data = stream.pending.peek();
+                if(data == null) {
+                    continue;
+                }
+                int readable = data.data.readableBytes();
+                int allowed = Math.min(Math.min(connectionSendWindow, stream.sendWindow),
+                        peerMaxFrameSize);
+                if(readable > 0 && allowed <= 0) {
+                    continue;
+                }
+                int length = Math.min(readable, allowed);
+                ChannelBuffer frame = data.data.readSlice(length);
+                boolean done = !data.data.readable();
+                connectionSendWindow -= length;
+                stream.sendWindow -= length;
+                writeFrame(ctx, DATA, done && data.endStream ? FLAG_END_STREAM : 0,
+                        stream.id, frame, done ? data.future : null);
+                if(done) {
+                    stream.pending.poll();
+                    if(data.endStream) {
+                        endLocal(ctx, stream);
+                    }
+                }
+                progress = true;
+            }
+        }
+    }
+
+    private void writeWindowUpdate(ChannelHandlerContext ctx, int streamId, int increment) {
+        ChannelBuffer payload = ChannelBuffers.buffer(4);
+        payload.writeInt(increment);
+        writeFrame(ctx, WINDOW_UPDATE, 0, streamId, payload, null);
+    }
+
+    private void resetStream(ChannelHandlerContext ctx, int streamId, int errorCode) {
+        Stream stream = streams.remove(streamId);
+        if(stream != null) {
+            stream.fail(new IOException("Stream " + streamId + " reset"));
+        }
+        ChannelBuffer payload = ChannelBuffers.buffer(4);
+        payload.writeInt(errorCode);
+        writeFrame(ctx, RST_STREAM, 0, streamId, payload, null);
+        closeIfDone(ctx);
+    }
+
+    /**
+     * Tell the client we are done and close once that is written. Only the
+     * first call sends anything.
+     */
+    private void goAway(ChannelHandlerContext ctx, int errorCode, String message) {
+        goingAway = true;
+        if(goAwaySent) {
+            return;
+        }
+        goAwaySent = true;
+        byte[] debug = message == null ? new byte[0] :
+                message.getBytes(Charset.forName("UTF-8"));
+        ChannelBuffer payload = ChannelBuffers.buffer(8 + debug.length);
+        payload.writeInt(lastStreamId);
+        payload.writeInt(errorCode);
+        payload.writeBytes(debug);
+        ChannelFuture future = Channels.future(ctx.getChannel());
+        writeFrame(ctx, GOAWAY, 0, 0, payload, future);
+        future.addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void writeFrame(ChannelHandlerContext ctx, int type, int flags, int streamId,
+            ChannelBuffer payload, ChannelFuture future) {
+        ChannelBuffer header = ChannelBuffers.buffer(FRAME_HEADER_LENGTH);
+        header.writeMedium(payload.readableBytes());
+        header.writeByte((byte)type);
+        header.writeByte((byte)flags);
+        header.writeInt(streamId);
+        Channel channel = ctx.getChannel();
+        Channels.write(ctx, future == null ? Channels.future(channel) : future,
+                ChannelBuffers.wrappedBuffer(header, payload));
+    }
+
+    /**
+     * We sent the end of a stream. It is done once the client has finished
+     * sending too, which for a request we dispatched it always has.
+     */
+    private void endLocal(ChannelHandlerContext ctx, Stream stream) {
+        stream.localClosed = true;
+        if(stream.remoteClosed) {
+            streams.remove(stream.id);
+        }
+        closeIfDone(ctx);
+    }
+
+    private void closeIfDone(ChannelHandlerContext ctx) {
+        if(goingAway && streams.isEmpty()) {
+            goAway(ctx, Http2Exception.NO_ERROR, null);
+        }
+    }
+
+    private static boolean isConnectionHeader(String name) {
+        return name.equals("connection") || name.equals("keep-alive") ||
+                name.equals("proxy-connection") || name.equals("transfer-encoding") ||
+                name.equals("upgrade");
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * State of a single stream.
+     */
+    private static final class Stream {
+        private final int id;
+        private HttpRequest request;
+        private final ChannelBuffer content = ChannelBuffers.dynamicBuffer(0);
+        private boolean remoteClosed;
+        private boolean localClosed;
+        private int sendWindow;
+        private final LinkedList<PendingData> pending = new LinkedList<PendingData>();
+
+        Stream(int id, int sendWindow) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+        }
+
+        PipelinedRequest toRequest() {
+            if(content.readable()) {
+                request.setContent(content);
+                request.setHeader(HttpHeaders.Names.CONTENT_LENGTH,
+                        String.valueOf(content.readableBytes()));
+            }
+            return new PipelinedRequest(request, id);
+        }
+
+        void fail(Throwable cause) {
+            for(PendingData data : pending) {
+                data.future.setFailure(cause);
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Response data waiting for flow control window.
+     */
+    private static final class PendingData {
+        private final ChannelBuffer data;
+        private final boolean endStream;
+        private final ChannelFuture future;
+
+        PendingData(ChannelBuffer data, boolean endStream, ChannelFuture future) {
+            this.data = data;
+            this.endStream = endStream;
+            this.future = future;
+        }
+    }
+}
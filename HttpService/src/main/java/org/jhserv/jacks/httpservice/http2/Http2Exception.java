@@ -0,0 +1,85 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.http2;
+
+/**
+ * An HTTP/2 protocol error. A connection error ends the whole connection
+ * with a GOAWAY, a stream error only resets the one stream with RST_STREAM.
+ *
+ * @author rjackson
+ */
+public class Http2Exception extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    // Error codes from RFC 7540 section 7.
+    public static final int NO_ERROR = 0x0;
+    public static final int PROTOCOL_ERROR = 0x1;
+    public static final int INTERNAL_ERROR = 0x2;
+    public static final int FLOW_CONTROL_ERROR = 0x3;
+    public static final int STREAM_CLOSED = 0x5;
+    public static final int FRAME_SIZE_ERROR = 0x6;
+    public static final int REFUSED_STREAM = 0x7;
+    public static final int CANCEL = 0x8;
+    public static final int COMPRESSION_ERROR = 0x9;
+    public static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private final int errorCode;
+    private final int streamId;
+
+    private Http2Exception(int errorCode, int streamId, String message) {
+        super(message);
+        this.errorCode = errorCode;
+        this.streamId = streamId;
+    }
+
+    /**
+     * An error that ends the connection.
+     */
+    public static Http2Exception connection(int errorCode, String message) {
+        return new Http2Exception(errorCode, 0, message);
+    }
+
+    /**
+     * An error that only resets the given stream.
+     */
+    public static Http2Exception stream(int streamId, int errorCode, String message) {
+        return new Http2Exception(errorCode, streamId, message);
+    }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * The stream to reset, or 0 if this is a connection error.
+     * @return
+     */
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public boolean isConnectionError() {
+        return streamId == 0;
+    }
+}
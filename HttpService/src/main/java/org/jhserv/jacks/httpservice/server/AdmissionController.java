@@ -0,0 +1,329 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jhserv.jacks.httpservice.utils.StripedCounter;
+
+/**
+ * Admission control for a single listener. It keeps track of how many
+ * connections the listener has open and how many requests it has received
+ * but not answered, and decides whether a newly accepted connection is let
+ * in.
+ *
+ * The decision is made by the HttpServerPipelineFactory, which Netty calls on
+ * the listeners boss thread right after the socket is accepted. In the pause
+ * mode a listener that is over its limits simply holds the boss thread there
+ * until there is room again. While it waits nothing else is accepted so new
+ * connections queue up in the kernels listen backlog instead of in our heap.
+ * In the reject mode, or if the wait runs out, the connection gets a 503 and
+ * is closed.
+ *
+ * Connections are only counted by the boss thread (so the check and the count
+ * can't race each other) and released from channelClosed on whatever worker
+ * owns the channel. Both counts are striped so closing connections and
+ * finishing requests on many workers don't contend.
+ *
+ * A single instance is shared by every pipeline of a listener. The number of
+ * unanswered requests on a connection is kept as the context attachment.
+ *
+ * @author rjackson
+ */
+@ChannelPipelineCoverage("all")
+public class AdmissionController extends SimpleChannelHandler {
+
+    private static final byte[] SERVICE_UNAVAILABLE = (
+            "HTTP/1.1 503 Service Unavailable\r\n" +
+            "Content-Length: 0\r\n" +
+            "Connection: close\r\n\r\n").getBytes(Charset.forName("US-ASCII"));
+
+    /**
+     * Longest a paused boss thread sleeps before looking at the counts again.
+     * The counts are not read under a lock so we don't rely on being woken up.
+     */
+    private static final long RECHECK_MILLIS = 50;
+
+    private final int maxConnections;
+    private final int maxPendingRequests;
+    private final boolean pauseAccept;
+    private final long maxWaitMillis;
+
+    private final StripedCounter connections = new StripedCounter();
+    private final StripedCounter pendingRequests = new StripedCounter();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong pauses = new AtomicLong();
+
+    private final Object capacityLock = new Object();
+    private volatile boolean waiting;
+    private volatile boolean shutdown;
+
+    private final ChannelHandler rejectHandler = new RejectHandler();
+
+    /**
+     * @param maxConnections Maximum open connections, 0 for no limit.
+     * @param maxPendingRequests Maximum unanswered requests, 0 for no limit.
+     * @param pauseAccept true to stop accepting while over a limit, false to
+     * reject straight away.
+     * @param maxWaitMillis Longest to stop accepting for before rejecting, 0
+     * to wait until there is room.
+     */
+    public AdmissionController(int maxConnections, int maxPendingRequests,
+            boolean pauseAccept, long maxWaitMillis) {
+        this.maxConnections = maxConnections;
+        this.maxPendingRequests = maxPendingRequests;
+        this.pauseAccept = pauseAccept;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Decide whether a newly accepted connection is let in. This must only be
+     * called from the listeners boss thread. If it returns true the connection
+     * has been counted and the pipeline built for it must include this
+     * handler so the count is released when it closes, if the pipeline can't
+     * be built the count must be given back with cancel. If it returns false
+     * the pipeline should only contain our reject handler.
+     *
+     * @return
+     */
+    public boolean admit() {
+        if(!hasCapacity()) {
+            if(!pauseAccept || !awaitCapacity()) {
+                rejected.incrementAndGet();
+                return false;
+            }
+        }
+        connections.increment();
+        return true;
+    }
+
+    /**
+     * Give back the count of a connection admit let in but that never got a
+     * pipeline, so will never be closed through us.
+     */
+    public void cancel() {
+        connections.decrement();
+        signal();
+    }
+
+    /**
+     * Handler that answers a connection we did not admit with a 503 and
+     * closes it.
+     *
+     * @return
+     */
+    public ChannelHandler getRejectHandler() {
+        return rejectHandler;
+    }
+
+    /**
+     * Wake up a paused boss thread so the listener can be closed. Anything
+     * accepted after this is rejected.
+     */
+    public void shutdown() {
+        shutdown = true;
+        synchronized(capacityLock) {
+            capacityLock.notifyAll();
+        }
+    }
+
+    /**
+     * Number of connections this listener currently has open.
+     * @return
+     */
+    public long getOpenConnections() {
+        return connections.sum();
+    }
+
+    /**
+     * Number of requests received by this listener that have not been
+     * answered yet.
+     * @return
+     */
+    public long getPendingRequests() {
+        return pendingRequests.sum();
+    }
+
+    /**
+     * Number of connections this listener has rejected.
+     * @return
+     */
+    public long getRejectedConnections() {
+        return rejected.get();
+    }
+
+    /**
+     * Number of times this listener stopped accepting because it was over
+     * one of its limits.
+     * @return
+     */
+    public long getAcceptPauses() {
+        return pauses.get();
+    }
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        ctx.setAttachment(new AtomicInteger());
+        super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if(PipelinedRequest.unwrap(e.getMessage()) instanceof HttpRequest) {
+            outstanding(ctx).incrementAndGet();
+            pendingRequests.increment();
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        int ended = PipelinedResponse.responsesEnded(e.getMessage());
+        if(ended > 0 && release(outstanding(ctx), ended) > 0) {
+            signal();
+        }
+        super.writeRequested(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        // Requests still outstanding on a closed connection will never be
+        // answered so stop counting them.
+        AtomicInteger outstanding = outstanding(ctx);
+        if(outstanding != null) {
+            release(outstanding, Integer.MAX_VALUE);
+        }
+        connections.decrement();
+        signal();
+        super.channelClosed(ctx, e);
+    }
+
+    /**
+     * Take up to max requests off a connections outstanding count and the
+     * listeners pending count.
+     *
+     * @return The number of requests released.
+     */
+    private int release(AtomicInteger outstanding, int max) {
+        for(;;) {
+            int current = outstanding.get();
+            int released = Math.min(current, max);
+            if(released <= 0) {
+                return 0;
+            }
+            if(outstanding.compareAndSet(current, current - released)) {
+                pendingRequests.add(-released);
+                return released;
+            }
+        }
+    }
+
+    private boolean hasCapacity() {
+        return (maxConnections <= 0 || connections.sum() < maxConnections) &&
+                (maxPendingRequests <= 0 || pendingRequests.sum() < maxPendingRequests);
+    }
+
+    /**
+     * Hold the boss thread until we are back under our limits, the wait runs
+     * out or we are shut down.
+     *
+     * @return true if there is room for the connection.
+     */
+    private boolean awaitCapacity() {
+        pauses.incrementAndGet();
+        long deadline = maxWaitMillis > 0 ?
+                System.currentTimeMillis() + maxWaitMillis : Long.MAX_VALUE;
+        synchronized(capacityLock) {
+            waiting = true;
+            try {
+                while(!shutdown && !hasCapacity()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if(remaining <= 0) {
+                        return false;
+                    }
+                    capacityLock.wait(Math.min(remaining, RECHECK_MILLIS));
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiting = false;
+            }
+        }
+        return !shutdown;
+    }
+
+    /**
+     * Wake the boss thread if it is paused waiting for room.
+     */
+    private void signal() {
+        if(waiting) {
+            synchronized(capacityLock) {
+                capacityLock.notifyAll();
+            }
+        }
+    }
+
+    private AtomicInteger outstanding(ChannelHandlerContext ctx) {
+        return (AtomicInteger)ctx.getAttachment();
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * Only handler in the pipeline of a connection we did not admit. It
+     * answers with a 503 as soon as the connection is up and closes it once
+     * that has been written. Anything the client sends is ignored.
+     */
+    @ChannelPipelineCoverage("all")
+    private static final class RejectHandler extends SimpleChannelUpstreamHandler {
+
+        @Override
+        public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            e.getChannel().write(ChannelBuffers.wrappedBuffer(SERVICE_UNAVAILABLE))
+                    .addListener(ChannelFutureListener.CLOSE);
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+            // Ignored, the connection is already being closed.
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+            e.getChannel().close();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jhserv.jacks.httpservice.utils.HttpDates;
+
+/**
+ * Range request (RFC 7233) support for resource responses. A range is a
+ * long[] of the first and last byte offsets, both inclusive.
+ *
+ * Ranges are only honoured on GET. A Range header we can't parse, one with
+ * more than MAX_RANGES ranges, or an If-Range that doesn't match the current
+ * version is ignored and the whole resource is sent. Overlapping and
+ * adjacent ranges are merged so a client can't make us send the same bytes
+ * over and over.
+ *
+ * More than one range is sent as multipart/byteranges. The parts are slices
+ * of the body, or windows of the file, with small header buffers between
+ * them, nothing is copied.
+ *
+ * @author rjackson
+ */
+public final class ByteRanges {
+
+    /**
+     * Most ranges we serve in one response.
+     */
+    public static final int MAX_RANGES = 16;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Random boundaries = new Random();
+
+    private ByteRanges() {
+    }
+
+    /**
+     * The ranges a request asks for.
+     *
+     * @param request
+     * @param etag Entity tag of the version that would be sent.
+     * @param lastModified When it last changed, 0 or less if not known.
+     * @param length Length of the version that would be sent.
+     * @return null to send the whole thing, an empty list if none of the
+     * ranges can be satisfied.
+     */
+    public static List<long[]> ranges(HttpRequest request, String etag, long lastModified,
+            long length) {
+        String range = request.getHeader(HttpHeaders.Names.RANGE);
+        if(range == null || !HttpMethod.GET.equals(request.getMethod())) {
+            return null;
+        }
+        String ifRange = request.getHeader(HttpHeaders.Names.IF_RANGE);
+        if(ifRange != null && !ifRangeMatches(ifRange.trim(), etag, lastModified)) {
+            return null;
+        }
+        return parse(range, length);
+    }
+
+    /**
+     * Parse a Range header.
+     *
+     * @param range
+     * @param length Length of the body the ranges are in.
+     * @return The ranges sorted and merged, null if the header isn't valid,
+     * an empty list if no range is inside the body.
+     */
+    public static List<long[]> parse(String range, long length) {
+        range = range.trim();
+        if(!range.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = range.substring(6).split(",");
+        if(specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<long[]>(specs.length);
+        try {
+            for(String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if(dash < 0) {
+                    return null;
+                }
+                long start;
+                long end;
+                if(dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if(suffix == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if(dash == spec.length() - 1) {
+                        end = length - 1;
+                    } else {
+                        end = Long.parseLong(spec.substring(dash + 1));
+                        if(end < start) {
+                            return null;
+                        }
+                        end = Math.min(end, length - 1);
+                    }
+                }
+                if(start < 0) {
+                    return null;
+                }
+                if(start < length) {
+                    ranges.add(new long[] {start, end});
+                }
+            }
+        } catch(NumberFormatException e) {
+            return null;
+        }
+        return merge(ranges);
+    }
+
+    /**
+     * Build the 416 response for ranges that are all outside the body.
+     *
+     * @param length
+     * @return
+     */
+    public static HttpResponse unsatisfiable(long length) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+        response.setHeader(HttpHeaders.Names.CONTENT_RANGE, "bytes */" + length);
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, "0");
+        return response;
+    }
+
+    /**
+     * Fill in a 206 response from an in memory body.
+     *
+     * @param response The 206 response, its other headers already set.
+     * @param body The whole body.
+     * @param ranges
+     * @param contentType Type of the body.
+     */
+    public static void setContent(HttpResponse response, ChannelBuffer body,
+            List<long[]> ranges, String contentType) {
+        long length = body.readableBytes();
+        int offset = body.readerIndex();
+        if(ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            response.setHeader(HttpHeaders.Names.CONTENT_RANGE, contentRange(range, length));
+            response.setContent(body.slice(offset + (int)range[0],
+                    (int)(range[1] - range[0] + 1)));
+        } else {
+            String boundary = newBoundary();
+            ChannelBuffer[] parts = new ChannelBuffer[ranges.size() * 2 + 1];
+            for(int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                parts[i * 2] = partHeader(boundary, contentType, range, length, i == 0);
+                parts[i * 2 + 1] = body.slice(offset + (int)range[0],
+                        (int)(range[1] - range[0] + 1));
+            }
+            parts[parts.length - 1] = trailer(boundary);
+            setMultipartType(response, boundary);
+            response.setContent(ChannelBuffers.wrappedBuffer(parts));
+        }
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH,
+                String.valueOf(response.getContent().readableBytes()));
+    }
+
+    /**
+     * A random multipart boundary. Parts are binary so it only has to be
+     * unlikely to turn up in the body.
+     *
+     * @return
+     */
+    public static String newBoundary() {
+        return "JACKS" + Long.toHexString(boundaries.nextLong()) +
+                Long.toHexString(boundaries.nextLong());
+    }
+
+    public static void setMultipartType(HttpResponse response, String boundary) {
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE,
+                "multipart/byteranges; boundary=" + boundary);
+    }
+
+    /**
+     * The delimiter and headers in front of one part of a multipart body.
+     *
+     * @param first Is this the first part?
+     * @return
+     */
+    public static ChannelBuffer partHeader(String boundary, String contentType, long[] range,
+            long length, boolean first) {
+        String header = (first ? "--" : "\r\n--") + boundary + "\r\n" +
+                HttpHeaders.Names.CONTENT_TYPE + ": " + contentType + "\r\n" +
+                HttpHeaders.Names.CONTENT_RANGE + ": " + contentRange(range, length) + "\r\n\r\n";
+        return ChannelBuffers.wrappedBuffer(header.getBytes(ASCII));
+    }
+
+    /**
+     * The delimiter closing a multipart body.
+     *
+     * @param boundary
+     * @return
+     */
+    public static ChannelBuffer trailer(String boundary) {
+        return ChannelBuffers.wrappedBuffer(("\r\n--" + boundary + "--\r\n").getBytes(ASCII));
+    }
+
+    public static String contentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    /**
+     * If-Range holds either an entity tag, which must match strongly, or
+     * the exact Last-Modified date.
+     */
+    private static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if(ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag != null && !etag.startsWith("W/") && ifRange.equals(etag);
+        }
+        long date = HttpDates.parse(ifRange);
+        return date >= 0 && lastModified > 0 && date / 1000 == lastModified / 1000;
+    }
+
+    private static List<long[]> merge(List<long[]> ranges) {
+        if(ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        List<long[]> merged = new ArrayList<long[]>(ranges.size());
+        long[] current = ranges.get(0);
+        for(int i = 1; i < ranges.size(); i++) {
+            long[] next = ranges.get(i);
+            if(next[0] <= current[1] + 1) {
+                current[1] = Math.max(current[1], next[1]);
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+}
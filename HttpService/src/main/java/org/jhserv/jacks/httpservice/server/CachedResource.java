@@ -0,0 +1,425 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jhserv.jacks.httpservice.utils.HttpDates;
+import org.osgi.framework.Bundle;
+
+/**
+ * A resource read fully into memory, with the header values of its response
+ * worked out up front. Every response built from it shares the same bytes.
+ *
+ * Text like resources also carry a gzip copy of their body, compressed once
+ * at the highest level when the resource is read or taken from a sibling
+ * name.gz resource if there is one, which is sent to clients that accept
+ * gzip. The ResponseCompression stage leaves those responses alone, so
+ * static assets are never compressed per request.
+ *
+ * Each variant has a strong entity tag made from a digest of its bytes,
+ * worked out once here, and the resource keeps its Last-Modified date
+ * ready formatted so a revalidation can be answered with a 304 without
+ * touching the body.
+ *
+ * A resource that came from a file remembers the size and modification time
+ * the file had when it was read so a copy that no longer matches the file
+ * can be thrown away. It also remembers the state and modification stamp its
+ * bundle had before it was read, so a copy read while the bundle was being
+ * updated or stopped isn't cached after the cache has already dropped the
+ * bundle's resources.
+ *
+ * @author rjackson
+ */
+public class CachedResource {
+
+    private final String contentType;
+    private final String contentLength;
+    private final ChannelBuffer content;
+    private final ChannelBuffer gzipContent;
+    private final String gzipLength;
+    private final String etag;
+    private final String gzipEtag;
+    private final String lastModifiedHeader;
+    private final long lastModified;
+    private final Bundle bundle;
+    private final int bundleState;
+    private final long bundleModified;
+    private final File file;
+    private final long fileLength;
+
+    /**
+     * Resources smaller than this aren't worth a gzip copy.
+     */
+    private static final int MIN_GZIP_SIZE = 256;
+
+    /**
+     * @param contentType
+     * @param content The body.
+     * @param gzipContent The body gzipped, null if there is no gzip variant.
+     * @param lastModified When the resource last changed, 0 if not known.
+     * @param bundle The bundle that registered the resource.
+     * @param file The file the body was read from, null if none.
+     */
+    public CachedResource(String contentType, ChannelBuffer content, ChannelBuffer gzipContent,
+            long lastModified, Bundle bundle, File file) {
+        this(contentType, content, gzipContent, lastModified, bundle, state(bundle),
+                modified(bundle), file);
+    }
+
+    private CachedResource(String contentType, ChannelBuffer content,
+            ChannelBuffer gzipContent, long lastModified, Bundle bundle, int bundleState,
+            long bundleModified, File file) {
+        this.contentType = contentType;
+        this.content = content;
+        this.contentLength = String.valueOf(content.readableBytes());
+        this.gzipContent = gzipContent;
+        this.gzipLength = gzipContent == null ? null :
+                String.valueOf(gzipContent.readableBytes());
+        this.etag = etag(content, "");
+        this.gzipEtag = gzipContent == null ? null : etag(content, "-gz");
+        this.lastModifiedHeader = lastModified > 0 ? HttpDates.format(lastModified) : null;
+        this.lastModified = lastModified;
+        this.bundle = bundle;
+        this.bundleState = bundleState;
+        this.bundleModified = bundleModified;
+        this.file = file;
+        this.fileLength = content.readableBytes();
+    }
+
+    /**
+     * Read a resource into memory.
+     *
+     * @param url Where the resource is.
+     * @param file The file behind the url, null if it isn't a file.
+     * @param gzipUrl Where an already gzipped copy of the resource is, null
+     * to compress it here if its type is worth compressing.
+     * @param contentType
+     * @param bundle The bundle that registered the resource.
+     * @return
+     * @throws IOException
+     */
+    public static CachedResource load(URL url, File file, URL gzipUrl, String contentType,
+            Bundle bundle) throws IOException {
+        return load(url.openConnection(), file, gzipUrl, contentType, bundle);
+    }
+
+    /**
+     * Read a resource into memory from a connection already opened to it,
+     * for callers that had to look at its length first.
+     *
+     * @param connection To where the resource is.
+     * @param file The file behind the connection, null if it isn't a file.
+     * @param gzipUrl Where an already gzipped copy of the resource is, null
+     * to compress it here if its type is worth compressing.
+     * @param contentType
+     * @param bundle The bundle that registered the resource.
+     * @return
+     * @throws IOException
+     */
+    public static CachedResource load(URLConnection connection, File file, URL gzipUrl,
+            String contentType, Bundle bundle) throws IOException {
+        int bundleState = state(bundle);
+        long bundleModified = modified(bundle);
+        long lastModified = file != null ? file.lastModified() : connection.getLastModified();
+        ChannelBuffer content = read(connection);
+        ChannelBuffer gzipContent = null;
+        if(gzipUrl != null) {
+            gzipContent = read(gzipUrl.openConnection());
+        } else if(content.readableBytes() >= MIN_GZIP_SIZE && isTextual(contentType)) {
+            gzipContent = gzip(content);
+            if(gzipContent.readableBytes() >= content.readableBytes()) {
+                gzipContent = null;
+            }
+        }
+        return new CachedResource(contentType, content, gzipContent, lastModified, bundle,
+                bundleState, bundleModified, file);
+    }
+
+    private static int state(Bundle bundle) {
+        return bundle == null ? 0 : bundle.getState();
+    }
+
+    private static long modified(Bundle bundle) {
+        return bundle == null ? 0 : bundle.getLastModified();
+    }
+
+    /**
+     * A strong entity tag for a body: part of its MD5 digest and its
+     * length. The gzip variant is a different representation so it gets the
+     * identity tag with a suffix.
+     */
+    private static String etag(ChannelBuffer content, String suffix) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] bytes = new byte[Math.min(content.readableBytes(), 8192)];
+        int index = content.readerIndex();
+        while(index < content.writerIndex()) {
+            int n = Math.min(bytes.length, content.writerIndex() - index);
+            content.getBytes(index, bytes, 0, n);
+            md5.update(bytes, 0, n);
+            index += n;
+        }
+        byte[] digest = md5.digest();
+        StringBuilder tag = new StringBuilder(32).append('"');
+        for(int i = 0; i < 8; i++) {
+            tag.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+            tag.append(Character.forDigit(digest[i] & 0xf, 16));
+        }
+        return tag.append('-').append(Integer.toHexString(content.readableBytes()))
+                .append(suffix).append('"').toString();
+    }
+
+    /**
+     * Is this a type that compresses well? Binary formats are normally
+     * compressed already.
+     *
+     * @param contentType
+     * @return
+     */
+    public static boolean isTextual(String contentType) {
+        String type = contentType.toLowerCase(Locale.ENGLISH);
+        return type.startsWith("text/") || type.contains("javascript") ||
+                type.contains("json") || type.contains("xml");
+    }
+
+    private static ChannelBuffer read(URLConnection connection) throws IOException {
+        int length = connection.getContentLength();
+        ChannelBuffer content = ChannelBuffers.dynamicBuffer(length > 0 ? length : 8192);
+        InputStream in = connection.getInputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while((n = in.read(buffer)) > 0) {
+                content.writeBytes(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    /**
+     * Gzip a body at the best compression level. This only happens once per
+     * resource so the extra time over the per request level pays for itself.
+     */
+    private static ChannelBuffer gzip(ChannelBuffer content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.readableBytes() / 2);
+        GZIPOutputStream out = new GZIPOutputStream(bytes) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        };
+        content.getBytes(content.readerIndex(), out, content.readableBytes());
+        out.close();
+        return ChannelBuffers.wrappedBuffer(bytes.toByteArray());
+    }
+
+    /**
+     * Answer a request for this resource: a 304 if the client already has
+     * it, a 206 (or 416) if it asked for ranges of it, otherwise a 200.
+     *
+     * @param request
+     * @param head Leave the body off?
+     * @param gzip Does the client accept gzip?
+     * @return
+     */
+    public HttpResponse respond(HttpRequest request, boolean head, boolean gzip) {
+        if(isNotModified(request, gzip)) {
+            return notModified(gzip);
+        }
+        if(!head) {
+            ChannelBuffer body = getContent(gzip);
+            List<long[]> ranges = ByteRanges.ranges(request, getEtag(gzip), lastModified,
+                    body.readableBytes());
+            if(ranges != null) {
+                if(ranges.isEmpty()) {
+                    return ByteRanges.unsatisfiable(body.readableBytes());
+                }
+                HttpResponse response = newResponse(HttpResponseStatus.PARTIAL_CONTENT, gzip);
+                ByteRanges.setContent(response, body, ranges, contentType);
+                return response;
+            }
+        }
+        return newResponse(head, gzip);
+    }
+
+    /**
+     * Build a 200 response for this resource.
+     *
+     * @param head Leave the body off?
+     * @param gzip Does the client accept gzip?
+     * @return
+     */
+    public HttpResponse newResponse(boolean head, boolean gzip) {
+        HttpResponse response = newResponse(HttpResponseStatus.OK, gzip);
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH,
+                gzip && gzipContent != null ? gzipLength : contentLength);
+        if(!head) {
+            response.setContent(getContent(gzip).duplicate());
+        }
+        return response;
+    }
+
+    /**
+     * A response with the headers of the variant a client gets, without
+     * length or body.
+     */
+    private HttpResponse newResponse(HttpResponseStatus status, boolean gzip) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, contentType);
+        response.setHeader(HttpHeaders.Names.ETAG, getEtag(gzip));
+        response.setHeader(HttpHeaders.Names.ACCEPT_RANGES, "bytes");
+        if(lastModifiedHeader != null) {
+            response.setHeader(HttpHeaders.Names.LAST_MODIFIED, lastModifiedHeader);
+        }
+        if(gzipContent != null) {
+            response.setHeader(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+            if(gzip) {
+                response.setHeader(HttpHeaders.Names.CONTENT_ENCODING, ResponseCompression.GZIP);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * The body of the variant a client gets. Callers must not move its
+     * indexes, duplicate or slice it instead.
+     *
+     * @param gzip Does the client accept gzip?
+     * @return
+     */
+    public ChannelBuffer getContent(boolean gzip) {
+        return gzip && gzipContent != null ? gzipContent : content;
+    }
+
+    /**
+     * Does the client already have the variant it would be sent?
+     *
+     * @param request
+     * @param gzip Does the client accept gzip?
+     * @return
+     */
+    public boolean isNotModified(HttpRequest request, boolean gzip) {
+        return ConditionalGet.isNotModified(request, getEtag(gzip), lastModified);
+    }
+
+    /**
+     * Build the 304 response for this resource.
+     *
+     * @param gzip Does the client accept gzip?
+     * @return
+     */
+    public HttpResponse notModified(boolean gzip) {
+        return ConditionalGet.notModified(getEtag(gzip), lastModifiedHeader,
+                gzipContent == null ? null : HttpHeaders.Names.ACCEPT_ENCODING);
+    }
+
+    /**
+     * The entity tag of the variant a client is sent.
+     *
+     * @param gzip Does the client accept gzip?
+     * @return
+     */
+    public String getEtag(boolean gzip) {
+        return gzip && gzipEtag != null ? gzipEtag : etag;
+    }
+
+    /**
+     * Is there a gzip variant of this resource?
+     * @return
+     */
+    public boolean hasGzip() {
+        return gzipContent != null;
+    }
+
+    /**
+     * Has the file this resource was read from changed since?
+     * @return Always false for resources that don't come from a file.
+     */
+    public boolean isStale() {
+        return file != null &&
+                (file.lastModified() != lastModified || file.length() != fileLength);
+    }
+
+    /**
+     * Is the bundle that registered this resource in the state it was in,
+     * and unchanged since, when the resource was read?
+     * @return Always true for resources with no bundle.
+     */
+    public boolean isCurrent() {
+        return bundle == null ||
+                (bundle.getState() == bundleState && bundle.getLastModified() == bundleModified);
+    }
+
+    /**
+     * Bytes this resource holds on to.
+     * @return
+     */
+    public int size() {
+        return content.capacity() + (gzipContent == null ? 0 : gzipContent.capacity());
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * When the resource was last changed, 0 if not known.
+     * @return
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * The bundle that registered the resource, may be null.
+     * @return
+     */
+    public Bundle getBundle() {
+        return bundle;
+    }
+}
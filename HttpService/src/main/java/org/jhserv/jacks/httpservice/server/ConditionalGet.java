@@ -0,0 +1,124 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jhserv.jacks.httpservice.utils.HttpDates;
+
+/**
+ * Evaluates If-None-Match and If-Modified-Since (RFC 7232) so a client that
+ * already has the current version of something gets a 304 with no body.
+ * This is checked before any body is produced, for a cached resource it
+ * costs a couple of string compares.
+ *
+ * If-None-Match wins when both are sent. It is compared weakly, as the spec
+ * asks for, so a W/ prefix on either side is ignored. If-Modified-Since is
+ * only honoured on GET and HEAD and is compared to the second since that is
+ * all an HTTP date holds.
+ *
+ * @author rjackson
+ */
+public final class ConditionalGet {
+
+    private ConditionalGet() {
+    }
+
+    /**
+     * Does the client already have this version?
+     *
+     * @param request
+     * @param etag The current entity tag, quotes included, or null.
+     * @param lastModified When it last changed, 0 or less if not known.
+     * @return true if a 304 should be sent.
+     */
+    public static boolean isNotModified(HttpRequest request, String etag, long lastModified) {
+        HttpMethod method = request.getMethod();
+        if(!HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method)) {
+            return false;
+        }
+        String ifNoneMatch = request.getHeader(HttpHeaders.Names.IF_NONE_MATCH);
+        if(ifNoneMatch != null) {
+            return etag != null && matches(ifNoneMatch, etag);
+        }
+        if(lastModified <= 0) {
+            return false;
+        }
+        long since = HttpDates.parse(request.getHeader(HttpHeaders.Names.IF_MODIFIED_SINCE));
+        return since >= 0 && lastModified / 1000 <= since / 1000;
+    }
+
+    /**
+     * Build a 304 response carrying the validators of the current version.
+     *
+     * @param etag May be null.
+     * @param lastModified Date header value, may be null.
+     * @param vary Vary header value, may be null.
+     * @return
+     */
+    public static HttpResponse notModified(String etag, String lastModified, String vary) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.NOT_MODIFIED);
+        if(etag != null) {
+            response.setHeader(HttpHeaders.Names.ETAG, etag);
+        }
+        if(lastModified != null) {
+            response.setHeader(HttpHeaders.Names.LAST_MODIFIED, lastModified);
+        }
+        if(vary != null) {
+            response.setHeader(HttpHeaders.Names.VARY, vary);
+        }
+        return response;
+    }
+
+    /**
+     * Weak comparison of an If-None-Match list against an entity tag.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        String tag = opaque(etag);
+        int start = 0;
+        int length = ifNoneMatch.length();
+        while(start < length) {
+            int end = ifNoneMatch.indexOf(',', start);
+            if(end < 0) {
+                end = length;
+            }
+            String candidate = ifNoneMatch.substring(start, end).trim();
+            if(candidate.equals("*") || opaque(candidate).equals(tag)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private static String opaque(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.timeout.IdleState;
+import org.jboss.netty.handler.timeout.IdleStateAwareChannelHandler;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+import org.jboss.netty.handler.timeout.TimeoutException;
+import org.jhserv.jacks.httpservice.servicetracker.LogTracker;
+
+/**
+ * Closes connections that the IdleStateHandler or WriteTimeoutHandler in
+ * front of us report as idle or stuck. This sits between the HTTP codec and
+ * our execution stage so it can count the requests on a connection that have
+ * been read in full and not been answered yet, and tell when a chunked
+ * request is still being read:
+ *
+ * <ul>
+ * <li>Reader idle or all idle with no request outstanding means a keep alive
+ * connection nobody is using or a client that stopped part way through
+ * sending a request. Both get closed.</li>
+ * <li>Reader idle or all idle part way through a chunked request body means
+ * the client stopped sending it. That gets closed whatever else is
+ * outstanding, the chunks it did send would otherwise be held forever.</li>
+ * <li>Writer idle with a request outstanding means the response has stalled,
+ * usually because the client stopped reading. That gets closed too so it
+ * can't pin our buffers.</li>
+ * <li>A write timeout always closes the connection.</li>
+ * </ul>
+ *
+ * A single instance is shared by every pipeline of a server. The state of a
+ * connection is kept as the context attachment.
+ *
+ * @author rjackson
+ */
+@ChannelPipelineCoverage("all")
+public class ConnectionReaper extends IdleStateAwareChannelHandler {
+
+    private final LogTracker log = LogTracker.getInstance();
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        ctx.setAttachment(new State());
+        super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        State state = state(ctx);
+        Object message = PipelinedRequest.unwrap(e.getMessage());
+        if(message instanceof HttpRequest) {
+            if(((HttpRequest)message).isChunked()) {
+                state.reading = true;
+            } else {
+                state.outstanding.incrementAndGet();
+            }
+        } else if(message instanceof HttpChunk && ((HttpChunk)message).isLast()) {
+            state.reading = false;
+            state.outstanding.incrementAndGet();
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        int ended = PipelinedResponse.responsesEnded(e.getMessage());
+        if(ended > 0) {
+            state(ctx).outstanding.addAndGet(-ended);
+        }
+        super.writeRequested(ctx, e);
+    }
+
+    @Override
+    public void channelIdle(ChannelHandlerContext ctx, IdleStateEvent e) {
+        State state = state(ctx);
+        boolean close;
+        if(e.getState() == IdleState.WRITER_IDLE) {
+            close = state.outstanding.get() > 0;
+        } else {
+            close = state.reading || state.outstanding.get() == 0;
+        }
+        if(close) {
+            log.debug("Closing " + e.getState() + " connection " + e.getChannel().getRemoteAddress());
+            e.getChannel().close();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+        if(e.getCause() instanceof TimeoutException) {
+            log.debug("Closing timed out connection " + e.getChannel().getRemoteAddress());
+            e.getChannel().close();
+        } else {
+            super.exceptionCaught(ctx, e);
+        }
+    }
+
+    private State state(ChannelHandlerContext ctx) {
+        return (State)ctx.getAttachment();
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * Requests read in full and not answered yet, and whether a chunked
+     * request body is part way through being read. reading is only written
+     * by the I/O thread but read by the timer's.
+     */
+    private static final class State {
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile boolean reading;
+    }
+}
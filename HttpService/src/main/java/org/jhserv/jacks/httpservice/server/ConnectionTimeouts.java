@@ -0,0 +1,131 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.handler.timeout.HashedWheelTimer;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
+import org.jboss.netty.handler.timeout.Timer;
+import org.jboss.netty.handler.timeout.WriteTimeoutHandler;
+import org.jboss.netty.util.ExternalResourceReleasable;
+
+/**
+ * Holds the connection timeouts of a server and the single hashed wheel timer
+ * that drives them. Every connection of the server schedules its timeouts on
+ * this one timer so we don't end up with a scheduled task or thread per
+ * connection. All timeouts are in millis, 0 means the timeout is off.
+ *
+ * @author rjackson
+ */
+public class ConnectionTimeouts implements ExternalResourceReleasable {
+
+    private final Timer timer;
+    private final long readIdleMillis;
+    private final long writeIdleMillis;
+    private final long keepAliveMillis;
+
+    /**
+     * Shared write timeout handler or null if write timeouts are off.
+     */
+    private final WriteTimeoutHandler writeTimeoutHandler;
+
+    /**
+     * Shared handler that closes the idle connections.
+     */
+    private final ConnectionReaper reaper = new ConnectionReaper();
+
+    /**
+     * @param readIdleMillis Close a connection that has not sent us anything
+     * for this long while no request is outstanding or part way through a
+     * request body.
+     * @param writeIdleMillis Close a connection we have not been able to write
+     * to for this long while a request is outstanding.
+     * @param keepAliveMillis Close a connection with no reads or writes for
+     * this long while no request is outstanding or part way through a
+     * request body.
+     * @param writeTimeoutMillis Close a connection if a single write takes
+     * longer than this.
+     */
+    public ConnectionTimeouts(long readIdleMillis, long writeIdleMillis,
+            long keepAliveMillis, long writeTimeoutMillis) {
+        HashedWheelTimer wheel = new HashedWheelTimer(100, TimeUnit.MILLISECONDS);
+        wheel.start();
+        this.timer = wheel;
+        this.readIdleMillis = readIdleMillis;
+        this.writeIdleMillis = writeIdleMillis;
+        this.keepAliveMillis = keepAliveMillis;
+        if(writeTimeoutMillis > 0) {
+            writeTimeoutHandler = new WriteTimeoutHandler(timer, writeTimeoutMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            writeTimeoutHandler = null;
+        }
+    }
+
+    /**
+     * The timer all of our timeouts are scheduled on. Other per server
+     * housekeeping can use it as well.
+     *
+     * @return
+     */
+    public Timer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Add the timeout handlers to the front of a new pipeline. Must be called
+     * before any other handlers are added.
+     *
+     * @param pipeline
+     */
+    public void addFirst(ChannelPipeline pipeline) {
+        if(writeTimeoutHandler != null) {
+            pipeline.addLast("writeTimeout", writeTimeoutHandler);
+        }
+        if(readIdleMillis > 0 || writeIdleMillis > 0 || keepAliveMillis > 0) {
+            // The IdleStateHandler keeps per channel state so we need a new one
+            // for every pipeline. They all share our timer.
+            pipeline.addLast("idle", new IdleStateHandler(timer, readIdleMillis,
+                    writeIdleMillis, keepAliveMillis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Add the handler that closes idle connections. This must go after the
+     * HTTP codec.
+     *
+     * @param pipeline
+     */
+    public void addReaper(ChannelPipeline pipeline) {
+        pipeline.addLast("reaper", reaper);
+    }
+
+    /**
+     * Stop our timer. Any timeouts still scheduled are dropped.
+     */
+    @Override
+    public void releaseExternalResources() {
+        timer.stop();
+    }
+}
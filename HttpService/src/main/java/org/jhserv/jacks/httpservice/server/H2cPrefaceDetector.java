@@ -0,0 +1,79 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jhserv.jacks.httpservice.http2.Http2ConnectionHandler;
+
+/**
+ * Looks at the first bytes of a connection for the HTTP/2 connection
+ * preface. A client that knows we speak HTTP/2 over plain TCP (prior
+ * knowledge) starts with it, in which case the pipeline is switched to
+ * HTTP/2 before the bytes are passed on. Anything else is HTTP/1.x. Either
+ * way this handler removes itself once it knows.
+ *
+ * @author rjackson
+ */
+@ChannelPipelineCoverage("one")
+class H2cPrefaceDetector extends SimpleChannelHandler {
+
+    private final HttpServerPipelineFactory factory;
+    private ChannelBuffer received = ChannelBuffers.EMPTY_BUFFER;
+
+    H2cPrefaceDetector(HttpServerPipelineFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if(!(e.getMessage() instanceof ChannelBuffer)) {
+            super.messageReceived(ctx, e);
+            return;
+        }
+        received = ChannelBuffers.wrappedBuffer(received, (ChannelBuffer)e.getMessage());
+        byte[] preface = Http2ConnectionHandler.PREFACE;
+        int length = Math.min(received.readableBytes(), preface.length);
+        boolean matches = true;
+        for(int i = 0; i < length && matches; i++) {
+            matches = received.getByte(received.readerIndex() + i) == preface[i];
+        }
+        if(matches && length < preface.length) {
+            // Need more to tell.
+            received = ChannelBuffers.copiedBuffer(received);
+            return;
+        }
+        if(matches) {
+            factory.switchToHttp2(ctx.getPipeline());
+        }
+        ctx.getPipeline().remove(this);
+        ChannelBuffer buffered = received;
+        received = null;
+        Channels.fireMessageReceived(ctx, buffered, e.getRemoteAddress());
+    }
+}
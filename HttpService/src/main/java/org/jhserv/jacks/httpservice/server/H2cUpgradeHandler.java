@@ -0,0 +1,134 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.base64.Base64;
+import org.jboss.netty.handler.codec.base64.Base64Dialect;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jhserv.jacks.httpservice.http2.Http2ConnectionHandler;
+import org.jhserv.jacks.httpservice.http2.Http2Exception;
+
+/**
+ * Handles the HTTP/1.1 Upgrade: h2c dance (RFC 7540 section 3.2). Only the
+ * first request on a connection may upgrade. If it asks to and carries a
+ * usable HTTP2-Settings header we answer 101 Switching Protocols, switch the
+ * pipeline to HTTP/2 and hand the request on as stream 1. Requests with a
+ * body are not upgraded since the body would have to be read as HTTP/1.1
+ * first, they are simply served over HTTP/1.1. Either way this handler
+ * removes itself after the first request.
+ *
+ * @author rjackson
+ */
+@ChannelPipelineCoverage("one")
+class H2cUpgradeHandler extends SimpleChannelHandler {
+
+    private static final String HTTP2_SETTINGS = "HTTP2-Settings";
+    private static final String H2C = "h2c";
+
+    private final HttpServerPipelineFactory factory;
+
+    H2cUpgradeHandler(HttpServerPipelineFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if(!(e.getMessage() instanceof HttpRequest)) {
+            super.messageReceived(ctx, e);
+            return;
+        }
+        HttpRequest request = (HttpRequest)e.getMessage();
+        ChannelPipeline pipeline = ctx.getPipeline();
+        ChannelBuffer settings = upgradeSettings(request);
+        if(settings == null) {
+            pipeline.remove(this);
+            Channels.fireMessageReceived(ctx, request, e.getRemoteAddress());
+            return;
+        }
+
+        // The 101 has to go through the HTTP/1.1 encoder so send it before
+        // the pipeline changes.
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.SWITCHING_PROTOCOLS);
+        response.setHeader(HttpHeaders.Names.CONNECTION, "Upgrade");
+        response.setHeader(HttpHeaders.Names.UPGRADE, H2C);
+        Channels.write(ctx, Channels.future(ctx.getChannel()), response);
+
+        Http2ConnectionHandler http2 = factory.switchToHttp2(pipeline);
+        ChannelHandlerContext http2Ctx = pipeline.getContext(http2);
+        PipelinedRequest upgraded;
+        try {
+            upgraded = http2.upgrade(http2Ctx, request, settings);
+        } catch(Http2Exception ex) {
+            // Can't happen, upgradeSettings checked the length.
+            ctx.getChannel().close();
+            return;
+        }
+        Channels.fireMessageReceived(http2Ctx, upgraded, e.getRemoteAddress());
+    }
+
+    /**
+     * The decoded HTTP2-Settings if this request asks to upgrade to h2c and
+     * can be, null otherwise.
+     */
+    private ChannelBuffer upgradeSettings(HttpRequest request) {
+        String upgrade = request.getHeader(HttpHeaders.Names.UPGRADE);
+        String encoded = request.getHeader(HTTP2_SETTINGS);
+        if(upgrade == null || encoded == null || request.isChunked() ||
+                (request.getContent() != null && request.getContent().readable())) {
+            return null;
+        }
+        boolean h2c = false;
+        for(String protocol : upgrade.split(",")) {
+            h2c |= protocol.trim().equalsIgnoreCase(H2C);
+        }
+        if(!h2c) {
+            return null;
+        }
+        // token68 without padding, which our decoder wants.
+        StringBuilder padded = new StringBuilder(encoded.trim());
+        while(padded.length() % 4 != 0) {
+            padded.append('=');
+        }
+        try {
+            ChannelBuffer settings = Base64.decode(ChannelBuffers.copiedBuffer(
+                    padded.toString(), "US-ASCII"), Base64Dialect.URL_SAFE);
+            return settings.readableBytes() % 6 == 0 ? settings : null;
+        } catch(RuntimeException ex) {
+            return null;
+        }
+    }
+}
@@ -21,11 +21,17 @@
 
 package org.jhserv.jacks.httpservice.server;
 
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -36,7 +42,6 @@ import org.jboss.netty.handler.codec.http.Cookie;
 import org.jboss.netty.handler.codec.http.CookieDecoder;
 import org.jboss.netty.handler.codec.http.CookieEncoder;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
-import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
@@ -46,22 +51,89 @@ import org.jboss.netty.handler.codec.http.QueryStringDecoder;
 import org.jhserv.jacks.httpservice.servicetracker.LogTracker;
 
 /**
+ * Our HTTP request handler. A single instance of this handler is shared by
+ * every pipeline of a server so it must not hold any per request data in its
+ * own fields. Requests pipelined on one connection may be worked at the same
+ * time, so instead each request gets a RequestState object while it is being
+ * worked. Once the response has been written the state is cleared and put
+ * back into a pool so the next request can reuse it (and its StringBuilder)
+ * instead of allocating new ones.
+ *
+ * Requests arrive as PipelinedRequests with their bodies already put back
+ * together by the HttpChunkAggregator, and responses are written as
+ * PipelinedResponses so the ResponseSequencer can keep them in order.
+ *
+ * Requests for resources registered with registerResources are handed to
+ * the ResourceSender.
+ *
  * @author rjackson
  */
 
-@ChannelPipelineCoverage("one")
+@ChannelPipelineCoverage("all")
 public class HttpRequestHandler extends SimpleChannelHandler {
 
+    /**
+     * Maximum number of idle RequestState objects we keep around for reuse.
+     */
+    private static final int MAX_POOLED_STATES = 1024;
+
+    /**
+     * If a request grew its response buffer beyond this many chars we let
+     * the buffer go instead of pooling it so one big response does not pin
+     * memory forever.
+     */
+    private static final int MAX_POOLED_BUFFER = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     // Log tracker
     private final LogTracker log = LogTracker.getInstance();
-    private volatile HttpRequest request;
-    private volatile boolean readingChunks;
-    private final StringBuilder responseContent = new StringBuilder();
+
+    /**
+     * Pool of direct buffers our response bodies are encoded into.
+     */
+    private final ResponseBufferPool bufferPool;
+
+    /**
+     * Idle per request state objects ready for reuse.
+     */
+    private final Queue<RequestState> statePool = new ConcurrentLinkedQueue<RequestState>();
+    private final AtomicInteger pooledStates = new AtomicInteger();
+
+    /**
+     * Where we find the registrations requests are routed to.
+     */
+    private final ServletRequestHandler servlets;
+
+    private final ResourceSender resourceSender;
+
+    /**
+     * @param bufferPool
+     * @param servlets
+     * @param resourceCache
+     * @param executor Executor of the execution stage.
+     */
+    public HttpRequestHandler(ResponseBufferPool bufferPool, ServletRequestHandler servlets,
+            ResourceCache resourceCache, Executor executor) {
+        this.bufferPool = bufferPool;
+        this.servlets = servlets;
+        this.resourceSender = new ResourceSender(resourceCache, executor);
+    }
 
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-        if (!readingChunks) {
-            HttpRequest request = this.request = (HttpRequest) e.getMessage();
+        PipelinedRequest pipelined = (PipelinedRequest) e.getMessage();
+        String path = new QueryStringDecoder(pipelined.getRequest().getUri()).getPath();
+        ServletExecuter executer = servlets.getRoutingTable().findExecuter(path);
+        if(executer != null && executer.getServlet() instanceof ResourceServlet) {
+            resourceSender.send(e.getChannel(), pipelined, (ResourceServlet)executer.getServlet(),
+                    path, isClose(pipelined.getRequest()));
+            return;
+        }
+        RequestState state = acquireState();
+        try {
+            StringBuilder responseContent = state.responseContent;
+            HttpRequest request = pipelined.getRequest();
             responseContent.append("WELCOME TO THE WILD WILD WEB SERVER\r\n");
             responseContent.append("===================================\r\n");
 
@@ -93,39 +165,54 @@ public class HttpRequestHandler extends SimpleChannelHandler {
                 responseContent.append("\r\n");
             }
 
-            if (request.isChunked()) {
-                readingChunks = true;
-                return;
-            } else {
-                ChannelBuffer content = request.getContent();
-                if (content.readable()) {
-                    responseContent.append("CONTENT: " + content.toString("UTF-8") + "\r\n");
-                }
-                writeResponse(e);
+            ChannelBuffer content = request.getContent();
+            if (content.readable()) {
+                responseContent.append("CONTENT: " + content.toString("UTF-8") + "\r\n");
             }
+            writeResponse(pipelined, state, e);
+        } finally {
+            releaseState(state);
+        }
+    }
+
+    /**
+     * Get a state object for a new request, reusing a pooled one if we have
+     * one.
+     */
+    private RequestState acquireState() {
+        RequestState state = statePool.poll();
+        if(state == null) {
+            return new RequestState();
+        }
+        pooledStates.decrementAndGet();
+        return state;
+    }
+
+    /**
+     * Clear the state of a finished request and return it to the pool if
+     * there is room.
+     */
+    private void releaseState(RequestState state) {
+        if(state.responseContent.capacity() > MAX_POOLED_BUFFER) {
+            return;
+        }
+        state.reset();
+        if(pooledStates.incrementAndGet() <= MAX_POOLED_STATES) {
+            statePool.offer(state);
         } else {
-            HttpChunk chunk = (HttpChunk) e.getMessage();
-            if (chunk.isLast()) {
-                readingChunks = false;
-                responseContent.append("END OF CONTENT\r\n");
-                writeResponse(e);
-                return;
-            } else {
-                responseContent.append("CHUNK: " + chunk.getContent().toString("UTF-8") + "\r\n");
-            }
+            pooledStates.decrementAndGet();
         }
     }
 
-    private void writeResponse(MessageEvent e) {
-        // Convert the response content to a ChannelBuffer.
-        ChannelBuffer buf = ChannelBuffers.copiedBuffer(responseContent.toString(), "UTF-8");
-        responseContent.setLength(0);
+    private void writeResponse(PipelinedRequest pipelined, RequestState state, MessageEvent e) {
+        HttpRequest request = pipelined.getRequest();
+        // Encode the response content straight into pooled buffers.
+        ChannelBuffer[] buffers = bufferPool.encode(state.responseContent, state.encoder);
+        ChannelBuffer buf = ResponseBufferPool.join(buffers);
+        state.responseContent.setLength(0);
 
         // Decide whether to close the connection or not.
-        boolean close =
-                HttpHeaders.Values.CLOSE.equalsIgnoreCase(request.getHeader(HttpHeaders.Names.CONNECTION)) ||
-                request.getProtocolVersion().equals(HttpVersion.HTTP_1_0) &&
-                !HttpHeaders.Values.KEEP_ALIVE.equalsIgnoreCase(request.getHeader(HttpHeaders.Names.CONNECTION));
+        boolean close = isClose(request);
 
         // Build the response object.
         HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
@@ -146,11 +233,40 @@ public class HttpRequestHandler extends SimpleChannelHandler {
         }
 */
         // Write the response.
-        ChannelFuture future = e.getChannel().write(response);
+        ChannelFuture future = e.getChannel().write(pipelined.respond(response));
+        future.addListener(bufferPool.releaseOnComplete(buffers));
 
         // Close the connection after the write operation is done if necessary.
         if (close) {
             future.addListener(ChannelFutureListener.CLOSE);
         }
     }
+
+    /**
+     * Should the connection be closed once the response to this request has
+     * been written?
+     */
+    private static boolean isClose(HttpRequest request) {
+        return HttpHeaders.Values.CLOSE.equalsIgnoreCase(request.getHeader(HttpHeaders.Names.CONNECTION)) ||
+                request.getProtocolVersion().equals(HttpVersion.HTTP_1_0) &&
+                !HttpHeaders.Values.KEEP_ALIVE.equalsIgnoreCase(request.getHeader(HttpHeaders.Names.CONNECTION));
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * Scratch space used while working a single request. Only the execution
+     * stage thread working the request touches it.
+     */
+    private static final class RequestState {
+        private final StringBuilder responseContent = new StringBuilder();
+        private final CharsetEncoder encoder = UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        void reset() {
+            responseContent.setLength(0);
+            encoder.reset();
+        }
+    }
 }
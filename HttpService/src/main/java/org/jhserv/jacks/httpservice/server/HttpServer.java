@@ -21,9 +21,16 @@
 
 package org.jhserv.jacks.httpservice.server;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.List;
@@ -32,10 +39,14 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
+import org.jboss.netty.handler.execution.ExecutionHandler;
 import org.jhserv.jacks.httpservice.BundleConstants;
 import org.jhserv.jacks.httpservice.servicetracker.LogTracker;
 import org.jhserv.jacks.httpservice.utils.ConcurrentDictionary;
@@ -82,6 +93,27 @@ public class HttpServer {
     private final AtomicReference<ServerBootstrap> serverBootstrap =
             new AtomicReference<ServerBootstrap>();
 
+    /**
+     * The execution stage our servlets run on. Created when the server is
+     * started and released when it is stopped.
+     */
+    private final AtomicReference<ExecutionHandler> executionHandler =
+            new AtomicReference<ExecutionHandler>();
+
+    /**
+     * Connection timeouts and the timer that drives them. Created when the
+     * server is started and released when it is stopped.
+     */
+    private final AtomicReference<ConnectionTimeouts> connectionTimeouts =
+            new AtomicReference<ConnectionTimeouts>();
+
+    /**
+     * Set when our execution stage is running on virtual threads so we can
+     * report how many are in flight.
+     */
+    private final AtomicReference<VirtualThreadExecutor> virtualExecutor =
+            new AtomicReference<VirtualThreadExecutor>();
+
     /***
      * Internal Configuration data for our server. This is basically a copy of the
      * configuration data we got from the ConfigAdminService. We must have a
@@ -96,6 +128,54 @@ public class HttpServer {
     private final Map<InetSocketAddress, Channel> openChannels =
             new ConcurrentHashMap<InetSocketAddress, Channel>();
 
+    /**
+     * Admission control for each of the listeners we have opened.
+     */
+    private final Map<InetSocketAddress, AdmissionController> admissionControllers =
+            new ConcurrentHashMap<InetSocketAddress, AdmissionController>();
+
+    /**
+     * TLS of the secure listener, set while it is bound.
+     */
+    private final AtomicReference<SslHandshakeMonitor> sslMonitor =
+            new AtomicReference<SslHandshakeMonitor>();
+
+    /**
+     * Response compression shared by both listeners, null if turned off.
+     */
+    private final AtomicReference<ResponseCompression> responseCompression =
+            new AtomicReference<ResponseCompression>();
+
+    /**
+     * Date header and encoded header lines of the running server.
+     */
+    private final AtomicReference<ResponseHeaders> responseHeaders =
+            new AtomicReference<ResponseHeaders>();
+
+    /**
+     * Sessions of the running server.
+     */
+    private final AtomicReference<SessionFactory> sessionFactory =
+            new AtomicReference<SessionFactory>();
+
+    /**
+     * Writes and responses of the running server.
+     */
+    private final AtomicReference<WriteStats> writeStats =
+            new AtomicReference<WriteStats>();
+
+    /**
+     * In memory copies of registered resources.
+     */
+    private final AtomicReference<ResourceCache> resourceCache =
+            new AtomicReference<ResourceCache>();
+
+    /**
+     * Routes requests to servlet and resource registrations. This outlives
+     * the Netty server so registrations survive a restart of it.
+     */
+    private final ServletRequestHandler servletHandler = new ServletRequestHandler();
+
     public HttpServer(BundleContext context) {
         this.context = context;
     }
@@ -133,6 +213,7 @@ public class HttpServer {
         serverBootstrap.set(null);
         config.clear();
         openChannels.clear();
+        admissionControllers.clear();
     }
 
     /**
@@ -154,6 +235,105 @@ public class HttpServer {
         return null;
     }
 
+    /**
+     * How many requests are currently running on virtual threads. This will
+     * always be 0 unless the server is running in the virtual execution mode.
+     *
+     * @return
+     */
+    public int getVirtualThreadsInFlight() {
+        VirtualThreadExecutor executor = virtualExecutor.get();
+        if(executor == null) {
+            return 0;
+        }
+        return executor.getInFlight();
+    }
+
+    /**
+     * Admission control for each listener of this server keyed by the address
+     * it is bound to. This is where the connection, pending request and
+     * reject counts can be read from.
+     *
+     * @return
+     */
+    public Map<InetSocketAddress, AdmissionController> getAdmissionControllers() {
+        return Collections.unmodifiableMap(admissionControllers);
+    }
+
+    /**
+     * Number of connections currently open on all listeners of this server.
+     * @return
+     */
+    public long getOpenConnections() {
+        long count = 0;
+        for(AdmissionController admission : admissionControllers.values()) {
+            count += admission.getOpenConnections();
+        }
+        return count;
+    }
+
+    /**
+     * Number of connections rejected by all listeners of this server.
+     * @return
+     */
+    public long getRejectedConnections() {
+        long count = 0;
+        for(AdmissionController admission : admissionControllers.values()) {
+            count += admission.getRejectedConnections();
+        }
+        return count;
+    }
+
+    /**
+     * TLS handshake statistics of the secure listener or null if there isn't
+     * one.
+     * @return
+     */
+    public SslHandshakeMonitor getSslHandshakeMonitor() {
+        return sslMonitor.get();
+    }
+
+    /**
+     * Response compression statistics or null if compression is turned off.
+     * @return
+     */
+    public ResponseCompression getResponseCompression() {
+        return responseCompression.get();
+    }
+
+    /**
+     * The sessions of the running server.
+     * @return null if the server isn't running.
+     */
+    public SessionFactory getSessionFactory() {
+        return sessionFactory.get();
+    }
+
+    /**
+     * Write statistics of the running server.
+     * @return null if the server isn't running.
+     */
+    public WriteStats getWriteStats() {
+        return writeStats.get();
+    }
+
+    /**
+     * The resource cache of the running server.
+     * @return null if the server isn't running.
+     */
+    public ResourceCache getResourceCache() {
+        return resourceCache.get();
+    }
+
+    /**
+     * The registrations served by this server. HttpServiceImpl instances for
+     * this server register through this.
+     * @return
+     */
+    public ServletRegistrations getServletRegistrations() {
+        return servletHandler.getServletRegistrations();
+    }
+
     /**
      * Get the current configuration of this server.
      * @return
@@ -224,28 +404,71 @@ public class HttpServer {
     private void startServer(ChannelFactory factory) {
         log.debug("Actually starting our server. ");
         ServerBootstrap bootstrap = new ServerBootstrap(factory);
-        HttpServerPipelineFactory pipeline =
-                new HttpServerPipelineFactory(new HttpRequestHandler());
-          bootstrap.setPipelineFactory(pipeline);
+        ExecutionHandler executor = buildExecutionHandler();
+        executionHandler.set(executor);
+        ConnectionTimeouts timeouts = buildConnectionTimeouts();
+        connectionTimeouts.set(timeouts);
+        ResourceCache cache = buildResourceCache();
+        resourceCache.set(cache);
+        context.addBundleListener(cache);
+        ResponseBufferPool bufferPool = buildResponseBufferPool();
+        HttpRequestHandler handler = new HttpRequestHandler(bufferPool, servletHandler, cache,
+                executor.getExecutor());
+        ResponseSequencer sequencer = buildResponseSequencer();
+        ResponseCompression compression = buildResponseCompression();
+        responseCompression.set(compression);
+        ResponseHeaders headers = new ResponseHeaders(timeouts.getTimer(), bufferPool);
+        responseHeaders.set(headers);
+        WriteStats stats = new WriteStats();
+        writeStats.set(stats);
+        sessionFactory.set(buildSessionFactory(timeouts));
           // Configure our server
           InetSocketAddress[] ipAddress = buildSocketAddress();
           setChannelOptions(bootstrap);
 
           if(ipAddress[0] != null) {
-              log.debug("Binding ipAddress:port => " + ipAddress[0].toString());
-              Channel sc = bootstrap.bind(ipAddress[0]);
-              openChannels.put(ipAddress[0], sc);
-              started.set(true);
+              bindListener(bootstrap, ipAddress[0], executor, timeouts, sequencer,
+                      buildHttp2MaxStreams(), null, compression, headers, stats, handler);
           }
 
           if(ipAddress[1] != null) {
-              log.debug("Binding ipAddress:port => " + ipAddress[1].toString());
-              Channel sc = bootstrap.bind(ipAddress[1]);
-              openChannels.put(ipAddress[1], sc);
-              started.set(true);
+              SslHandshakeMonitor ssl = buildSslHandshakeMonitor();
+              if(ssl != null) {
+                  sslMonitor.set(ssl);
+                  bindListener(bootstrap, ipAddress[1], executor, timeouts, sequencer, 0,
+                          ssl, compression, headers, stats, handler);
+              }
           }
     }
 
+    /**
+     * Bind one listener. Each listener gets its own pipeline factory, and so
+     * its own admission control, since the connection limits apply per
+     * listener. The bootstrap hands its current pipeline factory to the
+     * server channel when it is bound so we just swap it before each bind.
+     *
+     * @param http2MaxStreams Max streams per h2c connection, 0 for HTTP/1.x only.
+     * @param ssl TLS for the secure listener, null for the plain one.
+     * @param compression Response compression, null if turned off.
+     * @param headers Date header and encoded header lines of the server.
+     * @param stats Write statistics of the server.
+     */
+    private void bindListener(ServerBootstrap bootstrap, InetSocketAddress address,
+            ExecutionHandler executor, ConnectionTimeouts timeouts,
+            ResponseSequencer sequencer, int http2MaxStreams, SslHandshakeMonitor ssl,
+            ResponseCompression compression, ResponseHeaders headers, WriteStats stats,
+            HttpRequestHandler handler) {
+        AdmissionController admission = buildAdmissionController();
+        admissionControllers.put(address, admission);
+        bootstrap.setPipelineFactory(new HttpServerPipelineFactory(executor, timeouts,
+                admission, sequencer, buildMaxContentLength(), http2MaxStreams, ssl, compression,
+                headers, stats, handler));
+        log.debug("Binding ipAddress:port => " + address.toString());
+        Channel sc = bootstrap.bind(address);
+        openChannels.put(address, sc);
+        started.set(true);
+    }
+
     /**
      * Used to stop our server. This will be called by our tracker when the
      * netty service goes away.
@@ -253,6 +476,11 @@ public class HttpServer {
     private void stopServer() {
         log.debug("Stoping our server.");
         // Add code to stop our server here....
+        // Release any boss thread paused by admission control first or the
+        // listener it belongs to can't be closed.
+        for(AdmissionController admission : admissionControllers.values()) {
+            admission.shutdown();
+        }
         if(!openChannels.isEmpty()) {
             Set<InetSocketAddress> ports = openChannels.keySet();
             for(InetSocketAddress key: ports) {
@@ -264,6 +492,39 @@ public class HttpServer {
             log.debug("Calling our factory to release External Resources..");
             factory.releaseExternalResources();
         }
+        // Now that no more requests can come in shut down our execution stage.
+        ExecutionHandler executor = executionHandler.getAndSet(null);
+        if(executor != null) {
+            log.debug("Releasing our execution stage threads..");
+            executor.releaseExternalResources();
+        }
+        virtualExecutor.set(null);
+        ResponseHeaders headers = responseHeaders.getAndSet(null);
+        if(headers != null) {
+            headers.stop();
+        }
+        SessionFactory sessions = sessionFactory.getAndSet(null);
+        if(sessions != null) {
+            log.debug("Closing sessions => " + sessions);
+            sessions.close();
+        }
+        ConnectionTimeouts timeouts = connectionTimeouts.getAndSet(null);
+        if(timeouts != null) {
+            log.debug("Stopping our timeout timer..");
+            timeouts.releaseExternalResources();
+        }
+        admissionControllers.clear();
+        sslMonitor.set(null);
+        responseCompression.set(null);
+        WriteStats stats = writeStats.getAndSet(null);
+        if(stats != null) {
+            log.debug("Write statistics => " + stats);
+        }
+        ResourceCache cache = resourceCache.getAndSet(null);
+        if(cache != null) {
+            context.removeBundleListener(cache);
+            cache.clear();
+        }
         log.debug("Our server should be stopped now...");
         started.set(false);
 
@@ -389,6 +650,384 @@ public class HttpServer {
 
     }
 
+    /**
+     * Build the execution stage that decoded requests are handed to. We use an
+     * ordered executor so events for a single channel are still processed one
+     * at a time and in order, while different channels run in parallel. The
+     * exception is pipelined requests which may run in parallel with each
+     * other. The memory limits bound how much work can queue up before Netty
+     * stops reading from the channels.
+     *
+     * If the virtual execution mode is configured and the JVM supports it each
+     * request runs on its own virtual thread instead, still in channel order
+     * and under the same memory limits.
+     *
+     * @return
+     */
+    private ExecutionHandler buildExecutionHandler() {
+        long channelMemory = Long.parseLong(BundleConstants.CONFIG_EXECUTOR_CHANNEL_MEMORY_DEFAULT);
+        String value = config.get(BundleConstants.CONFIG_EXECUTOR_CHANNEL_MEMORY);
+        if(value != null && !value.isEmpty()) {
+            channelMemory = Long.parseLong(value);
+        }
+
+        long totalMemory = Long.parseLong(BundleConstants.CONFIG_EXECUTOR_TOTAL_MEMORY_DEFAULT);
+        value = config.get(BundleConstants.CONFIG_EXECUTOR_TOTAL_MEMORY);
+        if(value != null && !value.isEmpty()) {
+            totalMemory = Long.parseLong(value);
+        }
+
+        String mode = config.get(BundleConstants.CONFIG_EXECUTION_MODE);
+        if(mode != null && mode.equalsIgnoreCase(BundleConstants.EXECUTION_MODE_VIRTUAL)) {
+            VirtualThreadExecutor executor = VirtualThreadExecutor.create(channelMemory, totalMemory);
+            if(executor != null) {
+                log.debug("Execution stage running on virtual threads, channel memory => " +
+                        channelMemory + " total memory => " + totalMemory);
+                virtualExecutor.set(executor);
+                return new ExecutionHandler(executor);
+            }
+            log.warn("Virtual threads are not supported by this JVM falling back to the thread pool.");
+        }
+
+        int threads = Integer.parseInt(BundleConstants.CONFIG_EXECUTOR_THREADS_DEFAULT);
+        value = config.get(BundleConstants.CONFIG_EXECUTOR_THREADS);
+        if(value != null && !value.isEmpty()) {
+            threads = Integer.parseInt(value);
+        }
+
+        log.debug("Execution stage threads => " + threads + " channel memory => " +
+                channelMemory + " total memory => " + totalMemory);
+        return new ExecutionHandler(
+                new PipeliningThreadPoolExecutor(threads, channelMemory, totalMemory));
+    }
+
+    /**
+     * Build our connection timeouts from the configuration. Note: The
+     * writeTimeoutMillis setting is not a socket option so it is applied here
+     * in the pipeline instead of in setChannelOptions.
+     *
+     * @return
+     */
+    private ConnectionTimeouts buildConnectionTimeouts() {
+        long readIdle = 0;
+        String value = config.get(BundleConstants.CONFIG_READ_IDLE_TIMEOUT);
+        if(value != null && !value.isEmpty()) {
+            readIdle = Long.parseLong(value);
+        }
+
+        long writeIdle = 0;
+        value = config.get(BundleConstants.CONFIG_WRITE_IDLE_TIMEOUT);
+        if(value != null && !value.isEmpty()) {
+            writeIdle = Long.parseLong(value);
+        }
+
+        long keepAlive = Long.parseLong(BundleConstants.CONFIG_KEEP_ALIVE_TIMEOUT_DEFAULT);
+        value = config.get(BundleConstants.CONFIG_KEEP_ALIVE_TIMEOUT);
+        if(value != null && !value.isEmpty()) {
+            keepAlive = Long.parseLong(value);
+        }
+
+        long writeTimeout = 0;
+        value = config.get(BundleConstants.CONFIG_WRITE_TIMEOUT);
+        if(value != null && !value.isEmpty()) {
+            writeTimeout = Long.parseLong(value);
+        }
+
+        log.debug("Timeouts read idle => " + readIdle + " write idle => " + writeIdle +
+                " keep alive => " + keepAlive + " write => " + writeTimeout);
+        return new ConnectionTimeouts(readIdle, writeIdle, keepAlive, writeTimeout);
+    }
+
+    /**
+     * Build the pool of direct buffers our responses are written from.
+     *
+     * @return
+     */
+    private ResponseBufferPool buildResponseBufferPool() {
+        int chunkSize = Integer.parseInt(BundleConstants.CONFIG_RESPONSE_CHUNK_SIZE_DEFAULT);
+        String value = config.get(BundleConstants.CONFIG_RESPONSE_CHUNK_SIZE);
+        if(value != null && !value.isEmpty()) {
+            chunkSize = Integer.parseInt(value);
+        }
+
+        int poolSize = Integer.parseInt(BundleConstants.CONFIG_RESPONSE_BUFFER_POOL_SIZE_DEFAULT);
+        value = config.get(BundleConstants.CONFIG_RESPONSE_BUFFER_POOL_SIZE);
+        if(value != null && !value.isEmpty()) {
+            poolSize = Integer.parseInt(value);
+        }
+        return new ResponseBufferPool(chunkSize, poolSize);
+    }
+
+    /**
+     * Build the handler that keeps pipelined responses in order.
+     *
+     * @return
+     */
+    private ResponseSequencer buildResponseSequencer() {
+        int maxPipelined = Integer.parseInt(BundleConstants.CONFIG_MAX_PIPELINED_DEFAULT);
+        String value = config.get(BundleConstants.CONFIG_MAX_PIPELINED);
+        if(value != null && !value.isEmpty()) {
+            maxPipelined = Integer.parseInt(value);
+        }
+        log.debug("Max pipelined requests => " + maxPipelined);
+        return new ResponseSequencer(maxPipelined);
+    }
+
+    /**
+     * Largest request body we accept.
+     *
+     * @return
+     */
+    private int buildMaxContentLength() {
+        String value = config.get(BundleConstants.CONFIG_MAX_REQUEST_CONTENT);
+        if(value != null && !value.isEmpty()) {
+            return Integer.parseInt(value);
+        }
+        return Integer.parseInt(BundleConstants.CONFIG_MAX_REQUEST_CONTENT_DEFAULT);
+    }
+
+    /**
+     * Most concurrent streams per cleartext HTTP/2 connection on the plain
+     * listener, or 0 if h2c is turned off.
+     *
+     * @return
+     */
+    private int buildHttp2MaxStreams() {
+        String value = config.get(BundleConstants.CONFIG_HTTP2);
+        if(value == null || value.isEmpty()) {
+            value = BundleConstants.CONFIG_HTTP2_DEFAULT;
+        }
+        if(!value.equalsIgnoreCase("true")) {
+            return 0;
+        }
+        value = config.get(BundleConstants.CONFIG_HTTP2_MAX_STREAMS);
+        if(value == null || value.isEmpty()) {
+            value = BundleConstants.CONFIG_HTTP2_MAX_STREAMS_DEFAULT;
+        }
+        log.debug("h2c enabled, max concurrent streams => " + value);
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * Build the response compression stage from our configuration.
+     *
+     * @return null if compression is turned off.
+     */
+    private ResponseCompression buildResponseCompression() {
+        String value = config.get(BundleConstants.CONFIG_COMPRESSION);
+        if(value == null || value.isEmpty()) {
+            value = BundleConstants.CONFIG_COMPRESSION_DEFAULT;
+        }
+        if(!value.equalsIgnoreCase("true")) {
+            return null;
+        }
+        value = config.get(BundleConstants.CONFIG_COMPRESSION_LEVEL);
+        if(value == null || value.isEmpty()) {
+            value = BundleConstants.CONFIG_COMPRESSION_LEVEL_DEFAULT;
+        }
+        int level = Integer.parseInt(value);
+        value = config.get(BundleConstants.CONFIG_COMPRESSION_MIN_SIZE);
+        if(value == null || value.isEmpty()) {
+            value = BundleConstants.CONFIG_COMPRESSION_MIN_SIZE_DEFAULT;
+        }
+        int minSize = Integer.parseInt(value);
+        value = config.get(BundleConstants.CONFIG_COMPRESSION_EXCLUDED_TYPES);
+        if(value == null) {
+            value = BundleConstants.CONFIG_COMPRESSION_EXCLUDED_TYPES_DEFAULT;
+        }
+        log.debug("Compression level => " + level + " min size => " + minSize);
+        return new ResponseCompression(level, minSize, value.split(","));
+    }
+
+    /**
+     * Build the cache registered resources are kept in.
+     *
+     * @return
+     */
+    private ResourceCache buildResourceCache() {
+        String value = config.get(BundleConstants.CONFIG_RESOURCE_CACHE_SIZE);
+        if(value == null || value.isEmpty()) {
+            value = BundleConstants.CONFIG_RESOURCE_CACHE_SIZE_DEFAULT;
+        }
+        long size = Long.parseLong(value);
+        value = config.get(BundleConstants.CONFIG_RESOURCE_CACHE_MAX_ENTRY);
+        if(value == null || value.isEmpty()) {
+            value = BundleConstants.CONFIG_RESOURCE_CACHE_MAX_ENTRY_DEFAULT;
+        }
+        long maxEntry = Long.parseLong(value);
+        log.debug("Resource cache size => " + size + " max entry => " + maxEntry);
+        return new ResourceCache(size, maxEntry);
+    }
+
+    /**
+     * Build the session factory, its expiry runs on the timeout timer.
+     */
+    private SessionFactory buildSessionFactory(ConnectionTimeouts timeouts) {
+        String value = config.get(BundleConstants.CONFIG_SESSION_TIMEOUT);
+        if(value == null || value.isEmpty()) {
+            value = BundleConstants.CONFIG_SESSION_TIMEOUT_DEFAULT;
+        }
+        int timeout = Integer.parseInt(value);
+        value = config.get(BundleConstants.CONFIG_SESSION_OFF_HEAP_SIZE);
+        if(value == null || value.isEmpty()) {
+            value = BundleConstants.CONFIG_SESSION_OFF_HEAP_SIZE_DEFAULT;
+        }
+        long offHeapSize = Long.parseLong(value);
+        value = config.get(BundleConstants.CONFIG_SESSION_PERSISTENCE);
+        if(value == null || value.isEmpty()) {
+            value = BundleConstants.CONFIG_SESSION_PERSISTENCE_DEFAULT;
+        }
+        SessionJournal journal = null;
+        if(Boolean.parseBoolean(value)) {
+            journal = buildSessionJournal();
+        }
+        log.debug("Session timeout => " + timeout + " off heap size => " + offHeapSize +
+                " persistent => " + (journal != null));
+        return new SessionFactory(timeouts.getTimer(), timeout,
+                offHeapSize > 0 ? new OffHeapSessionStore(offHeapSize) : null, journal);
+    }
+
+    /**
+     * Open the session journal in our bundle's data area, one per server
+     * named after its port, or just sessions.log if no port is configured.
+     *
+     * @return null if it can't be opened, sessions are then not persisted.
+     */
+    private SessionJournal buildSessionJournal() {
+        String port = config.get(BundleConstants.CONFIG_PORT);
+        if(port == null || port.isEmpty()) {
+            port = config.get(BundleConstants.CONFIG_SSL_PORT);
+        }
+        File file = context.getDataFile(port == null || port.isEmpty() ?
+                "sessions.log" : "sessions-" + port + ".log");
+        if(file == null) {
+            log.warn("No file system support, sessions will not be persisted");
+            return null;
+        }
+        try {
+            SessionJournal journal = new SessionJournal(file);
+            log.debug("Restored " + journal.getRestoredCount() + " sessions from " + file);
+            return journal;
+        } catch(IOException e) {
+            log.error("Unable to open session journal " + file +
+                    ", sessions will not be persisted", e);
+            return null;
+        }
+    }
+
+    /**
+     * Build the TLS side of the secure listener. The key store comes from our
+     * configuration or failing that the standard javax.net.ssl system
+     * properties. The server side session cache of the SSLContext is sized
+     * and timed from our configuration. Session tickets are left to the
+     * jdk.tls.server.enableSessionTicketExtension launch flag.
+     *
+     * @return null if the key store can't be loaded, in which case the
+     * secure listener is not started.
+     */
+    private SslHandshakeMonitor buildSslHandshakeMonitor() {
+        String path = configOrProperty(BundleConstants.CONFIG_SSL_KEYSTORE,
+                "javax.net.ssl.keyStore");
+        if(path == null) {
+            log.error("No key store configured for the SSL listener, set " +
+                    BundleConstants.CONFIG_SSL_KEYSTORE + ". Not starting it.");
+            return null;
+        }
+        String type = configOrProperty(BundleConstants.CONFIG_SSL_KEYSTORE_TYPE,
+                "javax.net.ssl.keyStoreType");
+        if(type == null) {
+            type = KeyStore.getDefaultType();
+        }
+        String password = configOrProperty(BundleConstants.CONFIG_SSL_KEYSTORE_PASSWORD,
+                "javax.net.ssl.keyStorePassword");
+        char[] storePassword = password == null ? null : password.toCharArray();
+        String keyPassword = config.get(BundleConstants.CONFIG_SSL_KEY_PASSWORD);
+
+        try {
+            KeyStore keyStore = KeyStore.getInstance(type);
+            InputStream in = new FileInputStream(path);
+            try {
+                keyStore.load(in, storePassword);
+            } finally {
+                in.close();
+            }
+            KeyManagerFactory keyManagers =
+                    KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, keyPassword != null && !keyPassword.isEmpty() ?
+                    keyPassword.toCharArray() : storePassword);
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagers.getKeyManagers(), null, null);
+
+            SSLSessionContext sessions = sslContext.getServerSessionContext();
+            String value = config.get(BundleConstants.CONFIG_SSL_SESSION_CACHE_SIZE);
+            if(value == null || value.isEmpty()) {
+                value = BundleConstants.CONFIG_SSL_SESSION_CACHE_SIZE_DEFAULT;
+            }
+            sessions.setSessionCacheSize(Integer.parseInt(value));
+            value = config.get(BundleConstants.CONFIG_SSL_SESSION_TIMEOUT);
+            if(value == null || value.isEmpty()) {
+                value = BundleConstants.CONFIG_SSL_SESSION_TIMEOUT_DEFAULT;
+            }
+            sessions.setSessionTimeout(Integer.parseInt(value));
+            log.debug("SSL key store => " + path + " session cache => " +
+                    sessions.getSessionCacheSize() + " timeout => " + sessions.getSessionTimeout());
+            return new SslHandshakeMonitor(sslContext);
+        } catch(IOException e) {
+            log.error("Unable to read SSL key store " + path + ". Not starting the SSL listener.", e);
+        } catch(GeneralSecurityException e) {
+            log.error("Unable to set up SSL from key store " + path +
+                    ". Not starting the SSL listener.", e);
+        }
+        return null;
+    }
+
+    /**
+     * A configuration value or, if it isn't set, a system property.
+     */
+    private String configOrProperty(String key, String property) {
+        String value = config.get(key);
+        if(value == null || value.isEmpty()) {
+            value = System.getProperty(property);
+        }
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Build the admission control for one listener from the configuration.
+     *
+     * @return
+     */
+    private AdmissionController buildAdmissionController() {
+        int maxConnections = 0;
+        String value = config.get(BundleConstants.CONFIG_MAX_CONNECTIONS);
+        if(value != null && !value.isEmpty()) {
+            maxConnections = Integer.parseInt(value);
+        }
+
+        int maxPending = 0;
+        value = config.get(BundleConstants.CONFIG_MAX_PENDING_REQUESTS);
+        if(value != null && !value.isEmpty()) {
+            maxPending = Integer.parseInt(value);
+        }
+
+        // Default to pausing, that is the whole point of having limits.
+        boolean pause = true;
+        value = config.get(BundleConstants.CONFIG_ADMISSION_MODE);
+        if(value != null && !value.isEmpty()) {
+            pause = !value.equalsIgnoreCase(BundleConstants.ADMISSION_MODE_REJECT);
+        }
+
+        long maxWait = 0;
+        value = config.get(BundleConstants.CONFIG_ADMISSION_WAIT);
+        if(value != null && !value.isEmpty()) {
+            maxWait = Long.parseLong(value);
+        }
+
+        log.debug("Admission max connections => " + maxConnections + " max pending => " +
+                maxPending + " pause => " + pause + " max wait => " + maxWait);
+        return new AdmissionController(maxConnections, maxPending, pause, maxWait);
+    }
+
     //************* Private inner class ***************************************
     //=========================================================================
     private class nettyTrackerCustomizer implements ServiceTrackerCustomizer {
@@ -49,8 +49,10 @@ import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.DefaultChannelPipeline;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
-import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jhserv.jacks.httpservice.http2.Http2ConnectionHandler;
 
 /**
  * This file was copied from the Netty Sample HttpServer. The original authors:
@@ -64,17 +66,151 @@ public class HttpServerPipelineFactory implements ChannelPipelineFactory {
 
     private final ChannelHandler handler;
 
-    public HttpServerPipelineFactory(HttpRequestHandler handler) {
+    /**
+     * Execution stage shared by all pipelines of a server. Everything after
+     * this handler runs on the execution stage threads instead of the Netty
+     * I/O worker that decoded the request.
+     */
+    private final ExecutionHandler executionHandler;
+
+    /**
+     * Idle and write timeouts of the server.
+     */
+    private final ConnectionTimeouts timeouts;
+
+    /**
+     * Admission control of the listener this factory builds pipelines for.
+     */
+    private final AdmissionController admission;
+
+    /**
+     * Numbers pipelined requests and puts their responses back in order.
+     */
+    private final ResponseSequencer sequencer;
+
+    /**
+     * Largest request body the aggregator will put back together.
+     */
+    private final int maxContentLength;
+
+    /**
+     * Most concurrent streams on a cleartext HTTP/2 (h2c) connection, 0 if
+     * this listener only speaks HTTP/1.x.
+     */
+    private final int http2MaxStreams;
+
+    /**
+     * TLS for the secure listener, null on the plain one.
+     */
+    private final SslHandshakeMonitor ssl;
+
+    /**
+     * Response compression, null if it is turned off.
+     */
+    private final ResponseCompression compression;
+
+    /**
+     * Date header and encoded header lines of the server.
+     */
+    private final ResponseHeaders headers;
+
+    /**
+     * Counts writes and responses of the server.
+     */
+    private final WriteStats writeStats;
+
+    public HttpServerPipelineFactory(ExecutionHandler executionHandler,
+            ConnectionTimeouts timeouts, AdmissionController admission,
+            ResponseSequencer sequencer, int maxContentLength, int http2MaxStreams,
+            SslHandshakeMonitor ssl, ResponseCompression compression,
+            ResponseHeaders headers, WriteStats writeStats, HttpRequestHandler handler) {
+        this.executionHandler = executionHandler;
+        this.timeouts = timeouts;
+        this.admission = admission;
+        this.sequencer = sequencer;
+        this.maxContentLength = maxContentLength;
+        this.http2MaxStreams = http2MaxStreams;
+        this.ssl = ssl;
+        this.compression = compression;
+        this.headers = headers;
+        this.writeStats = writeStats;
         this.handler = handler;
     }
 
+    /**
+     * Netty calls this on the listeners boss thread for every connection it
+     * accepts, so this is where admission control pauses accepting. If the
+     * pipeline of an admitted connection can't be built its count is given
+     * back, otherwise the listener would slowly fill up with connections
+     * that don't exist.
+     */
     @Override
     public ChannelPipeline getPipeline() throws Exception {
         // Create a default pipeline implementation.
         ChannelPipeline pipeline = new DefaultChannelPipeline();
+        if(!admission.admit()) {
+            pipeline.addLast("reject", admission.getRejectHandler());
+            return pipeline;
+        }
+        try {
+            return buildPipeline(pipeline);
+        } catch(Exception e) {
+            admission.cancel();
+            throw e;
+        } catch(Error e) {
+            admission.cancel();
+            throw e;
+        }
+    }
+
+    private ChannelPipeline buildPipeline(ChannelPipeline pipeline) throws Exception {
+        timeouts.addFirst(pipeline);
+        pipeline.addFirst("writes", writeStats.getTransportHandler());
+        if(ssl != null) {
+            pipeline.addLast("ssl", ssl.newSslHandler());
+            pipeline.addLast("handshake", ssl);
+        }
+        if(http2MaxStreams > 0) {
+            pipeline.addLast("h2cDetect", new H2cPrefaceDetector(this));
+        }
         pipeline.addLast("decoder", new HttpRequestDecoder());
-        pipeline.addLast("encoder", new HttpResponseEncoder());
+        pipeline.addLast("encoder", headers.getEncoder());
+        if(http2MaxStreams > 0) {
+            pipeline.addLast("upgrade", new H2cUpgradeHandler(this));
+        }
+        pipeline.addLast("admission", admission);
+        timeouts.addReaper(pipeline);
+        pipeline.addLast("aggregator", new HttpChunkAggregator(maxContentLength));
+        pipeline.addLast("sequencer", sequencer);
+        pipeline.addLast("executor", executionHandler);
+        pipeline.addLast("date", headers.getDateHandler());
+        pipeline.addLast("responses", writeStats.getResponseHandler());
+        if(compression != null) {
+            pipeline.addLast("compressor", compression.newHandler());
+        }
         pipeline.addLast("handler", handler);
         return pipeline;
     }
-}
\ No newline at end of file
+
+    /**
+     * Turn a pipeline built by getPipeline into an HTTP/2 one. The HTTP/1.1
+     * codec, aggregator and sequencer are replaced by a single
+     * Http2ConnectionHandler, which hands the rest of the pipeline the same
+     * PipelinedRequests the sequencer would have. Called from the I/O thread
+     * when a connection starts with the HTTP/2 preface or asks to upgrade.
+     *
+     * @param pipeline
+     * @return The handler now speaking HTTP/2 on the connection.
+     */
+    Http2ConnectionHandler switchToHttp2(ChannelPipeline pipeline) {
+        Http2ConnectionHandler http2 =
+                new Http2ConnectionHandler(http2MaxStreams, maxContentLength);
+        pipeline.addBefore("admission", "http2", http2);
+        for(String name : new String[] {"decoder", "encoder", "upgrade", "aggregator", "sequencer"}) {
+            if(pipeline.get(name) != null) {
+                pipeline.remove(name);
+            }
+        }
+        return http2;
+    }
+}
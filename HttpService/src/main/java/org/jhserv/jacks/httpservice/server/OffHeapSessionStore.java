@@ -0,0 +1,704 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jhserv.jacks.httpservice.utils.StripedCounter;
+
+/**
+ * Keeps session attributes serialized in direct buffers, outside the heap,
+ * so that a large number of sessions only costs the heap a small handle
+ * each. The store has a hard byte budget.
+ *
+ * The memory is handed out the way memcached does it. It is split into
+ * slabs, each slab belongs to a size class and is cut into equal slots of
+ * that class's size, the classes being the powers of two from 64 bytes up
+ * to the slab size. All the attributes of a session are encoded into one
+ * record that lives in a single slot of the smallest class it fits. Each
+ * class keeps its records in least recently used order and, once the budget
+ * is spent and the class has no free slot, the least recently used session
+ * of the class is evicted to make room. A class left with no slab at all
+ * once the budget is spent takes one from the class that has the most, the
+ * sessions in that slab are evicted. Evicted sessions are invalidated, their
+ * attributes are gone so no unbind events are sent for them.
+ *
+ * A record that moves to another class gets its new slot before it gives up
+ * the old one, so a write that can't be done leaves the record as it was.
+ * The one exception is a record whose slab is taken for the class it is
+ * moving to, it is put in that slab before any other write can use it.
+ *
+ * Attribute values must be Serializable. They are read back with the class
+ * loader of the value that was stored, so values from any bundle can be
+ * stored, and every read returns a new copy.
+ *
+ * Each size class has its own lock. Callers must not read and write the
+ * same record from two threads at once, the SessionFactory serializes that
+ * per session.
+ *
+ * @author rjackson
+ */
+public class OffHeapSessionStore {
+
+    private static final int MIN_SLOT = 64;
+    private static final int MAX_SLAB = 1 << 20;
+
+    private final long budget;
+    private final int slabSize;
+    private final SizeClass[] classes;
+
+    private final AtomicLong allocated = new AtomicLong();
+    private final StripedCounter used = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+
+    /**
+     * Owners of records evicted since the last drain.
+     */
+    private final Queue<Evictable> evicted = new ConcurrentLinkedQueue<Evictable>();
+
+    /**
+     * Class loaders of stored values, records hold an index into this. Weak
+     * so a bundle that goes away can be collected.
+     */
+    private final List<WeakReference<ClassLoader>> loaders =
+            new ArrayList<WeakReference<ClassLoader>>();
+
+    /**
+     * @param budget Most bytes of direct memory the store may use, at least
+     * 4096.
+     */
+    public OffHeapSessionStore(long budget) {
+        if(budget < 4096) {
+            throw new IllegalArgumentException("Off heap session store needs at least 4096 bytes");
+        }
+        this.budget = budget;
+        slabSize = (int)Long.highestOneBit(Math.min(budget, MAX_SLAB));
+        int count = Integer.numberOfTrailingZeros(slabSize / MIN_SLOT) + 1;
+        classes = new SizeClass[count];
+        for(int i = 0; i < count; i++) {
+            classes[i] = new SizeClass(MIN_SLOT << i, slabSize);
+        }
+    }
+
+    /**
+     * The byte budget.
+     * @return
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Bytes of direct memory taken by slabs so far.
+     * @return
+     */
+    public long getAllocatedBytes() {
+        return allocated.get();
+    }
+
+    /**
+     * Bytes of records stored.
+     * @return
+     */
+    public long getUsedBytes() {
+        return used.sum();
+    }
+
+    /**
+     * Sessions evicted to make room.
+     * @return
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "budget=" + getBudget() + " allocated=" + getAllocatedBytes() + " used=" +
+                getUsedBytes() + " evictions=" + getEvictions();
+    }
+
+    /**
+     * Get an attribute of a record.
+     * @return null if there is no such attribute.
+     */
+    Object getAttribute(Record record, String name) {
+        for(Entry entry : decode(read(record))) {
+            if(entry.name.equals(name)) {
+                return deserialize(entry);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Store an attribute in a record.
+     *
+     * @return The attribute replaced, null if there wasn't one.
+     * @throws IllegalArgumentException If the value can't be serialized or
+     * the attributes no longer fit in a slab.
+     * @throws IllegalStateException If there is no room and nothing to
+     * evict, the record is then left as it was.
+     */
+    Object setAttribute(Record record, String name, Object value) {
+        Entry entry = serialize(name, value);
+        List<Entry> entries = decode(read(record));
+        Entry old = null;
+        for(int i = 0; i < entries.size(); i++) {
+            if(entries.get(i).name.equals(name)) {
+                old = entries.set(i, entry);
+                break;
+            }
+        }
+        if(old == null) {
+            entries.add(entry);
+        }
+        write(record, encode(entries));
+        return old == null ? null : deserialize(old);
+    }
+
+    /**
+     * Remove an attribute from a record.
+     * @return The attribute removed, null if there wasn't one.
+     */
+    Object removeAttribute(Record record, String name) {
+        List<Entry> entries = decode(read(record));
+        for(int i = 0; i < entries.size(); i++) {
+            if(entries.get(i).name.equals(name)) {
+                Entry old = entries.remove(i);
+                write(record, encode(entries));
+                return deserialize(old);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Names of the attributes in a record.
+     * @return
+     */
+    List<String> getAttributeNames(Record record) {
+        List<Entry> entries = decode(read(record));
+        List<String> names = new ArrayList<String>(entries.size());
+        for(Entry entry : entries) {
+            names.add(entry.name);
+        }
+        return names;
+    }
+
+    /**
+     * Mark a record used without reading it.
+     */
+    void touch(Record record) {
+        int index = record.sizeClass;
+        if(index < 0) {
+            return;
+        }
+        SizeClass cls = classes[index];
+        synchronized(cls) {
+            if(record.sizeClass == index) {
+                cls.unlink(record);
+                cls.append(record);
+            }
+        }
+    }
+
+    /**
+     * Give back a record's slot.
+     */
+    void free(Record record) {
+        int index = record.sizeClass;
+        if(index < 0) {
+            return;
+        }
+        SizeClass cls = classes[index];
+        synchronized(cls) {
+            if(record.sizeClass != index) {
+                return;
+            }
+            cls.unlink(record);
+            cls.push(record.slot);
+            record.sizeClass = -1;
+        }
+        used.add(-record.length);
+    }
+
+    /**
+     * Tell the owners of records evicted since the last call. This must be
+     * called while holding no locks, the owners invalidate their sessions.
+     */
+    void drainEvicted() {
+        Evictable owner;
+        while((owner = evicted.poll()) != null) {
+            owner.evicted();
+        }
+    }
+
+    private byte[] read(Record record) {
+        int index = record.sizeClass;
+        if(index < 0) {
+            return null;
+        }
+        SizeClass cls = classes[index];
+        synchronized(cls) {
+            if(record.sizeClass != index) {
+                // Evicted while we weren't looking.
+                return null;
+            }
+            cls.unlink(record);
+            cls.append(record);
+            byte[] bytes = new byte[record.length];
+            cls.slot(record.slot).get(bytes);
+            return bytes;
+        }
+    }
+
+    private void write(Record record, byte[] bytes) {
+        if(bytes.length == 0) {
+            free(record);
+            return;
+        }
+        if(bytes.length > slabSize) {
+            throw new IllegalArgumentException("Session attributes take " + bytes.length +
+                    " bytes, more than the " + slabSize + " a session can have off heap");
+        }
+        int index = 0;
+        while(classes[index].slotSize < bytes.length) {
+            index++;
+        }
+        SizeClass cls = classes[index];
+        if(record.sizeClass == index) {
+            synchronized(cls) {
+                if(record.sizeClass == index) {
+                    cls.unlink(record);
+                    cls.append(record);
+                    cls.slot(record.slot).put(bytes);
+                    used.add(bytes.length - record.length);
+                    record.length = bytes.length;
+                    return;
+                }
+            }
+        }
+        ByteBuffer slab = null;
+        for(;;) {
+            int current = record.sizeClass;
+            // Both classes are locked, the lower first, so the record can
+            // move between them in one step.
+            SizeClass first = current < 0 ? cls : classes[Math.min(current, index)];
+            SizeClass second = current < 0 ? cls : classes[Math.max(current, index)];
+            synchronized(first) {
+                synchronized(second) {
+                    if(slab != null) {
+                        // Ours to use before anyone else can take from it.
+                        cls.addSlab(slab);
+                        slab = null;
+                    }
+                    if(record.sizeClass == current) {
+                        int slot = allocate(cls);
+                        if(slot >= 0) {
+                            move(record, current, index, slot, bytes);
+                            return;
+                        }
+                    }
+                }
+            }
+            if(record.sizeClass == current) {
+                slab = takeSlab(cls, record);
+                if(slab == null) {
+                    throw new IllegalStateException("The off heap session store is full");
+                }
+            }
+        }
+    }
+
+    /**
+     * Put a record in a newly allocated slot and give back the one it had.
+     * Must hold the locks of both classes.
+     */
+    private void move(Record record, int current, int index, int slot, byte[] bytes) {
+        if(current >= 0) {
+            classes[current].unlink(record);
+            classes[current].push(record.slot);
+            used.add(-record.length);
+        }
+        SizeClass cls = classes[index];
+        record.slot = slot;
+        record.length = bytes.length;
+        record.sizeClass = index;
+        cls.append(record);
+        cls.slot(slot).put(bytes);
+        used.add(bytes.length);
+    }
+
+    /**
+     * Find a free slot in a class, adding a slab or evicting if we have to.
+     * Must hold the class's lock.
+     *
+     * @return -1 if the budget is spent and the class has nothing to evict.
+     */
+    private int allocate(SizeClass cls) {
+        if(cls.freeCount == 0) {
+            if(reserveSlab()) {
+                cls.addSlab(ByteBuffer.allocateDirect(slabSize));
+            } else {
+                Record victim = cls.head.next;
+                if(victim == cls.head) {
+                    return -1;
+                }
+                cls.unlink(victim);
+                evict(victim);
+                return victim.slot;
+            }
+        }
+        return cls.pop();
+    }
+
+    /**
+     * Take a slab from the class with the most, for a class that has none
+     * to evict from. The records in the slab are evicted, except the one
+     * being written which just loses its slot, so the caller must add the
+     * slab to its class and move the record into it before letting go of
+     * that class's lock. Must hold no class locks.
+     *
+     * @param keep The record being written.
+     * @return null if no other class has a slab to give.
+     */
+    private ByteBuffer takeSlab(SizeClass cls, Record keep) {
+        SizeClass donor = null;
+        int most = 0;
+        for(SizeClass other : classes) {
+            if(other != cls) {
+                synchronized(other) {
+                    if(other.slabCount > most) {
+                        donor = other;
+                        most = other.slabCount;
+                    }
+                }
+            }
+        }
+        if(donor == null) {
+            return null;
+        }
+        synchronized(donor) {
+            List<Record> records = new ArrayList<Record>();
+            ByteBuffer slab = donor.removeSlab(records);
+            for(Record record : records) {
+                if(record == keep) {
+                    record.sizeClass = -1;
+                    used.add(-record.length);
+                } else {
+                    evict(record);
+                }
+            }
+            return slab;
+        }
+    }
+
+    /**
+     * Drop a record already unlinked from its class. Must hold the class's
+     * lock.
+     */
+    private void evict(Record victim) {
+        victim.sizeClass = -1;
+        used.add(-victim.length);
+        evictions.increment();
+        evicted.add(victim.owner);
+    }
+
+    private boolean reserveSlab() {
+        for(;;) {
+            long current = allocated.get();
+            if(current + slabSize > budget) {
+                return false;
+            }
+            if(allocated.compareAndSet(current, current + slabSize)) {
+                return true;
+            }
+        }
+    }
+
+    private Entry serialize(String name, Object value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(value);
+            out.close();
+            return new Entry(name, loaderIndex(value.getClass().getClassLoader()),
+                    bytes.toByteArray());
+        } catch(IOException e) {
+            throw new IllegalArgumentException("Session attribute " + name +
+                    " can't be kept off heap: " + e, e);
+        }
+    }
+
+    private Object deserialize(Entry entry) {
+        try {
+            ObjectInputStream in = new LoaderObjectInputStream(
+                    new ByteArrayInputStream(entry.value), loader(entry.loader));
+            return in.readObject();
+        } catch(IOException e) {
+            throw new IllegalStateException("Unable to read session attribute " + entry.name, e);
+        } catch(ClassNotFoundException e) {
+            throw new IllegalStateException("Unable to read session attribute " + entry.name, e);
+        }
+    }
+
+    private int loaderIndex(ClassLoader loader) {
+        if(loader == null) {
+            return -1;
+        }
+        synchronized(loaders) {
+            for(int i = 0; i < loaders.size(); i++) {
+                if(loaders.get(i).get() == loader) {
+                    return i;
+                }
+            }
+            loaders.add(new WeakReference<ClassLoader>(loader));
+            return loaders.size() - 1;
+        }
+    }
+
+    private ClassLoader loader(int index) {
+        if(index < 0) {
+            return null;
+        }
+        synchronized(loaders) {
+            return loaders.get(index).get();
+        }
+    }
+
+    /**
+     * Records are a run of entries, each the attribute name, the index of
+     * its class loader and the serialized value.
+     */
+    private static List<Entry> decode(byte[] bytes) {
+        List<Entry> entries = new ArrayList<Entry>();
+        if(bytes == null) {
+            return entries;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            while(in.available() > 0) {
+                String name = in.readUTF();
+                int loader = in.readInt();
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                entries.add(new Entry(name, loader, value));
+            }
+        } catch(IOException e) {
+            throw new IllegalStateException("Corrupt off heap session record", e);
+        }
+        return entries;
+    }
+
+    private static byte[] encode(List<Entry> entries) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for(Entry entry : entries) {
+                out.writeUTF(entry.name);
+                out.writeInt(entry.loader);
+                out.writeInt(entry.value.length);
+                out.write(entry.value);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch(IOException e) {
+            // Not from a byte array.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * Told when its record has been evicted.
+     */
+    interface Evictable {
+        void evicted();
+    }
+
+    /**
+     * Where a session's attributes are. This and its owner are all a session
+     * keeps on the heap. The fields are guarded by the lock of the size class
+     * the record is in, sizeClass is -1 when it is in none.
+     */
+    static final class Record {
+        private final Evictable owner;
+        private volatile int sizeClass = -1;
+        private int slot;
+        private int length;
+        private Record prev;
+        private Record next;
+
+        Record(Evictable owner) {
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * The slabs of one slot size, their free slots and the records using
+     * them in least recently used order.
+     */
+    private static final class SizeClass {
+        private final int slotSize;
+        private final int slotsPerSlab;
+        /**
+         * Slabs by number, null where one was given to another class.
+         */
+        private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+        private int slabCount;
+        private int[] free = new int[0];
+        private int freeCount;
+
+        /**
+         * Sentinel of the circular LRU list, head.next is the oldest.
+         */
+        private final Record head = new Record(null);
+
+        SizeClass(int slotSize, int slabSize) {
+            this.slotSize = slotSize;
+            this.slotsPerSlab = slabSize / slotSize;
+            head.prev = head;
+            head.next = head;
+        }
+
+        void addSlab(ByteBuffer slab) {
+            int index = slabs.indexOf(null);
+            if(index < 0) {
+                index = slabs.size();
+                slabs.add(slab);
+            } else {
+                slabs.set(index, slab);
+            }
+            slabCount++;
+            if(free.length < freeCount + slotsPerSlab) {
+                int[] grown = new int[freeCount + slotsPerSlab];
+                System.arraycopy(free, 0, grown, 0, freeCount);
+                free = grown;
+            }
+            int base = index * slotsPerSlab;
+            for(int i = slotsPerSlab - 1; i >= 0; i--) {
+                free[freeCount++] = base + i;
+            }
+        }
+
+        /**
+         * Give up a slab, the one holding the least recently used record if
+         * there is one.
+         *
+         * @param records Gets the records that were in the slab, they are
+         * unlinked.
+         * @return null if the class has no slab.
+         */
+        ByteBuffer removeSlab(List<Record> records) {
+            if(slabCount == 0) {
+                return null;
+            }
+            int index = head.next != head ? head.next.slot / slotsPerSlab : -1;
+            if(index < 0) {
+                index = 0;
+                while(slabs.get(index) == null) {
+                    index++;
+                }
+            }
+            Record record = head.next;
+            while(record != head) {
+                Record next = record.next;
+                if(record.slot / slotsPerSlab == index) {
+                    unlink(record);
+                    records.add(record);
+                }
+                record = next;
+            }
+            int kept = 0;
+            for(int i = 0; i < freeCount; i++) {
+                if(free[i] / slotsPerSlab != index) {
+                    free[kept++] = free[i];
+                }
+            }
+            freeCount = kept;
+            slabCount--;
+            return slabs.set(index, null);
+        }
+
+        int pop() {
+            return free[--freeCount];
+        }
+
+        void push(int slot) {
+            free[freeCount++] = slot;
+        }
+
+        /**
+         * A buffer positioned at the start of a slot and limited to its end.
+         */
+        ByteBuffer slot(int slot) {
+            ByteBuffer buf = slabs.get(slot / slotsPerSlab).duplicate();
+            int offset = (slot % slotsPerSlab) * slotSize;
+            buf.limit(offset + slotSize);
+            buf.position(offset);
+            return buf;
+        }
+
+        void append(Record record) {
+            record.prev = head.prev;
+            record.next = head;
+            head.prev.next = record;
+            head.prev = record;
+        }
+
+        void unlink(Record record) {
+            record.prev.next = record.next;
+            record.next.prev = record.prev;
+            record.prev = null;
+            record.next = null;
+        }
+    }
+
+    private static final class Entry {
+        private final String name;
+        private final int loader;
+        private final byte[] value;
+
+        Entry(String name, int loader, byte[] value) {
+            this.name = name;
+            this.loader = loader;
+            this.value = value;
+        }
+    }
+}
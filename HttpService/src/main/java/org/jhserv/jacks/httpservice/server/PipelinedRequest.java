@@ -0,0 +1,114 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+
+/**
+ * A complete request read from a connection together with its position in
+ * the connections request stream. The ResponseSequencer hands these to the
+ * execution stage instead of the bare HttpRequest so requests pipelined on
+ * the same connection can be worked in parallel and the responses still put
+ * back in order.
+ *
+ * @author rjackson
+ */
+public final class PipelinedRequest {
+
+    private final HttpRequest request;
+    private final int sequence;
+
+    public PipelinedRequest(HttpRequest request, int sequence) {
+        this.request = request;
+        this.sequence = sequence;
+    }
+
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Position of this request on its connection, the first request is 0.
+     * @return
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Wrap a response (or part of one) to this request so the sequencer knows
+     * where it belongs.
+     *
+     * @param message An HttpResponse, HttpChunk or ChannelBuffer.
+     * @return
+     */
+    public PipelinedResponse respond(Object message) {
+        return new PipelinedResponse(sequence, message);
+    }
+
+    /**
+     * Wrap part of a response whose end can't be told from the message
+     * itself, like the header and body buffers of a streamed fixed length
+     * response.
+     *
+     * @param message An HttpResponse, HttpChunk or ChannelBuffer.
+     * @param last Is this the end of the response?
+     * @return
+     */
+    public PipelinedResponse respond(Object message, boolean last) {
+        return new PipelinedResponse(sequence, message, last);
+    }
+
+    /**
+     * The HttpRequest carried by a message seen upstream of the HTTP/2
+     * handler, which wraps every request, or the message itself.
+     *
+     * @param message
+     * @return
+     */
+    static Object unwrap(Object message) {
+        if(message instanceof PipelinedRequest) {
+            return ((PipelinedRequest)message).getRequest();
+        }
+        return message;
+    }
+
+    /**
+     * Is the execution stage task delivering a PipelinedRequest? Our
+     * executors run those outside of the normal per channel ordering.
+     *
+     * @param task
+     * @return
+     */
+    static boolean isCarriedBy(Runnable task) {
+        if(task instanceof ChannelEventRunnable) {
+            ChannelEvent e = ((ChannelEventRunnable)task).getEvent();
+            return e instanceof MessageEvent &&
+                    ((MessageEvent)e).getMessage() instanceof PipelinedRequest;
+        }
+        return false;
+    }
+}
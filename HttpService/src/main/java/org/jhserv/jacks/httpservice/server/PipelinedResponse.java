@@ -0,0 +1,107 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * A response, or part of one, to a PipelinedRequest. The ResponseSequencer
+ * holds these back until every response to an earlier request on the same
+ * connection has been written. Use PipelinedRequest.respond to create one.
+ *
+ * A response is complete once a non chunked HttpResponse or the last
+ * HttpChunk has been written. Anything else (a chunked HttpResponse, a chunk
+ * or a raw ChannelBuffer) is taken as more of the response to come. A
+ * response that streams a fixed length body, a non chunked HttpResponse with
+ * only a Content-Length followed by raw ChannelBuffers, says where it ends
+ * explicitly instead.
+ *
+ * @author rjackson
+ */
+public final class PipelinedResponse {
+
+    private final int sequence;
+    private final Object message;
+    private final boolean last;
+
+    PipelinedResponse(int sequence, Object message) {
+        this(sequence, message, endsResponse(message));
+    }
+
+    PipelinedResponse(int sequence, Object message, boolean last) {
+        this.sequence = sequence;
+        this.message = message;
+        this.last = last;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public Object getMessage() {
+        return message;
+    }
+
+    /**
+     * Is this the end of the response?
+     * @return
+     */
+    public boolean isLast() {
+        return last;
+    }
+
+    /**
+     * Does writing this message, seen downstream of either the sequencer or
+     * the HTTP/2 handler, finish a response?
+     *
+     * @param message A PipelinedResponse or a bare HttpResponse or HttpChunk.
+     * @return
+     */
+    static boolean endsResponse(Object message) {
+        if(message instanceof PipelinedResponse) {
+            return ((PipelinedResponse)message).isLast();
+        }
+        if(message instanceof HttpResponse) {
+            return !((HttpResponse)message).isChunked();
+        }
+        if(message instanceof HttpChunk) {
+            return ((HttpChunk)message).isLast();
+        }
+        return false;
+    }
+
+    /**
+     * How many responses does writing this message finish? This is endsResponse
+     * for everything but a ResponseBatch, which finishes all of its responses.
+     *
+     * @param message A ResponseBatch or anything endsResponse takes.
+     * @return
+     */
+    static int responsesEnded(Object message) {
+        if(message instanceof ResponseBatch) {
+            return ((ResponseBatch)message).size();
+        }
+        return endsResponse(message) ? 1 : 0;
+    }
+}
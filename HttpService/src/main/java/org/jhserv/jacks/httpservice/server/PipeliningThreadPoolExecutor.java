@@ -0,0 +1,60 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+
+/**
+ * The execution stage executor used in pool mode. Channel events are kept in
+ * order per channel like the OrderedMemoryAwareThreadPoolExecutor we extend
+ * does, except for PipelinedRequests. Those are handed to the pool unordered
+ * so several requests pipelined on one connection can be worked at the same
+ * time. The ResponseSequencer puts their responses back in order.
+ *
+ * State events (open, connected, closed and so on) are still ordered so a
+ * handler sees those in sequence, but a pipelined request may be worked
+ * before the channel open event for its connection has been.
+ *
+ * @author rjackson
+ */
+public class PipeliningThreadPoolExecutor extends OrderedMemoryAwareThreadPoolExecutor {
+
+    /**
+     * @param threads Number of pool threads.
+     * @param maxChannelMemorySize Maximum bytes of queued events per channel.
+     * @param maxTotalMemorySize Maximum bytes of queued events for the pool.
+     */
+    public PipeliningThreadPoolExecutor(int threads, long maxChannelMemorySize,
+            long maxTotalMemorySize) {
+        super(threads, maxChannelMemorySize, maxTotalMemorySize);
+    }
+
+    @Override
+    protected void doExecute(Runnable task) {
+        if(PipelinedRequest.isCarriedBy(task)) {
+            doUnorderedExecute(task);
+        } else {
+            super.doExecute(task);
+        }
+    }
+}
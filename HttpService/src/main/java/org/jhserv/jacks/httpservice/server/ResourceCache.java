@@ -0,0 +1,307 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jhserv.jacks.httpservice.utils.StripedCounter;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.service.http.HttpContext;
+
+/**
+ * Keeps recently used resources in memory so requests for them never go back
+ * to the HttpContext, which for a resource inside a bundle jar means a zip
+ * lookup and inflating the entry on every request.
+ *
+ * Entries are keyed by the HttpContext and resource name they were looked up
+ * with and the cache is bounded by the bytes it holds. Resources bigger than
+ * the max entry size are never cached, the ResourceSender maps those straight
+ * from disk.
+ *
+ * A hit takes no lock, it only sets the entry's referenced bit. Making room
+ * is done the clock way: the hand goes round the entries in the order they
+ * were cached, an entry with its bit set has it cleared and is passed over,
+ * the first one without is dropped. That is close enough to least recently
+ * used without every hit having to reorder a list.
+ *
+ * The cache listens for bundle events and drops everything a bundle
+ * registered when the bundle is updated, stopped or uninstalled. A resource
+ * read while that was happening isn't cached afterwards. A resource read from
+ * a file is also dropped if the file has changed since.
+ *
+ * @author rjackson
+ */
+public class ResourceCache implements SynchronousBundleListener {
+
+    private final long capacity;
+    private final long maxEntrySize;
+
+    /**
+     * Read without a lock, changed holding this.
+     */
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>(64);
+
+    /**
+     * The entries in the order the clock hand visits them, the next to look
+     * at first. Guarded by this.
+     */
+    private final ArrayDeque<Entry> clock = new ArrayDeque<Entry>(64);
+
+    /**
+     * Bytes held by entries. Guarded by this.
+     */
+    private long size;
+
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+
+    /**
+     * @param capacity Most bytes to hold, 0 to cache nothing.
+     * @param maxEntrySize Largest resource to hold.
+     */
+    public ResourceCache(long capacity, long maxEntrySize) {
+        this.capacity = capacity;
+        this.maxEntrySize = Math.min(maxEntrySize, capacity);
+    }
+
+    /**
+     * Would a resource of this many bytes be cached?
+     *
+     * @param length
+     * @return
+     */
+    public boolean accepts(long length) {
+        return length >= 0 && length <= maxEntrySize;
+    }
+
+    /**
+     * Look up a resource.
+     *
+     * @param context
+     * @param name
+     * @return null if it isn't cached.
+     */
+    public CachedResource get(HttpContext context, String name) {
+        if(capacity == 0) {
+            return null;
+        }
+        Key key = new Key(context, name);
+        Entry entry = entries.get(key);
+        if(entry != null && entry.resource.isStale()) {
+            synchronized(this) {
+                if(entries.get(key) == entry) {
+                    remove(key);
+                }
+            }
+            entry = null;
+        }
+        if(entry == null) {
+            misses.increment();
+            return null;
+        }
+        // Only written when it changes so hits on a popular entry don't
+        // keep taking its cache line away from each other.
+        if(!entry.referenced) {
+            entry.referenced = true;
+        }
+        hits.increment();
+        return entry.resource;
+    }
+
+    /**
+     * Cache a resource, if it is small enough and its bundle hasn't changed
+     * since it was read, dropping entries that haven't been used lately to
+     * make room for it.
+     *
+     * @param context
+     * @param name
+     * @param resource
+     */
+    public void put(HttpContext context, String name, CachedResource resource) {
+        if(!accepts(resource.size())) {
+            return;
+        }
+        Key key = new Key(context, name);
+        Entry entry = new Entry(key, resource);
+        synchronized(this) {
+            // Checked holding the lock invalidate takes, so either the
+            // change is seen here or the entry is there to be dropped.
+            if(!resource.isCurrent()) {
+                return;
+            }
+            remove(key);
+            entries.put(key, entry);
+            clock.addLast(entry);
+            size += resource.size();
+            while(size > capacity) {
+                Entry next = clock.pollFirst();
+                if(next.referenced) {
+                    next.referenced = false;
+                    clock.addLast(next);
+                } else {
+                    entries.remove(next.key);
+                    size -= next.resource.size();
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop every resource registered by a bundle.
+     *
+     * @param bundle
+     */
+    public synchronized void invalidate(Bundle bundle) {
+        Iterator<Entry> it = clock.iterator();
+        while(it.hasNext()) {
+            Entry entry = it.next();
+            if(entry.resource.getBundle() == bundle) {
+                entries.remove(entry.key);
+                size -= entry.resource.size();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop everything.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        clock.clear();
+        size = 0;
+    }
+
+    @Override
+    public void bundleChanged(BundleEvent event) {
+        switch(event.getType()) {
+            case BundleEvent.UPDATED:
+            case BundleEvent.STOPPED:
+            case BundleEvent.UNRESOLVED:
+            case BundleEvent.UNINSTALLED:
+                invalidate(event.getBundle());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Bytes currently held.
+     * @return
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public int getEntries() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceCache[size=" + getSize() + "/" + capacity + ", entries=" + getEntries()
+                + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + "]";
+    }
+
+    /**
+     * Must hold the lock.
+     */
+    private void remove(Key key) {
+        Entry old = entries.remove(key);
+        if(old != null) {
+            clock.remove(old);
+            size -= old.resource.size();
+        }
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * A cached resource and the bit the clock hand checks.
+     */
+    private static final class Entry {
+        final Key key;
+        final CachedResource resource;
+
+        /**
+         * Used since the hand last passed?
+         */
+        volatile boolean referenced;
+
+        Entry(Key key, CachedResource resource) {
+            this.key = key;
+            this.resource = resource;
+        }
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * HttpContext and resource name pair. Contexts are compared by identity,
+     * the spec leaves equals on them up to whoever wrote them.
+     */
+    private static final class Key {
+        private final HttpContext context;
+        private final String name;
+
+        Key(HttpContext context, String name) {
+            this.context = context;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)obj;
+            return context == other.context && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(context) * 31 + name.hashCode();
+        }
+    }
+}
@@ -0,0 +1,685 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jhserv.jacks.httpservice.servlet.HttpServletRequestImpl;
+import org.jhserv.jacks.httpservice.servlet.HttpServletResponseImpl;
+import org.jhserv.jacks.httpservice.utils.HttpDates;
+import org.osgi.service.http.HttpContext;
+
+/**
+ * Writes resources registered with registerResources straight to the
+ * connection, without going through the servlet API.
+ *
+ * Resources that resolve to a real file are memory mapped a window at a time
+ * and each window is handed to Netty as a buffer wrapping the mapping. The
+ * socket write then goes straight from the page cache, the file contents are
+ * never copied onto the heap. Only one window is written at a time, the next
+ * is mapped once the last has been written, so a large download holds no
+ * more than a window of address space and never queues up on a slow client.
+ * Netty 3.1 has no FileRegion (sendfile) support, mapping is the closest we
+ * can get. The same path is used on the SSL listener, the SslHandler simply
+ * encrypts from the mapping.
+ *
+ * Anything else (resources inside a bundle jar for instance), and files
+ * small enough to cache, is read into memory once and kept in the
+ * ResourceCache so later requests are answered without asking the
+ * HttpContext for it again. The HttpContext still gets to say whether each
+ * request may have it. Resources that aren't files and are too big for the
+ * cache, or don't say how big they are, are streamed through a piece at a
+ * time instead. Reading a piece can block (a jar entry, an http: URL) so
+ * each piece after the first is read on the execution stage, never on the
+ * I/O thread that completed the write before it.
+ *
+ * Clients that accept gzip get the gzip variant of a resource where there is
+ * one, see CachedResource. For files too big to cache a sibling name.gz file
+ * is mapped instead when there is one.
+ *
+ * Every response carries an ETag and Last-Modified and conditional requests
+ * that match get a 304 before any body is read, see ConditionalGet. Range
+ * requests are answered from slices of the cached body or by mapping just
+ * the requested spans of the file, see ByteRanges.
+ *
+ * @author rjackson
+ */
+public class ResourceSender {
+
+    /**
+     * Resources small enough to keep in memory.
+     */
+    private final ResourceCache cache;
+
+    /**
+     * The execution stage, streamed resources are read on it.
+     */
+    private final Executor executor;
+
+    /**
+     * @param cache
+     * @param executor Executor of the execution stage.
+     */
+    public ResourceSender(ResourceCache cache, Executor executor) {
+        this.cache = cache;
+        this.executor = executor;
+    }
+
+    /**
+     * Size of the file window mapped and written at a time.
+     */
+    private static final int MAP_WINDOW = 4 * 1024 * 1024;
+
+    /**
+     * Size of the pieces a resource that can only be streamed is read and
+     * written in.
+     */
+    private static final int STREAM_PIECE = 64 * 1024;
+
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
+    /**
+     * Types for common web files the JVMs file name map doesn't know.
+     */
+    private static final Map<String, String> MIME_TYPES = new HashMap<String, String>();
+    static {
+        MIME_TYPES.put("css", "text/css");
+        MIME_TYPES.put("js", "application/javascript");
+        MIME_TYPES.put("json", "application/json");
+        MIME_TYPES.put("svg", "image/svg+xml");
+        MIME_TYPES.put("ico", "image/x-icon");
+        MIME_TYPES.put("woff", "font/woff");
+        MIME_TYPES.put("woff2", "font/woff2");
+        MIME_TYPES.put("html", "text/html");
+        MIME_TYPES.put("htm", "text/html");
+        MIME_TYPES.put("txt", "text/plain");
+        MIME_TYPES.put("png", "image/png");
+        MIME_TYPES.put("jpg", "image/jpeg");
+        MIME_TYPES.put("jpeg", "image/jpeg");
+        MIME_TYPES.put("gif", "image/gif");
+    }
+
+    /**
+     * Guess the mime type of a resource from its name.
+     *
+     * @param name
+     * @return
+     */
+    public static String guessMimeType(String name) {
+        int dot = name.lastIndexOf('.');
+        if(dot >= 0) {
+            String type = MIME_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+            if(type != null) {
+                return type;
+            }
+        }
+        String type = URLConnection.getFileNameMap().getContentTypeFor(name);
+        return type != null ? type : DEFAULT_MIME_TYPE;
+    }
+
+    /**
+     * Answer a request for a resource.
+     *
+     * @param channel The connection the request came in on.
+     * @param pipelined The request.
+     * @param resources The registration its path matched.
+     * @param path The request path, not yet decoded.
+     * @param close Close the connection once the response is written?
+     */
+    public void send(Channel channel, PipelinedRequest pipelined, ResourceServlet resources,
+            String path, boolean close) {
+        HttpRequest request = pipelined.getRequest();
+        HttpMethod method = request.getMethod();
+        if(!HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method)) {
+            HttpResponse response = status(HttpResponseStatus.METHOD_NOT_ALLOWED);
+            response.setHeader(HttpHeaders.Names.ALLOW, "GET, HEAD");
+            finish(channel.write(pipelined.respond(response)), close);
+            return;
+        }
+
+        HttpContext context = resources.getHttpContext();
+        String name = resources.getResourceName(decode(path));
+        if(name == null) {
+            sendStatus(channel, pipelined, HttpResponseStatus.NOT_FOUND, close);
+            return;
+        }
+        if(!isAllowed(context, request)) {
+            sendStatus(channel, pipelined, HttpResponseStatus.FORBIDDEN, close);
+            return;
+        }
+        boolean head = HttpMethod.HEAD.equals(method);
+        boolean gzip = ResponseCompression.GZIP.equals(ResponseCompression.negotiate(
+                request.getHeader(HttpHeaders.Names.ACCEPT_ENCODING)));
+        CachedResource cached = cache.get(context, name);
+        if(cached != null) {
+            sendCached(channel, pipelined, cached, head, gzip, close);
+            return;
+        }
+        URL url = context.getResource(name);
+        if(url == null) {
+            sendStatus(channel, pipelined, HttpResponseStatus.NOT_FOUND, close);
+            return;
+        }
+        String type = context.getMimeType(name);
+        if(type == null) {
+            type = guessMimeType(name);
+        }
+        try {
+            File file = toFile(url);
+            URL gzipUrl = findGzip(context, name);
+            if(file != null) {
+                if(!file.isFile()) {
+                    sendStatus(channel, pipelined, HttpResponseStatus.NOT_FOUND, close);
+                    return;
+                }
+                if(!cache.accepts(file.length())) {
+                    File gzipFile = gzipUrl == null ? null : toFile(gzipUrl);
+                    if(gzipFile != null) {
+                        sendFile(channel, pipelined, gzip ? gzipFile : file, type, true,
+                                gzip, head, close);
+                    } else {
+                        sendFile(channel, pipelined, file, type, false, false, head, close);
+                    }
+                    return;
+                }
+            }
+            // Anything else can only be read as a stream. Its length is
+            // checked before any of it is read, one the cache won't take (or
+            // doesn't know) is passed through a piece at a time rather than
+            // read onto the heap only to be thrown away.
+            URLConnection connection = url.openConnection();
+            if(file == null && !cache.accepts(connection.getContentLength())) {
+                sendStream(channel, pipelined, connection, gzipUrl, type, gzip, head, close);
+                return;
+            }
+            cached = CachedResource.load(connection, file, gzipUrl, type, resources.getBundle());
+        } catch(IOException e) {
+            sendStatus(channel, pipelined, HttpResponseStatus.NOT_FOUND, close);
+            return;
+        }
+        cache.put(context, name, cached);
+        sendCached(channel, pipelined, cached, head, gzip, close);
+    }
+
+    private void sendCached(Channel channel, PipelinedRequest pipelined, CachedResource cached,
+            boolean head, boolean gzip, boolean close) {
+        HttpResponse response = cached.respond(pipelined.getRequest(), head, gzip);
+        finish(channel.write(pipelined.respond(response)), close);
+    }
+
+    /**
+     * Look for an already gzipped copy of a resource under its name plus .gz.
+     *
+     * @return null if there isn't one.
+     */
+    private static URL findGzip(HttpContext context, String name) {
+        if(name.endsWith(".gz")) {
+            return null;
+        }
+        URL url = context.getResource(name + ".gz");
+        if(url == null) {
+            return null;
+        }
+        File file = toFile(url);
+        return file == null || file.isFile() ? url : null;
+    }
+
+    /**
+     * @param vary Is there both a gzip and identity version of the file?
+     * @param gzip Is the file the gzip version?
+     */
+    private void sendFile(Channel channel, PipelinedRequest pipelined, File file,
+            String type, boolean vary, boolean gzip, boolean head, boolean close)
+            throws IOException {
+        // Big files aren't digested, their tag is made from the size and
+        // modification time like most servers do.
+        long lastModified = file.lastModified();
+        String etag = "\"" + Long.toHexString(file.length()) + "-" +
+                Long.toHexString(lastModified) + (gzip ? "-gz\"" : "\"");
+        String varyHeader = vary ? HttpHeaders.Names.ACCEPT_ENCODING : null;
+        if(ConditionalGet.isNotModified(pipelined.getRequest(), etag, lastModified)) {
+            finish(channel.write(pipelined.respond(ConditionalGet.notModified(etag,
+                    HttpDates.format(lastModified), varyHeader))), close);
+            return;
+        }
+        HttpRequest request = pipelined.getRequest();
+        List<long[]> ranges = head ? null :
+                ByteRanges.ranges(request, etag, lastModified, file.length());
+        if(ranges != null && ranges.isEmpty()) {
+            finish(channel.write(pipelined.respond(ByteRanges.unsatisfiable(file.length()))),
+                    close);
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        long length = raf.getChannel().size();
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                ranges == null ? HttpResponseStatus.OK : HttpResponseStatus.PARTIAL_CONTENT);
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, type);
+        response.setHeader(HttpHeaders.Names.ETAG, etag);
+        response.setHeader(HttpHeaders.Names.LAST_MODIFIED, HttpDates.format(lastModified));
+        response.setHeader(HttpHeaders.Names.ACCEPT_RANGES, "bytes");
+        if(vary) {
+            response.setHeader(HttpHeaders.Names.VARY, varyHeader);
+        }
+        if(gzip) {
+            response.setHeader(HttpHeaders.Names.CONTENT_ENCODING, ResponseCompression.GZIP);
+        }
+
+        // What to write after the headers: header buffers of multipart
+        // parts and file spans, which are mapped a window at a time.
+        List<Object> parts = new ArrayList<Object>();
+        long bodyLength = 0;
+        if(ranges == null) {
+            parts.add(new long[] {0, length - 1});
+            bodyLength = length;
+        } else if(ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            response.setHeader(HttpHeaders.Names.CONTENT_RANGE,
+                    ByteRanges.contentRange(range, length));
+            parts.add(range);
+            bodyLength = range[1] - range[0] + 1;
+        } else {
+            String boundary = ByteRanges.newBoundary();
+            ByteRanges.setMultipartType(response, boundary);
+            for(int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                ChannelBuffer header = ByteRanges.partHeader(boundary, type, range, length, i == 0);
+                parts.add(header);
+                parts.add(range);
+                bodyLength += header.readableBytes() + range[1] - range[0] + 1;
+            }
+            ChannelBuffer trailer = ByteRanges.trailer(boundary);
+            parts.add(trailer);
+            bodyLength += trailer.readableBytes();
+        }
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(bodyLength));
+        if(head || bodyLength == 0) {
+            raf.close();
+            finish(channel.write(pipelined.respond(response)), close);
+            return;
+        }
+        channel.write(pipelined.respond(response, false));
+        new MappedWriter(channel, pipelined, raf, parts, close).next();
+    }
+
+    /**
+     * Answer with a resource that isn't a file and is too big to cache.
+     * It is written STREAM_PIECE bytes at a time, each piece read once the
+     * last has been written. If its length isn't known it is sent chunked,
+     * or to HTTP/1.0 clients until the connection is closed. Ranges aren't
+     * offered, there is no cheap way to seek the stream.
+     *
+     * @param gzip Does the client accept gzip?
+     */
+    private void sendStream(Channel channel, PipelinedRequest pipelined,
+            URLConnection connection, URL gzipUrl, String type, boolean gzip, boolean head,
+            boolean close) throws IOException {
+        boolean vary = gzipUrl != null;
+        gzip = gzip && vary;
+        if(gzip) {
+            connection = gzipUrl.openConnection();
+        }
+        long length = connection.getContentLength();
+        long lastModified = connection.getLastModified();
+        String etag = length < 0 || lastModified <= 0 ? null : "\"" + Long.toHexString(length) +
+                "-" + Long.toHexString(lastModified) + (gzip ? "-gz\"" : "\"");
+        String lastModifiedHeader = lastModified > 0 ? HttpDates.format(lastModified) : null;
+        String varyHeader = vary ? HttpHeaders.Names.ACCEPT_ENCODING : null;
+        HttpRequest request = pipelined.getRequest();
+        if(ConditionalGet.isNotModified(request, etag, lastModified)) {
+            finish(channel.write(pipelined.respond(ConditionalGet.notModified(etag,
+                    lastModifiedHeader, varyHeader))), close);
+            return;
+        }
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.OK);
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, type);
+        if(etag != null) {
+            response.setHeader(HttpHeaders.Names.ETAG, etag);
+        }
+        if(lastModifiedHeader != null) {
+            response.setHeader(HttpHeaders.Names.LAST_MODIFIED, lastModifiedHeader);
+        }
+        if(vary) {
+            response.setHeader(HttpHeaders.Names.VARY, varyHeader);
+        }
+        if(gzip) {
+            response.setHeader(HttpHeaders.Names.CONTENT_ENCODING, ResponseCompression.GZIP);
+        }
+        boolean chunked = false;
+        if(length >= 0) {
+            response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(length));
+        } else if(HttpVersion.HTTP_1_1.equals(request.getProtocolVersion())) {
+            chunked = !head;
+        } else {
+            close = true;
+        }
+        if(head || length == 0) {
+            finish(channel.write(pipelined.respond(response, true)), close);
+            return;
+        }
+        if(chunked) {
+            response.setHeader(HttpHeaders.Names.TRANSFER_ENCODING, HttpHeaders.Values.CHUNKED);
+        }
+        StreamWriter writer = new StreamWriter(channel, pipelined,
+                connection.getInputStream(), length, chunked, close, executor);
+        channel.write(pipelined.respond(response, false));
+        writer.next();
+    }
+
+    /**
+     * Ask the HttpContext if the request may go ahead. Until our servlet
+     * layer is in place the context only gets a request it can read the
+     * method and headers of and a response it can't use, a context that
+     * tries to do more is taken as saying no.
+     */
+    private boolean isAllowed(HttpContext context, HttpRequest request) {
+        try {
+            return context.handleSecurity(new HttpServletRequestImpl(request),
+                    new HttpServletResponseImpl());
+        } catch(IOException e) {
+            return false;
+        } catch(RuntimeException e) {
+            return false;
+        }
+    }
+
+    private void sendStatus(Channel channel, PipelinedRequest pipelined,
+            HttpResponseStatus status, boolean close) {
+        finish(channel.write(pipelined.respond(status(status))), close);
+    }
+
+    private static HttpResponse status(HttpResponseStatus status) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        if(status.getCode() != HttpResponseStatus.OK.getCode()) {
+            response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, "0");
+        }
+        return response;
+    }
+
+    private static void finish(ChannelFuture future, boolean close) {
+        if(close) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Percent decode a request path. Unlike a query string a + in a path is
+     * just a +.
+     */
+    private static String decode(String path) {
+        if(path.indexOf('%') < 0) {
+            return path;
+        }
+        try {
+            return URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            return null;
+        } catch(IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The file behind a file: URL, null for any other kind of URL.
+     */
+    private static File toFile(URL url) {
+        if(!"file".equalsIgnoreCase(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        } catch(URISyntaxException e) {
+            return new File(url.getPath());
+        } catch(IllegalArgumentException e) {
+            return new File(url.getPath());
+        }
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * Writes a file one mapped window at a time, mapping the next window when
+     * the last one has been written. For a multipart range response the
+     * part headers are written between the file spans.
+     */
+    private static final class MappedWriter implements ChannelFutureListener {
+        private final Channel channel;
+        private final PipelinedRequest pipelined;
+        private final RandomAccessFile file;
+        private final List<Object> parts;
+        private final boolean close;
+
+        /**
+         * The part being written and, if it is a file span, where in the
+         * span we are.
+         */
+        private int index;
+        private long position = -1;
+
+        /**
+         * @param parts ChannelBuffers to write as is and long[] spans of the
+         * file, first and last offset inclusive.
+         */
+        MappedWriter(Channel channel, PipelinedRequest pipelined, RandomAccessFile file,
+                List<Object> parts, boolean close) {
+            this.channel = channel;
+            this.pipelined = pipelined;
+            this.file = file;
+            this.parts = parts;
+            this.close = close;
+        }
+
+        void next() {
+            Object part = parts.get(index);
+            ChannelBuffer buffer;
+            if(part instanceof ChannelBuffer) {
+                buffer = (ChannelBuffer)part;
+                index++;
+            } else {
+                long[] span = (long[])part;
+                if(position < 0) {
+                    position = span[0];
+                }
+                long length = Math.min(MAP_WINDOW, span[1] + 1 - position);
+                try {
+                    buffer = ChannelBuffers.wrappedBuffer(file.getChannel().map(
+                            FileChannel.MapMode.READ_ONLY, position, length));
+                } catch(IOException e) {
+                    // The file shrank or went away under us. The headers are
+                    // gone already so all we can do is drop the connection.
+                    closeFile();
+                    channel.close();
+                    return;
+                }
+                position += length;
+                if(position > span[1]) {
+                    index++;
+                    position = -1;
+                }
+            }
+            boolean last = index >= parts.size();
+            ChannelFuture future = channel.write(pipelined.respond(buffer, last));
+            future.addListener(this);
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if(!future.isSuccess()) {
+                closeFile();
+                channel.close();
+            } else if(index < parts.size()) {
+                next();
+            } else {
+                closeFile();
+                if(close) {
+                    channel.close();
+                }
+            }
+        }
+
+        private void closeFile() {
+            try {
+                file.close();
+            } catch(IOException e) {
+                // Nothing we can do.
+            }
+        }
+    }
+
+    /**
+     * Copies a stream to the connection a piece at a time, reading the next
+     * piece when the last one has been written. Write futures complete on
+     * the I/O thread, so the next read is handed to the executor.
+     */
+    private static final class StreamWriter implements ChannelFutureListener, Runnable {
+        private final Channel channel;
+        private final PipelinedRequest pipelined;
+        private final InputStream in;
+        private final boolean chunked;
+        private final boolean close;
+        private final Executor executor;
+
+        /**
+         * Bytes still to write, -1 to write until the end of the stream.
+         */
+        private long remaining;
+        private boolean done;
+
+        StreamWriter(Channel channel, PipelinedRequest pipelined, InputStream in,
+                long length, boolean chunked, boolean close, Executor executor) {
+            this.channel = channel;
+            this.pipelined = pipelined;
+            this.in = in;
+            this.remaining = length;
+            this.chunked = chunked;
+            this.close = close;
+            this.executor = executor;
+        }
+
+        @Override
+        public void run() {
+            next();
+        }
+
+        void next() {
+            byte[] piece = new byte[remaining < 0 ? STREAM_PIECE :
+                    (int)Math.min(STREAM_PIECE, remaining)];
+            int length = 0;
+            try {
+                int n;
+                while(length < piece.length &&
+                        (n = in.read(piece, length, piece.length - length)) > 0) {
+                    length += n;
+                }
+            } catch(IOException e) {
+                length = -1;
+            }
+            if(length < 0 || (remaining >= 0 && length < piece.length)) {
+                // Unreadable, or shorter than it said it was. The headers are
+                // gone already so all we can do is drop the connection.
+                closeStream();
+                channel.close();
+                return;
+            }
+            ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(piece, 0, length);
+            ChannelFuture future;
+            if(remaining >= 0) {
+                remaining -= length;
+                done = remaining == 0;
+                future = channel.write(pipelined.respond(buffer, done));
+            } else {
+                done = length < piece.length;
+                if(!chunked) {
+                    future = channel.write(pipelined.respond(buffer, done));
+                } else if(!done) {
+                    future = channel.write(pipelined.respond(new DefaultHttpChunk(buffer)));
+                } else {
+                    if(length > 0) {
+                        channel.write(pipelined.respond(new DefaultHttpChunk(buffer)));
+                    }
+                    future = channel.write(pipelined.respond(HttpChunk.LAST_CHUNK));
+                }
+            }
+            future.addListener(this);
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if(!future.isSuccess()) {
+                closeStream();
+                channel.close();
+            } else if(!done) {
+                try {
+                    executor.execute(this);
+                } catch(RejectedExecutionException e) {
+                    // The server is stopping.
+                    closeStream();
+                    channel.close();
+                }
+            } else {
+                closeStream();
+                if(close) {
+                    channel.close();
+                }
+            }
+        }
+
+        private void closeStream() {
+            try {
+                in.close();
+            } catch(IOException e) {
+                // Nothing we can do.
+            }
+        }
+    }
+}
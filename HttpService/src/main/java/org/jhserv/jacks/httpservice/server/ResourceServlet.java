@@ -0,0 +1,144 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.osgi.framework.Bundle;
+import org.osgi.service.http.HttpContext;
+
+/**
+ * The servlet behind a registerResources registration. Resource
+ * registrations share the alias namespace with servlets so they go into the
+ * RoutingTable as a ServletExecuter around one of these.
+ *
+ * The HttpRequestHandler does not actually run this servlet, it spots it in
+ * the routing table and has the ResourceSender write the resource straight to
+ * the connection, which is a lot cheaper than going through the servlet API.
+ * The service implementation here is what the servlet API would get if it
+ * was ever called through a filter chain.
+ *
+ * @author rjackson
+ */
+public class ResourceServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String alias;
+    private final String name;
+    private final transient HttpContext httpContext;
+    private final transient Bundle bundle;
+
+    /**
+     * @param alias The alias the resources are registered under.
+     * @param name The base name resource names are made from.
+     * @param httpContext Where the resources come from.
+     * @param bundle The bundle that registered the resources.
+     */
+    public ResourceServlet(String alias, String name, HttpContext httpContext, Bundle bundle) {
+        this.alias = alias;
+        this.name = name;
+        this.httpContext = httpContext;
+        this.bundle = bundle;
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public HttpContext getHttpContext() {
+        return httpContext;
+    }
+
+    /**
+     * The bundle that registered these resources. Cached copies of them are
+     * dropped when it is updated or stopped.
+     * @return
+     */
+    public Bundle getBundle() {
+        return bundle;
+    }
+
+    /**
+     * Map a request path under our alias to the name of the resource to ask
+     * our HttpContext for (102.3 of the HttpService spec): the alias is
+     * replaced by the registered name.
+     *
+     * @param path Decoded request path.
+     * @return The resource name or null if the path is not under our alias
+     * or tries to climb out of it.
+     */
+    public String getResourceName(String path) {
+        if(path == null || !path.startsWith(alias)) {
+            return null;
+        }
+        String rest = alias.equals("/") ? path : path.substring(alias.length());
+        if(rest.length() > 0 && rest.charAt(0) != '/') {
+            // /foo is our alias and the request was for /foobar.
+            return null;
+        }
+        if(rest.contains("/../") || rest.endsWith("/..") || rest.contains("\\")) {
+            return null;
+        }
+        if(name.equals("/")) {
+            return rest.length() == 0 ? "/" : rest;
+        }
+        return name + rest;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String resource = getResourceName(request.getRequestURI());
+        URL url = resource == null ? null : httpContext.getResource(resource);
+        if(url == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        URLConnection connection = url.openConnection();
+        String type = httpContext.getMimeType(resource);
+        response.setContentType(type != null ? type : ResourceSender.guessMimeType(resource));
+        int length = connection.getContentLength();
+        if(length >= 0) {
+            response.setContentLength(length);
+        }
+        InputStream in = connection.getInputStream();
+        try {
+            OutputStream out = response.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.util.List;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * Complete, non chunked responses to neighbouring pipelined requests that go
+ * down the pipeline as one write. The ResponseSequencer builds these when a
+ * slow response has been holding up small ones behind it, and the encoder
+ * from ResponseHeaders puts all of them into a single buffer so they reach
+ * the socket in one write instead of one each.
+ *
+ * @author rjackson
+ */
+final class ResponseBatch {
+
+    /**
+     * Largest body a response can have and still be batched.
+     */
+    static final int MAX_BODY = 8 * 1024;
+
+    /**
+     * Most body bytes put in a single batch.
+     */
+    static final int MAX_BYTES = 64 * 1024;
+
+    private final HttpResponse[] responses;
+
+    ResponseBatch(List<HttpResponse> responses) {
+        this.responses = responses.toArray(new HttpResponse[responses.size()]);
+    }
+
+    HttpResponse[] getResponses() {
+        return responses;
+    }
+
+    int size() {
+        return responses.length;
+    }
+
+    /**
+     * Can this message be put in a batch?
+     *
+     * @param message The message of the last PipelinedResponse of a response.
+     * @return
+     */
+    static boolean fits(Object message) {
+        return message instanceof HttpResponse && !((HttpResponse)message).isChunked() &&
+                ((HttpResponse)message).getContent().readableBytes() <= MAX_BODY;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+/**
+ * Pool of fixed size direct ChannelBuffers used to write response bodies. An
+ * instance of this class is created for each of our servers.
+ *
+ * Response text is encoded straight from the callers CharSequence into pooled
+ * buffers so we skip the String and byte[] copies that
+ * ChannelBuffers.copiedBuffer would make. Once the write of a response has
+ * completed its buffers are cleared and returned to the pool.
+ *
+ * @author rjackson
+ */
+public class ResponseBufferPool {
+
+    private final int chunkSize;
+    private final int maxPooled;
+
+    private final Queue<ChannelBuffer> pool = new ConcurrentLinkedQueue<ChannelBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param chunkSize Size in bytes of every buffer in the pool.
+     * @param maxPooled Maximum number of idle buffers we keep around.
+     */
+    public ResponseBufferPool(int chunkSize, int maxPooled) {
+        this.chunkSize = chunkSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Get an empty buffer from the pool, allocating a new one if the pool is
+     * empty.
+     *
+     * @return
+     */
+    public ChannelBuffer acquire() {
+        ChannelBuffer buffer = pool.poll();
+        if(buffer == null) {
+            return ChannelBuffers.directBuffer(chunkSize);
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. The buffer must not be used by the caller
+     * after this.
+     *
+     * @param buffer
+     */
+    public void release(ChannelBuffer buffer) {
+        buffer.clear();
+        if(pooled.incrementAndGet() <= maxPooled) {
+            pool.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Return all the supplied buffers to the pool.
+     *
+     * @param buffers
+     */
+    public void release(ChannelBuffer[] buffers) {
+        for(ChannelBuffer buffer : buffers) {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Encode the supplied chars into as many pooled buffers as needed. The
+     * encoder is reset before it is used so callers can keep one encoder per
+     * connection and reuse it. The encoder should be set to replace malformed
+     * and unmappable input.
+     *
+     * @param chars The text to encode.
+     * @param encoder The encoder to use.
+     * @return The filled buffers in order. There is always at least one.
+     */
+    public ChannelBuffer[] encode(CharSequence chars, CharsetEncoder encoder) {
+        encoder.reset();
+        CharBuffer in = CharBuffer.wrap(chars);
+        List<ChannelBuffer> buffers = new ArrayList<ChannelBuffer>(
+                1 + (int)(chars.length() * encoder.averageBytesPerChar()) / chunkSize);
+        boolean flushed = false;
+        while(!flushed) {
+            ChannelBuffer buffer = acquire();
+            ByteBuffer out = buffer.toByteBuffer(0, buffer.capacity());
+            CoderResult result = encoder.encode(in, out, true);
+            if(result.isUnderflow()) {
+                // All the input is consumed, flush may still need room.
+                flushed = encoder.flush(out).isUnderflow();
+            } else if(result.isError()) {
+                release(buffer);
+                release(buffers.toArray(new ChannelBuffer[buffers.size()]));
+                throw new IllegalArgumentException("Could not encode response text: " + result);
+            }
+            buffer.writerIndex(out.position());
+            buffers.add(buffer);
+        }
+        return buffers.toArray(new ChannelBuffer[buffers.size()]);
+    }
+
+    /**
+     * Join buffers produced by encode into the single buffer that is set as
+     * the response content. No bytes are copied.
+     *
+     * @param buffers
+     * @return
+     */
+    public static ChannelBuffer join(ChannelBuffer[] buffers) {
+        if(buffers.length == 1) {
+            return buffers[0];
+        }
+        return ChannelBuffers.wrappedBuffer(buffers);
+    }
+
+    /**
+     * Get a listener that returns the supplied buffers to this pool once the
+     * write they were part of is done.
+     *
+     * @param buffers
+     * @return
+     */
+    public ChannelFutureListener releaseOnComplete(final ChannelBuffer[] buffers) {
+        return new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                release(buffers);
+            }
+        };
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jhserv.jacks.httpservice.utils.StripedCounter;
+
+/**
+ * gzip and deflate Content-Encoding of responses. This holds the settings
+ * and the pool of Deflaters shared by a server, newHandler hands out the
+ * per connection handler that does the work. That handler sits between the
+ * execution stage and the request handler so the compressing happens on the
+ * execution stage thread writing the response, not on the I/O thread.
+ *
+ * The encoding is picked from the requests Accept-Encoding (gzip is
+ * preferred over deflate when both are equally acceptable). A response is
+ * left alone if:
+ *
+ * <ul>
+ * <li>it already has a Content-Encoding or can't have a body (HEAD, 1xx,
+ * 204 and 304).</li>
+ * <li>it is a 206, the body is only part of the representation.</li>
+ * <li>its Content-Type starts with one of the excluded types, these are
+ * meant to be formats that are already compressed like images.</li>
+ * <li>it has a body, or a Content-Length, smaller than the minimum size.
+ * Below a certain size the encoding overhead outweighs the saving.</li>
+ * </ul>
+ *
+ * A fixed length response is compressed in one go, and sent uncompressed if
+ * that didn't make it smaller. A chunked response is compressed a chunk at a
+ * time. On Java 7 and later every chunk is sync flushed so the client gets
+ * it straight away, on older JVMs the Deflater hangs on to data until it has
+ * a block worth sending.
+ *
+ * @author rjackson
+ */
+public class ResponseCompression {
+
+    /**
+     * Most Deflaters of each kind we keep around for reuse.
+     */
+    private static final int MAX_POOLED_DEFLATERS = 256;
+
+    public static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+
+    private static final byte[] GZIP_HEADER = {
+        0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff
+    };
+
+    /**
+     * Deflater.deflate(byte[], int, int, int) and its SYNC_FLUSH mode are
+     * Java 7 additions, so we look them up rather than link against them.
+     */
+    private static final Method DEFLATE_FLUSH;
+    private static final int SYNC_FLUSH = 2;
+    static {
+        Method m = null;
+        try {
+            m = Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+        } catch(NoSuchMethodException e) {
+            // Java 6, no sync flush.
+        }
+        DEFLATE_FLUSH = m;
+    }
+
+    private final int level;
+    private final int minSize;
+    private final String[] excludedTypes;
+
+    // Raw deflate Deflaters used for gzip, zlib wrapped ones for deflate.
+    private final Queue<Deflater> rawDeflaters = new ConcurrentLinkedQueue<Deflater>();
+    private final Queue<Deflater> zlibDeflaters = new ConcurrentLinkedQueue<Deflater>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final StripedCounter compressed = new StripedCounter();
+    private final StripedCounter bytesIn = new StripedCounter();
+    private final StripedCounter bytesOut = new StripedCounter();
+
+    /**
+     * @param level Deflate level 1 (fastest) to 9 (smallest).
+     * @param minSize Smallest body we compress.
+     * @param excludedTypes Content-Type prefixes we never compress.
+     */
+    public ResponseCompression(int level, int minSize, String[] excludedTypes) {
+        this.level = level;
+        this.minSize = minSize;
+        this.excludedTypes = new String[excludedTypes.length];
+        for(int i = 0; i < excludedTypes.length; i++) {
+            this.excludedTypes[i] = excludedTypes[i].trim().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * A new compressing handler for a connection.
+     * @return
+     */
+    public ChannelHandler newHandler() {
+        return new Compressor();
+    }
+
+    /**
+     * Number of responses we have compressed.
+     * @return
+     */
+    public long getCompressedResponses() {
+        return compressed.sum();
+    }
+
+    /**
+     * Body bytes that went into the compressor.
+     * @return
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * Compressed bytes that came out of it.
+     * @return
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * Pick the encoding to use for an Accept-Encoding header.
+     *
+     * @param acceptEncoding
+     * @return gzip, deflate or null for none.
+     */
+    public static String negotiate(String acceptEncoding) {
+        if(acceptEncoding == null) {
+            return null;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for(String part : acceptEncoding.split(",")) {
+            String coding = part;
+            float q = 1;
+            int semi = part.indexOf(';');
+            if(semi >= 0) {
+                coding = part.substring(0, semi);
+                String param = part.substring(semi + 1).trim();
+                if(param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch(NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            coding = coding.trim().toLowerCase(Locale.ENGLISH);
+            if(coding.equals(GZIP) || coding.equals("x-gzip")) {
+                gzip = Math.max(gzip, q);
+            } else if(coding.equals(DEFLATE)) {
+                deflate = Math.max(deflate, q);
+            } else if(coding.equals("*")) {
+                any = q;
+            }
+        }
+        if(gzip < 0) {
+            gzip = any;
+        }
+        if(deflate < 0) {
+            deflate = any;
+        }
+        if(gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        if(deflate > 0) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Should a response with this status and headers be compressed?
+     */
+    private boolean isCompressible(HttpResponse response) {
+        int status = response.getStatus().getCode();
+        if(status < 200 || status == HttpResponseStatus.NO_CONTENT.getCode() ||
+                status == HttpResponseStatus.PARTIAL_CONTENT.getCode() ||
+                status == HttpResponseStatus.NOT_MODIFIED.getCode()) {
+            // A 206 body is a piece of the representation, compressing it
+            // would make the ranges meaningless.
+            return false;
+        }
+        if(response.containsHeader(HttpHeaders.Names.CONTENT_ENCODING)) {
+            return false;
+        }
+        String type = response.getHeader(HttpHeaders.Names.CONTENT_TYPE);
+        if(type != null) {
+            type = type.toLowerCase(Locale.ENGLISH);
+            for(String excluded : excludedTypes) {
+                if(excluded.length() > 0 && type.startsWith(excluded)) {
+                    return false;
+                }
+            }
+        }
+        String length = response.getHeader(HttpHeaders.Names.CONTENT_LENGTH);
+        if(length != null) {
+            try {
+                if(Long.parseLong(length.trim()) < minSize) {
+                    return false;
+                }
+            } catch(NumberFormatException e) {
+                return false;
+            }
+        }
+        if(!response.isChunked()) {
+            ChannelBuffer content = response.getContent();
+            return content != null && content.readableBytes() >= minSize;
+        }
+        return true;
+    }
+
+    /**
+     * Add Vary: Accept-Encoding unless whoever built the response, the
+     * ResourceSender picking a pre-compressed variant for instance, already
+     * did.
+     */
+    private static void vary(HttpResponse response) {
+        if(!HttpHeaders.Names.ACCEPT_ENCODING.equalsIgnoreCase(
+                response.getHeader(HttpHeaders.Names.VARY))) {
+            response.addHeader(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+        }
+    }
+
+    private Deflater acquire(boolean gzip) {
+        Deflater deflater = (gzip ? rawDeflaters : zlibDeflaters).poll();
+        if(deflater == null) {
+            return new Deflater(level, gzip);
+        }
+        pooled.decrementAndGet();
+        return deflater;
+    }
+
+    private void release(Deflater deflater, boolean gzip) {
+        deflater.reset();
+        if(pooled.incrementAndGet() <= MAX_POOLED_DEFLATERS) {
+            (gzip ? rawDeflaters : zlibDeflaters).offer(deflater);
+        } else {
+            pooled.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * Compression of one response body.
+     */
+    private final class Encoding {
+        private final boolean gzip;
+        private Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final byte[] out = new byte[8192];
+        private byte[] in = new byte[8192];
+        private boolean headerWritten;
+
+        Encoding(boolean gzip) {
+            this.gzip = gzip;
+            this.deflater = acquire(gzip);
+        }
+
+        String getName() {
+            return gzip ? GZIP : DEFLATE;
+        }
+
+        /**
+         * Compress more of the body, returns what the deflater let go of.
+         */
+        synchronized ChannelBuffer encode(ChannelBuffer data, boolean flush) {
+            ChannelBuffer result = ChannelBuffers.dynamicBuffer(
+                    Math.max(64, data.readableBytes() / 2));
+            if(gzip && !headerWritten) {
+                result.writeBytes(GZIP_HEADER);
+            }
+            headerWritten = true;
+            if(deflater == null) {
+                return result;
+            }
+            int length = data.readableBytes();
+            bytesIn.add(length);
+            // Netty 3.1 buffers don't expose their backing array so copy
+            // into a scratch array we keep for the whole body.
+            if(in.length < length) {
+                in = new byte[Math.max(length, in.length * 2)];
+            }
+            data.getBytes(data.readerIndex(), in, 0, length);
+            if(gzip) {
+                crc.update(in, 0, length);
+            }
+            deflater.setInput(in, 0, length);
+            while(!deflater.needsInput()) {
+                drain(result, false);
+            }
+            if(flush && DEFLATE_FLUSH != null) {
+                drain(result, true);
+            }
+            return result;
+        }
+
+        /**
+         * End the body, returns the rest of the compressed data.
+         */
+        synchronized ChannelBuffer finish() {
+            ChannelBuffer result = ChannelBuffers.dynamicBuffer(64);
+            if(gzip && !headerWritten) {
+                result.writeBytes(GZIP_HEADER);
+            }
+            headerWritten = true;
+            if(deflater == null) {
+                return result;
+            }
+            deflater.finish();
+            while(!deflater.finished()) {
+                int n = deflater.deflate(out);
+                result.writeBytes(out, 0, n);
+            }
+            if(gzip) {
+                int crcValue = (int)crc.getValue();
+                int size = deflater.getTotalIn();
+                result.writeInt(Integer.reverseBytes(crcValue));
+                result.writeInt(Integer.reverseBytes(size));
+            }
+            release(deflater, gzip);
+            deflater = null;
+            return result;
+        }
+
+        /**
+         * Give the deflater back if the response was never finished.
+         */
+        synchronized void abandon() {
+            if(deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+
+        private void drain(ChannelBuffer result, boolean sync) {
+            int n;
+            if(sync) {
+                do {
+                    n = syncDeflate();
+                    result.writeBytes(out, 0, n);
+                } while(n == out.length);
+            } else {
+                n = deflater.deflate(out);
+                result.writeBytes(out, 0, n);
+            }
+        }
+
+        private int syncDeflate() {
+            try {
+                return ((Integer)DEFLATE_FLUSH.invoke(deflater, out, 0, out.length,
+                        SYNC_FLUSH)).intValue();
+            } catch(Exception e) {
+                throw new IllegalStateException("Deflater flush failed", e);
+            }
+        }
+    }
+
+    /**
+     * The per connection handler. Requests are matched to their responses by
+     * their PipelinedRequest sequence, which lets it work with pipelined
+     * HTTP/1.1 requests and HTTP/2 streams alike.
+     */
+    @ChannelPipelineCoverage("one")
+    private final class Compressor extends SimpleChannelHandler {
+
+        /**
+         * Encoding picked for each request still waiting for its response,
+         * null when the client didn't ask for one. Once a response turns out
+         * to be compressible its Encoding replaces the name.
+         */
+        private final Map<Integer, Object> responses = new ConcurrentHashMap<Integer, Object>();
+
+        private final Object none = new Object();
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            if(e.getMessage() instanceof PipelinedRequest) {
+                PipelinedRequest pipelined = (PipelinedRequest)e.getMessage();
+                HttpRequest request = pipelined.getRequest();
+                String encoding = HttpMethod.HEAD.equals(request.getMethod()) ? null :
+                        negotiate(request.getHeader(HttpHeaders.Names.ACCEPT_ENCODING));
+                responses.put(pipelined.getSequence(), encoding == null ? none : encoding);
+            }
+            super.messageReceived(ctx, e);
+        }
+
+        @Override
+        public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            if(!(e.getMessage() instanceof PipelinedResponse)) {
+                super.writeRequested(ctx, e);
+                return;
+            }
+            PipelinedResponse pipelined = (PipelinedResponse)e.getMessage();
+            int sequence = pipelined.getSequence();
+            Object message = pipelined.getMessage();
+            Object state = responses.get(sequence);
+            if(pipelined.isLast()) {
+                responses.remove(sequence);
+            }
+
+            if(message instanceof HttpResponse) {
+                HttpResponse response = (HttpResponse)message;
+                if(state instanceof String && isCompressible(response)) {
+                    compressResponse(ctx, e, sequence, response, (String)state);
+                    return;
+                }
+                if(state instanceof String) {
+                    vary(response);
+                }
+                if(response.isChunked()) {
+                    responses.put(sequence, none);
+                }
+            } else if(message instanceof HttpChunk && state instanceof Encoding) {
+                compressChunk(ctx, e, sequence, (HttpChunk)message, (Encoding)state);
+                return;
+            }
+            super.writeRequested(ctx, e);
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            for(Object state : responses.values()) {
+                if(state instanceof Encoding) {
+                    ((Encoding)state).abandon();
+                }
+            }
+            responses.clear();
+            super.channelClosed(ctx, e);
+        }
+
+        private void compressResponse(ChannelHandlerContext ctx, MessageEvent e, int sequence,
+                HttpResponse response, String name) {
+            Encoding encoding = new Encoding(name.equals(GZIP));
+            vary(response);
+            if(response.isChunked()) {
+                responses.put(sequence, encoding);
+                response.setHeader(HttpHeaders.Names.CONTENT_ENCODING, encoding.getName());
+                response.removeHeader(HttpHeaders.Names.CONTENT_LENGTH);
+                write(ctx, e, sequence, response);
+                return;
+            }
+            ChannelBuffer content = response.getContent();
+            int length = content.readableBytes();
+            ChannelBuffer body = ChannelBuffers.wrappedBuffer(
+                    encoding.encode(content.slice(), false), encoding.finish());
+            if(body.readableBytes() < length) {
+                compressed.increment();
+                bytesOut.add(body.readableBytes());
+                response.setContent(body);
+                response.setHeader(HttpHeaders.Names.CONTENT_ENCODING, encoding.getName());
+                response.setHeader(HttpHeaders.Names.CONTENT_LENGTH,
+                        String.valueOf(body.readableBytes()));
+            } else {
+                bytesOut.add(length);
+            }
+            write(ctx, e, sequence, response);
+        }
+
+        private void compressChunk(ChannelHandlerContext ctx, MessageEvent e, int sequence,
+                HttpChunk chunk, Encoding encoding) {
+            ChannelBuffer data = encoding.encode(chunk.getContent(), !chunk.isLast());
+            if(chunk.isLast()) {
+                compressed.increment();
+                data = ChannelBuffers.wrappedBuffer(data, encoding.finish());
+                bytesOut.add(data.readableBytes());
+                if(data.readable()) {
+                    Channels.write(ctx, Channels.future(ctx.getChannel()),
+                            new PipelinedResponse(sequence, new DefaultHttpChunk(data)));
+                }
+                write(ctx, e, sequence, chunk);
+                return;
+            }
+            bytesOut.add(data.readableBytes());
+            if(data.readable()) {
+                write(ctx, e, sequence, new DefaultHttpChunk(data));
+            } else {
+                // The deflater kept it all for now. An empty chunk would end
+                // the body so there is nothing to send yet.
+                e.getFuture().setSuccess();
+            }
+        }
+
+        private void write(ChannelHandlerContext ctx, MessageEvent e, int sequence, Object message) {
+            Channels.write(ctx, e.getFuture(), new PipelinedResponse(sequence, message),
+                    e.getRemoteAddress());
+        }
+    }
+}
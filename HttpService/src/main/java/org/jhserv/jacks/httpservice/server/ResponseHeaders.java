@@ -0,0 +1,447 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.timeout.Timeout;
+import org.jboss.netty.handler.timeout.Timer;
+import org.jboss.netty.handler.timeout.TimerTask;
+import org.jhserv.jacks.httpservice.utils.HttpDates;
+
+/**
+ * Per server cache of the response header bytes that are the same from one
+ * response to the next.
+ *
+ * <ul>
+ * <li>The Date header is formatted once a second on the servers timer,
+ * instead of by every response, and put on every response that doesn't have
+ * one. The formatted line is kept with it so the encoder can copy it.</li>
+ * <li>Header lines with common values (Content-Type: text/html,
+ * Connection: keep-alive, Vary: Accept-Encoding and so on) and HTTP/1.1
+ * status lines are kept encoded, the encoder copies them instead of encoding
+ * the strings again. Values of the headers in CACHED_NAMES that aren't
+ * known up front are learned as they are seen, up to MAX_LEARNED of them,
+ * headers whose values change all the time (lengths, tags, dates) are never
+ * cached.</li>
+ * </ul>
+ *
+ * @author rjackson
+ */
+public class ResponseHeaders implements TimerTask {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /**
+     * Most header values learned on top of the ones we start with.
+     */
+    private static final int MAX_LEARNED = 256;
+
+    /**
+     * Room we allow for the status line and headers of a response when
+     * sizing the buffer it is encoded into.
+     */
+    private static final int HEADER_ESTIMATE = 256;
+
+    /**
+     * Headers whose lines are cached and the values they start with.
+     */
+    private static final String[][] CACHED_NAMES = {
+        {HttpHeaders.Names.CONTENT_TYPE, "text/html", "text/plain", "text/css",
+                "application/javascript", "application/json", "image/png", "image/jpeg",
+                "image/gif", "application/octet-stream"},
+        {HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE, HttpHeaders.Values.CLOSE},
+        {HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING},
+        {HttpHeaders.Names.CONTENT_ENCODING, "gzip", "deflate"},
+        {HttpHeaders.Names.ACCEPT_RANGES, "bytes"},
+        {HttpHeaders.Names.TRANSFER_ENCODING, HttpHeaders.Values.CHUNKED},
+        {HttpHeaders.Names.ALLOW},
+        {HttpHeaders.Names.CACHE_CONTROL},
+        {HttpHeaders.Names.SERVER},
+    };
+
+    /**
+     * Encoded lines, name to value to "name: value\r\n".
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, byte[]>> lines =
+            new ConcurrentHashMap<String, ConcurrentMap<String, byte[]>>();
+    private final AtomicInteger learned = new AtomicInteger();
+
+    /**
+     * Encoded HTTP/1.1 status lines by status code.
+     */
+    private final AtomicReferenceArray<StatusLine> statusLines =
+            new AtomicReferenceArray<StatusLine>(600);
+
+    /**
+     * Pool small responses are encoded into, null to encode them into heap
+     * buffers.
+     */
+    private final ResponseBufferPool pool;
+
+    private final Timer timer;
+    private volatile Timeout refresh;
+    private volatile boolean stopped;
+    private volatile DateLine date;
+
+    private final ChannelHandler dateHandler = new DateHandler();
+    private final ChannelHandler encoder = new Encoder();
+
+    /**
+     * Create the cache and start updating the date.
+     *
+     * @param timer The servers timer, the date is updated on it.
+     */
+    public ResponseHeaders(Timer timer) {
+        this(timer, null);
+    }
+
+    /**
+     * Create the cache and start updating the date.
+     *
+     * @param timer The servers timer, the date is updated on it.
+     * @param pool Pool of the direct buffers response bodies are written
+     * from, small responses are encoded into its buffers too.
+     */
+    public ResponseHeaders(Timer timer, ResponseBufferPool pool) {
+        this.timer = timer;
+        this.pool = pool;
+        for(String[] name : CACHED_NAMES) {
+            ConcurrentMap<String, byte[]> values = new ConcurrentHashMap<String, byte[]>();
+            for(int i = 1; i < name.length; i++) {
+                values.put(name[i], encode(name[0], name[i]));
+            }
+            lines.put(name[0], values);
+        }
+        run(null);
+    }
+
+    /**
+     * The current value of the Date header.
+     *
+     * @return
+     */
+    public String getDate() {
+        return date.value;
+    }
+
+    /**
+     * The handler that puts a Date header on every response. One instance is
+     * shared by every pipeline.
+     *
+     * @return
+     */
+    public ChannelHandler getDateHandler() {
+        return dateHandler;
+    }
+
+    /**
+     * The HTTP response encoder that uses our cached lines. It keeps no per
+     * connection state so one instance is shared by every pipeline.
+     *
+     * @return
+     */
+    public ChannelHandler getEncoder() {
+        return encoder;
+    }
+
+    /**
+     * Stop updating the date.
+     */
+    public void stop() {
+        stopped = true;
+        Timeout timeout = refresh;
+        if(timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Format the date and schedule the next update for the start of the next
+     * second.
+     */
+    @Override
+    public void run(Timeout timeout) {
+        long now = System.currentTimeMillis();
+        String value = HttpDates.format(now);
+        date = new DateLine(value, encode(HttpHeaders.Names.DATE, value));
+        if(!stopped) {
+            try {
+                refresh = timer.newTimeout(this, 1000 - now % 1000, TimeUnit.MILLISECONDS);
+            } catch(IllegalStateException e) {
+                // The timer was stopped along with the server.
+            }
+        }
+    }
+
+    /**
+     * The cached line for a header, learning it if its name is one we cache.
+     *
+     * @return null if the line isn't cached.
+     */
+    private byte[] line(String name, String value) {
+        ConcurrentMap<String, byte[]> values = lines.get(name);
+        if(values == null) {
+            return null;
+        }
+        byte[] line = values.get(value);
+        if(line == null && learned.get() < MAX_LEARNED) {
+            line = encode(name, value);
+            if(values.putIfAbsent(value, line) == null) {
+                learned.incrementAndGet();
+            }
+        }
+        return line;
+    }
+
+    private byte[] statusLine(HttpResponseStatus status) {
+        int code = status.getCode();
+        if(code < 0 || code >= statusLines.length()) {
+            return null;
+        }
+        String reason = status.getReasonPhrase();
+        StatusLine line = statusLines.get(code);
+        if(line == null || !reason.equals(line.reason)) {
+            // Racing threads may both encode a line, either result is fine.
+            line = new StatusLine(reason,
+                    ("HTTP/1.1 " + code + " " + reason + "\r\n").getBytes(LATIN1));
+            statusLines.set(code, line);
+        }
+        return line.line;
+    }
+
+    /**
+     * The number of bytes encoding these responses takes.
+     *
+     * @return -1 if a response isn't HTTP/1.1, its status line is then
+     * Netty's to encode.
+     */
+    private int length(HttpResponse[] responses) {
+        int length = 0;
+        for(HttpResponse response : responses) {
+            byte[] line = HttpVersion.HTTP_1_1.equals(response.getProtocolVersion()) ?
+                    statusLine(response.getStatus()) : null;
+            if(line == null) {
+                return -1;
+            }
+            length += line.length + CRLF.length + response.getContent().readableBytes();
+            // Every line is "name: value\r\n" one byte a char, cached or not.
+            for(String name : response.getHeaderNames()) {
+                for(String value : response.getHeaders(name)) {
+                    length += name.length() + value.length() + 4;
+                }
+            }
+        }
+        return length;
+    }
+
+    private static byte[] encode(String name, String value) {
+        return (name + ": " + value + "\r\n").getBytes(LATIN1);
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * A status line and the reason phrase it was encoded with.
+     */
+    private static final class StatusLine {
+        private final String reason;
+        private final byte[] line;
+
+        StatusLine(String reason, byte[] line) {
+            this.reason = reason;
+            this.line = line;
+        }
+    }
+
+    /**
+     * A Date value and its encoded header line.
+     */
+    private static final class DateLine {
+        private final String value;
+        private final byte[] line;
+
+        DateLine(String value, byte[] line) {
+            this.value = value;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Adds the current Date to responses on their way out.
+     */
+    @ChannelPipelineCoverage("all")
+    private final class DateHandler extends SimpleChannelDownstreamHandler {
+
+        @Override
+        public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            Object message = e.getMessage();
+            if(message instanceof PipelinedResponse) {
+                message = ((PipelinedResponse)message).getMessage();
+            }
+            if(message instanceof HttpResponse) {
+                HttpResponse response = (HttpResponse)message;
+                if(!response.containsHeader(HttpHeaders.Names.DATE)) {
+                    response.setHeader(HttpHeaders.Names.DATE, date.value);
+                }
+            }
+            super.writeRequested(ctx, e);
+        }
+    }
+
+    /**
+     * HttpResponseEncoder that copies cached lines where it can. Small
+     * complete responses and ResponseBatches are encoded into one buffer,
+     * status line, headers and body, instead of Netty's composite of header
+     * and body. Netty copies a composite into a new buffer every time it
+     * tries to write it anyway, so this saves that copy as well.
+     *
+     * With a pool the buffer is made of pooled direct buffers, which go back
+     * to the pool once the write is done, so the bodies written from pooled
+     * buffers aren't copied onto the heap on their way out.
+     */
+    @ChannelPipelineCoverage("all")
+    private final class Encoder extends HttpResponseEncoder {
+
+        @Override
+        public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent evt)
+                throws Exception {
+            if(pool != null && evt instanceof MessageEvent) {
+                MessageEvent e = (MessageEvent)evt;
+                HttpResponse[] responses = small(e.getMessage());
+                int length = responses == null ? -1 : length(responses);
+                if(length > 0) {
+                    ChannelBuffer[] buffers = new ChannelBuffer[
+                            (length + pool.getChunkSize() - 1) / pool.getChunkSize()];
+                    for(int i = 0; i < buffers.length; i++) {
+                        buffers[i] = pool.acquire();
+                        buffers[i].writerIndex(buffers[i].capacity());
+                    }
+                    // Written through a view over all of them, then cut to
+                    // what was written.
+                    ChannelBuffer buf = ResponseBufferPool.join(buffers).slice(0, length);
+                    buf.clear();
+                    write(buf, responses);
+                    e.getFuture().addListener(pool.releaseOnComplete(buffers));
+                    Channels.write(ctx, e.getFuture(), buf, e.getRemoteAddress());
+                    return;
+                }
+            }
+            super.handleDownstream(ctx, evt);
+        }
+
+        @Override
+        protected Object encode(ChannelHandlerContext ctx, Channel channel, Object msg)
+                throws Exception {
+            HttpResponse[] responses = small(msg);
+            if(responses == null) {
+                return super.encode(ctx, channel, msg);
+            }
+            int estimate = 0;
+            for(HttpResponse response : responses) {
+                estimate += HEADER_ESTIMATE + response.getContent().readableBytes();
+            }
+            ChannelBuffer buf = ChannelBuffers.dynamicBuffer(estimate,
+                    channel.getConfig().getBufferFactory());
+            write(buf, responses);
+            return buf;
+        }
+
+        /**
+         * The responses in a message we encode into one buffer.
+         *
+         * @return null if the message is left to Netty.
+         */
+        private HttpResponse[] small(Object msg) {
+            if(msg instanceof ResponseBatch) {
+                return ((ResponseBatch)msg).getResponses();
+            } else if(ResponseBatch.fits(msg)) {
+                return new HttpResponse[] {(HttpResponse)msg};
+            }
+            return null;
+        }
+
+        private void write(ChannelBuffer buf, HttpResponse[] responses) {
+            for(HttpResponse response : responses) {
+                encodeInitialLine(buf, response);
+                encodeHeaders(buf, response);
+                buf.writeBytes(CRLF);
+                ChannelBuffer content = response.getContent();
+                buf.writeBytes(content, content.readerIndex(), content.readableBytes());
+            }
+        }
+
+        @Override
+        protected void encodeInitialLine(ChannelBuffer buf, HttpMessage message) {
+            HttpResponse response = (HttpResponse)message;
+            byte[] line = HttpVersion.HTTP_1_1.equals(response.getProtocolVersion()) ?
+                    statusLine(response.getStatus()) : null;
+            if(line == null) {
+                super.encodeInitialLine(buf, message);
+            } else {
+                buf.writeBytes(line);
+            }
+        }
+
+        @Override
+        public void encodeHeaders(ChannelBuffer buf, HttpMessage message) {
+            DateLine current = date;
+            for(String name : message.getHeaderNames()) {
+                for(String value : message.getHeaders(name)) {
+                    byte[] line = value == current.value ? current.line : line(name, value);
+                    if(line != null) {
+                        buf.writeBytes(line);
+                    } else {
+                        buf.writeBytes(name.getBytes(LATIN1));
+                        buf.writeByte((byte)':');
+                        buf.writeByte((byte)' ');
+                        buf.writeBytes(value.getBytes(LATIN1));
+                        buf.writeBytes(CRLF);
+                    }
+                }
+            }
+        }
+    }
+}
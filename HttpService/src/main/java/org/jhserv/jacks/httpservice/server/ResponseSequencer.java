@@ -0,0 +1,305 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * HTTP/1.1 pipelining support. A client may send several requests on a
+ * connection without waiting for the responses, but the responses have to go
+ * back in the order the requests came in.
+ *
+ * On the way up every complete request is numbered and passed on as a
+ * PipelinedRequest. The execution stage runs those in parallel, even when
+ * they share a connection, so a slow request does not hold up the work on
+ * the ones behind it. On the way down every PipelinedResponse is written
+ * straight away if it belongs to the oldest unanswered request, otherwise it
+ * is parked until the responses in front of it are done. When a response
+ * frees up others parked behind it, the small complete ones among them go
+ * down together as a ResponseBatch so they leave in one write.
+ *
+ * To keep one connection from parking an unbounded number of responses we
+ * stop reading from it once it has maxPipelined requests unanswered and start
+ * again when it drops back below that. With maxPipelined set to 1 requests
+ * are worked one at a time, the way they would be without pipelining.
+ *
+ * This must sit after the HttpChunkAggregator, it only numbers whole
+ * requests. A single instance is shared by every pipeline of a server, the
+ * per connection state is kept as the context attachment.
+ *
+ * @author rjackson
+ */
+@ChannelPipelineCoverage("all")
+public class ResponseSequencer extends SimpleChannelHandler {
+
+    private final int maxPipelined;
+
+    /**
+     * @param maxPipelined Maximum unanswered requests per connection before
+     * we stop reading from it.
+     */
+    public ResponseSequencer(int maxPipelined) {
+        this.maxPipelined = Math.max(1, maxPipelined);
+    }
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        ctx.setAttachment(new Sequence());
+        super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object message = e.getMessage();
+        if(!(message instanceof HttpRequest)) {
+            super.messageReceived(ctx, e);
+            return;
+        }
+        Sequence sequence = (Sequence)ctx.getAttachment();
+        int number;
+        boolean suspend;
+        synchronized(sequence) {
+            number = sequence.nextRequest++;
+            suspend = sequence.nextRequest - sequence.nextResponse >= maxPipelined;
+            if(suspend) {
+                sequence.suspended = true;
+            }
+        }
+        if(suspend) {
+            e.getChannel().setReadable(false);
+        }
+        Channels.fireMessageReceived(ctx, new PipelinedRequest((HttpRequest)message, number),
+                e.getRemoteAddress());
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if(!(e.getMessage() instanceof PipelinedResponse)) {
+            super.writeRequested(ctx, e);
+            return;
+        }
+        PipelinedResponse response = (PipelinedResponse)e.getMessage();
+        Sequence sequence = (Sequence)ctx.getAttachment();
+        boolean resume = false;
+        // Writes are sent on while holding the lock so two threads finishing
+        // neighbouring responses can't pass each other on the way down.
+        synchronized(sequence) {
+            if(sequence.closed) {
+                // Finished after the connection went, it can never be
+                // written. Fail it rather than park it where nothing would.
+                e.getFuture().setFailure(new ClosedChannelException());
+                return;
+            }
+            if(response.getSequence() != sequence.nextResponse) {
+                sequence.park(response, e);
+                return;
+            }
+            if(!response.isLast()) {
+                sendDownstream(ctx, response.getMessage(), e.getFuture(), e);
+                return;
+            }
+            sequence.nextResponse++;
+            List<Parked> ready = sequence.parked.get(sequence.nextResponse);
+            if(ready == null) {
+                sendDownstream(ctx, response.getMessage(), e.getFuture(), e);
+            } else {
+                // Flush everything that was waiting on this response, the
+                // small complete ones together.
+                Batcher batcher = new Batcher(ctx, e);
+                batcher.write(response, e);
+                do {
+                    boolean done = false;
+                    for(Parked parked : ready) {
+                        batcher.write(parked.response, parked.event);
+                        done = parked.response.isLast();
+                    }
+                    sequence.parked.remove(sequence.nextResponse);
+                    if(!done) {
+                        // The rest of this response has not been written
+                        // yet, it will go straight down when it is.
+                        break;
+                    }
+                    sequence.nextResponse++;
+                } while((ready = sequence.parked.get(sequence.nextResponse)) != null);
+                batcher.flush();
+            }
+            if(sequence.suspended &&
+                    sequence.nextRequest - sequence.nextResponse < maxPipelined) {
+                sequence.suspended = false;
+                resume = true;
+            }
+        }
+        if(resume && e.getChannel().isOpen()) {
+            e.getChannel().setReadable(true);
+        }
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        // Responses still parked can never be written. Fail them so anyone
+        // waiting on their futures (pooled buffers for one) is told, and
+        // fail any that finish from now on as they come in.
+        Sequence sequence = (Sequence)ctx.getAttachment();
+        if(sequence != null) {
+            List<Parked> failed = new ArrayList<Parked>();
+            synchronized(sequence) {
+                sequence.closed = true;
+                for(List<Parked> parked : sequence.parked.values()) {
+                    failed.addAll(parked);
+                }
+                sequence.parked.clear();
+            }
+            for(Parked parked : failed) {
+                parked.event.getFuture().setFailure(new ClosedChannelException());
+            }
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    private static void sendDownstream(ChannelHandlerContext ctx, Object message,
+            ChannelFuture future, MessageEvent e) {
+        ctx.sendDownstream(new DownstreamMessageEvent(e.getChannel(), future,
+                message, e.getRemoteAddress()));
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * Request numbering and parked responses for a single connection. All
+     * access is synchronized on the instance.
+     */
+    private static final class Sequence {
+        private int nextRequest;
+        private int nextResponse;
+        private boolean suspended;
+        private boolean closed;
+        private final Map<Integer, List<Parked>> parked = new HashMap<Integer, List<Parked>>();
+
+        void park(PipelinedResponse response, MessageEvent e) {
+            List<Parked> list = parked.get(response.getSequence());
+            if(list == null) {
+                list = new ArrayList<Parked>(1);
+                parked.put(response.getSequence(), list);
+            }
+            list.add(new Parked(response, e));
+        }
+    }
+
+    /**
+     * Gathers the small complete responses released together into
+     * ResponseBatches. Anything that can't be batched goes down on its own,
+     * after the batch in front of it so the order is kept.
+     */
+    private static final class Batcher {
+        private final ChannelHandlerContext ctx;
+        private final MessageEvent event;
+        private final List<HttpResponse> responses = new ArrayList<HttpResponse>();
+        private final List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+        private int bytes;
+
+        Batcher(ChannelHandlerContext ctx, MessageEvent e) {
+            this.ctx = ctx;
+            this.event = e;
+        }
+
+        void write(PipelinedResponse response, MessageEvent e) {
+            Object message = response.getMessage();
+            if(!response.isLast() || !ResponseBatch.fits(message)) {
+                flush();
+                sendDownstream(ctx, message, e.getFuture(), e);
+                return;
+            }
+            int length = ((HttpResponse)message).getContent().readableBytes();
+            if(bytes + length > ResponseBatch.MAX_BYTES) {
+                flush();
+            }
+            responses.add((HttpResponse)message);
+            futures.add(e.getFuture());
+            bytes += length;
+        }
+
+        void flush() {
+            if(responses.size() == 1) {
+                sendDownstream(ctx, responses.get(0), futures.get(0), event);
+            } else if(!responses.isEmpty()) {
+                ChannelFuture future = Channels.future(event.getChannel());
+                future.addListener(new BatchCompletion(
+                        futures.toArray(new ChannelFuture[futures.size()])));
+                sendDownstream(ctx, new ResponseBatch(responses), future, event);
+            }
+            responses.clear();
+            futures.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Passes the outcome of a batch write on to the writes it was made of.
+     */
+    private static final class BatchCompletion implements ChannelFutureListener {
+        private final ChannelFuture[] futures;
+
+        BatchCompletion(ChannelFuture[] futures) {
+            this.futures = futures;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            Throwable cause = future.getCause();
+            if(future.isSuccess()) {
+                for(ChannelFuture part : futures) {
+                    part.setSuccess();
+                }
+            } else {
+                for(ChannelFuture part : futures) {
+                    part.setFailure(cause != null ? cause : new ClosedChannelException());
+                }
+            }
+        }
+    }
+
+    private static final class Parked {
+        private final PipelinedResponse response;
+        private final MessageEvent event;
+
+        Parked(PipelinedResponse response, MessageEvent e) {
+            this.response = response;
+            this.event = e;
+        }
+    }
+}
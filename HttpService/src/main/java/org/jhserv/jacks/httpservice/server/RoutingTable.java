@@ -0,0 +1,153 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletException;
+import org.jhserv.jacks.httpservice.utils.AliasTrie;
+import org.osgi.service.http.NamespaceException;
+
+/**
+ * Immutable snapshot of everything a server needs to route a request. Our
+ * ServletRegistrations builds a new table off to the side for every change
+ * and swaps it in with a single atomic reference update. The
+ * ServletRequestHandler reads the current table once at the start of a request
+ * and uses that table for the whole request, so registrations coming and going
+ * never block or change the routing of a request that is already running.
+ *
+ * Every table carries a generation number that is one higher than the table
+ * it replaced. This lets us tell which snapshot a request was routed with.
+ *
+ * @author rjackson
+ */
+public final class RoutingTable {
+
+    private static final RoutingTable EMPTY = new RoutingTable(0,
+            Collections.<String, ServletExecuter>emptyMap());
+
+    private final long generation;
+
+    /**
+     * All executers keyed by there alias. Resource registrations share the
+     * alias namespace with servlets so they are held here as well.
+     */
+    private final Map<String, ServletExecuter> executers;
+
+    /**
+     * Longest match lookup of the executers above.
+     */
+    private final AliasTrie<ServletExecuter> aliases;
+
+    private RoutingTable(long generation, Map<String, ServletExecuter> executers) {
+        this.generation = generation;
+        this.executers = executers;
+        this.aliases = AliasTrie.build(executers);
+    }
+
+    /**
+     * The table with nothing registered in it.
+     *
+     * @return
+     */
+    public static RoutingTable empty() {
+        return EMPTY;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Locate the executer for the longest alias that matches the supplied
+     * request path.
+     *
+     * @param path Request path with out the query string.
+     * @return The executer or null if no alias matches.
+     */
+    public ServletExecuter findExecuter(String path) {
+        return aliases.lookup(path);
+    }
+
+    /**
+     * Get the executer registered under exactly the supplied alias.
+     *
+     * @param alias
+     * @return
+     */
+    public ServletExecuter getExecuter(String alias) {
+        return executers.get(alias);
+    }
+
+    /**
+     * Get a read only view of all the executers in this table.
+     *
+     * @return
+     */
+    public Map<String, ServletExecuter> getExecuters() {
+        return executers;
+    }
+
+    /**
+     * Build the table that results from adding the supplied executer to this
+     * one. This table is not modified.
+     *
+     * @param executer
+     * @return
+     * @throws NamespaceException If the alias is already in use.
+     * @throws ServletException If the servlet has already been registered.
+     * See section 102.2 of the OSGi HttpService spec.
+     */
+    public RoutingTable with(ServletExecuter executer)
+            throws NamespaceException, ServletException {
+        String alias = executer.getAlias();
+        if(executers.containsKey(alias)) {
+            throw new NamespaceException("The alias " + alias + " is already in use.");
+        }
+        for(ServletExecuter registered : executers.values()) {
+            if(registered.getServlet() == executer.getServlet()) {
+                throw new ServletException("This servlet instance has already been registered.");
+            }
+        }
+        Map<String, ServletExecuter> copy = new HashMap<String, ServletExecuter>(executers);
+        copy.put(alias, executer);
+        return new RoutingTable(generation + 1, Collections.unmodifiableMap(copy));
+    }
+
+    /**
+     * Build the table that results from removing the supplied alias from this
+     * one. This table is not modified.
+     *
+     * @param alias
+     * @return The new table or this table if the alias is not registered.
+     */
+    public RoutingTable without(String alias) {
+        if(!executers.containsKey(alias)) {
+            return this;
+        }
+        Map<String, ServletExecuter> copy = new HashMap<String, ServletExecuter>(executers);
+        copy.remove(alias);
+        return new RoutingTable(generation + 1, Collections.unmodifiableMap(copy));
+    }
+}
@@ -64,6 +64,36 @@ public class ServletExecuter implements FilterChain {
      */
     private final List<Filter> filters = new CopyOnWriteArrayList<Filter>();
 
+    /**
+     * The filters above compiled into a flat array. This is rebuilt every time
+     * a filter is added or removed so the request path never has to iterate
+     * the list.
+     */
+    private volatile Filter[] compiledFilters = new Filter[0];
+
+    /**
+     * Chain handed to the last filter. It just calls our servlet so it has no
+     * state and can be shared by all requests.
+     */
+    private final FilterChain servletChain = new FilterChain() {
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response)
+                throws IOException, ServletException {
+            servlet.service(request, response);
+        }
+    };
+
+    /**
+     * Reusable chain cursors, one per thread. A cursor is only borrowed while
+     * a request is walking a chain of two or more filters.
+     */
+    private static final ThreadLocal<FilterCursor> cursors = new ThreadLocal<FilterCursor>() {
+        @Override
+        protected FilterCursor initialValue() {
+            return new FilterCursor();
+        }
+    };
+
     /**
      * SessionFactory to use for getting a session. 
      */
@@ -89,6 +119,46 @@ public class ServletExecuter implements FilterChain {
         this.httpContext = httpContext;
     }
 
+    /**
+     * The alias this executer is registered under.
+     * @return
+     */
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * The servlet this executer is responsable for.
+     * @return
+     */
+    public Servlet getServlet() {
+        return servlet;
+    }
+
+    /**
+     * Add a filter to the end of this servlets filter chain.
+     *
+     * @param filter
+     */
+    public synchronized void addFilter(Filter filter) {
+        filters.add(filter);
+        compiledFilters = filters.toArray(new Filter[filters.size()]);
+    }
+
+    /**
+     * Remove a filter from this servlets filter chain.
+     *
+     * @param filter
+     * @return true if the filter was part of the chain.
+     */
+    public synchronized boolean removeFilter(Filter filter) {
+        boolean removed = filters.remove(filter);
+        if(removed) {
+            compiledFilters = filters.toArray(new Filter[filters.size()]);
+        }
+        return removed;
+    }
+
     /**
      * Is this executer ready to be placed into service?
      * @return
@@ -99,12 +169,76 @@ public class ServletExecuter implements FilterChain {
     }
 
 
+    /**
+     * Run the request through our filters and then our servlet. The no filter
+     * and single filter cases are handled directly. Longer chains are walked
+     * with a per thread cursor so no chain or iterator objects are created per
+     * request.
+     */
     @Override
     public void doFilter(ServletRequest request, ServletResponse response)
             throws IOException, ServletException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        Filter[] chain = compiledFilters;
+        switch(chain.length) {
+            case 0:
+                servlet.service(request, response);
+                break;
+            case 1:
+                chain[0].doFilter(request, response, servletChain);
+                break;
+            default:
+                FilterCursor cursor = cursors.get();
+                if(cursor.inUse) {
+                    // A filter or servlet further up this threads stack is
+                    // dispatching to another chain (include or forward) while
+                    // the threads cursor is still walking the first one.
+                    cursor = new FilterCursor();
+                }
+                cursor.start(chain, servlet);
+                try {
+                    cursor.doFilter(request, response);
+                } finally {
+                    cursor.reset();
+                }
+        }
     }
 
-    
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * Index walking FilterChain over a compiled filter array. Each call to
+     * doFilter moves to the next filter and the servlet is called once the
+     * filters run out.
+     */
+    private static final class FilterCursor implements FilterChain {
+
+        private Filter[] filters;
+        private Servlet servlet;
+        private int index;
+        private boolean inUse;
+
+        void start(Filter[] filters, Servlet servlet) {
+            this.filters = filters;
+            this.servlet = servlet;
+            index = 0;
+            inUse = true;
+        }
+
+        void reset() {
+            filters = null;
+            servlet = null;
+            inUse = false;
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response)
+                throws IOException, ServletException {
+            if(index < filters.length) {
+                filters[index++].doFilter(request, response, this);
+            } else {
+                servlet.service(request, response);
+            }
+        }
+    }
 
 }
@@ -21,10 +21,9 @@
 
 package org.jhserv.jacks.httpservice.server;
 
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.CopyOnWriteArrayList;
-import javax.servlet.Servlet;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.ServletException;
+import org.osgi.service.http.NamespaceException;
 
 /**
  * This class takes care of the actuall registration of servlets into the server.
@@ -35,31 +34,74 @@ import javax.servlet.Servlet;
  * objects into the server. It is also responsable for ensuring that all registrations
  * are valid and will not clash with each other.
  *
- * It should be noted that this class and the ServletRequestHandler share a url
- * to servlet map with each other. This class does not create or destroy this
- * map. The ServletRequestHandler is responsable for that.
+ * It should be noted that this class and the ServletRequestHandler share a
+ * reference to the current RoutingTable. The tables are immutable so every
+ * change builds a new table from the current one and swaps it in with a compare
+ * and set. Nothing is locked so registrations never contend with request
+ * lookups. If another registration wins the race we just rebuild from the
+ * table it installed and try again.
  *
  * @author rjackson
  */
 public class ServletRegistrations {
 
     /**
-     * Shared map for holding our servlets alias and its execution object. 
+     * Shared reference to the routing table in service. The
+     * ServletRequestHandler is responsable for creating this.
      */
-    private final Map<String, ServletExecuter> requestMap;
+    private final AtomicReference<RoutingTable> routes;
 
-    private final ServletRequestHandler handler;
+    public ServletRegistrations(AtomicReference<RoutingTable> routes) {
+        this.routes = routes;
+    }
+
+    /**
+     * Install the supplied executer under its alias.
+     *
+     * @param executer
+     * @throws NamespaceException If the alias is already in use.
+     * @throws ServletException If the servlet has already been registered.
+     * See section 102.2 of the OSGi HttpService spec.
+     */
+    public void register(ServletExecuter executer)
+            throws NamespaceException, ServletException {
+        for(;;) {
+            RoutingTable current = routes.get();
+            RoutingTable next = current.with(executer);
+            if(routes.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
 
     /**
-     * List of all servlet instances registered. The OSGi HttpService spec states
-     * that a servlet instance can only be registered one time. This is used to
-     * enforce that. See section 102.2 of the OSGi HttpService spec.
+     * Remove the executer registered under the supplied alias. Requests that
+     * were routed with an older table may still be running against the
+     * executer when this returns.
+     *
+     * @param alias
+     * @return The executer that was removed or null if nothing was registered
+     * under the alias.
      */
-    private final List<Servlet> registeredServlets = new CopyOnWriteArrayList<Servlet>();
-    
+    public ServletExecuter unregister(String alias) {
+        for(;;) {
+            RoutingTable current = routes.get();
+            ServletExecuter executer = current.getExecuter(alias);
+            if(executer == null) {
+                return null;
+            }
+            if(routes.compareAndSet(current, current.without(alias))) {
+                return executer;
+            }
+        }
+    }
 
-    public ServletRegistrations(Map<String, ServletExecuter> requestMap, ServletRequestHandler handler) {
-        this.requestMap = requestMap;
-        this.handler = handler;
+    /**
+     * Generation of the routing table currently in service.
+     *
+     * @return
+     */
+    public long getGeneration() {
+        return routes.get().getGeneration();
     }
 }
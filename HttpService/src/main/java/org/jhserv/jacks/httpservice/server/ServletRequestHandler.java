@@ -21,8 +21,7 @@
 
 package org.jhserv.jacks.httpservice.server;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import org.jboss.netty.channel.ChannelPipelineCoverage;
 import org.jboss.netty.channel.SimpleChannelHandler;
 
@@ -40,16 +39,35 @@ import org.jboss.netty.channel.SimpleChannelHandler;
 public class ServletRequestHandler extends SimpleChannelHandler {
 
     /**
-     * This holds our mapping of URI and the servlet to be executed. It should
-     * be noted that this map will be shared with the ServletRegistrations
-     * class asciated with this particular server.
+     * The routing table currently in service. The table is immutable, our
+     * ServletRegistrations class builds a new one every time a registration
+     * changes and swaps it in here. A request must read this one time and use
+     * that snapshot for the rest of the request.
      */
-    private final Map<String, ServletExecuter> requestMap =
-            new ConcurrentHashMap<String, ServletExecuter>();
+    private final AtomicReference<RoutingTable> routes =
+            new AtomicReference<RoutingTable>(RoutingTable.empty());
 
     /**
      * The ServletRegistrations asciated with this handler.
      */
     private final ServletRegistrations servletRegistrations =
-            new ServletRegistrations(requestMap, this);
+            new ServletRegistrations(routes);
+
+    /**
+     * Get the ServletRegistrations that feeds this handler.
+     *
+     * @return
+     */
+    public ServletRegistrations getServletRegistrations() {
+        return servletRegistrations;
+    }
+
+    /**
+     * Get the routing table snapshot currently in service.
+     *
+     * @return
+     */
+    public RoutingTable getRoutingTable() {
+        return routes.get();
+    }
 }
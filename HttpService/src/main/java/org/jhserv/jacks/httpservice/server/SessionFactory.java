@@ -19,17 +19,792 @@
  * If not, see <http://www.gnu.org/licenses/>.
  */
 
+
 package org.jhserv.jacks.httpservice.server;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
+import org.jboss.netty.handler.timeout.Timeout;
+import org.jboss.netty.handler.timeout.Timer;
+import org.jboss.netty.handler.timeout.TimerTask;
+import org.jhserv.jacks.httpservice.servlet.HttpSessionImpl;
+import org.jhserv.jacks.httpservice.utils.StripedCounter;
+import org.osgi.service.http.HttpContext;
+
 /**
  * This class is responsible for creating and managing our sessions. An instance
  * of this class is created for each of our servers.
  *
  * As per the OSGi specification sessions are bound to a particular HttpContext
  * object so any servlet registered with the same HttpContext will share sessions.
- * 
+ * Sessions are keyed by the identity of their HttpContext and their ID, the
+ * same ID under another context is another session. New IDs come from a
+ * SessionIdGenerator and are checked against the live sessions and those
+ * still waiting in the journal.
+ *
+ * The sessions are spread over a power of two number of stripes, each a
+ * ConcurrentHashMap with its own lock. A lookup is a single hash probe and
+ * takes no lock, so requests sharing a hot session never wait on each other,
+ * only adding and removing sessions takes the stripe's lock.
+ *
+ * Expiry is driven by a hierarchical timing wheel that advances once a second
+ * on the servers timer. Level 0 has a slot for each of the next 64 seconds,
+ * each level above covers 64 times the span of the one below it, so four
+ * levels reach about six months. A session is put in the slot of its expiry
+ * second when it is created and, when a slot comes due, each session in it
+ * either expires or, if it was used in the meantime, moves on to the slot of
+ * its new expiry. Slots of the higher levels are spread into the levels below
+ * as their time comes. Using a session never touches the wheel and a second
+ * only visits the sessions due in it, so the cost of expiry does not grow
+ * with the number of live sessions. Since the wheel only works to the second
+ * a session records its last access to the second too, requests sharing a
+ * session within the same second only read it. Invalidated sessions are
+ * simply dropped when their slot comes up. A lookup still checks the expiry
+ * itself so a session is never handed out late, even if its max inactive
+ * interval was shortened after it was put in the wheel.
+ *
+ * Given an OffHeapSessionStore, session attributes are kept serialized in it
+ * instead of on the heap. The store has a byte budget and evicts the least
+ * recently used sessions when it runs out, evicted sessions are invalidated.
+ *
+ * Given a SessionJournal, sessions are also written to a file and survive the
+ * server being stopped and started. A session read back from the file is
+ * brought to life by the first request for it, its attributes are read with
+ * the class loader of the HttpContext that request is for. Attribute values
+ * that implement HttpSessionActivationListener are told when the server is
+ * stopped and when their session is brought back. Compacting the journal
+ * serializes every live session, so it is done on a thread of its own rather
+ * than on the servers timer, which the Date header and every connection
+ * timeout also run on.
+ *
  * @author rjackson
  */
-public class SessionFactory {
+public class SessionFactory implements TimerTask {
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SLOTS = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SLOTS - 1;
+    private static final int WHEEL_LEVELS = 4;
+
+    /**
+     * Furthest ahead, in seconds, the wheel can hold a session. Sessions that
+     * expire later, or never, are held this far ahead and looked at again.
+     */
+    private static final long WHEEL_HORIZON = (1L << (WHEEL_BITS * WHEEL_LEVELS)) - 1;
+
+    private final Stripe[] stripes;
+    private final int stripeMask;
+
+    /**
+     * Seconds a new session may go unused before it expires.
+     */
+    private final int defaultTimeout;
+
+    private final SessionIdGenerator ids = new SessionIdGenerator();
+
+    /**
+     * Where session attributes are kept, null to keep them on the heap.
+     */
+    private final OffHeapSessionStore offHeap;
+
+    /**
+     * Where sessions are persisted, null if they aren't.
+     */
+    private final SessionJournal journal;
+
+    /**
+     * Runs journal compactions, null without a journal.
+     */
+    private final ExecutorService compactor;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    /**
+     * The timing wheel, linked lists of sessions by level and slot. The wheel
+     * and tick are guarded by the wheel's monitor.
+     */
+    private final Session[][] wheel = new Session[WHEEL_LEVELS][WHEEL_SLOTS];
+
+    /**
+     * The last second the wheel has been advanced to.
+     */
+    private long tick;
+
+    private final Timer timer;
+    private volatile Timeout refresh;
+    private volatile boolean stopped;
+
+    private final AtomicInteger sessionCount = new AtomicInteger();
+    private final StripedCounter created = new StripedCounter();
+    private final StripedCounter expired = new StripedCounter();
+    private final StripedCounter evicted = new StripedCounter();
+    private final StripedCounter restored = new StripedCounter();
+
+    /**
+     * Create the factory and start expiring sessions.
+     *
+     * @param timer The servers timer, the wheel is advanced on it.
+     * @param defaultTimeout Seconds a new session may go unused before it
+     * expires, 0 for never.
+     * @param offHeap Store for session attributes, null to keep them on the
+     * heap.
+     * @param journal Where sessions are persisted, null to keep them only in
+     * memory.
+     */
+    public SessionFactory(Timer timer, int defaultTimeout, OffHeapSessionStore offHeap,
+            SessionJournal journal) {
+        this.timer = timer;
+        this.defaultTimeout = defaultTimeout;
+        this.offHeap = offHeap;
+        this.journal = journal;
+        compactor = journal == null ? null : Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Session journal compaction");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        int count = 1;
+        while(count < Runtime.getRuntime().availableProcessors() * 4) {
+            count <<= 1;
+        }
+        stripes = new Stripe[count];
+        for(int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+        stripeMask = count - 1;
+        tick = System.currentTimeMillis() / 1000;
+        schedule();
+    }
+
+    /**
+     * Find a live session and mark it accessed.
+     *
+     * @param context The HttpContext of the servlet the request is for.
+     * @param id The requested session ID, may be null.
+     * @return null if there is no such session or it has expired.
+     */
+    public HttpSessionImpl getSession(HttpContext context, String id) {
+        if(id == null) {
+            return null;
+        }
+        Key key = new Key(context, id);
+        Stripe stripe = stripe(key);
+        Session session = stripe.sessions.get(key);
+        if(session == null && journal != null) {
+            session = restore(key);
+        }
+        if(session == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if(session.isExpired(now)) {
+            expire(session);
+            return null;
+        }
+        session.access(now);
+        return session.isValid() ? session : null;
+    }
+
+    /**
+     * Create a new session with a new ID.
+     *
+     * @param context The HttpContext the session belongs to.
+     * @param servletContext The context of the servlet creating it, may be
+     * null.
+     * @return
+     */
+    public HttpSessionImpl createSession(HttpContext context, ServletContext servletContext) {
+        Session session;
+        for(;;) {
+            session = new Session(new Key(context, ids.newId()), servletContext);
+            if(journal != null && journal.contains(session.journalName, session.key.id)) {
+                continue;
+            }
+            Stripe stripe = stripe(session.key);
+            synchronized(stripe) {
+                // 128 random bits, but make sure.
+                if(!stripe.sessions.containsKey(session.key)) {
+                    stripe.sessions.put(session.key, session);
+                    break;
+                }
+            }
+        }
+        sessionCount.incrementAndGet();
+        created.increment();
+        synchronized(wheel) {
+            insert(session);
+        }
+        if(journal != null) {
+            journal.sessionCreated(session.journalName, session);
+        }
+        return session;
+    }
+
+    /**
+     * Invalidate every session of a context, for when the context is no
+     * longer in use.
+     *
+     * @param context
+     */
+    public void invalidate(HttpContext context) {
+        for(Session session : sessions(context)) {
+            session.expire();
+        }
+    }
+
+    /**
+     * Invalidate every session.
+     */
+    public void clear() {
+        for(Session session : sessions(null)) {
+            session.expire();
+        }
+    }
+
+    /**
+     * Stop expiring sessions.
+     */
+    public void stop() {
+        stopped = true;
+        Timeout timeout = refresh;
+        if(timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Stop expiring sessions and let them go. Without a journal they are
+     * invalidated, with one they are written out, still valid, to be brought
+     * back when the server is next started.
+     */
+    public void close() {
+        stop();
+        if(journal == null) {
+            clear();
+            return;
+        }
+        // A compaction still running drops its file once the journal is
+        // closed, no need to wait for it.
+        compactor.shutdown();
+        for(Session session : sessions(null)) {
+            try {
+                Enumeration attributes = session.getAttributeNames();
+                while(attributes.hasMoreElements()) {
+                    Object value = session.getAttribute((String)attributes.nextElement());
+                    if(value instanceof HttpSessionActivationListener) {
+                        ((HttpSessionActivationListener)value).sessionWillPassivate(
+                                new HttpSessionEvent(session));
+                    }
+                }
+            } catch(IllegalStateException e) {
+                // Invalidated while we were at it.
+            }
+        }
+        synchronized(journal) {
+            List<HttpSessionImpl> live = new ArrayList<HttpSessionImpl>();
+            List<String> names = new ArrayList<String>();
+            snapshot(live, names);
+            journal.close(live, names);
+        }
+    }
+
+    /**
+     * Number of live sessions.
+     * @return
+     */
+    public int getSessionCount() {
+        return sessionCount.get();
+    }
+
+    /**
+     * Sessions created.
+     * @return
+     */
+    public long getCreated() {
+        return created.sum();
+    }
+
+    /**
+     * Sessions that expired, as opposed to being invalidated.
+     * @return
+     */
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    /**
+     * Sessions evicted from the off heap store to make room.
+     * @return
+     */
+    public long getEvicted() {
+        return evicted.sum();
+    }
+
+    /**
+     * The off heap attribute store or null if attributes are on the heap.
+     * @return
+     */
+    public OffHeapSessionStore getOffHeapStore() {
+        return offHeap;
+    }
+
+    /**
+     * Sessions brought back from the journal.
+     * @return
+     */
+    public long getRestored() {
+        return restored.sum();
+    }
+
+    /**
+     * The journal sessions are persisted to or null if they aren't.
+     * @return
+     */
+    public SessionJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Advance the wheel to the current second and expire what is due.
+     */
+    @Override
+    public void run(Timeout timeout) {
+        advanceTo(System.currentTimeMillis());
+        if(journal != null && journal.needsCompaction() && compacting.compareAndSet(false, true)) {
+            try {
+                compactor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            compact();
+                        } finally {
+                            compacting.set(false);
+                        }
+                    }
+                });
+            } catch(RejectedExecutionException e) {
+                // Closed meanwhile.
+                compacting.set(false);
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Advance the wheel to the second of the given time and expire the
+     * sessions that are idle by then. The timer does this each second with
+     * the current time.
+     *
+     * @param now
+     */
+    public void advanceTo(long now) {
+        List<Session> due = new ArrayList<Session>();
+        synchronized(wheel) {
+            long target = now / 1000;
+            while(tick < target) {
+                tick++;
+                advance(now, due);
+            }
+        }
+        // Unbinding attributes runs application code, keep it off the lock.
+        for(Session session : due) {
+            expire(session);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "sessions=" + getSessionCount() + " created=" + getCreated() +
+                " expired=" + getExpired() + " evicted=" + getEvicted() +
+                (journal == null ? "" : " restored=" + getRestored()) +
+                (offHeap == null ? "" : " offHeap[" + offHeap + "]");
+    }
+
+    private void schedule() {
+        if(!stopped) {
+            try {
+                refresh = timer.newTimeout(this, 1, TimeUnit.SECONDS);
+            } catch(IllegalStateException e) {
+                // The timer was stopped along with the server.
+            }
+        }
+    }
+
+    /**
+     * Work the wheel for the new tick. Slots of the higher levels whose time
+     * has come are spread into the levels below, then the level 0 slot of
+     * the tick is drained. Must hold the wheel's monitor.
+     */
+    private void advance(long now, List<Session> due) {
+        for(int level = WHEEL_LEVELS - 1; level > 0; level--) {
+            int shift = WHEEL_BITS * level;
+            if((tick & ((1L << shift) - 1)) == 0) {
+                Session session = take(level, (int)(tick >>> shift) & WHEEL_MASK);
+                while(session != null) {
+                    Session next = session.wheelNext;
+                    if(session.isValid()) {
+                        insert(session);
+                    }
+                    session = next;
+                }
+            }
+        }
+        Session session = take(0, (int)tick & WHEEL_MASK);
+        while(session != null) {
+            Session next = session.wheelNext;
+            session.wheelNext = null;
+            if(session.isValid()) {
+                if(session.isExpired(now)) {
+                    due.add(session);
+                } else {
+                    insert(session);
+                }
+            }
+            session = next;
+        }
+    }
+
+    private Session take(int level, int slot) {
+        Session head = wheel[level][slot];
+        wheel[level][slot] = null;
+        return head;
+    }
+
+    /**
+     * Put a session in the slot of the second it expires in. Must hold the
+     * wheel's monitor.
+     */
+    private void insert(Session session) {
+        long expiry = session.getExpiryTime();
+        long deadline = expiry == Long.MAX_VALUE ? Long.MAX_VALUE : (expiry + 999) / 1000;
+        long delta = Math.min(Math.max(deadline - tick, 1), WHEEL_HORIZON);
+        int level = 0;
+        while(delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        int slot = (int)((tick + delta) >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+        session.wheelNext = wheel[level][slot];
+        wheel[level][slot] = session;
+    }
+
+    /**
+     * Bring a session back from the journal.
+     *
+     * @return null if the journal doesn't have it.
+     */
+    private Session restore(Key key) {
+        Stripe stripe = stripe(key);
+        Session session;
+        Map<String, Object> attributes;
+        // Under the journal's lock so a compaction finds the session either
+        // still in the journal or with the live ones.
+        synchronized(journal) {
+            SessionJournal.Restored saved =
+                    journal.adopt(SessionJournal.contextName(key.context), key.id);
+            if(saved == null) {
+                // Another request may have got there first.
+                return stripe.sessions.get(key);
+            }
+            session = new Session(key, saved);
+            attributes = saved.readAttributes(key.context.getClass().getClassLoader());
+            session.restore(attributes);
+            synchronized(stripe) {
+                stripe.sessions.put(key, session);
+            }
+        }
+        sessionCount.incrementAndGet();
+        restored.increment();
+        synchronized(wheel) {
+            insert(session);
+        }
+        for(Object value : attributes.values()) {
+            if(value instanceof HttpSessionActivationListener) {
+                ((HttpSessionActivationListener)value).sessionDidActivate(
+                        new HttpSessionEvent(session));
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Rewrite the journal from the live sessions. The sessions are gathered
+     * and the compaction started under the journal's lock, so one created
+     * meanwhile either makes it into the new file or has its record appended
+     * after the start and carried over. They are written out without the
+     * lock.
+     */
+    private void compact() {
+        SessionJournal.Compaction compaction;
+        synchronized(journal) {
+            List<HttpSessionImpl> live = new ArrayList<HttpSessionImpl>();
+            List<String> names = new ArrayList<String>();
+            snapshot(live, names);
+            compaction = journal.startCompaction(live, names);
+        }
+        if(compaction != null) {
+            journal.compact(compaction);
+        }
+    }
+
+    /**
+     * Gather the live sessions and their context names for the journal.
+     * Must hold the journal's lock.
+     */
+    private void snapshot(List<HttpSessionImpl> live, List<String> names) {
+        for(Session session : sessions(null)) {
+            live.add(session);
+            names.add(session.journalName);
+        }
+    }
+
+    private void expire(Session session) {
+        if(session.isValid()) {
+            session.expire();
+            expired.increment();
+        }
+    }
+
+    private void remove(Session session) {
+        Stripe stripe = stripe(session.key);
+        synchronized(stripe) {
+            if(stripe.sessions.get(session.key) != session) {
+                return;
+            }
+            stripe.sessions.remove(session.key);
+        }
+        sessionCount.decrementAndGet();
+    }
+
+    /**
+     * The sessions of a context, or all of them if context is null.
+     */
+    private List<Session> sessions(HttpContext context) {
+        List<Session> result = new ArrayList<Session>();
+        for(Stripe stripe : stripes) {
+            for(Session session : stripe.sessions.values()) {
+                if(context == null || session.key.context == context) {
+                    result.add(session);
+                }
+            }
+        }
+        return result;
+    }
+
+    private Stripe stripe(Key key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & stripeMask];
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * A session as we keep it, with its key, its link in the wheel and, if
+     * its attributes are off heap, their record. Off heap attributes are read
+     * and written holding the session's monitor, evictions that causes are
+     * handled once it has been let go. With a journal, changes to the session
+     * are appended to it as they are made.
+     */
+    private final class Session extends HttpSessionImpl
+            implements OffHeapSessionStore.Evictable {
+        private final Key key;
+
+        /**
+         * Next session in the same wheel slot, guarded by the wheel.
+         */
+        private Session wheelNext;
+
+        private final OffHeapSessionStore.Record record;
+
+        /**
+         * Name of the context in the journal, null without one.
+         */
+        private final String journalName;
+
+        /**
+         * Don't journal attributes being put back from the journal.
+         */
+        private boolean restoring;
+
+        Session(Key key, ServletContext servletContext) {
+            super(key.id, defaultTimeout, servletContext);
+            this.key = key;
+            record = offHeap == null ? null : new OffHeapSessionStore.Record(this);
+            journalName = journal == null ? null : SessionJournal.contextName(key.context);
+        }
+
+        /**
+         * A session brought back from the journal.
+         */
+        Session(Key key, SessionJournal.Restored saved) {
+            super(key.id, saved.getCreationTime(), saved.getLastAccessedTime(),
+                    saved.getMaxInactiveInterval(), null);
+            this.key = key;
+            record = offHeap == null ? null : new OffHeapSessionStore.Record(this);
+            journalName = SessionJournal.contextName(key.context);
+        }
+
+        /**
+         * Put back attributes read from the journal, without writing them to
+         * it again.
+         */
+        void restore(Map<String, Object> attributes) {
+            restoring = true;
+            try {
+                for(Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                    storeAttribute(attribute.getKey(), attribute.getValue());
+                }
+            } finally {
+                restoring = false;
+            }
+        }
+
+        /**
+         * The store's LRU is only touched when the access was recorded, it
+         * has a lock that every request on a hot session would otherwise
+         * queue on.
+         */
+        @Override
+        public boolean access(long now) {
+            if(!super.access(now)) {
+                return false;
+            }
+            if(record != null) {
+                offHeap.touch(record);
+            }
+            return true;
+        }
+
+        @Override
+        public void expire() {
+            super.expire();
+            if(record != null) {
+                offHeap.free(record);
+            }
+        }
+
+        @Override
+        public void evicted() {
+            if(isValid()) {
+                expire();
+                evicted.increment();
+            }
+        }
+
+        @Override
+        protected void invalidated() {
+            remove(this);
+            if(journalName != null) {
+                journal.sessionRemoved(journalName, key.id);
+            }
+        }
+
+        @Override
+        protected Object loadAttribute(String name) {
+            if(record == null) {
+                return super.loadAttribute(name);
+            }
+            synchronized(this) {
+                return offHeap.getAttribute(record, name);
+            }
+        }
+
+        @Override
+        protected Object storeAttribute(String name, Object value) {
+            Object old;
+            if(record == null) {
+                old = super.storeAttribute(name, value);
+            } else {
+                try {
+                    synchronized(this) {
+                        old = offHeap.setAttribute(record, name, value);
+                    }
+                } finally {
+                    offHeap.drainEvicted();
+                }
+            }
+            if(journalName != null && !restoring && isValid()) {
+                journal.attributeSet(journalName, key.id, name, value);
+            }
+            return old;
+        }
+
+        @Override
+        protected Object deleteAttribute(String name) {
+            Object old;
+            if(record == null) {
+                old = super.deleteAttribute(name);
+            } else {
+                try {
+                    synchronized(this) {
+                        old = offHeap.removeAttribute(record, name);
+                    }
+                } finally {
+                    offHeap.drainEvicted();
+                }
+            }
+            // Attributes dropped by expiry go with the session's REMOVE.
+            if(journalName != null && isValid()) {
+                journal.attributeRemoved(journalName, key.id, name);
+            }
+            return old;
+        }
+
+        @Override
+        protected Collection<String> attributeNames() {
+            if(record == null) {
+                return super.attributeNames();
+            }
+            synchronized(this) {
+                return offHeap.getAttributeNames(record);
+            }
+        }
+    }
+
+    /**
+     * Read without a lock, changed holding the stripe's monitor.
+     */
+    private static final class Stripe {
+        private final Map<Key, Session> sessions = new ConcurrentHashMap<Key, Session>();
+    }
+
+    private static final class Key {
+        private final HttpContext context;
+        private final String id;
+
+        Key(HttpContext context, String id) {
+            this.context = context;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)obj;
+            return context == other.context && id.equals(other.id);
+        }
 
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(context) * 31 + id.hashCode();
+        }
+    }
 }
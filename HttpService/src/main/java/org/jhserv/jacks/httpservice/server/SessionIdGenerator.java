@@ -0,0 +1,145 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Makes session IDs. The default SecureRandom on most Unix JVMs (NativePRNG)
+ * reads the operating system's generator under one lock shared by every
+ * instance, and can block waiting for entropy. IDs come instead from a
+ * SHA1PRNG per thread, seeded from the default SecureRandom and reseeded
+ * after RESEED_INTERVAL IDs, so the shared generator is only touched for
+ * seeds and threads making sessions at the same time share no lock.
+ *
+ * An ID is 128 random bits in URL safe base 64 (RFC 4648, '-' and '_', no
+ * padding), always ID_LENGTH characters. The characters are written straight
+ * into the array the String is made from. That is safe in URLs, cookies and
+ * path parameters without escaping.
+ *
+ * Nothing here checks that an ID is unused, callers check against their
+ * sessions.
+ *
+ * @author rjackson
+ */
+public final class SessionIdGenerator {
+
+    /**
+     * Characters in an ID.
+     */
+    public static final int ID_LENGTH = 22;
+
+    /**
+     * Random bytes in an ID.
+     */
+    private static final int ID_BYTES = 16;
+
+    /**
+     * IDs a generator makes before it is reseeded.
+     */
+    private static final int RESEED_INTERVAL = 1 << 16;
+
+    private static final int SEED_BYTES = 32;
+
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    /**
+     * Seeds the generators, only used when one is created or reseeded.
+     */
+    private final SecureRandom seeds = new SecureRandom();
+
+    /**
+     * The calling thread's generator.
+     */
+    private final ThreadLocal<Generator> generators = new ThreadLocal<Generator>() {
+        @Override
+        protected Generator initialValue() {
+            return new Generator();
+        }
+    };
+
+    /**
+     * A new random ID.
+     * @return
+     */
+    public String newId() {
+        byte[] bytes = new byte[ID_BYTES];
+        Generator generator = generators.get();
+        if(generator.random == null || generator.remaining == 0) {
+            generator.random = newRandom();
+            generator.remaining = RESEED_INTERVAL;
+        }
+        generator.remaining--;
+        generator.random.nextBytes(bytes);
+        char[] id = new char[ID_LENGTH];
+        int c = 0;
+        int i = 0;
+        // Three bytes at a time make four characters, the last one is on
+        // its own and makes two.
+        for(; i + 3 <= ID_BYTES; i += 3) {
+            int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 |
+                    (bytes[i + 2] & 0xff);
+            id[c++] = BASE64[bits >>> 18];
+            id[c++] = BASE64[(bits >>> 12) & 0x3f];
+            id[c++] = BASE64[(bits >>> 6) & 0x3f];
+            id[c++] = BASE64[bits & 0x3f];
+        }
+        int bits = bytes[i] & 0xff;
+        id[c++] = BASE64[bits >>> 2];
+        id[c] = BASE64[(bits << 4) & 0x3f];
+        return new String(id);
+    }
+
+    /**
+     * A freshly seeded generator. Seeding SHA1PRNG before its first use
+     * replaces its own seeding, which can block waiting for entropy, with
+     * bytes from the default SecureRandom.
+     */
+    private SecureRandom newRandom() {
+        byte[] seed = new byte[SEED_BYTES];
+        seeds.nextBytes(seed);
+        try {
+            SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+            random.setSeed(seed);
+            return random;
+        } catch(NoSuchAlgorithmException e) {
+            // Every JVM we know of has it, fall back on the default.
+            return new SecureRandom(seed);
+        }
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * A thread's generator and the IDs it makes before it is reseeded. Only
+     * ever touched by that thread.
+     */
+    private static final class Generator {
+        SecureRandom random;
+        int remaining;
+    }
+}
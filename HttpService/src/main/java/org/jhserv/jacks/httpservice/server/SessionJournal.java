@@ -0,0 +1,713 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.jhserv.jacks.httpservice.DefaultHttpContext;
+import org.jhserv.jacks.httpservice.servicetracker.LogTracker;
+import org.jhserv.jacks.httpservice.servlet.HttpSessionImpl;
+import org.osgi.service.http.HttpContext;
+
+/**
+ * Keeps the sessions of a SessionFactory in a file so they survive the
+ * server being stopped and started again, a bundle update for one.
+ *
+ * The file is a log. Creating a session, setting or removing an attribute and
+ * invalidating a session each append a record to it, through a memory
+ * mapping so an append is a copy into the page cache and no system call.
+ * Appends are not forced to disk, the file survives the JVM going away but
+ * not the machine. Each record is framed with its length and a CRC so a
+ * record torn by a crash ends the log instead of corrupting it.
+ *
+ * Once the log has grown to twice its size after the last compaction it is
+ * compacted: one record per live session, with its times and all its
+ * attributes, is written to a new file that then replaces the log. The new
+ * file is written without holding up appends, the records appended while it
+ * was being written are copied onto its end before it takes over, and
+ * replaying them over the snapshots gives the sessions as they are. Stopping
+ * the server does a last compaction so last accessed times are kept too.
+ *
+ * Opening the journal replays the log. Sessions that haven't expired are
+ * held, attributes still serialized, until the first request for them finds
+ * them. That is when they are handed to the SessionFactory, by then the
+ * bundle that owns their HttpContext is back and its class loader can read
+ * the attributes. HttpContext objects don't survive a restart, so sessions
+ * are matched to contexts by name: the bundle for the default context,
+ * otherwise the context's class.
+ *
+ * Attribute values that aren't Serializable are simply not kept.
+ *
+ * Appends are synchronized on the journal. Callers gathering the sessions to
+ * compact do so holding the journal's lock and start the compaction before
+ * letting it go, so every session is either gathered or has its records
+ * appended after the compaction's start.
+ *
+ * @author rjackson
+ */
+public class SessionJournal {
+
+    private static final int MAGIC = 0x4a534a31;
+
+    private static final byte SESSION = 1;
+    private static final byte ATTRIBUTE = 2;
+    private static final byte REMOVE_ATTRIBUTE = 3;
+    private static final byte REMOVE = 4;
+
+    /**
+     * Smallest mapping of the log and smallest log we compact.
+     */
+    private static final int MIN_SIZE = 1 << 20;
+
+    /**
+     * Length and CRC in front of every record.
+     */
+    private static final int FRAME = 8;
+
+    private final LogTracker log = LogTracker.getInstance();
+
+    private final File file;
+    private RandomAccessFile raf;
+    private MappedByteBuffer map;
+
+    /**
+     * Size of the log right after it was last compacted.
+     */
+    private long compactedSize;
+
+    /**
+     * Count of the logs written. A compaction that finds the log has been
+     * rewritten since it started is dropped.
+     */
+    private int generation;
+
+    /**
+     * Sessions read from the log that no request has asked for yet, by
+     * context name and ID.
+     */
+    private final Map<String, Restored> restored = new HashMap<String, Restored>();
+
+    /**
+     * Open the journal, replaying what is already in the file.
+     *
+     * @param file The log, created if it doesn't exist.
+     * @throws IOException
+     */
+    public SessionJournal(File file) throws IOException {
+        this.file = file;
+        if(file.length() > 0) {
+            replay();
+        }
+        write(new ArrayList<HttpSessionImpl>(), new ArrayList<String>());
+    }
+
+    /**
+     * The name sessions of a context are kept under.
+     *
+     * @param context
+     * @return
+     */
+    public static String contextName(HttpContext context) {
+        if(context instanceof DefaultHttpContext) {
+            return "default:" + ((DefaultHttpContext)context).getBundle().getSymbolicName();
+        }
+        return context.getClass().getName();
+    }
+
+    /**
+     * Sessions restored from the log that haven't been asked for yet.
+     * @return
+     */
+    public synchronized int getRestoredCount() {
+        return restored.size();
+    }
+
+    synchronized void sessionCreated(String context, HttpSessionImpl session) {
+        try {
+            append(SESSION, encodeSession(context, session.getId(), session.getCreationTime(),
+                    session.getLastAccessedTime(), session.getMaxInactiveInterval(),
+                    new LinkedHashMap<String, byte[]>()));
+        } catch(IllegalStateException e) {
+            // Invalidated before we got to it.
+        }
+    }
+
+    synchronized void attributeSet(String context, String id, String name, Object value) {
+        byte[] bytes = serialize(name, value);
+        if(bytes == null) {
+            // Don't let an older value come back.
+            attributeRemoved(context, id, name);
+            return;
+        }
+        Payload payload = new Payload();
+        payload.writeUTF(context);
+        payload.writeUTF(id);
+        payload.writeUTF(name);
+        payload.writeInt(bytes.length);
+        payload.write(bytes);
+        append(ATTRIBUTE, payload);
+    }
+
+    synchronized void attributeRemoved(String context, String id, String name) {
+        Payload payload = new Payload();
+        payload.writeUTF(context);
+        payload.writeUTF(id);
+        payload.writeUTF(name);
+        append(REMOVE_ATTRIBUTE, payload);
+    }
+
+    synchronized void sessionRemoved(String context, String id) {
+        Payload payload = new Payload();
+        payload.writeUTF(context);
+        payload.writeUTF(id);
+        append(REMOVE, payload);
+    }
+
+    /**
+     * Is there a restored session, not yet asked for, with this ID?
+     */
+    synchronized boolean contains(String context, String id) {
+        return restored.containsKey(key(context, id));
+    }
+
+    /**
+     * Take a restored session.
+     *
+     * @return null if there is no such session.
+     */
+    synchronized Restored adopt(String context, String id) {
+        return restored.remove(key(context, id));
+    }
+
+    /**
+     * Has the log grown enough to be worth compacting?
+     */
+    synchronized boolean needsCompaction() {
+        return map != null && map.position() - compactedSize > Math.max(MIN_SIZE, compactedSize);
+    }
+
+    /**
+     * Start rewriting the log as the given live sessions and the restored
+     * ones not yet asked for. Records appended from here on are carried over
+     * to the new log by compact(Compaction).
+     *
+     * @param sessions
+     * @param contexts The context name of each session.
+     * @return null if the journal is no longer open.
+     */
+    synchronized Compaction startCompaction(List<HttpSessionImpl> sessions,
+            List<String> contexts) {
+        if(map == null) {
+            return null;
+        }
+        return new Compaction(sessions, contexts, pending(), map.position(), generation);
+    }
+
+    /**
+     * Write the new log of a compaction, without holding the journal's lock,
+     * then take the lock to add what was appended meanwhile and switch to
+     * it.
+     */
+    void compact(Compaction compaction) {
+        File temp = new File(file.getPath() + ".compact");
+        try {
+            long size = write(temp, compaction.sessions, compaction.contexts,
+                    compaction.restored);
+            synchronized(this) {
+                if(map == null || generation != compaction.generation) {
+                    // Closed, or already rewritten, while we were at it.
+                    temp.delete();
+                    return;
+                }
+                ByteBuffer appended = map.duplicate();
+                appended.flip();
+                appended.position(compaction.mark);
+                byte[] records = new byte[appended.remaining()];
+                appended.get(records);
+                OutputStream out = new FileOutputStream(temp, true);
+                try {
+                    out.write(records);
+                } finally {
+                    out.close();
+                }
+                install(temp, size + records.length);
+            }
+        } catch(IOException e) {
+            log.error("Unable to compact session journal " + file, e);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Write the sessions one last time and close the file.
+     */
+    synchronized void close(List<HttpSessionImpl> sessions, List<String> contexts) {
+        try {
+            write(sessions, contexts);
+        } catch(IOException e) {
+            log.error("Unable to compact session journal " + file, e);
+        }
+        if(map != null) {
+            map.force();
+            map = null;
+        }
+        closeFile();
+    }
+
+    private void append(byte type, Payload payload) {
+        if(map == null) {
+            return;
+        }
+        byte[] record = frame(type, payload.toByteArray());
+        try {
+            if(map.remaining() < record.length + FRAME) {
+                remap(Math.max((long)map.capacity() * 2, map.position() + record.length + FRAME));
+            }
+            map.put(record);
+        } catch(IOException e) {
+            log.error("Unable to append to session journal " + file + ", no longer journaling", e);
+            map = null;
+            closeFile();
+        }
+    }
+
+    /**
+     * Map more of the file. The old mapping goes away when it is collected.
+     */
+    private void remap(long capacity) throws IOException {
+        int position = map == null ? 0 : map.position();
+        if(capacity > Integer.MAX_VALUE) {
+            throw new IOException("Session journal has outgrown a mapping");
+        }
+        raf.setLength(capacity);
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        map.position(position);
+    }
+
+    /**
+     * Write a new log and switch to it. Must hold the journal's lock.
+     */
+    private void write(List<HttpSessionImpl> sessions, List<String> contexts) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        install(temp, write(temp, sessions, contexts, pending()));
+    }
+
+    /**
+     * The restored sessions not yet asked for, dropping those that have
+     * expired. Must hold the journal's lock.
+     */
+    private List<Restored> pending() {
+        long now = System.currentTimeMillis();
+        List<Restored> pending = new ArrayList<Restored>(restored.size());
+        for(Restored session : new ArrayList<Restored>(restored.values())) {
+            if(session.isExpired(now)) {
+                restored.remove(key(session.context, session.id));
+            } else {
+                pending.add(session);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Write the sessions to a new log file.
+     *
+     * @return The size of the file.
+     */
+    private long write(File temp, List<HttpSessionImpl> sessions, List<String> contexts,
+            List<Restored> pending) throws IOException {
+        long size;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024);
+        try {
+            byte[] magic = new Payload().writeInt(MAGIC).toByteArray();
+            out.write(magic);
+            size = magic.length;
+            for(int i = 0; i < sessions.size(); i++) {
+                byte[] record = snapshot(contexts.get(i), sessions.get(i));
+                if(record != null) {
+                    out.write(record);
+                    size += record.length;
+                }
+            }
+            for(Restored session : pending) {
+                byte[] record = frame(SESSION, encodeSession(session.context, session.id,
+                        session.creationTime, session.lastAccessedTime,
+                        session.maxInactiveInterval, session.attributes).toByteArray());
+                out.write(record);
+                size += record.length;
+            }
+        } finally {
+            out.close();
+        }
+        return size;
+    }
+
+    /**
+     * Replace the log with a newly written one and map it for appends. Must
+     * hold the journal's lock.
+     */
+    private void install(File temp, long size) throws IOException {
+        if(map != null) {
+            map.force();
+            map = null;
+        }
+        closeFile();
+        if(!temp.renameTo(file)) {
+            // Some platforms won't rename over an existing file.
+            file.delete();
+            if(!temp.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+        }
+        raf = new RandomAccessFile(file, "rw");
+        remap(Math.max(MIN_SIZE, size * 2));
+        map.position((int)size);
+        compactedSize = size;
+        generation++;
+    }
+
+    /**
+     * The SESSION record of a live session, null if it was invalidated.
+     */
+    private byte[] snapshot(String context, HttpSessionImpl session) {
+        try {
+            Map<String, byte[]> attributes = new LinkedHashMap<String, byte[]>();
+            Enumeration names = session.getAttributeNames();
+            while(names.hasMoreElements()) {
+                String name = (String)names.nextElement();
+                byte[] bytes = serialize(name, session.getAttribute(name));
+                if(bytes != null) {
+                    attributes.put(name, bytes);
+                }
+            }
+            return frame(SESSION, encodeSession(context, session.getId(),
+                    session.getCreationTime(), session.getLastAccessedTime(),
+                    session.getMaxInactiveInterval(), attributes).toByteArray());
+        } catch(IllegalStateException e) {
+            return null;
+        }
+    }
+
+    private void replay() throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buf = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    in.length());
+            if(buf.remaining() < 4 || buf.getInt() != MAGIC) {
+                log.warn("Ignoring " + file + ", it is not a session journal");
+                return;
+            }
+            CRC32 crc = new CRC32();
+            while(buf.remaining() >= FRAME) {
+                int length = buf.getInt();
+                int checksum = buf.getInt();
+                if(length <= 0 || length > buf.remaining()) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                buf.get(record);
+                crc.reset();
+                crc.update(record);
+                if((int)crc.getValue() != checksum) {
+                    log.warn("Session journal " + file + " ends in a torn record");
+                    break;
+                }
+                apply(record);
+            }
+            long now = System.currentTimeMillis();
+            for(Restored session : new ArrayList<Restored>(restored.values())) {
+                if(session.isExpired(now)) {
+                    restored.remove(key(session.context, session.id));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void apply(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(record, 1, record.length - 1));
+        String context = in.readUTF();
+        String id = in.readUTF();
+        String key = key(context, id);
+        switch(record[0]) {
+            case SESSION:
+                Restored session = new Restored(context, id, in.readLong(), in.readLong(),
+                        in.readInt());
+                // IDs aren't reused, so a second record for a session is its
+                // creation logged after a compaction already had it. Keep
+                // the attributes we have.
+                Restored earlier = restored.get(key);
+                if(earlier != null) {
+                    session.attributes.putAll(earlier.attributes);
+                }
+                int count = in.readInt();
+                for(int i = 0; i < count; i++) {
+                    String name = in.readUTF();
+                    session.attributes.put(name, readBytes(in));
+                }
+                restored.put(key, session);
+                break;
+            case ATTRIBUTE:
+                Restored target = restored.get(key);
+                String name = in.readUTF();
+                byte[] value = readBytes(in);
+                if(target != null) {
+                    target.attributes.put(name, value);
+                }
+                break;
+            case REMOVE_ATTRIBUTE:
+                target = restored.get(key);
+                if(target != null) {
+                    target.attributes.remove(in.readUTF());
+                }
+                break;
+            case REMOVE:
+                restored.remove(key);
+                break;
+            default:
+                throw new IOException("Unknown session journal record " + record[0]);
+        }
+    }
+
+    private void closeFile() {
+        if(raf != null) {
+            try {
+                raf.close();
+            } catch(IOException e) {
+                log.debug("Unable to close session journal " + file, e);
+            }
+            raf = null;
+        }
+    }
+
+    private byte[] serialize(String name, Object value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(value);
+            out.close();
+            return bytes.toByteArray();
+        } catch(NotSerializableException e) {
+            return null;
+        } catch(IOException e) {
+            log.debug("Not journaling session attribute " + name, e);
+            return null;
+        }
+    }
+
+    private static Payload encodeSession(String context, String id, long creationTime,
+            long lastAccessedTime, int maxInactiveInterval, Map<String, byte[]> attributes) {
+        Payload payload = new Payload();
+        payload.writeUTF(context);
+        payload.writeUTF(id);
+        payload.writeLong(creationTime);
+        payload.writeLong(lastAccessedTime);
+        payload.writeInt(maxInactiveInterval);
+        payload.writeInt(attributes.size());
+        for(Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+            payload.writeUTF(attribute.getKey());
+            payload.writeInt(attribute.getValue().length);
+            payload.write(attribute.getValue());
+        }
+        return payload;
+    }
+
+    /**
+     * Length, CRC and the type and payload the CRC covers.
+     */
+    private static byte[] frame(byte type, byte[] payload) {
+        byte[] body = new byte[payload.length + 1];
+        body[0] = type;
+        System.arraycopy(payload, 0, body, 1, payload.length);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return new Payload().writeInt(body.length).writeInt((int)crc.getValue())
+                .write(body).toByteArray();
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static String key(String context, String id) {
+        return context + '\n' + id;
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * A session read back from the log.
+     */
+    static final class Restored {
+        private final String context;
+        private final String id;
+        private final long creationTime;
+        private final long lastAccessedTime;
+        private final int maxInactiveInterval;
+        private final Map<String, byte[]> attributes = new LinkedHashMap<String, byte[]>();
+
+        Restored(String context, String id, long creationTime, long lastAccessedTime,
+                int maxInactiveInterval) {
+            this.context = context;
+            this.id = id;
+            this.creationTime = creationTime;
+            this.lastAccessedTime = lastAccessedTime;
+            this.maxInactiveInterval = maxInactiveInterval;
+        }
+
+        long getCreationTime() {
+            return creationTime;
+        }
+
+        long getLastAccessedTime() {
+            return lastAccessedTime;
+        }
+
+        int getMaxInactiveInterval() {
+            return maxInactiveInterval;
+        }
+
+        boolean isExpired(long now) {
+            return maxInactiveInterval > 0 &&
+                    now - lastAccessedTime >= maxInactiveInterval * 1000L;
+        }
+
+        /**
+         * Read the attributes back with the class loader of the context that
+         * asked for the session. Those that can't be read are left out.
+         */
+        Map<String, Object> readAttributes(ClassLoader loader) {
+            Map<String, Object> values = new LinkedHashMap<String, Object>();
+            for(Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+                try {
+                    values.put(attribute.getKey(), new LoaderObjectInputStream(
+                            new ByteArrayInputStream(attribute.getValue()), loader).readObject());
+                } catch(IOException e) {
+                    LogTracker.getInstance().debug("Dropping session attribute " +
+                            attribute.getKey(), e);
+                } catch(ClassNotFoundException e) {
+                    LogTracker.getInstance().debug("Dropping session attribute " +
+                            attribute.getKey(), e);
+                }
+            }
+            return values;
+        }
+    }
+
+    /**
+     * What a compaction writes: the live sessions and restored ones it was
+     * started with, and where the log ended then.
+     */
+    static final class Compaction {
+        private final List<HttpSessionImpl> sessions;
+        private final List<String> contexts;
+        private final List<Restored> restored;
+        private final int mark;
+        private final int generation;
+
+        Compaction(List<HttpSessionImpl> sessions, List<String> contexts,
+                List<Restored> restored, int mark, int generation) {
+            this.sessions = sessions;
+            this.contexts = contexts;
+            this.restored = restored;
+            this.mark = mark;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * DataOutputStream over a byte array, without the checked exceptions a
+     * byte array can't throw.
+     */
+    private static final class Payload {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        Payload writeUTF(String value) {
+            try {
+                out.writeUTF(value);
+            } catch(IOException e) {
+                // A string too long for writeUTF.
+                throw new IllegalArgumentException(e);
+            }
+            return this;
+        }
+
+        Payload writeInt(int value) {
+            try {
+                out.writeInt(value);
+            } catch(IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        Payload writeLong(long value) {
+            try {
+                out.writeLong(value);
+            } catch(IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        Payload write(byte[] value) {
+            try {
+                out.write(value);
+            } catch(IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
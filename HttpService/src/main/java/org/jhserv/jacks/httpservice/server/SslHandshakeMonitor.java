@@ -0,0 +1,154 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jhserv.jacks.httpservice.utils.StripedCounter;
+
+/**
+ * TLS side of the secure listener. Hands out an SslHandler, backed by a new
+ * server mode SSLEngine from our SSLContext, for every connection and sits
+ * right behind it to start the handshake and keep statistics on it.
+ *
+ * Returning clients can skip the expensive part of the handshake by
+ * resuming an earlier session, either from the SSLContexts server side
+ * session cache or from a session ticket they hold. A handshake counts as
+ * resumed when the session it ends with was created before the connection
+ * was accepted.
+ *
+ * A single instance is shared by every pipeline of the secure listener. The
+ * time the connection was accepted is kept as the context attachment.
+ *
+ * @author rjackson
+ */
+@ChannelPipelineCoverage("all")
+public class SslHandshakeMonitor extends SimpleChannelHandler {
+
+    private final SSLContext sslContext;
+
+    private final StripedCounter handshakes = new StripedCounter();
+    private final StripedCounter resumed = new StripedCounter();
+    private final StripedCounter failed = new StripedCounter();
+    private final StripedCounter handshakeNanos = new StripedCounter();
+
+    public SslHandshakeMonitor(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * A new SslHandler for a connection accepted by the secure listener.
+     * @return
+     */
+    public SslHandler newSslHandler() {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new SslHandler(engine);
+    }
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        ctx.setAttachment(Long.valueOf(System.nanoTime()));
+        super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        final long accepted = ((Long)ctx.getAttachment()).longValue();
+        final long acceptedMillis = System.currentTimeMillis() -
+                (System.nanoTime() - accepted) / 1000000L;
+        final SslHandler ssl = ctx.getPipeline().get(SslHandler.class);
+        ssl.handshake(e.getChannel()).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if(!future.isSuccess()) {
+                    failed.increment();
+                    return;
+                }
+                handshakes.increment();
+                handshakeNanos.add(System.nanoTime() - accepted);
+                SSLSession session = ssl.getEngine().getSession();
+                if(session.getCreationTime() < acceptedMillis) {
+                    resumed.increment();
+                }
+            }
+        });
+        super.channelConnected(ctx, e);
+    }
+
+    /**
+     * Completed handshakes, full and resumed.
+     * @return
+     */
+    public long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    /**
+     * Completed handshakes that resumed an earlier session.
+     * @return
+     */
+    public long getResumedHandshakes() {
+        return resumed.sum();
+    }
+
+    /**
+     * Handshakes that failed or were cut off.
+     * @return
+     */
+    public long getFailedHandshakes() {
+        return failed.sum();
+    }
+
+    /**
+     * Part of completed handshakes that were resumed, 0 to 1.
+     * @return
+     */
+    public double getResumptionRate() {
+        long total = handshakes.sum();
+        return total == 0 ? 0 : (double)resumed.sum() / total;
+    }
+
+    /**
+     * Average time from accepting a connection to finishing its handshake.
+     * @return
+     */
+    public double getAverageHandshakeMillis() {
+        long total = handshakes.sum();
+        return total == 0 ? 0 : handshakeNanos.sum() / 1000000.0 / total;
+    }
+
+    @Override
+    public String toString() {
+        return "handshakes=" + getHandshakes() + " resumed=" + getResumedHandshakes() +
+                " failed=" + getFailedHandshakes() + " avgMillis=" + getAverageHandshakeMillis();
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jboss.netty.handler.execution.DefaultObjectSizeEstimator;
+import org.jboss.netty.handler.execution.ObjectSizeEstimator;
+
+/**
+ * Executor used by our execution stage when the server is configured to run
+ * servlets on virtual threads. Every batch of events for a channel is run on
+ * a new virtual thread so a servlet that blocks (JDBC, file I/O etc) only
+ * parks its own virtual thread instead of tying up a pooled platform thread.
+ *
+ * Just like the PipeliningThreadPoolExecutor used in pool mode, events for a
+ * single channel are executed one at a time and in the order they were
+ * received, except for PipelinedRequests which each get their own thread.
+ * Events for different channels run in parallel.
+ *
+ * Virtual threads are cheap but what they hold isn't, so the same memory
+ * limits as pool mode apply. Events are sized with Netty's
+ * DefaultObjectSizeEstimator, as the pool's are. Once the events of a channel
+ * that haven't finished running add up to the channel limit we stop reading
+ * from the channel until they drop below it again. Once the events of all
+ * channels add up to the total limit the I/O thread handing us an event waits
+ * for room, the same backpressure the pool gives. A limit of 0 is no limit.
+ *
+ * We are compiled for older JVMs so the virtual thread executor is looked up
+ * with reflection. Use the create method to get an instance, it will return
+ * null if the running JVM does not support virtual threads.
+ *
+ * @author rjackson
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+
+    /**
+     * The JDK's thread per task executor that actually starts our threads.
+     */
+    private final ExecutorService delegate;
+
+    /**
+     * Per channel task queues used to keep channel events in order.
+     */
+    private final ConcurrentMap<Channel, ChildExecutor> childExecutors =
+            new ConcurrentHashMap<Channel, ChildExecutor>();
+
+    /**
+     * Number of virtual threads that have been started and not finished yet.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final long maxChannelMemorySize;
+    private final long maxTotalMemorySize;
+    private final ObjectSizeEstimator estimator = new DefaultObjectSizeEstimator();
+
+    /**
+     * Bytes of events not run yet, by channel and in total.
+     */
+    private final ConcurrentMap<Channel, ChannelCounter> channelCounters =
+            new ConcurrentHashMap<Channel, ChannelCounter>();
+    private final AtomicLong totalCounter = new AtomicLong();
+
+    /**
+     * I/O threads wait on this for the total to drop below the limit.
+     */
+    private final Object totalLock = new Object();
+
+    /**
+     * Only used by the create method or by code that already has a thread per
+     * task executor of its own.
+     *
+     * @param delegate Executor that starts a new thread for each task.
+     * @param maxChannelMemorySize Maximum bytes of queued events per channel.
+     * @param maxTotalMemorySize Maximum bytes of queued events in total.
+     */
+    public VirtualThreadExecutor(ExecutorService delegate, long maxChannelMemorySize,
+            long maxTotalMemorySize) {
+        this.delegate = delegate;
+        this.maxChannelMemorySize = maxChannelMemorySize;
+        this.maxTotalMemorySize = maxTotalMemorySize;
+    }
+
+    /**
+     * Create a new executor backed by virtual threads.
+     *
+     * @param maxChannelMemorySize Maximum bytes of queued events per channel.
+     * @param maxTotalMemorySize Maximum bytes of queued events in total.
+     * @return The executor or null if this JVM does not support virtual threads.
+     */
+    public static VirtualThreadExecutor create(long maxChannelMemorySize,
+            long maxTotalMemorySize) {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new VirtualThreadExecutor((ExecutorService)m.invoke(null),
+                    maxChannelMemorySize, maxTotalMemorySize);
+        } catch(NoSuchMethodException e) {
+            return null;
+        } catch(Exception e) {
+            // Preview only JVMs throw an UnsupportedOperationException wrapped
+            // in an InvocationTargetException.
+            return null;
+        }
+    }
+
+    /**
+     * How many virtual threads are currently running servlet work?
+     *
+     * @return
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Bytes of events handed to us that haven't finished running.
+     *
+     * @return
+     */
+    public long getQueuedBytes() {
+        return totalCounter.get();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if(PipelinedRequest.isCarriedBy(command)) {
+            // Pipelined requests on a channel may run side by side, the
+            // ResponseSequencer puts the responses back in order.
+            startThread(count(command));
+        } else if(command instanceof ChannelEventRunnable) {
+            Channel channel = ((ChannelEventRunnable)command).getEvent().getChannel();
+            getChildExecutor(channel).execute(count(command));
+        } else {
+            startThread(command);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+    private ChildExecutor getChildExecutor(Channel channel) {
+        ChildExecutor executor = childExecutors.get(channel);
+        if(executor == null) {
+            executor = new ChildExecutor();
+            ChildExecutor oldExecutor = childExecutors.putIfAbsent(channel, executor);
+            if(oldExecutor != null) {
+                executor = oldExecutor;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Once the channel closed event has been run nothing else will be queued
+     * for the channel so we can drop its queue and counter.
+     */
+    private void onAfterExecute(Runnable task) {
+        if(task instanceof CountedTask) {
+            task = ((CountedTask)task).task;
+        }
+        if(task instanceof ChannelEventRunnable) {
+            ChannelEvent e = ((ChannelEventRunnable)task).getEvent();
+            if(e instanceof ChannelStateEvent) {
+                ChannelStateEvent se = (ChannelStateEvent)e;
+                if(se.getState() == ChannelState.OPEN && !e.getChannel().isOpen()) {
+                    childExecutors.remove(e.getChannel());
+                    channelCounters.remove(e.getChannel());
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a channel event to the counters, waiting for room if the total is
+     * used up, and wrap it so it is taken off again once it has run.
+     */
+    private Runnable count(Runnable command) {
+        int size = estimator.estimateSize(command);
+        if(size <= 0) {
+            return command;
+        }
+        if(maxTotalMemorySize > 0) {
+            // Wait before adding so one event bigger than the limit still
+            // gets through once everything ahead of it has.
+            boolean interrupted = false;
+            synchronized(totalLock) {
+                while(totalCounter.get() >= maxTotalMemorySize) {
+                    try {
+                        totalLock.wait();
+                    } catch(InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        totalCounter.addAndGet(size);
+        Channel channel = ((ChannelEventRunnable)command).getEvent().getChannel();
+        ChannelCounter counter = getChannelCounter(channel);
+        long channelSize = counter.bytes.addAndGet(size);
+        if(maxChannelMemorySize > 0 && channelSize >= maxChannelMemorySize) {
+            synchronized(counter) {
+                if(!counter.suspended && counter.bytes.get() >= maxChannelMemorySize) {
+                    counter.suspended = true;
+                    channel.setReadable(false);
+                }
+            }
+        }
+        return new CountedTask(command, channel, counter, size);
+    }
+
+    private void release(CountedTask task) {
+        long total = totalCounter.addAndGet(-task.size);
+        if(maxTotalMemorySize > 0 && total + task.size >= maxTotalMemorySize &&
+                total < maxTotalMemorySize) {
+            synchronized(totalLock) {
+                totalLock.notifyAll();
+            }
+        }
+        ChannelCounter counter = task.counter;
+        long channelSize = counter.bytes.addAndGet(-task.size);
+        if(maxChannelMemorySize > 0 && channelSize < maxChannelMemorySize) {
+            synchronized(counter) {
+                if(counter.suspended && counter.bytes.get() < maxChannelMemorySize) {
+                    counter.suspended = false;
+                    if(task.channel.isOpen()) {
+                        task.channel.setReadable(true);
+                    }
+                }
+            }
+        }
+    }
+
+    private ChannelCounter getChannelCounter(Channel channel) {
+        ChannelCounter counter = channelCounters.get(channel);
+        if(counter == null) {
+            counter = new ChannelCounter();
+            ChannelCounter oldCounter = channelCounters.putIfAbsent(channel, counter);
+            if(oldCounter != null) {
+                counter = oldCounter;
+            }
+        }
+        return counter;
+    }
+
+    private void startThread(final Runnable task) {
+        inFlight.incrementAndGet();
+        try {
+            delegate.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                }
+            });
+        } catch(RuntimeException e) {
+            inFlight.decrementAndGet();
+            throw e;
+        }
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * Bytes of a channel's events not run yet and whether we stopped reading
+     * from it because of them. suspended is guarded by the counter's monitor.
+     */
+    private static final class ChannelCounter {
+        private final AtomicLong bytes = new AtomicLong();
+        private boolean suspended;
+    }
+
+    /**
+     * A counted event, remembers the size it was counted with since running
+     * it may change what the estimator would say now.
+     */
+    private final class CountedTask implements Runnable {
+        private final Runnable task;
+        private final Channel channel;
+        private final ChannelCounter counter;
+        private final int size;
+
+        CountedTask(Runnable task, Channel channel, ChannelCounter counter, int size) {
+            this.task = task;
+            this.channel = channel;
+            this.counter = counter;
+            this.size = size;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                release(this);
+            }
+        }
+    }
+
+    /**
+     * Queue of tasks for a single channel. Only one virtual thread is working
+     * a queue at any time, it keeps running until the queue is empty.
+     */
+    private final class ChildExecutor implements Runnable {
+
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        public void execute(Runnable command) {
+            boolean needsExecution;
+            synchronized(tasks) {
+                needsExecution = tasks.isEmpty();
+                tasks.add(command);
+            }
+            if(needsExecution) {
+                startThread(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean done = false;
+            while(!done) {
+                Runnable task;
+                synchronized(tasks) {
+                    task = tasks.getFirst();
+                }
+                boolean ran = false;
+                try {
+                    task.run();
+                    ran = true;
+                    onAfterExecute(task);
+                } finally {
+                    synchronized(tasks) {
+                        tasks.removeFirst();
+                        done = tasks.isEmpty();
+                    }
+                    // If the task blew up this thread is going away so hand
+                    // the rest of the queue to a new one.
+                    if(!ran && !done) {
+                        startThread(this);
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+
+package org.jhserv.jacks.httpservice.server;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jhserv.jacks.httpservice.utils.StripedCounter;
+
+/**
+ * Counts the writes a server hands to the transport against the responses it
+ * finishes, so we can see how well responses are being coalesced. Every
+ * write that reaches the NIO worker costs at least one write system call, a
+ * write the socket only takes part of costs more, so writes per response is
+ * a lower bound on the system calls each response takes.
+ *
+ * Two shared handlers do the counting. The transport handler goes at the
+ * very front of every pipeline, below TLS, and sees the writes as the socket
+ * will. The response handler goes right after the execution stage and sees
+ * every response of both HTTP/1.x and HTTP/2 connections finish.
+ *
+ * @author rjackson
+ */
+public class WriteStats {
+
+    private final StripedCounter writes = new StripedCounter();
+    private final StripedCounter bytes = new StripedCounter();
+    private final StripedCounter responses = new StripedCounter();
+
+    private final ChannelHandler transportHandler = new TransportCounter();
+    private final ChannelHandler responseHandler = new ResponseCounter();
+
+    /**
+     * Handler for the front of the pipeline that counts writes.
+     * @return
+     */
+    public ChannelHandler getTransportHandler() {
+        return transportHandler;
+    }
+
+    /**
+     * Handler for after the execution stage that counts finished responses.
+     * @return
+     */
+    public ChannelHandler getResponseHandler() {
+        return responseHandler;
+    }
+
+    /**
+     * Writes handed to the transport.
+     * @return
+     */
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    /**
+     * Bytes handed to the transport.
+     * @return
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Responses finished.
+     * @return
+     */
+    public long getResponses() {
+        return responses.sum();
+    }
+
+    /**
+     * Average writes, and so at least that many system calls, per response.
+     * @return
+     */
+    public double getWritesPerResponse() {
+        long total = responses.sum();
+        return total == 0 ? 0 : (double)writes.sum() / total;
+    }
+
+    @Override
+    public String toString() {
+        return "writes=" + getWrites() + " bytes=" + getBytes() + " responses=" +
+                getResponses() + " writesPerResponse=" + getWritesPerResponse();
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    @ChannelPipelineCoverage("all")
+    private final class TransportCounter extends SimpleChannelDownstreamHandler {
+
+        @Override
+        public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            writes.increment();
+            if(e.getMessage() instanceof ChannelBuffer) {
+                bytes.add(((ChannelBuffer)e.getMessage()).readableBytes());
+            }
+            super.writeRequested(ctx, e);
+        }
+    }
+
+    @ChannelPipelineCoverage("all")
+    private final class ResponseCounter extends SimpleChannelDownstreamHandler {
+
+        @Override
+        public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            if(PipelinedResponse.endsResponse(e.getMessage())) {
+                responses.increment();
+            }
+            super.writeRequested(ctx, e);
+        }
+    }
+}
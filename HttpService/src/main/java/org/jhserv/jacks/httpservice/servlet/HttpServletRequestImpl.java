@@ -25,6 +25,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.Principal;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Locale;
 import java.util.Map;
@@ -33,13 +34,26 @@ import javax.servlet.ServletInputStream;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jhserv.jacks.httpservice.utils.HttpDates;
 
 /**
  * HttpServletRequest Implementation
+ *
+ * So far only the method and headers are backed by the Netty request. That
+ * is enough for HttpContext.handleSecurity to look at the request and for
+ * HttpServlet.service to answer If-Modified-Since from getLastModified.
+ *
  * @author rjackson
  */
 public class HttpServletRequestImpl implements HttpServletRequest {
 
+    private final HttpRequest request;
+
+    public HttpServletRequestImpl(HttpRequest request) {
+        this.request = request;
+    }
+
     @Override
     public String getAuthType() {
         throw new UnsupportedOperationException("Not supported yet.");
@@ -52,32 +66,41 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 
     @Override
     public long getDateHeader(String name) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        String value = request.getHeader(name);
+        if(value == null) {
+            return -1;
+        }
+        long date = HttpDates.parse(value);
+        if(date < 0) {
+            throw new IllegalArgumentException(name + " is not a date: " + value);
+        }
+        return date;
     }
 
     @Override
     public String getHeader(String name) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return request.getHeader(name);
     }
 
     @Override
     public Enumeration getHeaders(String name) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return Collections.enumeration(request.getHeaders(name));
     }
 
     @Override
     public Enumeration getHeaderNames() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return Collections.enumeration(request.getHeaderNames());
     }
 
     @Override
     public int getIntHeader(String name) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        String value = request.getHeader(name);
+        return value == null ? -1 : Integer.parseInt(value.trim());
     }
 
     @Override
     public String getMethod() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return request.getMethod().getName();
     }
 
     @Override
@@ -19,25 +19,55 @@
  * If not, see <http://www.gnu.org/licenses/>.
  */
 
+
 package org.jhserv.jacks.httpservice.servlet;
 
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
 import javax.servlet.http.HttpSessionContext;
 
 /**
+ * HttpSession implementation. Sessions are created and looked up by the
+ * servers SessionFactory, which also expires them, so all this class does is
+ * hold the attributes and the times. Requests for the same session can be
+ * worked at the same time so everything here is thread safe.
+ *
+ * Attribute values that implement HttpSessionBindingListener are told when
+ * they are bound to and unbound from the session, including when the session
+ * is invalidated or expires.
+ *
+ * The last accessed time is only written when it has moved on by at least
+ * ACCESS_RESOLUTION, so concurrent requests on one session read it instead
+ * of all writing the same cache line. Expiry allows for the resolution, a
+ * session never expires early because an access wasn't recorded.
+ *
+ * Attributes are kept in a map on the heap. A subclass can keep them
+ * somewhere else by overriding the loadAttribute, storeAttribute,
+ * deleteAttribute and attributeNames methods.
  *
  * @author rjackson
  */
 public class HttpSessionImpl implements HttpSession {
 
+    /**
+     * Milliseconds an access may go unrecorded, the tick of the
+     * SessionFactory's expiry wheel.
+     */
+    public static final long ACCESS_RESOLUTION = 1000;
+
     /**
      * Our session ID
      */
     private final String sessionID;
+
     /**
      * The time that this session was created.
      */
@@ -46,15 +76,117 @@ public class HttpSessionImpl implements HttpSession {
     /**
      * The last time this session was accessed.
      */
-    private final AtomicLong lastAccessedTime = new AtomicLong();
+    private volatile long lastAccessedTime;
+
+    /**
+     * Seconds between requests before the session expires, 0 or less and it
+     * never does.
+     */
+    private volatile int maxInactiveInterval;
+
+    /**
+     * Has the client not joined the session yet?
+     */
+    private volatile boolean isNew = true;
+
+    private volatile boolean valid = true;
+
+    /**
+     * Attributes on the heap, created with the first one.
+     */
+    private volatile Map<String, Object> attributes;
 
-    public HttpSessionImpl(String sessionID) {
+    private final ServletContext servletContext;
+
+    /**
+     * @param sessionID
+     * @param maxInactiveInterval Seconds between requests before the session
+     * expires, 0 or less for never.
+     * @param servletContext The context of the servlet that created the
+     * session, may be null.
+     */
+    public HttpSessionImpl(String sessionID, int maxInactiveInterval,
+            ServletContext servletContext) {
         this.sessionID = sessionID;
-        creationTime = new Date().getTime();
+        this.maxInactiveInterval = maxInactiveInterval;
+        this.servletContext = servletContext;
+        creationTime = System.currentTimeMillis();
+        lastAccessedTime = creationTime;
+    }
+
+    /**
+     * Bring back a session that existed before, one a client has already
+     * joined.
+     *
+     * @param sessionID
+     * @param creationTime
+     * @param lastAccessedTime
+     * @param maxInactiveInterval
+     * @param servletContext May be null.
+     */
+    public HttpSessionImpl(String sessionID, long creationTime, long lastAccessedTime,
+            int maxInactiveInterval, ServletContext servletContext) {
+        this.sessionID = sessionID;
+        this.creationTime = creationTime;
+        this.lastAccessedTime = lastAccessedTime;
+        this.maxInactiveInterval = maxInactiveInterval;
+        this.servletContext = servletContext;
+        isNew = false;
+    }
+
+    /**
+     * Called by the SessionFactory when a request joins the session. Only
+     * writes when the recorded time is ACCESS_RESOLUTION or more behind, or
+     * the session is new.
+     *
+     * @param now
+     * @return Was the access recorded?
+     */
+    public boolean access(long now) {
+        if(now - lastAccessedTime < ACCESS_RESOLUTION && !isNew) {
+            return false;
+        }
+        lastAccessedTime = now;
+        if(isNew) {
+            isNew = false;
+        }
+        return true;
+    }
+
+    /**
+     * Is the session still valid?
+     * @return
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Has the session gone unused for longer than its max inactive interval?
+     *
+     * @param now
+     * @return
+     */
+    public boolean isExpired(long now) {
+        int interval = maxInactiveInterval;
+        return interval > 0 &&
+                now - lastAccessedTime >= interval * 1000L + ACCESS_RESOLUTION;
+    }
+
+    /**
+     * When the session expires if it isn't used again.
+     *
+     * @return Long.MAX_VALUE if it never does.
+     */
+    public long getExpiryTime() {
+        int interval = maxInactiveInterval;
+        return interval > 0 ?
+                lastAccessedTime + interval * 1000L + ACCESS_RESOLUTION : Long.MAX_VALUE;
     }
 
     @Override
     public long getCreationTime() {
+        checkValid();
         return creationTime;
     }
 
@@ -65,77 +197,189 @@ public class HttpSessionImpl implements HttpSession {
 
     @Override
     public long getLastAccessedTime() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        checkValid();
+        return lastAccessedTime;
     }
 
     @Override
     public ServletContext getServletContext() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return servletContext;
     }
 
     @Override
     public void setMaxInactiveInterval(int interval) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        maxInactiveInterval = interval;
     }
 
     @Override
     public int getMaxInactiveInterval() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return maxInactiveInterval;
     }
 
+    /**
+     * Deprecated with no replacement.
+     * @return null
+     */
     @Override
     public HttpSessionContext getSessionContext() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return null;
     }
 
     @Override
     public Object getAttribute(String name) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        checkValid();
+        return loadAttribute(name);
     }
 
     @Override
     public Object getValue(String name) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return getAttribute(name);
     }
 
     @Override
     public Enumeration getAttributeNames() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        checkValid();
+        return Collections.enumeration(new ArrayList<String>(attributeNames()));
     }
 
     @Override
     public String[] getValueNames() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        checkValid();
+        Collection<String> names = attributeNames();
+        return names.toArray(new String[names.size()]);
     }
 
     @Override
     public void setAttribute(String name, Object value) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        if(value == null) {
+            removeAttribute(name);
+            return;
+        }
+        checkValid();
+        if(value instanceof HttpSessionBindingListener) {
+            ((HttpSessionBindingListener)value).valueBound(
+                    new HttpSessionBindingEvent(this, name, value));
+        }
+        Object old = storeAttribute(name, value);
+        if(old != null && old != value) {
+            unbound(name, old);
+        }
     }
 
     @Override
     public void putValue(String name, Object value) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        setAttribute(name, value);
     }
 
     @Override
     public void removeAttribute(String name) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        checkValid();
+        Object old = deleteAttribute(name);
+        if(old != null) {
+            unbound(name, old);
+        }
     }
 
     @Override
     public void removeValue(String name) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        removeAttribute(name);
     }
 
     @Override
     public void invalidate() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        checkValid();
+        expire();
+    }
+
+    /**
+     * Invalidate the session and unbind its attributes. Unlike invalidate
+     * this does nothing if the session is already invalid, so the
+     * SessionFactory can race a servlet to it.
+     */
+    public void expire() {
+        synchronized(this) {
+            if(!valid) {
+                return;
+            }
+            valid = false;
+        }
+        invalidated();
+        for(String name : new ArrayList<String>(attributeNames())) {
+            Object old = deleteAttribute(name);
+            if(old != null) {
+                unbound(name, old);
+            }
+        }
     }
 
     @Override
     public boolean isNew() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        checkValid();
+        return isNew;
     }
 
+    /**
+     * Called once when the session becomes invalid, before its attributes
+     * are unbound. The SessionFactory uses this to drop the session.
+     */
+    protected void invalidated() {
+    }
+
+    /**
+     * Get an attribute from where they are kept.
+     * @return null if there is no such attribute.
+     */
+    protected Object loadAttribute(String name) {
+        Map<String, Object> map = attributes;
+        return map == null ? null : map.get(name);
+    }
+
+    /**
+     * Keep an attribute, replacing any with the same name.
+     * @return The attribute replaced, null if there wasn't one.
+     */
+    protected Object storeAttribute(String name, Object value) {
+        Map<String, Object> map = attributes;
+        if(map == null) {
+            synchronized(this) {
+                map = attributes;
+                if(map == null) {
+                    map = new ConcurrentHashMap<String, Object>(4);
+                    attributes = map;
+                }
+            }
+        }
+        return map.put(name, value);
+    }
+
+    /**
+     * Drop an attribute.
+     * @return The attribute dropped, null if there wasn't one.
+     */
+    protected Object deleteAttribute(String name) {
+        Map<String, Object> map = attributes;
+        return map == null ? null : map.remove(name);
+    }
+
+    /**
+     * Names of the attributes kept.
+     * @return
+     */
+    protected Collection<String> attributeNames() {
+        Map<String, Object> map = attributes;
+        return map == null ? Collections.<String>emptySet() : map.keySet();
+    }
+
+    private void unbound(String name, Object value) {
+        if(value instanceof HttpSessionBindingListener) {
+            ((HttpSessionBindingListener)value).valueUnbound(
+                    new HttpSessionBindingEvent(this, name, value));
+        }
+    }
+
+    private void checkValid() {
+        if(!valid) {
+            throw new IllegalStateException("Session " + sessionID + " has been invalidated");
+        }
+    }
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.utils;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Immutable prefix trie used to map request paths to the alias they were
+ * registered under. The trie is keyed on path segments so a lookup finds the
+ * longest registered alias that matches the request path on a segment
+ * boundary, which is exactly the matching the OSGi HttpService spec asks for
+ * (see section 102.4). So for the path /fudd/bugs/x.html we will find /fudd/bugs
+ * before /fudd and /fudd before /.
+ *
+ * Chains of segments with no alias of there own are collapsed into a single
+ * edge (so this is really a radix trie) and the lookup walks the path one time
+ * comparing chars in place. No substrings are created while matching.
+ *
+ * Since the trie can't be modified it can be read by any number of threads
+ * with out locking. To change the mappings build a new trie and publish it.
+ *
+ * @param <V>
+ * @author rjackson
+ */
+public final class AliasTrie<V> {
+
+    @SuppressWarnings("unchecked")
+    private static final AliasTrie EMPTY = new AliasTrie(new Node(null, new String[0], new Node[0]), 0);
+
+    private final Node<V> root;
+    private final int size;
+
+    private AliasTrie(Node<V> root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Get the trie with no aliases in it.
+     *
+     * @param <V>
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> AliasTrie<V> empty() {
+        return (AliasTrie<V>)EMPTY;
+    }
+
+    /**
+     * Build a new trie from the supplied alias map. Aliases must start with a
+     * / and must not end with a / unless the alias is just /.
+     *
+     * @param <V>
+     * @param aliases map of alias to the value to return for that alias.
+     * @return
+     */
+    public static <V> AliasTrie<V> build(Map<String, V> aliases) {
+        if(aliases.isEmpty()) {
+            return empty();
+        }
+        Builder<V> rootBuilder = new Builder<V>();
+        for(Entry<String, V> entry : aliases.entrySet()) {
+            String alias = entry.getKey();
+            Builder<V> node = rootBuilder;
+            if(!alias.equals("/")) {
+                int start = alias.startsWith("/") ? 1 : 0;
+                while(start <= alias.length()) {
+                    int end = alias.indexOf('/', start);
+                    if(end < 0) {
+                        end = alias.length();
+                    }
+                    String segment = alias.substring(start, end);
+                    Builder<V> child = node.children.get(segment);
+                    if(child == null) {
+                        child = new Builder<V>();
+                        node.children.put(segment, child);
+                    }
+                    node = child;
+                    start = end + 1;
+                }
+            }
+            node.value = entry.getValue();
+        }
+        return new AliasTrie<V>(rootBuilder.freeze(), aliases.size());
+    }
+
+    /**
+     * Number of aliases in this trie.
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Find the value of the longest alias that matches the supplied path.
+     *
+     * @param path The request path. This must not contain the query string.
+     * @return The value or null if no alias matches.
+     */
+    public V lookup(String path) {
+        Node<V> node = root;
+        V best = node.value;
+        int len = path.length();
+        int pos = (len > 0 && path.charAt(0) == '/') ? 1 : 0;
+        while(pos < len && node.labels.length > 0) {
+            int segmentEnd = path.indexOf('/', pos);
+            if(segmentEnd < 0) {
+                segmentEnd = len;
+            }
+            int i = node.find(path, pos, segmentEnd);
+            if(i < 0) {
+                break;
+            }
+            // The first segment matched, a collapsed edge has to match the
+            // rest of its segments as well.
+            String label = node.labels[i];
+            int labelEnd = pos + label.length();
+            if(labelEnd > segmentEnd) {
+                if(labelEnd > len || !path.regionMatches(segmentEnd, label,
+                        segmentEnd - pos, labelEnd - segmentEnd)) {
+                    break;
+                }
+                if(labelEnd < len && path.charAt(labelEnd) != '/') {
+                    break;
+                }
+            }
+            node = node.children[i];
+            if(node.value != null) {
+                best = node.value;
+            }
+            pos = labelEnd + 1;
+        }
+        return best;
+    }
+
+    //************* Private inner classes *************************************
+    //=========================================================================
+
+    /**
+     * Frozen trie node. The child labels are sorted on there first segment so
+     * we can binary search them.
+     */
+    private static final class Node<V> {
+        private final V value;
+        private final String[] labels;
+        private final int[] firstSegmentLengths;
+        private final Node<V>[] children;
+
+        Node(V value, String[] labels, Node<V>[] children) {
+            this.value = value;
+            this.labels = labels;
+            this.children = children;
+            firstSegmentLengths = new int[labels.length];
+            for(int i = 0; i < labels.length; i++) {
+                int slash = labels[i].indexOf('/');
+                firstSegmentLengths[i] = slash < 0 ? labels[i].length() : slash;
+            }
+        }
+
+        /**
+         * Binary search our children for the label whose first segment equals
+         * path[start, end).
+         */
+        int find(String path, int start, int end) {
+            int low = 0;
+            int high = labels.length - 1;
+            while(low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(labels[mid], firstSegmentLengths[mid], path, start, end);
+                if(cmp < 0) {
+                    low = mid + 1;
+                } else if(cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private static int compare(String label, int labelLength, String path,
+                int start, int end) {
+            int pathLength = end - start;
+            int n = Math.min(labelLength, pathLength);
+            for(int i = 0; i < n; i++) {
+                int diff = label.charAt(i) - path.charAt(start + i);
+                if(diff != 0) {
+                    return diff;
+                }
+            }
+            return labelLength - pathLength;
+        }
+    }
+
+    /**
+     * Mutable node only used while building a trie.
+     */
+    private static final class Builder<V> {
+        private V value;
+        private final TreeMap<String, Builder<V>> children =
+                new TreeMap<String, Builder<V>>();
+
+        @SuppressWarnings("unchecked")
+        Node<V> freeze() {
+            String[] labels = new String[children.size()];
+            Node<V>[] nodes = new Node[children.size()];
+            int i = 0;
+            for(Entry<String, Builder<V>> entry : children.entrySet()) {
+                // Collapse any chain of nodes that have no value and only one
+                // child into a single edge.
+                StringBuilder label = new StringBuilder(entry.getKey());
+                Builder<V> child = entry.getValue();
+                while(child.value == null && child.children.size() == 1) {
+                    Entry<String, Builder<V>> next = child.children.firstEntry();
+                    label.append('/').append(next.getKey());
+                    child = next.getValue();
+                }
+                labels[i] = label.toString();
+                nodes[i] = child.freeze();
+                i++;
+            }
+            return new Node<V>(value, labels, nodes);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package org.jhserv.jacks.httpservice.utils;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formats and parses the dates used in HTTP headers. Dates are always sent
+ * in the RFC 1123 form, the obsolete RFC 850 and asctime forms are still
+ * accepted when parsing since old clients send them.
+ *
+ * SimpleDateFormat isn't thread safe so each thread gets its own set.
+ *
+ * @author rjackson
+ */
+public final class HttpDates {
+
+    private static final String RFC1123 = "EEE, dd MMM yyyy HH:mm:ss zzz";
+    private static final String RFC850 = "EEEE, dd-MMM-yy HH:mm:ss zzz";
+    private static final String ASCTIME = "EEE MMM d HH:mm:ss yyyy";
+
+    private static final ThreadLocal<SimpleDateFormat[]> formats =
+            new ThreadLocal<SimpleDateFormat[]>() {
+        @Override
+        protected SimpleDateFormat[] initialValue() {
+            return new SimpleDateFormat[] {
+                format(RFC1123), format(RFC850), format(ASCTIME)
+            };
+        }
+    };
+
+    private HttpDates() {
+    }
+
+    /**
+     * Format a time for an HTTP header.
+     *
+     * @param millis
+     * @return
+     */
+    public static String format(long millis) {
+        return formats.get()[0].format(new Date(millis));
+    }
+
+    /**
+     * Parse an HTTP header date.
+     *
+     * @param value
+     * @return The time in milliseconds or -1 if the value isn't a date.
+     */
+    public static long parse(String value) {
+        if(value == null) {
+            return -1;
+        }
+        value = value.trim();
+        for(SimpleDateFormat format : formats.get()) {
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(value, position);
+            if(date != null && position.getIndex() == value.length()) {
+                return date.getTime();
+            }
+        }
+        return -1;
+    }
+
+    private static SimpleDateFormat format(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2009 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jhserv.jacks.httpservice.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can update at once without fighting over a
+ * single cache line. The count is split over a number of cells and each
+ * thread always updates the cell its id hashes to. The cells are spaced a
+ * cache line apart so two threads updating different cells don't false share.
+ *
+ * Reading the count adds up all the cells so it is more expensive than an
+ * update and, while updates are going on, is only a close estimate. That is
+ * fine for the things we use it for (statistics and limits that can be
+ * overshot by a little).
+ *
+ * @author rjackson
+ */
+public final class StripedCounter {
+
+    /**
+     * Number of longs between two cells. 8 longs is 64 bytes which is the
+     * cache line size on the hardware we care about.
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    /**
+     * Create a counter with one cell per available processor.
+     */
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a counter with at least the supplied number of cells. The number
+     * is rounded up to a power of two.
+     *
+     * @param stripes
+     */
+    public StripedCounter(int stripes) {
+        int cellCount = 1;
+        while(cellCount < stripes) {
+            cellCount <<= 1;
+        }
+        mask = cellCount - 1;
+        cells = new AtomicLongArray(cellCount * PADDING);
+    }
+
+    public void add(long delta) {
+        cells.addAndGet(cell(), delta);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void decrement() {
+        add(-1);
+    }
+
+    /**
+     * The current count.
+     * @return
+     */
+    public long sum() {
+        long sum = 0;
+        for(int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Set the count back to 0. Updates made while this is running may be lost.
+     */
+    public void reset() {
+        for(int i = 0; i < cells.length(); i += PADDING) {
+            cells.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+
+    private int cell() {
+        long id = Thread.currentThread().getId();
+        // Thread ids are handed out in sequence so mix the bits before we
+        // mask them.
+        int hash = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return (hash & mask) * PADDING;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jhserv.jacks.httpservice.server.AdmissionController;
+import org.jhserv.jacks.httpservice.server.HttpServerPipelineFactory;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the AdmissionController class.
+ *
+ * @author rjackson
+ */
+public class AdmissionControllerTest {
+
+    /**
+     * Connections over the limit are rejected until one closes, or is given
+     * back because its pipeline could not be built.
+     */
+    @Test
+    public void connectionLimitTest() {
+        AdmissionController admission = new AdmissionController(2, 0, false, 0);
+        assertTrue(admission.admit());
+        assertTrue(admission.admit());
+        assertFalse(admission.admit());
+        assertEquals(1, admission.getRejectedConnections());
+        assertEquals(2, admission.getOpenConnections());
+
+        admission.cancel();
+        assertTrue(admission.admit());
+
+        DecoderEmbedder<Object> connection =
+                new DecoderEmbedder<Object>((ChannelUpstreamHandler)admission);
+        connection.finish();
+        assertEquals(1, admission.getOpenConnections());
+        assertTrue(admission.admit());
+    }
+
+    /**
+     * Requests count against the pending limit until the connection they
+     * came in on closes. A paused listener gives up after its wait.
+     */
+    @Test
+    public void pendingLimitTest() {
+        AdmissionController admission = new AdmissionController(0, 1, true, 100);
+        assertTrue(admission.admit());
+        DecoderEmbedder<Object> connection =
+                new DecoderEmbedder<Object>((ChannelUpstreamHandler)admission);
+        connection.offer(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/"));
+        assertEquals(1, admission.getPendingRequests());
+
+        long start = System.currentTimeMillis();
+        assertFalse(admission.admit());
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(1, admission.getAcceptPauses());
+
+        connection.finish();
+        assertEquals(0, admission.getPendingRequests());
+        assertEquals(0, admission.getOpenConnections());
+        assertTrue(admission.admit());
+    }
+
+    /**
+     * A pipeline that fails to build doesn't keep its connection counted.
+     */
+    @Test
+    public void failedPipelineTest() {
+        AdmissionController admission = new AdmissionController(1, 0, false, 0);
+        // No timeouts, building the pipeline fails right after admission.
+        HttpServerPipelineFactory factory = new HttpServerPipelineFactory(null, null,
+                admission, null, 0, 0, null, null, null, null, null);
+        try {
+            factory.getPipeline();
+            fail("Built a pipeline without timeouts");
+        } catch(Exception e) {
+            // Expected
+        }
+        assertEquals(0, admission.getOpenConnections());
+        assertTrue(admission.admit());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.jhserv.jacks.httpservice.utils.AliasTrie;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the AliasTrie class.
+ *
+ * @author rjackson
+ */
+public class AliasTrieTest {
+
+    private AliasTrie<String> buildTrie(String... aliases) {
+        Map<String, String> map = new HashMap<String, String>();
+        for(String alias : aliases) {
+            map.put(alias, alias);
+        }
+        return AliasTrie.build(map);
+    }
+
+    /**
+     * An empty trie should never match anything.
+     */
+    @Test
+    public void emptyTest() {
+        AliasTrie<String> trie = AliasTrie.empty();
+        assertTrue(trie.isEmpty());
+        assertNull(trie.lookup("/"));
+        assertNull(trie.lookup("/fudd/bugs"));
+        assertTrue(buildTrie().isEmpty());
+    }
+
+    /**
+     * The example from section 102.4 of the OSGi HttpService spec. The longest
+     * matching alias must win.
+     */
+    @Test
+    public void longestMatchTest() {
+        AliasTrie<String> trie = buildTrie("/", "/fudd", "/fudd/bugs", "/fudd/bugs/x.html");
+        assertEquals(4, trie.size());
+        assertEquals("/fudd/bugs/x.html", trie.lookup("/fudd/bugs/x.html"));
+        assertEquals("/fudd/bugs", trie.lookup("/fudd/bugs/y.html"));
+        assertEquals("/fudd/bugs", trie.lookup("/fudd/bugs"));
+        assertEquals("/fudd/bugs", trie.lookup("/fudd/bugs/"));
+        assertEquals("/fudd", trie.lookup("/fudd/elmer"));
+        assertEquals("/", trie.lookup("/elmer"));
+        assertEquals("/", trie.lookup("/"));
+        assertEquals("/", trie.lookup(""));
+    }
+
+    /**
+     * Aliases only match on whole segments so /fudd must not match /fuddy.
+     */
+    @Test
+    public void segmentBoundaryTest() {
+        AliasTrie<String> trie = buildTrie("/fudd", "/fudd/bugs");
+        assertNull(trie.lookup("/fuddy"));
+        assertNull(trie.lookup("/fud"));
+        assertEquals("/fudd", trie.lookup("/fudd/bugsy"));
+        assertNull(trie.lookup("/bugs"));
+    }
+
+    /**
+     * Aliases with no parent alias are collapsed into one edge. Partial matches
+     * of that edge must fall back to the closest alias above it.
+     */
+    @Test
+    public void collapsedEdgeTest() {
+        AliasTrie<String> trie = buildTrie("/", "/a/b/c", "/a/b/d/e", "/x");
+        assertEquals("/a/b/c", trie.lookup("/a/b/c"));
+        assertEquals("/a/b/c", trie.lookup("/a/b/c/index.html"));
+        assertEquals("/a/b/d/e", trie.lookup("/a/b/d/e/f"));
+        assertEquals("/", trie.lookup("/a/b/d"));
+        assertEquals("/", trie.lookup("/a/b/cc"));
+        assertEquals("/", trie.lookup("/a/b"));
+        assertEquals("/", trie.lookup("/a"));
+        assertEquals("/x", trie.lookup("/x/a/b/c"));
+    }
+
+}
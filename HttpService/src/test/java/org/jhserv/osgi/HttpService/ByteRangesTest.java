@@ -0,0 +1,89 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import java.util.List;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jhserv.jacks.httpservice.server.ByteRanges;
+import org.jhserv.jacks.httpservice.utils.HttpDates;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ByteRanges class.
+ *
+ * @author rjackson
+ */
+public class ByteRangesTest {
+
+    @Test
+    public void parseTest() {
+        assertRanges("bytes=0-99", 1000, 0, 99);
+        assertRanges("bytes=900-", 1000, 900, 999);
+        assertRanges("bytes=-100", 1000, 900, 999);
+        assertRanges("bytes=-5000", 1000, 0, 999);
+        assertRanges("bytes=990-2000", 1000, 990, 999);
+        // Sorted and merged, the range past the end dropped.
+        assertRanges("bytes=500-599, 0-9,5-20, 21-30, 2000-", 1000, 0, 30, 500, 599);
+        assertEquals(0, ByteRanges.parse("bytes=1000-", 1000).size());
+        assertEquals(0, ByteRanges.parse("bytes=-0", 1000).size());
+        assertNull(ByteRanges.parse("items=0-1", 1000));
+        assertNull(ByteRanges.parse("bytes=5-1", 1000));
+        assertNull(ByteRanges.parse("bytes=a-b", 1000));
+        assertNull(ByteRanges.parse("bytes=0-1,2-3,4-5,6-7,8-9,10-11,12-13,14-15,"
+                + "16-17,18-19,20-21,22-23,24-25,26-27,28-29,30-31,32-33", 1000));
+    }
+
+    @Test
+    public void ifRangeTest() {
+        long modified = 1200000000000L;
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+        request.setHeader(HttpHeaders.Names.RANGE, "bytes=0-9");
+        assertNotNull(ByteRanges.ranges(request, "\"abc\"", modified, 100));
+        request.setHeader(HttpHeaders.Names.IF_RANGE, "\"abc\"");
+        assertNotNull(ByteRanges.ranges(request, "\"abc\"", modified, 100));
+        request.setHeader(HttpHeaders.Names.IF_RANGE, "\"old\"");
+        assertNull(ByteRanges.ranges(request, "\"abc\"", modified, 100));
+        request.setHeader(HttpHeaders.Names.IF_RANGE, "W/\"abc\"");
+        assertNull(ByteRanges.ranges(request, "\"abc\"", modified, 100));
+        request.setHeader(HttpHeaders.Names.IF_RANGE, HttpDates.format(modified));
+        assertNotNull(ByteRanges.ranges(request, "\"abc\"", modified, 100));
+        request.setHeader(HttpHeaders.Names.IF_RANGE, HttpDates.format(modified - 5000));
+        assertNull(ByteRanges.ranges(request, "\"abc\"", modified, 100));
+        request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.HEAD, "/");
+        request.setHeader(HttpHeaders.Names.RANGE, "bytes=0-9");
+        assertNull(ByteRanges.ranges(request, "\"abc\"", modified, 100));
+    }
+
+    private static void assertRanges(String header, long length, long... expected) {
+        List<long[]> ranges = ByteRanges.parse(header, length);
+        assertEquals(expected.length / 2, ranges.size());
+        for(int i = 0; i < ranges.size(); i++) {
+            assertEquals(expected[i * 2], ranges.get(i)[0]);
+            assertEquals(expected[i * 2 + 1], ranges.get(i)[1]);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.DefaultChannelPipeline;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.timeout.DefaultIdleStateEvent;
+import org.jboss.netty.handler.timeout.IdleState;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
+import org.jboss.netty.handler.timeout.WriteTimeoutHandler;
+import org.jhserv.jacks.httpservice.server.ConnectionReaper;
+import org.jhserv.jacks.httpservice.server.ConnectionTimeouts;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ConnectionTimeouts class and the ConnectionReaper it
+ * adds to pipelines.
+ *
+ * @author rjackson
+ */
+public class ConnectionTimeoutsTest {
+
+    @BeforeClass
+    public static void setUp() {
+        TestUtils.installLogTracker();
+    }
+
+    /**
+     * Only the timeouts that are on get handlers.
+     */
+    @Test
+    public void pipelineTest() {
+        ConnectionTimeouts off = new ConnectionTimeouts(0, 0, 0, 0);
+        ConnectionTimeouts on = new ConnectionTimeouts(0, 0, 30000, 5000);
+        try {
+            ChannelPipeline pipeline = new DefaultChannelPipeline();
+            off.addFirst(pipeline);
+            assertTrue(pipeline.toMap().isEmpty());
+
+            pipeline = new DefaultChannelPipeline();
+            on.addFirst(pipeline);
+            on.addReaper(pipeline);
+            assertTrue(pipeline.get("writeTimeout") instanceof WriteTimeoutHandler);
+            assertTrue(pipeline.get("idle") instanceof IdleStateHandler);
+            assertTrue(pipeline.get("reaper") instanceof ConnectionReaper);
+        } finally {
+            off.releaseExternalResources();
+            on.releaseExternalResources();
+        }
+    }
+
+    /**
+     * Idle keep alive connections are closed, ones waiting on a response are
+     * left alone until writing stalls.
+     */
+    @Test
+    public void outstandingTest() {
+        Connection connection = new Connection();
+        connection.idle(IdleState.ALL_IDLE);
+        assertTrue(connection.closed);
+
+        connection = new Connection();
+        connection.offer(request(false));
+        connection.idle(IdleState.READER_IDLE);
+        connection.idle(IdleState.ALL_IDLE);
+        assertFalse(connection.closed);
+        connection.idle(IdleState.WRITER_IDLE);
+        assertTrue(connection.closed);
+    }
+
+    /**
+     * A client that stops part way through a chunked body is closed, even
+     * with another request waiting on its response. One that finishes the
+     * body is waiting on a response.
+     */
+    @Test
+    public void slowBodyTest() {
+        Connection connection = new Connection();
+        connection.offer(request(false));
+        connection.offer(request(true));
+        connection.offer(new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(new byte[10])));
+        connection.idle(IdleState.READER_IDLE);
+        assertTrue(connection.closed);
+
+        connection = new Connection();
+        connection.offer(request(true));
+        connection.offer(HttpChunk.LAST_CHUNK);
+        connection.idle(IdleState.READER_IDLE);
+        connection.idle(IdleState.ALL_IDLE);
+        assertFalse(connection.closed);
+    }
+
+    private static HttpRequest request(boolean chunked) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+                chunked ? HttpMethod.POST : HttpMethod.GET, "/");
+        if(chunked) {
+            request.setHeader(HttpHeaders.Names.TRANSFER_ENCODING, HttpHeaders.Values.CHUNKED);
+        }
+        return request;
+    }
+
+    /**
+     * Embedded pipeline with a reaper that notes when it closes the channel.
+     */
+    private static class Connection extends DecoderEmbedder<Object> {
+        private final ConnectionReaper reaper;
+        private boolean closed;
+
+        Connection() {
+            this(new ConnectionReaper());
+        }
+
+        private Connection(ConnectionReaper reaper) {
+            super((ChannelUpstreamHandler)reaper);
+            this.reaper = reaper;
+            getChannel().getPipeline().addFirst("close", new SimpleChannelHandler() {
+                @Override
+                public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e)
+                        throws Exception {
+                    if(e instanceof ChannelStateEvent &&
+                            ((ChannelStateEvent)e).getState() == ChannelState.OPEN &&
+                            Boolean.FALSE.equals(((ChannelStateEvent)e).getValue())) {
+                        closed = true;
+                    }
+                    super.handleDownstream(ctx, e);
+                }
+            });
+        }
+
+        void idle(IdleState state) {
+            Channel channel = getChannel();
+            reaper.channelIdle(channel.getPipeline().getContext(reaper),
+                    new DefaultIdleStateEvent(channel, state, System.currentTimeMillis()));
+        }
+    }
+}
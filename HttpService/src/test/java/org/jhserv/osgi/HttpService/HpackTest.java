@@ -0,0 +1,123 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jhserv.jacks.httpservice.http2.HpackDecoder;
+import org.jhserv.jacks.httpservice.http2.HpackEncoder;
+import org.jhserv.jacks.httpservice.http2.Http2Exception;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the HpackDecoder and HpackEncoder classes.
+ *
+ * @author rjackson
+ */
+public class HpackTest {
+
+    private static ChannelBuffer hex(String hex) {
+        hex = hex.replace(" ", "");
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return ChannelBuffers.wrappedBuffer(bytes);
+    }
+
+    private static List<String> decode(HpackDecoder decoder, ChannelBuffer block)
+            throws Http2Exception {
+        List<String> headers = new ArrayList<String>();
+        decoder.decode(block, headers);
+        return headers;
+    }
+
+    /**
+     * The Huffman coded request examples from RFC 7541 appendix C.4. Each
+     * block builds on the dynamic table left by the one before.
+     */
+    @Test
+    public void decodeRfcExamples() throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(4096, 16384);
+
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com"),
+                decode(decoder, hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff")));
+
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com", "cache-control", "no-cache"),
+                decode(decoder, hex("8286 84be 5886 a8eb 1064 9cbf")));
+
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "https", ":path", "/index.html",
+                ":authority", "www.example.com", "custom-key", "custom-value"),
+                decode(decoder, hex("8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf")));
+    }
+
+    /**
+     * What the encoder writes the decoder must read back, and repeated
+     * headers must come out of the dynamic table the second time around.
+     */
+    @Test
+    public void roundTrip() throws Http2Exception {
+        HpackEncoder encoder = new HpackEncoder(4096);
+        HpackDecoder decoder = new HpackDecoder(4096, 16384);
+        List<String> headers = Arrays.asList(":status", "200",
+                "content-type", "application/json; charset=UTF-8",
+                "content-length", "1234",
+                "server", "Jacks",
+                "set-cookie", "id=\u00e9t\u00e9");
+
+        ChannelBuffer first = ChannelBuffers.dynamicBuffer();
+        encoder.encode(headers, first);
+        int firstSize = first.readableBytes();
+        assertEquals(headers, decode(decoder, first));
+
+        ChannelBuffer second = ChannelBuffers.dynamicBuffer();
+        encoder.encode(headers, second);
+        assertTrue(second.readableBytes() < firstSize / 2);
+        assertEquals(headers, decode(decoder, second));
+    }
+
+    @Test
+    public void rejectBadBlocks() {
+        // Index past the end of the tables.
+        assertCompressionError("be");
+        // Huffman string padded with 0 bits.
+        assertCompressionError("4083 8c00 00 01 61");
+        // Integer that never ends.
+        assertCompressionError("7f ffff");
+    }
+
+    private static void assertCompressionError(String block) {
+        try {
+            decode(new HpackDecoder(4096, 16384), hex(block));
+            fail("Decoded " + block);
+        } catch(Http2Exception e) {
+            assertEquals(Http2Exception.COMPRESSION_ERROR, e.getErrorCode());
+            assertTrue(e.isConnectionError());
+        }
+    }
+}
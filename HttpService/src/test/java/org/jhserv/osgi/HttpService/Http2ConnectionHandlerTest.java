@@ -0,0 +1,458 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jhserv.jacks.httpservice.http2.HpackDecoder;
+import org.jhserv.jacks.httpservice.http2.HpackEncoder;
+import org.jhserv.jacks.httpservice.http2.Http2ConnectionHandler;
+import org.jhserv.jacks.httpservice.http2.Http2Exception;
+import org.jhserv.jacks.httpservice.server.PipelinedRequest;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the Http2ConnectionHandler class.
+ *
+ * @author rjackson
+ */
+public class Http2ConnectionHandlerTest {
+
+    private static final byte[] PREFACE =
+            "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charset.forName("US-ASCII"));
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+
+    private static final int INITIAL_WINDOW_SIZE = 0x4;
+    private static final int MAX_FRAME_SIZE = 0x5;
+
+    /**
+     * A header block that never ends is cut off with GOAWAY once it is
+     * larger than we would ever decode, not buffered until memory runs out.
+     */
+    @Test
+    public void continuationFloodTest() {
+        Connection connection = new Connection();
+        connection.offer(ChannelBuffers.wrappedBuffer(PREFACE));
+        connection.offer(frame(0x4, 0, 0, new byte[0]));
+        // An indexed :method GET, with END_HEADERS left off.
+        connection.offer(frame(0x1, 0, 1, new byte[] {(byte)0x82}));
+        for(int i = 0; i < 8 && connection.goAway() < 0; i++) {
+            connection.offer(frame(0x9, 0, 1, new byte[16384]));
+        }
+        assertEquals(Http2Exception.ENHANCE_YOUR_CALM, connection.goAway());
+    }
+
+    /**
+     * Streams are independent: responses go out on their own stream in the
+     * order they are written, not the order the requests came in.
+     */
+    @Test
+    public void multiplexTest() throws Exception {
+        Connection connection = open();
+        connection.offer(frame(HEADERS, END_STREAM | END_HEADERS, 1, headers("/one")));
+        connection.offer(frame(HEADERS, END_STREAM | END_HEADERS, 3, headers("/three")));
+        PipelinedRequest one = (PipelinedRequest)connection.poll();
+        PipelinedRequest three = (PipelinedRequest)connection.poll();
+        assertEquals(1, one.getSequence());
+        assertEquals("/one", one.getRequest().getUri());
+        assertEquals(3, three.getSequence());
+        assertEquals("/three", three.getRequest().getUri());
+        assertEquals("example.com", three.getRequest().getHeader(HttpHeaders.Names.HOST));
+
+        HpackDecoder decoder = new HpackDecoder(4096, 65536);
+        connection.write(three.respond(response(HttpResponseStatus.NOT_FOUND, 0), true));
+        connection.write(one.respond(response(HttpResponseStatus.OK, 0), true));
+        List<ChannelBuffer> frames = connection.frames(HEADERS);
+        assertEquals(2, frames.size());
+        assertEquals(3, streamId(frames.get(0)));
+        assertEquals(END_STREAM | END_HEADERS, flags(frames.get(0)));
+        assertEquals("404", status(decoder, frames.get(0)));
+        assertEquals(1, streamId(frames.get(1)));
+        assertEquals("200", status(decoder, frames.get(1)));
+    }
+
+    /**
+     * Response data is held to the clients stream window and goes out as
+     * WINDOW_UPDATEs open it. Request data is read and its window given
+     * straight back.
+     */
+    @Test
+    public void flowControlTest() throws Exception {
+        Connection connection = open(settings(INITIAL_WINDOW_SIZE, 10));
+        connection.offer(frame(HEADERS, END_HEADERS, 1, headers("/post")));
+        connection.offer(frame(DATA, 0, 1, new byte[5]));
+        connection.offer(frame(DATA, END_STREAM, 1, new byte[3]));
+        List<ChannelBuffer> updates = connection.frames(WINDOW_UPDATE);
+        assertEquals(3, updates.size());
+        assertWindowUpdate(updates.get(0), 0, 5);
+        assertWindowUpdate(updates.get(1), 1, 5);
+        assertWindowUpdate(updates.get(2), 0, 3);
+        PipelinedRequest request = (PipelinedRequest)connection.poll();
+        assertEquals(8, request.getRequest().getContent().readableBytes());
+
+        connection.written.clear();
+        ChannelFuture future = connection.write(request.respond(
+                response(HttpResponseStatus.OK, 25), true));
+        assertEquals(1, connection.frames(HEADERS).size());
+        assertDataLengths(connection, 10);
+        assertFalse(future.isDone());
+
+        connection.written.clear();
+        connection.offer(frame(WINDOW_UPDATE, 0, 1, increment(10)));
+        assertDataLengths(connection, 10);
+        assertFalse(future.isDone());
+        assertEquals(0, flags(connection.frames(DATA).get(0)));
+
+        connection.written.clear();
+        connection.offer(frame(WINDOW_UPDATE, 0, 1, increment(100)));
+        assertDataLengths(connection, 5);
+        assertEquals(END_STREAM, flags(connection.frames(DATA).get(0)));
+    }
+
+    /**
+     * A SETTINGS frame is acknowledged after ours, an ACK carrying a payload
+     * is a connection error.
+     */
+    @Test
+    public void settingsAckTest() throws Exception {
+        Connection connection = new Connection();
+        connection.offer(ChannelBuffers.wrappedBuffer(PREFACE));
+        connection.offer(frame(SETTINGS, 0, 0, settings(MAX_FRAME_SIZE, 32768)));
+        List<ChannelBuffer> settings = connection.frames(SETTINGS);
+        assertEquals(2, settings.size());
+        assertEquals(0, flags(settings.get(0)));
+        assertTrue(payload(settings.get(0)).readable());
+        assertEquals(ACK, flags(settings.get(1)));
+        assertFalse(payload(settings.get(1)).readable());
+
+        connection.offer(frame(SETTINGS, ACK, 0, new byte[0]));
+        assertEquals(2, connection.frames(SETTINGS).size());
+        assertEquals(-1, connection.goAway());
+        connection.offer(frame(SETTINGS, ACK, 0, new byte[6]));
+        assertEquals(Http2Exception.FRAME_SIZE_ERROR, connection.goAway());
+    }
+
+    /**
+     * A new initial window that would take an open stream's window past
+     * 2^31-1 is a connection FLOW_CONTROL_ERROR.
+     */
+    @Test
+    public void initialWindowOverflowTest() throws Exception {
+        Connection connection = open();
+        connection.offer(frame(HEADERS, END_STREAM | END_HEADERS, 1, headers("/")));
+        assertNotNull(connection.poll());
+        connection.offer(frame(WINDOW_UPDATE, 0, 1, increment(Integer.MAX_VALUE - 65535)));
+        assertEquals(-1, connection.goAway());
+        connection.offer(frame(SETTINGS, 0, 0, settings(INITIAL_WINDOW_SIZE, 65536)));
+        assertEquals(Http2Exception.FLOW_CONTROL_ERROR, connection.goAway());
+    }
+
+    /**
+     * A stream the client resets fails the response written to it, DATA on
+     * a stream the client already ended resets it from our side.
+     */
+    @Test
+    public void rstStreamTest() throws Exception {
+        Connection connection = open();
+        connection.offer(frame(HEADERS, END_STREAM | END_HEADERS, 1, headers("/")));
+        PipelinedRequest request = (PipelinedRequest)connection.poll();
+        connection.offer(frame(RST_STREAM, 0, 1, increment(Http2Exception.CANCEL)));
+        ChannelFuture future = connection.write(request.respond(
+                response(HttpResponseStatus.OK, 10), true));
+        assertTrue(future.isDone());
+        assertFalse(future.isSuccess());
+        assertTrue(connection.frames(HEADERS).isEmpty());
+
+        connection.offer(frame(HEADERS, END_STREAM | END_HEADERS, 3, headers("/")));
+        assertNotNull(connection.poll());
+        connection.offer(frame(DATA, 0, 3, new byte[4]));
+        List<ChannelBuffer> resets = connection.frames(RST_STREAM);
+        assertEquals(1, resets.size());
+        assertEquals(3, streamId(resets.get(0)));
+        assertEquals(Http2Exception.STREAM_CLOSED, payload(resets.get(0)).getInt(0));
+        assertEquals(-1, connection.goAway());
+    }
+
+    /**
+     * After the clients GOAWAY open streams are still answered and then we
+     * send our own GOAWAY, only ever one of them.
+     */
+    @Test
+    public void goAwayTest() throws Exception {
+        Connection connection = open();
+        connection.offer(frame(HEADERS, END_STREAM | END_HEADERS, 1, headers("/")));
+        PipelinedRequest request = (PipelinedRequest)connection.poll();
+        connection.offer(frame(GOAWAY, 0, 0, new byte[8]));
+        assertEquals(-1, connection.goAway());
+        // Streams opened after the clients GOAWAY are ignored.
+        connection.offer(frame(HEADERS, END_STREAM | END_HEADERS, 3, headers("/")));
+        assertNull(connection.poll());
+
+        connection.write(request.respond(response(HttpResponseStatus.OK, 0), true));
+        assertEquals(1, connection.frames(HEADERS).size());
+        assertEquals(Http2Exception.NO_ERROR, connection.goAway());
+        ChannelBuffer goAway = payload(connection.frames(GOAWAY).get(0));
+        assertEquals(3, goAway.getInt(0));
+
+        connection.offer(frame(PUSH_PROMISE, 0, 1, new byte[4]));
+        connection.offer(frame(RST_STREAM, 0, 1, increment(Http2Exception.CANCEL)));
+        assertEquals(1, connection.frames(GOAWAY).size());
+    }
+
+    /**
+     * An Upgrade: h2c request becomes half closed stream 1 with the settings
+     * from its HTTP2-Settings already in force. Our SETTINGS go first, the
+     * clients preface that follows is read as usual.
+     */
+    @Test
+    public void upgradeTest() throws Exception {
+        Connection connection = new Connection();
+        HttpRequest upgrade = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/up");
+        upgrade.setHeader(HttpHeaders.Names.CONNECTION, "Upgrade, HTTP2-Settings");
+        upgrade.setHeader(HttpHeaders.Names.UPGRADE, "h2c");
+        upgrade.setHeader("HTTP2-Settings", "AAQAAAAF");
+        PipelinedRequest request = connection.handler.upgrade(connection.context(), upgrade,
+                ChannelBuffers.wrappedBuffer(settings(INITIAL_WINDOW_SIZE, 5)));
+        assertEquals(1, request.getSequence());
+        assertEquals("/up", request.getRequest().getUri());
+        assertNull(request.getRequest().getHeader(HttpHeaders.Names.UPGRADE));
+        assertNull(request.getRequest().getHeader("HTTP2-Settings"));
+        List<ChannelBuffer> settings = connection.frames(SETTINGS);
+        assertEquals(1, settings.size());
+        assertEquals(0, flags(settings.get(0)));
+
+        connection.offer(ChannelBuffers.wrappedBuffer(ChannelBuffers.wrappedBuffer(PREFACE),
+                frame(SETTINGS, 0, 0, new byte[0])));
+        settings = connection.frames(SETTINGS);
+        assertEquals(2, settings.size());
+        assertEquals(ACK, flags(settings.get(1)));
+
+        connection.write(request.respond(response(HttpResponseStatus.OK, 8), true));
+        assertEquals(1, streamId(connection.frames(HEADERS).get(0)));
+        assertDataLengths(connection, 5);
+    }
+
+    /**
+     * A connection started with the preface (prior knowledge) may send it in
+     * pieces. Anything else where the preface should be is a connection
+     * error.
+     */
+    @Test
+    public void priorKnowledgeTest() throws Exception {
+        Connection connection = new Connection();
+        connection.offer(ChannelBuffers.wrappedBuffer(PREFACE, 0, 10));
+        assertEquals(1, connection.frames(SETTINGS).size());
+        assertEquals(-1, connection.goAway());
+        connection.offer(ChannelBuffers.wrappedBuffer(ChannelBuffers.wrappedBuffer(PREFACE, 10,
+                PREFACE.length - 10), frame(SETTINGS, 0, 0, new byte[0]),
+                frame(HEADERS, END_STREAM | END_HEADERS, 1, headers("/"))));
+        assertEquals(2, connection.frames(SETTINGS).size());
+        assertEquals(1, ((PipelinedRequest)connection.poll()).getSequence());
+        assertEquals(-1, connection.goAway());
+
+        connection = new Connection();
+        connection.offer(ChannelBuffers.copiedBuffer("GET / HTTP/1.1\r\n", "US-ASCII"));
+        assertEquals(Http2Exception.PROTOCOL_ERROR, connection.goAway());
+    }
+
+    /**
+     * A connection past the preface and the SETTINGS exchange.
+     */
+    private static Connection open(byte[]... settings) {
+        Connection connection = new Connection();
+        connection.offer(ChannelBuffers.wrappedBuffer(PREFACE));
+        for(byte[] payload : settings) {
+            connection.offer(frame(SETTINGS, 0, 0, payload));
+        }
+        if(settings.length == 0) {
+            connection.offer(frame(SETTINGS, 0, 0, new byte[0]));
+        }
+        connection.written.clear();
+        return connection;
+    }
+
+    private static byte[] headers(String path) {
+        List<String> headers = Arrays.asList(":method", "GET", ":scheme", "http",
+                ":path", path, ":authority", "example.com");
+        ChannelBuffer block = ChannelBuffers.dynamicBuffer();
+        new HpackEncoder(4096).encode(headers, block);
+        byte[] bytes = new byte[block.readableBytes()];
+        block.readBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] settings(int id, int value) {
+        return new byte[] {(byte)(id >>> 8), (byte)id, (byte)(value >>> 24),
+                (byte)(value >>> 16), (byte)(value >>> 8), (byte)value};
+    }
+
+    private static byte[] increment(int value) {
+        return new byte[] {(byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8),
+                (byte)value};
+    }
+
+    private static HttpResponse response(HttpResponseStatus status, int length) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(length));
+        if(length > 0) {
+            response.setContent(ChannelBuffers.wrappedBuffer(new byte[length]));
+        }
+        return response;
+    }
+
+    private static String status(HpackDecoder decoder, ChannelBuffer frame)
+            throws Http2Exception {
+        List<String> headers = new ArrayList<String>();
+        decoder.decode(payload(frame), headers);
+        assertEquals(":status", headers.get(0));
+        return headers.get(1);
+    }
+
+    private static void assertWindowUpdate(ChannelBuffer frame, int streamId, int increment) {
+        assertEquals(streamId, streamId(frame));
+        assertEquals(increment, payload(frame).getInt(0));
+    }
+
+    private static void assertDataLengths(Connection connection, int... lengths) {
+        List<ChannelBuffer> data = connection.frames(DATA);
+        assertEquals(lengths.length, data.size());
+        for(int i = 0; i < lengths.length; i++) {
+            assertEquals(lengths[i], payload(data.get(i)).readableBytes());
+        }
+    }
+
+    private static int flags(ChannelBuffer frame) {
+        return frame.getUnsignedByte(frame.readerIndex() + 4);
+    }
+
+    private static int streamId(ChannelBuffer frame) {
+        return frame.getInt(frame.readerIndex() + 5) & 0x7fffffff;
+    }
+
+    private static ChannelBuffer payload(ChannelBuffer frame) {
+        return frame.slice(frame.readerIndex() + 9, frame.readableBytes() - 9);
+    }
+
+    private static ChannelBuffer frame(int type, int flags, int streamId, byte[] payload) {
+        ChannelBuffer frame = ChannelBuffers.buffer(9 + payload.length);
+        frame.writeMedium(payload.length);
+        frame.writeByte((byte)type);
+        frame.writeByte((byte)flags);
+        frame.writeInt(streamId);
+        frame.writeBytes(payload);
+        return frame;
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * Embedded connection that keeps the frames the handler writes.
+     */
+    private static class Connection extends DecoderEmbedder<Object> {
+        private final List<ChannelBuffer> written = new ArrayList<ChannelBuffer>();
+        private final Http2ConnectionHandler handler;
+
+        Connection() {
+            this(new Http2ConnectionHandler(100, 65536));
+        }
+
+        private Connection(Http2ConnectionHandler handler) {
+            super(handler);
+            this.handler = handler;
+            getChannel().getPipeline().addFirst("recorder", new SimpleChannelDownstreamHandler() {
+                @Override
+                public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e)
+                        throws Exception {
+                    if(e instanceof MessageEvent) {
+                        written.add((ChannelBuffer)((MessageEvent)e).getMessage());
+                        return;
+                    }
+                    super.handleDownstream(ctx, e);
+                }
+            });
+        }
+
+        ChannelHandlerContext context() {
+            return getChannel().getPipeline().getContext(handler);
+        }
+
+        ChannelFuture write(Object message) {
+            return Channels.write(getChannel(), message);
+        }
+
+        /**
+         * The frames of a type written so far.
+         */
+        List<ChannelBuffer> frames(int type) {
+            List<ChannelBuffer> frames = new ArrayList<ChannelBuffer>();
+            for(ChannelBuffer frame : written) {
+                if(frame.getUnsignedByte(frame.readerIndex() + 3) == type) {
+                    frames.add(frame);
+                }
+            }
+            return frames;
+        }
+
+        /**
+         * @return The error code of the GOAWAY written, or -1 if there is none.
+         */
+        int goAway() {
+            for(ChannelBuffer frame : written) {
+                if(frame.getUnsignedByte(frame.readerIndex() + 3) == 0x7) {
+                    return frame.getInt(frame.readerIndex() + 9 + 4);
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.jar.JarOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jhserv.jacks.httpservice.server.CachedResource;
+import org.jhserv.jacks.httpservice.server.PipelinedRequest;
+import org.jhserv.jacks.httpservice.server.PipelinedResponse;
+import org.jhserv.jacks.httpservice.server.ResourceCache;
+import org.jhserv.jacks.httpservice.server.ResourceSender;
+import org.jhserv.jacks.httpservice.server.ResourceServlet;
+import org.jhserv.jacks.httpservice.utils.HttpDates;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.service.http.HttpContext;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ResourceServlet name mapping, the ResourceSender and
+ * the ResourceCache.
+ *
+ * @author rjackson
+ */
+public class ResourceSenderTest {
+
+    /**
+     * Runs the streamed reads handed to the executor straight away.
+     */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    @Test
+    public void resourceNameTest() {
+        ResourceServlet files = new ResourceServlet("/files", "/www", null, null);
+        assertEquals("/www", files.getResourceName("/files"));
+        assertEquals("/www/a/b.html", files.getResourceName("/files/a/b.html"));
+        assertNull(files.getResourceName("/filesystem"));
+        assertNull(files.getResourceName("/other"));
+        assertNull(files.getResourceName("/files/../etc/passwd"));
+        assertNull(files.getResourceName("/files/a/.."));
+        ResourceServlet root = new ResourceServlet("/", "/", null, null);
+        assertEquals("/", root.getResourceName("/"));
+        assertEquals("/index.html", root.getResourceName("/index.html"));
+    }
+
+    /**
+     * A file resource must come back as a header followed by its bytes with
+     * only the last piece ending the response.
+     */
+    @Test
+    public void sendFileTest() throws Exception {
+        File file = File.createTempFile("resource", ".txt");
+        file.deleteOnExit();
+        byte[] content = new byte[10000];
+        for(int i = 0; i < content.length; i++) {
+            content[i] = (byte)('a' + i % 26);
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+
+        Connection connection = new Connection();
+        ResourceServlet servlet = new ResourceServlet("/files", "/www", new FileContext(file), null);
+        ResourceSender sender = new ResourceSender(new ResourceCache(0, 0), DIRECT);
+        sender.send(connection.channel(), request(HttpMethod.GET, "/files/a.txt"), servlet,
+                "/files/a.txt", false);
+        PipelinedResponse head = (PipelinedResponse)connection.poll();
+        HttpResponse response = (HttpResponse)head.getMessage();
+        assertEquals(HttpResponseStatus.OK, response.getStatus());
+        assertEquals("10000", response.getHeader(HttpHeaders.Names.CONTENT_LENGTH));
+        assertEquals("text/plain", response.getHeader(HttpHeaders.Names.CONTENT_TYPE));
+        assertFalse(head.isLast());
+        PipelinedResponse body = (PipelinedResponse)connection.poll();
+        assertTrue(body.isLast());
+        assertEquals(ChannelBuffers.wrappedBuffer(content), (ChannelBuffer)body.getMessage());
+        assertNull(connection.poll());
+
+        sender.send(connection.channel(), request(HttpMethod.GET, "/files/missing"), servlet,
+                "/files/missing", false);
+        head = (PipelinedResponse)connection.poll();
+        assertEquals(HttpResponseStatus.NOT_FOUND, ((HttpResponse)head.getMessage()).getStatus());
+        assertTrue(head.isLast());
+    }
+
+    /**
+     * A resource that isn't a file and is too big to cache must be streamed
+     * in pieces, with only the last ending the response, and read again for
+     * the next request. Every piece after the first is read on the executor,
+     * not by the listener of the write before it.
+     */
+    @Test
+    public void sendStreamTest() throws Exception {
+        File jar = File.createTempFile("resource", ".jar");
+        jar.deleteOnExit();
+        byte[] content = new byte[200000];
+        for(int i = 0; i < content.length; i++) {
+            content[i] = (byte)('a' + i % 26);
+        }
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        out.putNextEntry(new ZipEntry("a.txt"));
+        out.write(content);
+        out.close();
+        URL url = new URL("jar:" + jar.toURI().toURL() + "!/a.txt");
+
+        Connection connection = new Connection();
+        ResourceServlet servlet = new ResourceServlet("/files", "/www", new FileContext(url), null);
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        ResourceSender sender = new ResourceSender(new ResourceCache(1024, 1024), new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        });
+        for(int i = 0; i < 2; i++) {
+            sender.send(connection.channel(), request(HttpMethod.GET, "/files/a.txt"),
+                    servlet, "/files/a.txt", false);
+            PipelinedResponse head = (PipelinedResponse)connection.poll();
+            HttpResponse response = (HttpResponse)head.getMessage();
+            assertEquals("200000", response.getHeader(HttpHeaders.Names.CONTENT_LENGTH));
+            assertFalse(response.getContent().readable());
+            assertFalse(head.isLast());
+            // Only the first piece is read before the executor runs.
+            PipelinedResponse first = (PipelinedResponse)connection.poll();
+            assertEquals(65536, ((ChannelBuffer)first.getMessage()).readableBytes());
+            assertFalse(first.isLast());
+            assertNull(connection.peek());
+            int pieces = 1;
+            while(!tasks.isEmpty()) {
+                tasks.remove(0).run();
+                pieces++;
+            }
+            assertEquals(4, pieces);
+            byte[] rest = drain(connection);
+            assertEquals(content.length - 65536, rest.length);
+            assertArrayEquals(Arrays.copyOfRange(content, 65536, content.length), rest);
+            assertNull(connection.poll());
+        }
+    }
+
+    /**
+     * The cache must hold no more bytes than it was given, dropping entries
+     * that haven't been used lately first, and forget a bundles resources
+     * when asked to.
+     */
+    @Test
+    public void cacheTest() throws Exception {
+        ResourceCache cache = new ResourceCache(100, 60);
+        HttpContext context = new FileContext((File)null);
+        Bundle owner = bundle();
+        assertFalse(cache.accepts(61));
+        cache.put(context, "/a", resource(40, owner));
+        cache.put(context, "/b", resource(40, null));
+        assertNotNull(cache.get(context, "/a"));
+        cache.put(context, "/c", resource(40, owner));
+        assertEquals(80, cache.getSize());
+        assertNotNull(cache.get(context, "/a"));
+        assertNull(cache.get(context, "/b"));
+        assertNull(cache.get(new FileContext((File)null), "/a"));
+        cache.put(context, "/big", resource(61, null));
+        assertNull(cache.get(context, "/big"));
+        cache.invalidate(owner);
+        assertEquals(0, cache.getSize());
+        assertNull(cache.get(context, "/c"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    /**
+     * An entry that has been hit since the clock hand last passed it is
+     * kept over one that hasn't, however many times either was hit.
+     */
+    @Test
+    public void cacheClockTest() throws Exception {
+        ResourceCache cache = new ResourceCache(120, 40);
+        HttpContext context = new FileContext((File)null);
+        cache.put(context, "/a", resource(40, null));
+        cache.put(context, "/b", resource(40, null));
+        cache.put(context, "/c", resource(40, null));
+        for(int i = 0; i < 3; i++) {
+            assertNotNull(cache.get(context, "/a"));
+        }
+        assertNotNull(cache.get(context, "/c"));
+
+        // The hand passes /a, clearing its bit, and drops /b.
+        cache.put(context, "/d", resource(40, null));
+        assertNull(cache.get(context, "/b"));
+        assertEquals(1, cache.getEvictions());
+        assertNotNull(cache.get(context, "/d"));
+
+        // /c and /d are passed and /a, not hit since, goes next.
+        cache.put(context, "/e", resource(40, null));
+        assertNull(cache.get(context, "/a"));
+        assertNotNull(cache.get(context, "/c"));
+        assertNotNull(cache.get(context, "/d"));
+        assertNotNull(cache.get(context, "/e"));
+        assertEquals(2, cache.getEvictions());
+        assertEquals(3, cache.getEntries());
+        assertEquals(120, cache.getSize());
+    }
+
+    /**
+     * A resource read before its bundle was updated or stopped must not be
+     * cached once the cache has dropped the bundle's resources.
+     */
+    @Test
+    public void cacheInvalidatedPutTest() throws Exception {
+        ResourceCache cache = new ResourceCache(100, 100);
+        HttpContext context = new FileContext((File)null);
+        long[] stamp = {Bundle.ACTIVE, 1};
+        Bundle owner = bundle(stamp);
+
+        CachedResource updated = resource(10, owner);
+        stamp[1] = 2;
+        cache.invalidate(owner);
+        cache.put(context, "/a", updated);
+        assertNull(cache.get(context, "/a"));
+
+        CachedResource stopped = resource(10, owner);
+        stamp[0] = Bundle.RESOLVED;
+        cache.invalidate(owner);
+        cache.put(context, "/a", stopped);
+        assertNull(cache.get(context, "/a"));
+        assertEquals(0, cache.getSize());
+
+        CachedResource current = resource(10, owner);
+        cache.put(context, "/a", current);
+        assertSame(current, cache.get(context, "/a"));
+    }
+
+    /**
+     * Once a resource has been cached later requests must not go back to
+     * the HttpContext for it.
+     */
+    @Test
+    public void cachedSendTest() throws Exception {
+        File file = File.createTempFile("resource", ".txt");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("hello".getBytes("US-ASCII"));
+        out.close();
+
+        Connection connection = new Connection();
+        FileContext context = new FileContext(file);
+        ResourceServlet servlet = new ResourceServlet("/files", "/www", context, null);
+        ResourceSender sender = new ResourceSender(new ResourceCache(1024, 1024), DIRECT);
+        for(int i = 0; i < 3; i++) {
+            sender.send(connection.channel(), request(HttpMethod.GET, "/files/a.txt"),
+                    servlet, "/files/a.txt", false);
+            PipelinedResponse sent = (PipelinedResponse)connection.poll();
+            assertTrue(sent.isLast());
+            HttpResponse response = (HttpResponse)sent.getMessage();
+            assertEquals("5", response.getHeader(HttpHeaders.Names.CONTENT_LENGTH));
+            assertEquals(ChannelBuffers.wrappedBuffer("hello".getBytes("US-ASCII")),
+                    response.getContent());
+        }
+        // The resource and its missing .gz sibling.
+        assertEquals(2, context.lookups);
+    }
+
+    /**
+     * A text resource must go out gzipped to clients that accept it and as
+     * is to those that don't, from the same cache entry.
+     */
+    @Test
+    public void gzipVariantTest() throws Exception {
+        File file = File.createTempFile("resource", ".txt");
+        file.deleteOnExit();
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 100; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        byte[] content = text.toString().getBytes("US-ASCII");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+
+        Connection connection = new Connection();
+        ResourceServlet servlet = new ResourceServlet("/files", "/www", new FileContext(file), null);
+        ResourceSender sender = new ResourceSender(new ResourceCache(1 << 16, 1 << 16), DIRECT);
+        for(String accept : new String[] {"gzip, deflate", null, "gzip"}) {
+            PipelinedRequest request = request(HttpMethod.GET, "/files/a.txt");
+            if(accept != null) {
+                request.getRequest().setHeader(HttpHeaders.Names.ACCEPT_ENCODING, accept);
+            }
+            sender.send(connection.channel(), request, servlet, "/files/a.txt", false);
+            HttpResponse response = (HttpResponse)((PipelinedResponse)connection.poll()).getMessage();
+            assertEquals(HttpHeaders.Names.ACCEPT_ENCODING,
+                    response.getHeader(HttpHeaders.Names.VARY));
+            ChannelBuffer body = response.getContent();
+            assertEquals(String.valueOf(body.readableBytes()),
+                    response.getHeader(HttpHeaders.Names.CONTENT_LENGTH));
+            byte[] bytes = new byte[body.readableBytes()];
+            body.getBytes(body.readerIndex(), bytes);
+            if(accept == null) {
+                assertNull(response.getHeader(HttpHeaders.Names.CONTENT_ENCODING));
+            } else {
+                assertEquals("gzip", response.getHeader(HttpHeaders.Names.CONTENT_ENCODING));
+                assertTrue(bytes.length < content.length);
+                bytes = gunzip(bytes);
+            }
+            assertArrayEquals(content, bytes);
+        }
+    }
+
+    /**
+     * A client revalidating with the ETag or Last-Modified it was given must
+     * get a 304 without a body, one with an old tag the full response.
+     */
+    @Test
+    public void notModifiedTest() throws Exception {
+        File file = File.createTempFile("resource", ".txt");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("hello".getBytes("US-ASCII"));
+        out.close();
+
+        Connection connection = new Connection();
+        ResourceServlet servlet = new ResourceServlet("/files", "/www", new FileContext(file), null);
+        for(ResourceSender sender : new ResourceSender[] {
+                new ResourceSender(new ResourceCache(1024, 1024), DIRECT),
+                new ResourceSender(new ResourceCache(0, 0), DIRECT)}) {
+            sender.send(connection.channel(), request(HttpMethod.GET, "/files/a.txt"),
+                    servlet, "/files/a.txt", false);
+            HttpResponse response = (HttpResponse)((PipelinedResponse)connection.poll()).getMessage();
+            String etag = response.getHeader(HttpHeaders.Names.ETAG);
+            String lastModified = response.getHeader(HttpHeaders.Names.LAST_MODIFIED);
+            assertNotNull(etag);
+            assertEquals(file.lastModified() / 1000 * 1000, HttpDates.parse(lastModified));
+            while(connection.poll() != null) {
+                // Mapped body.
+            }
+
+            String[][] conditions = {
+                {HttpHeaders.Names.IF_NONE_MATCH, "\"other\", W/" + etag},
+                {HttpHeaders.Names.IF_MODIFIED_SINCE, lastModified},
+                {HttpHeaders.Names.IF_NONE_MATCH, "\"other\""},
+            };
+            for(int i = 0; i < conditions.length; i++) {
+                PipelinedRequest request = request(HttpMethod.GET, "/files/a.txt");
+                request.getRequest().setHeader(conditions[i][0], conditions[i][1]);
+                sender.send(connection.channel(), request, servlet, "/files/a.txt", false);
+                PipelinedResponse sent = (PipelinedResponse)connection.poll();
+                response = (HttpResponse)sent.getMessage();
+                if(i < 2) {
+                    assertEquals(HttpResponseStatus.NOT_MODIFIED, response.getStatus());
+                    assertEquals(etag, response.getHeader(HttpHeaders.Names.ETAG));
+                    assertTrue(sent.isLast());
+                    assertFalse(response.getContent().readable());
+                } else {
+                    assertEquals(HttpResponseStatus.OK, response.getStatus());
+                }
+                while(connection.poll() != null) {
+                    // Mapped body.
+                }
+            }
+        }
+    }
+
+    /**
+     * Single and multiple ranges must come back as 206 with the right bytes
+     * whether the resource is cached or mapped from the file.
+     */
+    @Test
+    public void rangeTest() throws Exception {
+        File file = File.createTempFile("resource", ".bin");
+        file.deleteOnExit();
+        byte[] content = new byte[1000];
+        for(int i = 0; i < content.length; i++) {
+            content[i] = (byte)i;
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+
+        Connection connection = new Connection();
+        ResourceServlet servlet = new ResourceServlet("/files", "/www", new FileContext(file), null);
+        for(ResourceSender sender : new ResourceSender[] {
+                new ResourceSender(new ResourceCache(4096, 4096), DIRECT),
+                new ResourceSender(new ResourceCache(0, 0), DIRECT)}) {
+            PipelinedRequest request = request(HttpMethod.GET, "/files/a.txt");
+            request.getRequest().setHeader(HttpHeaders.Names.RANGE, "bytes=10-19");
+            sender.send(connection.channel(), request, servlet, "/files/a.txt", false);
+            HttpResponse response = (HttpResponse)((PipelinedResponse)connection.peek()).getMessage();
+            assertEquals(HttpResponseStatus.PARTIAL_CONTENT, response.getStatus());
+            assertEquals("bytes 10-19/1000", response.getHeader(HttpHeaders.Names.CONTENT_RANGE));
+            assertEquals("10", response.getHeader(HttpHeaders.Names.CONTENT_LENGTH));
+            byte[] body = drain(connection);
+            assertEquals(10, body.length);
+            assertEquals(10, body[0]);
+
+            request = request(HttpMethod.GET, "/files/a.txt");
+            request.getRequest().setHeader(HttpHeaders.Names.RANGE, "bytes=0-1,-2");
+            sender.send(connection.channel(), request, servlet, "/files/a.txt", false);
+            response = (HttpResponse)((PipelinedResponse)connection.peek()).getMessage();
+            assertTrue(response.getHeader(HttpHeaders.Names.CONTENT_TYPE)
+                    .startsWith("multipart/byteranges; boundary="));
+            body = drain(connection);
+            assertEquals(response.getHeader(HttpHeaders.Names.CONTENT_LENGTH),
+                    String.valueOf(body.length));
+            String text = new String(body, "ISO-8859-1");
+            assertTrue(text.contains("Content-Range: bytes 0-1/1000\r\n\r\n\u0000\u0001\r\n"));
+            assertTrue(text.contains("Content-Range: bytes 998-999/1000\r\n\r\n\u00e6\u00e7\r\n"));
+
+            request = request(HttpMethod.GET, "/files/a.txt");
+            request.getRequest().setHeader(HttpHeaders.Names.RANGE, "bytes=1000-");
+            sender.send(connection.channel(), request, servlet, "/files/a.txt", false);
+            response = (HttpResponse)((PipelinedResponse)connection.poll()).getMessage();
+            assertEquals(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatus());
+            assertEquals("bytes */1000", response.getHeader(HttpHeaders.Names.CONTENT_RANGE));
+        }
+    }
+
+    /**
+     * Everything written for one response, headers content included.
+     */
+    private static byte[] drain(Connection connection) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PipelinedResponse sent;
+        do {
+            sent = (PipelinedResponse)connection.poll();
+            Object message = sent.getMessage();
+            ChannelBuffer buffer = message instanceof HttpResponse ?
+                    ((HttpResponse)message).getContent() : (ChannelBuffer)message;
+            byte[] part = new byte[buffer.readableBytes()];
+            buffer.getBytes(buffer.readerIndex(), part);
+            bytes.write(part, 0, part.length);
+        } while(!sent.isLast());
+        return bytes.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] bytes) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static CachedResource resource(int size, Bundle bundle) {
+        return new CachedResource("text/plain", ChannelBuffers.wrappedBuffer(new byte[size]),
+                null, 0, bundle, null);
+    }
+
+    /**
+     * An active Bundle that is only good for comparing.
+     */
+    private static Bundle bundle() {
+        return bundle(new long[] {Bundle.ACTIVE, 0});
+    }
+
+    /**
+     * A Bundle that is only good for comparing, with the state and
+     * modification stamp held in stamp so a test can change them.
+     */
+    private static Bundle bundle(final long[] stamp) {
+        return (Bundle)Proxy.newProxyInstance(Bundle.class.getClassLoader(),
+                new Class<?>[] {Bundle.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if(method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                if(method.getName().equals("equals")) {
+                    return proxy == args[0];
+                }
+                if(method.getName().equals("getState")) {
+                    return (int)stamp[0];
+                }
+                if(method.getName().equals("getLastModified")) {
+                    return stamp[1];
+                }
+                return null;
+            }
+        });
+    }
+
+    private static PipelinedRequest request(HttpMethod method, String uri) {
+        return new PipelinedRequest(new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, uri), 0);
+    }
+
+    //************* Private inner class ***************************************
+    //=========================================================================
+    /**
+     * HttpContext serving a single file or URL as /www/a.txt.
+     */
+    private static class FileContext implements HttpContext {
+
+        private final URL url;
+        int lookups;
+
+        FileContext(File file) {
+            try {
+                this.url = file == null ? null : file.toURI().toURL();
+            } catch(IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        FileContext(URL url) {
+            this.url = url;
+        }
+
+        @Override
+        public boolean handleSecurity(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+            return true;
+        }
+
+        @Override
+        public URL getResource(String name) {
+            lookups++;
+            return name.equals("/www/a.txt") ? url : null;
+        }
+
+        @Override
+        public String getMimeType(String name) {
+            return null;
+        }
+    }
+
+    /**
+     * Embedded pipeline that collects whatever is written to its channel.
+     * The embedder never completes write futures, which the ResourceSender
+     * waits on before writing the next part of a mapped file, so that is
+     * done here once a write has been collected.
+     */
+    private static class Connection extends DecoderEmbedder<Object> {
+
+        Connection() {
+            super(new SimpleChannelHandler() {
+                @Override
+                public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) {
+                    ctx.sendDownstream(e);
+                    e.getFuture().setSuccess();
+                }
+            });
+        }
+
+        Channel channel() {
+            return getChannel();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jhserv.jacks.httpservice.server.ResponseBufferPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ResponseBufferPool class.
+ *
+ * @author rjackson
+ */
+public class ResponseBufferPoolTest {
+
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * Text bigger than one chunk must be split over several buffers and come
+     * back out exactly as it went in, including multi byte chars that land on
+     * a chunk boundary.
+     */
+    @Test
+    public void encodeTest() throws Exception {
+        ResponseBufferPool pool = new ResponseBufferPool(16, 8);
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 20; i++) {
+            text.append("caf\u00e9 \u20ac").append(i).append("\r\n");
+        }
+        ChannelBuffer[] buffers = pool.encode(text, encoder);
+        assertTrue(buffers.length > 1);
+        for(ChannelBuffer buffer : buffers) {
+            assertTrue(buffer.readableBytes() <= 16);
+        }
+        ChannelBuffer joined = ResponseBufferPool.join(buffers);
+        assertEquals(text.toString(), joined.toString("UTF-8"));
+        assertEquals(text.toString().getBytes("UTF-8").length, joined.readableBytes());
+    }
+
+    /**
+     * Empty text still gives us one empty buffer.
+     */
+    @Test
+    public void emptyTest() {
+        ResponseBufferPool pool = new ResponseBufferPool(16, 8);
+        ChannelBuffer[] buffers = pool.encode("", encoder);
+        assertEquals(1, buffers.length);
+        assertEquals(0, ResponseBufferPool.join(buffers).readableBytes());
+    }
+
+    /**
+     * Released buffers must be cleared and handed out again, but never more
+     * than the pool limit is kept.
+     */
+    @Test
+    public void reuseTest() {
+        ResponseBufferPool pool = new ResponseBufferPool(16, 1);
+        ChannelBuffer[] buffers = pool.encode("0123456789abcdefghij", encoder);
+        assertEquals(2, buffers.length);
+        pool.release(buffers);
+
+        ChannelBuffer first = pool.acquire();
+        assertSame(buffers[0], first);
+        assertEquals(0, first.readableBytes());
+        assertNotSame(buffers[1], pool.acquire());
+    }
+
+}
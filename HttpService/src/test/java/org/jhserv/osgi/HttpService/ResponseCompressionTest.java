@@ -0,0 +1,193 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jhserv.jacks.httpservice.server.PipelinedRequest;
+import org.jhserv.jacks.httpservice.server.PipelinedResponse;
+import org.jhserv.jacks.httpservice.server.ResponseCompression;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ResponseCompression class.
+ *
+ * @author rjackson
+ */
+public class ResponseCompressionTest {
+
+    private final ResponseCompression compression =
+            new ResponseCompression(6, 256, new String[] {"image/"});
+
+    @Test
+    public void negotiateTest() {
+        assertNull(ResponseCompression.negotiate(null));
+        assertNull(ResponseCompression.negotiate("identity"));
+        assertEquals("gzip", ResponseCompression.negotiate("gzip, deflate, br"));
+        assertEquals("deflate", ResponseCompression.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("deflate", ResponseCompression.negotiate("gzip;q=0, *"));
+        assertEquals("gzip", ResponseCompression.negotiate("*;q=0.1"));
+        assertNull(ResponseCompression.negotiate("*;q=0"));
+    }
+
+    /**
+     * A fixed length response must come out gzipped with a matching
+     * Content-Length, small and excluded ones must be left alone.
+     */
+    @Test
+    public void fixedLengthTest() throws Exception {
+        Connection connection = new Connection();
+        String body = text(200);
+        HttpResponse response = connection.respond("gzip", "text/plain", body);
+        assertEquals("gzip", response.getHeader(HttpHeaders.Names.CONTENT_ENCODING));
+        assertEquals(String.valueOf(response.getContent().readableBytes()),
+                response.getHeader(HttpHeaders.Names.CONTENT_LENGTH));
+        assertTrue(response.getContent().readableBytes() < body.length());
+        assertEquals(body, gunzip(response.getContent()));
+
+        response = connection.respond("gzip", "text/plain", "tiny");
+        assertFalse(response.containsHeader(HttpHeaders.Names.CONTENT_ENCODING));
+        response = connection.respond("gzip", "image/png", body);
+        assertFalse(response.containsHeader(HttpHeaders.Names.CONTENT_ENCODING));
+        response = connection.respond(null, "text/plain", body);
+        assertFalse(response.containsHeader(HttpHeaders.Names.CONTENT_ENCODING));
+        assertEquals(1, compression.getCompressedResponses());
+    }
+
+    /**
+     * A chunked response is compressed chunk by chunk and the chunks put
+     * together must gunzip to the original body.
+     */
+    @Test
+    public void chunkedTest() throws Exception {
+        Connection connection = new Connection();
+        PipelinedRequest request = connection.request("gzip");
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setHeader(HttpHeaders.Names.TRANSFER_ENCODING, HttpHeaders.Values.CHUNKED);
+        connection.write(request.respond(response));
+        StringBuilder body = new StringBuilder();
+        for(int i = 0; i < 3; i++) {
+            String part = text(50 + i);
+            body.append(part);
+            connection.write(request.respond(new DefaultHttpChunk(
+                    ChannelBuffers.copiedBuffer(part, "UTF-8"))));
+        }
+        connection.write(request.respond(HttpChunk.LAST_CHUNK));
+
+        response = (HttpResponse)connection.next();
+        assertEquals("gzip", response.getHeader(HttpHeaders.Names.CONTENT_ENCODING));
+        ChannelBuffer compressed = ChannelBuffers.dynamicBuffer();
+        Object message;
+        boolean last = false;
+        while((message = connection.next()) != null) {
+            HttpChunk chunk = (HttpChunk)message;
+            assertFalse(last);
+            last = chunk.isLast();
+            compressed.writeBytes(chunk.getContent());
+        }
+        assertTrue(last);
+        assertEquals(body.toString(), gunzip(compressed));
+    }
+
+    private static String text(int lines) {
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < lines; i++) {
+            text.append("{\"id\":").append(i).append(",\"name\":\"item\"}\r\n");
+        }
+        return text.toString();
+    }
+
+    private static String gunzip(ChannelBuffer data) throws Exception {
+        byte[] bytes = new byte[data.readableBytes()];
+        data.getBytes(data.readerIndex(), bytes);
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * A pipeline holding just the compressor. Requests are sent up through
+     * it and responses written down through it, both come out in the
+     * embedders product queue.
+     */
+    private class Connection extends DecoderEmbedder<Object> {
+        private int sequence;
+
+        Connection() {
+            super((ChannelUpstreamHandler)compression.newHandler());
+        }
+
+        PipelinedRequest request(String acceptEncoding) {
+            DefaultHttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+                    HttpMethod.GET, "/");
+            if(acceptEncoding != null) {
+                request.setHeader(HttpHeaders.Names.ACCEPT_ENCODING, acceptEncoding);
+            }
+            PipelinedRequest pipelined = new PipelinedRequest(request, sequence++);
+            offer(pipelined);
+            assertSame(pipelined, poll());
+            return pipelined;
+        }
+
+        HttpResponse respond(String acceptEncoding, String type, String body) throws Exception {
+            PipelinedRequest request = request(acceptEncoding);
+            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+            response.setHeader(HttpHeaders.Names.CONTENT_TYPE, type);
+            response.setContent(ChannelBuffers.copiedBuffer(body, "UTF-8"));
+            response.setHeader(HttpHeaders.Names.CONTENT_LENGTH,
+                    String.valueOf(response.getContent().readableBytes()));
+            write(request.respond(response));
+            return (HttpResponse)next();
+        }
+
+        void write(PipelinedResponse response) {
+            Channels.write(getChannel(), response);
+        }
+
+        Object next() {
+            PipelinedResponse response = (PipelinedResponse)poll();
+            return response == null ? null : response.getMessage();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.timeout.HashedWheelTimer;
+import org.jhserv.jacks.httpservice.server.ResponseBufferPool;
+import org.jhserv.jacks.httpservice.server.ResponseHeaders;
+import org.jhserv.jacks.httpservice.utils.HttpDates;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ResponseHeaders class.
+ *
+ * @author rjackson
+ */
+public class ResponseHeadersTest {
+
+    /**
+     * Our encoder must put out exactly what Netty's would, whether the lines
+     * come from the cache or not.
+     */
+    @Test
+    public void encoderTest() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer(100, TimeUnit.MILLISECONDS);
+        timer.start();
+        try {
+            ResponseHeaders headers = new ResponseHeaders(timer);
+            long date = HttpDates.parse(headers.getDate());
+            assertTrue(Math.abs(System.currentTimeMillis() - date) < 2000);
+            for(int i = 0; i < 2; i++) {
+                assertEquals(encode(new HttpResponseEncoder(), response(headers)),
+                        encode((ChannelDownstreamHandler)headers.getEncoder(), response(headers)));
+            }
+            HttpResponse old = response(headers);
+            HttpResponse teapot = new DefaultHttpResponse(HttpVersion.HTTP_1_0,
+                    new HttpResponseStatus(418, "I'm a teapot"));
+            teapot.setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/x-tea");
+            assertEquals(encode(new HttpResponseEncoder(), teapot),
+                    encode((ChannelDownstreamHandler)headers.getEncoder(), teapot));
+            assertEquals(encode(new HttpResponseEncoder(), old),
+                    encode((ChannelDownstreamHandler)headers.getEncoder(), old));
+            headers.stop();
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Encoding into pooled buffers must give the same bytes, whether a
+     * response fits one buffer or spans several.
+     */
+    @Test
+    public void pooledEncoderTest() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer(100, TimeUnit.MILLISECONDS);
+        timer.start();
+        try {
+            for(int chunkSize : new int[] {8192, 64}) {
+                ResponseHeaders headers = new ResponseHeaders(timer,
+                        new ResponseBufferPool(chunkSize, 4));
+                HttpResponse response = response(headers);
+                String expected = encode(new HttpResponseEncoder(), response);
+                EncoderEmbedder<ChannelBuffer> embedder = new EncoderEmbedder<ChannelBuffer>(
+                        (ChannelDownstreamHandler)headers.getEncoder());
+                embedder.offer(response);
+                ChannelBuffer encoded = embedder.poll();
+                assertEquals(expected, encoded.toString("ISO-8859-1"));
+                if(chunkSize == 8192) {
+                    assertTrue(encoded.toByteBuffer().isDirect());
+                }
+                headers.stop();
+            }
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private static HttpResponse response(ResponseHeaders headers) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.OK);
+        response.setHeader(HttpHeaders.Names.DATE, headers.getDate());
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/html");
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, "5");
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=60");
+        response.addHeader(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+        response.addHeader("X-Custom", "value");
+        response.setContent(ChannelBuffers.wrappedBuffer(new byte[] {'h', 'e', 'l', 'l', 'o'}));
+        return response;
+    }
+
+    private static String encode(ChannelDownstreamHandler encoder, HttpResponse response) {
+        EncoderEmbedder<ChannelBuffer> embedder = new EncoderEmbedder<ChannelBuffer>(encoder);
+        embedder.offer(response);
+        return embedder.poll().toString("ISO-8859-1");
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.timeout.HashedWheelTimer;
+import org.jhserv.jacks.httpservice.server.PipelinedRequest;
+import org.jhserv.jacks.httpservice.server.ResponseHeaders;
+import org.jhserv.jacks.httpservice.server.ResponseSequencer;
+import org.jhserv.jacks.httpservice.server.WriteStats;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ResponseSequencer class.
+ *
+ * @author rjackson
+ */
+public class ResponseSequencerTest {
+
+    /**
+     * Responses that finish out of order are released in request order.
+     */
+    @Test
+    public void orderTest() {
+        EncoderEmbedder<Object> embedder = new EncoderEmbedder<Object>(new ResponseSequencer(16));
+        for(int i : new int[] {2, 0, 3, 1, 4}) {
+            embedder.offer(request(i).respond("response " + i, true));
+        }
+        for(int i = 0; i < 5; i++) {
+            assertEquals("response " + i, embedder.poll());
+        }
+        assertNull(embedder.poll());
+    }
+
+    /**
+     * A response written in parts goes out as soon as it is the oldest, the
+     * parts of the ones behind it wait until it is done.
+     */
+    @Test
+    public void streamedTest() {
+        EncoderEmbedder<Object> embedder = new EncoderEmbedder<Object>(new ResponseSequencer(16));
+        embedder.offer(request(1).respond("1a", false));
+        embedder.offer(request(0).respond("0a", false));
+        assertEquals("0a", embedder.poll());
+        assertNull(embedder.poll());
+        embedder.offer(request(2).respond("2a", true));
+        embedder.offer(request(0).respond("0b", true));
+        // 1 is released but isn't done, 2 has to keep waiting.
+        assertEquals("0b", embedder.poll());
+        assertEquals("1a", embedder.poll());
+        assertNull(embedder.poll());
+        embedder.offer(request(1).respond("1b", true));
+        assertEquals("1b", embedder.poll());
+        assertEquals("2a", embedder.poll());
+        assertNull(embedder.poll());
+    }
+
+    /**
+     * Reading stops once maxPipelined requests are unanswered and starts
+     * again when the oldest is answered.
+     */
+    @Test
+    public void suspendTest() {
+        Connection connection = new Connection(new ResponseSequencer(2));
+        connection.offer(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/0"));
+        assertTrue(connection.readable.isEmpty());
+        connection.offer(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/1"));
+        assertEquals(Arrays.asList(Boolean.FALSE), connection.readable);
+        PipelinedRequest first = (PipelinedRequest)connection.poll();
+        PipelinedRequest second = (PipelinedRequest)connection.poll();
+        assertEquals(0, first.getSequence());
+        assertEquals(1, second.getSequence());
+
+        connection.write(second.respond("1", true));
+        assertEquals(Arrays.asList(Boolean.FALSE), connection.readable);
+        connection.write(first.respond("0", true));
+        assertEquals(Arrays.asList(Boolean.FALSE, Boolean.TRUE), connection.readable);
+        assertEquals(Arrays.asList("0", "1"), connection.written);
+    }
+
+    /**
+     * Closing the connection fails the responses parked on it and any that
+     * finish afterwards, none of them are written.
+     */
+    @Test
+    public void closedTest() {
+        Connection connection = new Connection(new ResponseSequencer(16));
+        for(int i = 0; i < 3; i++) {
+            connection.offer(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+                    "/" + i));
+        }
+        PipelinedRequest first = (PipelinedRequest)connection.poll();
+        PipelinedRequest second = (PipelinedRequest)connection.poll();
+        PipelinedRequest third = (PipelinedRequest)connection.poll();
+        ChannelFuture parked = connection.write(second.respond("1", true));
+        assertFalse(parked.isDone());
+        connection.finish();
+        assertTrue(parked.isDone());
+        assertTrue(parked.getCause() instanceof ClosedChannelException);
+
+        ChannelFuture late = connection.write(third.respond("2", true));
+        assertTrue(late.isDone());
+        assertTrue(late.getCause() instanceof ClosedChannelException);
+        assertTrue(connection.write(first.respond("0", true)).getCause()
+                instanceof ClosedChannelException);
+        assertTrue(connection.written.isEmpty());
+    }
+
+    /**
+     * Responses parked behind a slow one go out in order, the small ones
+     * together in a single write.
+     */
+    @Test
+    public void batchTest() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer(100, TimeUnit.MILLISECONDS);
+        timer.start();
+        try {
+            ResponseHeaders headers = new ResponseHeaders(timer);
+            WriteStats stats = new WriteStats();
+            EncoderEmbedder<ChannelBuffer> embedder = new EncoderEmbedder<ChannelBuffer>(
+                    (ChannelDownstreamHandler)stats.getTransportHandler(),
+                    (ChannelDownstreamHandler)headers.getEncoder(), new ResponseSequencer(16),
+                    (ChannelDownstreamHandler)stats.getResponseHandler());
+            int[] sizes = {10, 20, 10000, 30, 40};
+            for(int i = sizes.length - 1; i >= 0; i--) {
+                embedder.offer(request(i).respond(response(sizes[i])));
+            }
+            // 0 and 1 together, 2 is too big to batch, 3 and 4 together.
+            assertEquals(2, count(embedder.poll()));
+            assertEquals(1, count(embedder.poll()));
+            assertEquals(2, count(embedder.poll()));
+            assertNull(embedder.poll());
+            assertEquals(3, stats.getWrites());
+            assertEquals(5, stats.getResponses());
+            headers.stop();
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Embedded pipeline that collects what is written and the readable
+     * changes asked of its channel.
+     */
+    private static class Connection extends DecoderEmbedder<Object> {
+        private final List<Object> written = new ArrayList<Object>();
+        private final List<Boolean> readable = new ArrayList<Boolean>();
+
+        Connection(ResponseSequencer sequencer) {
+            super(sequencer);
+            getChannel().getPipeline().addFirst("recorder", new SimpleChannelDownstreamHandler() {
+                @Override
+                public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e)
+                        throws Exception {
+                    if(e instanceof MessageEvent) {
+                        written.add(((MessageEvent)e).getMessage());
+                        return;
+                    }
+                    if(e instanceof ChannelStateEvent &&
+                            ((ChannelStateEvent)e).getState() == ChannelState.INTEREST_OPS) {
+                        int ops = (Integer)((ChannelStateEvent)e).getValue();
+                        readable.add((ops & Channel.OP_READ) != 0);
+                    }
+                    super.handleDownstream(ctx, e);
+                }
+            });
+        }
+
+        ChannelFuture write(Object message) {
+            return Channels.write(getChannel(), message);
+        }
+    }
+
+    private static PipelinedRequest request(int sequence) {
+        return new PipelinedRequest(new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+                HttpMethod.GET, "/" + sequence), sequence);
+    }
+
+    private static HttpResponse response(int size) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.OK);
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(size));
+        response.setContent(ChannelBuffers.wrappedBuffer(new byte[size]));
+        return response;
+    }
+
+    /**
+     * Number of responses in an encoded buffer.
+     */
+    private static int count(ChannelBuffer buf) {
+        String encoded = buf.toString("ISO-8859-1");
+        int count = 0;
+        for(int i = encoded.indexOf("HTTP/1.1 200 OK"); i >= 0;
+                i = encoded.indexOf("HTTP/1.1 200 OK", i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import javax.servlet.GenericServlet;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import org.jhserv.jacks.httpservice.server.RoutingTable;
+import org.jhserv.jacks.httpservice.server.ServletExecuter;
+import org.junit.Test;
+import org.osgi.service.http.NamespaceException;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the RoutingTable class.
+ *
+ * @author rjackson
+ */
+public class RoutingTableTest {
+
+    private static Servlet newServlet() {
+        return new GenericServlet() {
+            @Override
+            public void service(ServletRequest req, ServletResponse res) {
+            }
+        };
+    }
+
+    private static ServletExecuter newExecuter(String alias, Servlet servlet) {
+        return new ServletExecuter(servlet, null, alias, null);
+    }
+
+    /**
+     * Adding and removing aliases must build new tables with a higher
+     * generation and must never change a table that is already in use.
+     */
+    @Test
+    public void snapshotTest() throws Exception {
+        RoutingTable empty = RoutingTable.empty();
+        ServletExecuter fudd = newExecuter("/fudd", newServlet());
+        RoutingTable one = empty.with(fudd);
+        RoutingTable two = one.with(newExecuter("/fudd/bugs", newServlet()));
+
+        assertEquals(0, empty.getGeneration());
+        assertEquals(1, one.getGeneration());
+        assertEquals(2, two.getGeneration());
+        assertNull(empty.findExecuter("/fudd/bugs"));
+        assertSame(fudd, one.findExecuter("/fudd/bugs"));
+        assertEquals("/fudd/bugs", two.findExecuter("/fudd/bugs").getAlias());
+
+        RoutingTable three = two.without("/fudd");
+        assertEquals(3, three.getGeneration());
+        assertNull(three.findExecuter("/fudd/elmer"));
+        assertSame(fudd, two.findExecuter("/fudd/elmer"));
+
+        // Removing something that is not there changes nothing.
+        assertSame(three, three.without("/elmer"));
+    }
+
+    /**
+     * An alias can only be used once. See section 102.4 of the OSGi spec.
+     */
+    @Test(expected = NamespaceException.class)
+    public void aliasClashTest() throws Exception {
+        RoutingTable.empty().with(newExecuter("/fudd", newServlet()))
+                .with(newExecuter("/fudd", newServlet()));
+    }
+
+    /**
+     * A servlet instance can only be registered once. See section 102.2 of
+     * the OSGi spec.
+     */
+    @Test(expected = ServletException.class)
+    public void servletClashTest() throws Exception {
+        Servlet servlet = newServlet();
+        RoutingTable.empty().with(newExecuter("/fudd", servlet))
+                .with(newExecuter("/bugs", servlet));
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.GenericServlet;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import org.jhserv.jacks.httpservice.server.ServletExecuter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the filter chain in the ServletExecuter class.
+ *
+ * @author rjackson
+ */
+public class ServletExecuterTest {
+
+    private final List<String> calls = new ArrayList<String>();
+
+    private class RecordingServlet extends GenericServlet {
+        @Override
+        public void service(ServletRequest req, ServletResponse res) {
+            calls.add("servlet");
+        }
+    }
+
+    private class RecordingFilter implements Filter {
+        private final String name;
+
+        RecordingFilter(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void init(FilterConfig config) {
+        }
+
+        @Override
+        public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+                throws IOException, ServletException {
+            calls.add(name);
+            chain.doFilter(req, res);
+            calls.add("/" + name);
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    /**
+     * With no filters the servlet is called directly.
+     */
+    @Test
+    public void noFilterTest() throws Exception {
+        ServletExecuter executer = new ServletExecuter(new RecordingServlet(), null, "/", null);
+        executer.doFilter(null, null);
+        assertEquals("[servlet]", calls.toString());
+    }
+
+    /**
+     * Filters must run in the order they were added and wrap the servlet.
+     * Running the chain a second time must start from the first filter again.
+     */
+    @Test
+    public void filterOrderTest() throws Exception {
+        ServletExecuter executer = new ServletExecuter(new RecordingServlet(), null, "/", null);
+        executer.addFilter(new RecordingFilter("a"));
+        executer.doFilter(null, null);
+        assertEquals("[a, servlet, /a]", calls.toString());
+
+        calls.clear();
+        RecordingFilter b = new RecordingFilter("b");
+        executer.addFilter(b);
+        executer.addFilter(new RecordingFilter("c"));
+        executer.doFilter(null, null);
+        executer.doFilter(null, null);
+        assertEquals("[a, b, c, servlet, /c, /b, /a, a, b, c, servlet, /c, /b, /a]",
+                calls.toString());
+
+        calls.clear();
+        assertTrue(executer.removeFilter(b));
+        assertFalse(executer.removeFilter(b));
+        executer.doFilter(null, null);
+        assertEquals("[a, c, servlet, /c, /a]", calls.toString());
+    }
+
+    /**
+     * A filter that dispatches to another executer on the same thread while
+     * its own chain is running must not disturb either chain.
+     */
+    @Test
+    public void nestedChainTest() throws Exception {
+        final ServletExecuter inner = new ServletExecuter(new RecordingServlet(), null, "/inner", null);
+        inner.addFilter(new RecordingFilter("x"));
+        inner.addFilter(new RecordingFilter("y"));
+
+        ServletExecuter outer = new ServletExecuter(new RecordingServlet(), null, "/outer", null);
+        outer.addFilter(new RecordingFilter("a"));
+        outer.addFilter(new Filter() {
+            @Override
+            public void init(FilterConfig config) {
+            }
+
+            @Override
+            public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+                    throws IOException, ServletException {
+                inner.doFilter(req, res);
+                chain.doFilter(req, res);
+            }
+
+            @Override
+            public void destroy() {
+            }
+        });
+        outer.doFilter(null, null);
+        assertEquals("[a, x, y, servlet, /y, /x, servlet, /a]", calls.toString());
+    }
+
+}
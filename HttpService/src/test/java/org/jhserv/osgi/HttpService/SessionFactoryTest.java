@@ -0,0 +1,483 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import org.jboss.netty.handler.timeout.Timeout;
+import org.jboss.netty.handler.timeout.Timer;
+import org.jboss.netty.handler.timeout.TimerTask;
+import org.jhserv.jacks.httpservice.server.OffHeapSessionStore;
+import org.jhserv.jacks.httpservice.server.SessionFactory;
+import org.jhserv.jacks.httpservice.server.SessionIdGenerator;
+import org.jhserv.jacks.httpservice.server.SessionJournal;
+import org.jhserv.jacks.httpservice.servlet.HttpSessionImpl;
+import org.osgi.service.http.HttpContext;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SessionFactory class.
+ *
+ * @author rjackson
+ */
+public class SessionFactoryTest {
+
+    /**
+     * Sessions are found by ID under their own context only and go away when
+     * invalidated.
+     */
+    @Test
+    public void lookupTest() {
+        SessionFactory sessions = new SessionFactory(new ManualTimer(), 1800, null, null);
+        HttpContext one = new Context();
+        HttpContext two = new Context();
+        HttpSession session = sessions.createSession(one, null);
+        assertTrue(session.isNew());
+        assertEquals(SessionIdGenerator.ID_LENGTH, session.getId().length());
+        assertSame(session, sessions.getSession(one, session.getId()));
+        assertFalse(session.isNew());
+        assertNull(sessions.getSession(two, session.getId()));
+        assertNull(sessions.getSession(one, null));
+
+        final int[] unbound = new int[1];
+        session.setAttribute("listener", new HttpSessionBindingListener() {
+            @Override
+            public void valueBound(HttpSessionBindingEvent event) {
+            }
+
+            @Override
+            public void valueUnbound(HttpSessionBindingEvent event) {
+                unbound[0]++;
+            }
+        });
+        session.setAttribute("name", "value");
+        assertEquals("value", session.getAttribute("name"));
+        session.setAttribute("name", null);
+        assertNull(session.getAttribute("name"));
+        assertEquals(1, sessions.getSessionCount());
+
+        session.invalidate();
+        assertEquals(1, unbound[0]);
+        assertEquals(0, sessions.getSessionCount());
+        assertNull(sessions.getSession(one, session.getId()));
+        try {
+            session.getAttribute("listener");
+            fail("Invalid session answered");
+        } catch(IllegalStateException e) {
+            // Expected
+        }
+
+        sessions.createSession(one, null);
+        sessions.createSession(two, null);
+        sessions.invalidate(one);
+        assertEquals(1, sessions.getSessionCount());
+        sessions.clear();
+        assertEquals(0, sessions.getSessionCount());
+    }
+
+    /**
+     * The wheel expires idle sessions and keeps the ones still in use. The
+     * test moves time on itself instead of waiting for it.
+     */
+    @Test
+    public void expiryTest() {
+        SessionFactory sessions = new SessionFactory(new ManualTimer(), 10, null, null);
+        HttpContext context = new Context();
+        long start = System.currentTimeMillis();
+        HttpSession idle = sessions.createSession(context, null);
+        HttpSession used = sessions.createSession(context, null);
+        sessions.advanceTo(start + 5000);
+        assertEquals(0, sessions.getExpired());
+        assertTrue(((HttpSessionImpl)used).access(start + 5000));
+        // Expiry allows for an access that wasn't recorded, the idle session
+        // is due at 11 seconds and the used one at 16.
+        sessions.advanceTo(start + 10500);
+        assertEquals(0, sessions.getExpired());
+        sessions.advanceTo(start + 13000);
+        assertEquals(1, sessions.getExpired());
+        assertEquals(1, sessions.getSessionCount());
+        assertNull(sessions.getSession(context, idle.getId()));
+        assertSame(used, sessions.getSession(context, used.getId()));
+    }
+
+    /**
+     * Accesses are only recorded once the last one is ACCESS_RESOLUTION old,
+     * and expiry allows for that.
+     */
+    @Test
+    public void accessTest() {
+        HttpSessionImpl session = new HttpSessionImpl("id", 1, null);
+        long created = session.getLastAccessedTime();
+        assertTrue(session.access(created + 10));
+        assertFalse(session.isNew());
+        assertFalse(session.access(created + 20));
+        assertEquals(created + 10, session.getLastAccessedTime());
+        assertTrue(session.access(created + 10 + HttpSessionImpl.ACCESS_RESOLUTION));
+        long last = session.getLastAccessedTime();
+        assertFalse(session.isExpired(last + 1000));
+        assertFalse(session.isExpired(last + 1000 + HttpSessionImpl.ACCESS_RESOLUTION - 1));
+        assertTrue(session.isExpired(last + 1000 + HttpSessionImpl.ACCESS_RESOLUTION));
+    }
+
+    /**
+     * Requests sharing a session, looked up from several threads at once, all
+     * get it and only write its access time once per ACCESS_RESOLUTION.
+     */
+    @Test
+    public void sharedAccessTest() throws Exception {
+        OffHeapSessionStore store = new OffHeapSessionStore(1 << 20);
+        final SessionFactory sessions = new SessionFactory(new ManualTimer(), 1800, store, null);
+        final HttpContext context = new Context();
+        final HttpSessionImpl session = (HttpSessionImpl)sessions.createSession(context, null);
+        final Set<Long> recorded = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final AtomicInteger missed = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for(int n = 0; n < 10000; n++) {
+                        if(sessions.getSession(context, session.getId()) != session) {
+                            missed.incrementAndGet();
+                        }
+                        recorded.add(session.getLastAccessedTime());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(0, missed.get());
+        assertFalse(session.isNew());
+        assertTrue(recorded + " in " + elapsed + "ms",
+                recorded.size() <= elapsed / HttpSessionImpl.ACCESS_RESOLUTION + 2);
+    }
+
+    /**
+     * Attributes off heap come back as copies, and once the budget is spent
+     * the least recently used sessions are evicted.
+     */
+    @Test
+    public void offHeapTest() throws Exception {
+        OffHeapSessionStore store = new OffHeapSessionStore(4096);
+        SessionFactory sessions = new SessionFactory(new ManualTimer(), 1800, store, null);
+        HttpContext context = new Context();
+        char[] chars = new char[200];
+        Arrays.fill(chars, 'x');
+        String value = new String(chars);
+
+        // A record of about 220 bytes takes a 256 byte slot, 16 to the slab.
+        HttpSession first = sessions.createSession(context, null);
+        first.setAttribute("value", value);
+        assertSame(first, sessions.getSession(context, first.getId()));
+        List<HttpSession> created = new ArrayList<HttpSession>();
+        for(int i = 0; i < 20; i++) {
+            HttpSession session = sessions.createSession(context, null);
+            session.setAttribute("value", value);
+            created.add(session);
+            if(i == 14) {
+                // The slab is full, use first late enough for it to count.
+                Thread.sleep(HttpSessionImpl.ACCESS_RESOLUTION + 100);
+                assertSame(first, sessions.getSession(context, first.getId()));
+            }
+        }
+        assertEquals(4096, store.getAllocatedBytes());
+        assertEquals(5, store.getEvictions());
+        assertEquals(5, sessions.getEvicted());
+        assertEquals(16, sessions.getSessionCount());
+        assertNull(sessions.getSession(context, created.get(0).getId()));
+        assertNotNull(sessions.getSession(context, created.get(5).getId()));
+        Object copy = first.getAttribute("value");
+        assertEquals(value, copy);
+        assertNotSame(value, copy);
+
+        try {
+            first.setAttribute("thread", new Object());
+            fail("Kept a value that can't be serialized");
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+        first.removeAttribute("value");
+        assertNull(first.getAttribute("value"));
+        sessions.clear();
+        assertEquals(0, store.getUsedBytes());
+    }
+
+    /**
+     * A size class with no slab once the budget is spent takes one from
+     * another class instead of failing, and a session whose attributes grow
+     * into such a class keeps them.
+     */
+    @Test
+    public void offHeapReassignTest() throws Exception {
+        OffHeapSessionStore store = new OffHeapSessionStore(4096);
+        SessionFactory sessions = new SessionFactory(new ManualTimer(), 1800, store, null);
+        HttpContext context = new Context();
+        String small = text(200);
+        String big = text(900);
+
+        // The 256 byte class takes the only slab.
+        List<HttpSession> created = new ArrayList<HttpSession>();
+        for(int i = 0; i < 16; i++) {
+            HttpSession session = sessions.createSession(context, null);
+            session.setAttribute("value", small);
+            created.add(session);
+        }
+        assertEquals(4096, store.getAllocatedBytes());
+        assertEquals(0, store.getEvictions());
+
+        // Growing out of it moves the slab, the session keeps what it had.
+        HttpSession grown = created.get(15);
+        grown.setAttribute("big", big);
+        assertEquals(small, grown.getAttribute("value"));
+        assertEquals(big, grown.getAttribute("big"));
+        assertEquals(15, store.getEvictions());
+        assertEquals(1, sessions.getSessionCount());
+        assertSame(grown, sessions.getSession(context, grown.getId()));
+
+        // And back again for a new session in the small class.
+        HttpSession session = sessions.createSession(context, null);
+        session.setAttribute("value", small);
+        assertEquals(small, session.getAttribute("value"));
+        assertEquals(16, store.getEvictions());
+        assertNull(sessions.getSession(context, grown.getId()));
+        assertEquals(4096, store.getAllocatedBytes());
+    }
+
+    /**
+     * A session whose own slab is the one handed to the class it grows into
+     * is moved into that slab, and the slab's other session is the only one
+     * evicted.
+     */
+    @Test
+    public void offHeapGrowIntoOwnSlabTest() throws Exception {
+        OffHeapSessionStore store = new OffHeapSessionStore(2 << 20);
+        SessionFactory sessions = new SessionFactory(new ManualTimer(), 1800, store, null);
+        HttpContext context = new Context();
+        String half = text(300000);
+
+        // Two sessions to a slab fill both slabs of the 512K class.
+        List<HttpSession> created = new ArrayList<HttpSession>();
+        for(int i = 0; i < 4; i++) {
+            HttpSession session = sessions.createSession(context, null);
+            session.setAttribute("value", half);
+            created.add(session);
+        }
+        assertEquals(2 << 20, store.getAllocatedBytes());
+        assertEquals(0, store.getEvictions());
+
+        // The oldest slab, the grown session's own, goes to the 1M class.
+        HttpSession grown = created.get(0);
+        grown.setAttribute("more", half);
+        assertEquals(half, grown.getAttribute("value"));
+        assertEquals(half, grown.getAttribute("more"));
+        assertEquals(1, store.getEvictions());
+        assertNull(sessions.getSession(context, created.get(1).getId()));
+        for(HttpSession session : created.subList(2, 4)) {
+            assertSame(session, sessions.getSession(context, session.getId()));
+            assertEquals(half, session.getAttribute("value"));
+        }
+        assertEquals(3, sessions.getSessionCount());
+        assertEquals(2 << 20, store.getAllocatedBytes());
+    }
+
+    private static String text(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    /**
+     * Sessions written to the journal come back, with their attributes, when
+     * it is opened again. Invalidated ones don't.
+     */
+    @Test
+    public void journalTest() throws Exception {
+        File file = File.createTempFile("sessions", ".log");
+        try {
+            SessionJournal journal = new SessionJournal(file);
+            SessionFactory sessions = new SessionFactory(new ManualTimer(), 1800, null, journal);
+            HttpSession kept = sessions.createSession(new Context(), null);
+            kept.setAttribute("name", "value");
+            kept.setAttribute("count", 42);
+            kept.setAttribute("thread", new Object());
+            kept.setAttribute("gone", "soon");
+            kept.removeAttribute("gone");
+            kept.setMaxInactiveInterval(600);
+            HttpSession dropped = sessions.createSession(new Context(), null);
+            dropped.setAttribute("name", "other");
+            dropped.invalidate();
+            sessions.close();
+
+            journal = new SessionJournal(file);
+            assertEquals(1, journal.getRestoredCount());
+            sessions = new SessionFactory(new ManualTimer(), 1800, null, journal);
+            // A new context object, as after a restart, of the same class.
+            HttpContext context = new Context();
+            assertNull(sessions.getSession(context, dropped.getId()));
+            HttpSession restored = sessions.getSession(context, kept.getId());
+            assertNotNull(restored);
+            assertEquals(kept.getCreationTime(), restored.getCreationTime());
+            assertEquals(600, restored.getMaxInactiveInterval());
+            assertFalse(restored.isNew());
+            assertEquals("value", restored.getAttribute("name"));
+            assertEquals(42, restored.getAttribute("count"));
+            assertNull(restored.getAttribute("thread"));
+            assertNull(restored.getAttribute("gone"));
+            assertEquals(1, sessions.getRestored());
+            assertSame(restored, sessions.getSession(context, kept.getId()));
+            restored.invalidate();
+            sessions.close();
+
+            journal = new SessionJournal(file);
+            assertEquals(0, journal.getRestoredCount());
+            new SessionFactory(new ManualTimer(), 1800, null, journal).close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A journal that has grown is compacted off the timer thread, and changes
+     * made while that runs are in the log it switches to.
+     */
+    @Test(timeout = 10000)
+    public void compactionTest() throws Exception {
+        File file = File.createTempFile("sessions", ".log");
+        try {
+            SessionJournal journal = new SessionJournal(file);
+            SessionFactory sessions = new SessionFactory(new ManualTimer(), 1800, null, journal);
+            HttpSession kept = sessions.createSession(new Context(), null);
+            for(int i = 0; i < 40; i++) {
+                kept.setAttribute("blob", text(50000) + i);
+            }
+            Gate gate = new Gate();
+            kept.setAttribute("gate", gate);
+            long grown = file.length();
+            sessions.run(null);
+            // The compaction is now held up writing the session.
+            gate.entered.await();
+            kept.setAttribute("during", "compaction");
+            HttpSession late = sessions.createSession(new Context(), null);
+            late.setAttribute("name", "late");
+            assertEquals(grown, file.length());
+            gate.release.countDown();
+            while(file.length() >= grown) {
+                Thread.sleep(10);
+            }
+            kept.setAttribute("after", "compaction");
+
+            // Read the log as it is now, without closing the factory.
+            journal = new SessionJournal(file);
+            assertEquals(2, journal.getRestoredCount());
+            sessions = new SessionFactory(new ManualTimer(), 1800, null, journal);
+            HttpContext context = new Context();
+            HttpSession restored = sessions.getSession(context, kept.getId());
+            assertEquals(text(50000) + 39, restored.getAttribute("blob"));
+            assertEquals("compaction", restored.getAttribute("during"));
+            assertEquals("compaction", restored.getAttribute("after"));
+            assertEquals("late", sessions.getSession(context, late.getId()).getAttribute("name"));
+            sessions.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Attribute that, when serialized on the compaction thread, waits there
+     * until released.
+     */
+    private static final class Gate implements Serializable {
+        private final transient CountDownLatch entered = new CountDownLatch(1);
+        private final transient CountDownLatch release = new CountDownLatch(1);
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            if(Thread.currentThread().getName().equals("Session journal compaction")) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch(InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            out.defaultWriteObject();
+        }
+    }
+
+    /**
+     * Timer that never fires, the test advances the wheel itself.
+     */
+    private static final class ManualTimer implements Timer {
+
+        @Override
+        public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+            return null;
+        }
+
+        @Override
+        public Set<Timeout> stop() {
+            return Collections.emptySet();
+        }
+    }
+
+    private static final class Context implements HttpContext {
+
+        @Override
+        public boolean handleSecurity(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+            return true;
+        }
+
+        @Override
+        public URL getResource(String name) {
+            return null;
+        }
+
+        @Override
+        public String getMimeType(String name) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import java.util.concurrent.CountDownLatch;
+import org.jhserv.jacks.httpservice.server.SessionIdGenerator;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Creation rate of session IDs from many threads. Not part of the unit
+ * tests, run it with mvn test -Pbenchmark.
+ *
+ * @author rjackson
+ */
+public class SessionIdGeneratorBenchmark {
+
+    private static final int COUNT = 200000;
+
+    /**
+     * IDs made from four threads per processor at once come out at least
+     * half as fast in total as from one thread alone. A lock shared by every
+     * thread would fall well below that once there is more than one
+     * processor.
+     */
+    @Test
+    public void creationBenchmark() throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors() * 4;
+        SessionIdGenerator ids = new SessionIdGenerator();
+        // Warm up, then measure.
+        create(ids, 1, COUNT);
+        create(ids, threads, COUNT / threads);
+        long single = create(ids, 1, COUNT);
+        long many = create(ids, threads, COUNT);
+        System.out.println("newId from 1 thread " + single + " ns/op, from " + threads +
+                " threads " + many + " ns/op");
+        assertTrue(many + " ns/op from " + threads + " threads, " + single + " from one",
+                many <= single * 2);
+    }
+
+    /**
+     * Make IDs, count from each thread, and return the wall clock time per
+     * ID made across all the threads.
+     */
+    private long create(final SessionIdGenerator ids, int threads, final int count)
+            throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for(int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    for(int n = 0; n < count; n++) {
+                        ids.newId();
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        return (System.nanoTime() - begin) / ((long)count * threads);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.jhserv.jacks.httpservice.server.SessionIdGenerator;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SessionIdGenerator class.
+ *
+ * @author rjackson
+ */
+public class SessionIdGeneratorTest {
+
+    /**
+     * IDs are always the same length, URL safe and don't repeat.
+     */
+    @Test
+    public void formatTest() {
+        SessionIdGenerator ids = new SessionIdGenerator();
+        Set<String> seen = new HashSet<String>();
+        for(int i = 0; i < 100000; i++) {
+            String id = ids.newId();
+            assertEquals(SessionIdGenerator.ID_LENGTH, id.length());
+            assertTrue(id, id.matches("[A-Za-z0-9_-]+"));
+            assertTrue("Repeated " + id, seen.add(id));
+            // The last character only holds the last 2 bits of the last byte.
+            assertTrue(id, "AQgw".indexOf(id.charAt(id.length() - 1)) >= 0);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import org.jhserv.jacks.httpservice.utils.StripedCounter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the StripedCounter class.
+ *
+ * @author rjackson
+ */
+public class StripedCounterTest {
+
+    /**
+     * Updates from many threads all end up in the sum.
+     */
+    @Test
+    public void sumTest() throws Exception {
+        final StripedCounter counter = new StripedCounter(3);
+        Thread[] threads = new Thread[8];
+        for(int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for(int n = 0; n < 10000; n++) {
+                        counter.increment();
+                        counter.add(2);
+                        counter.decrement();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(8 * 10000 * 2, counter.sum());
+        assertEquals("160000", counter.toString());
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+}
@@ -21,9 +21,14 @@
 
 package org.jhserv.osgi.HttpService;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import org.jhserv.jacks.httpservice.BundleConstants;
+import org.jhserv.jacks.httpservice.servicetracker.LogTracker;
+import org.osgi.framework.BundleContext;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -44,6 +49,26 @@ public class TestUtils {
     }
 
 
+    /**
+     * Classes that log need the LogTracker our Activator normally creates.
+     * This creates one over a BundleContext that does nothing, it is never
+     * opened so everything logged goes to the bit bucket.
+     */
+    public static synchronized void installLogTracker() {
+        if(LogTracker.getInstance() != null) {
+            return;
+        }
+        BundleContext context = (BundleContext)Proxy.newProxyInstance(
+                TestUtils.class.getClassLoader(), new Class[] {BundleContext.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return null;
+                    }
+                });
+        new LogTracker(context);
+    }
+
     /**
      * Method to generate a fully populated configuration object. All values
      * are valid. This is used by test methods to get a starting point config
@@ -63,11 +88,38 @@ public class TestUtils {
         conf.put(BundleConstants.CONFIG_HOSTNAME, "localhost");
         conf.put(BundleConstants.CONFIG_CONNECT_TIMEOUT, "10000");
         conf.put(BundleConstants.CONFIG_WRITE_TIMEOUT, "20000");
+        conf.put(BundleConstants.CONFIG_READ_IDLE_TIMEOUT, "60000");
+        conf.put(BundleConstants.CONFIG_WRITE_IDLE_TIMEOUT, "60000");
+        conf.put(BundleConstants.CONFIG_KEEP_ALIVE_TIMEOUT, "30000");
         conf.put(BundleConstants.CONFIG_REUSE_ADDRESS, "true");
         conf.put(BundleConstants.CONFIG_RECEIVE_BUFFER_SIZE, "131072");
         conf.put(BundleConstants.CONFIG_SEND_BUFFER_SIZE, "131072");
         conf.put(BundleConstants.CONFIG_KEEP_ALIVE, "true");
         conf.put(BundleConstants.CONFIG_TCP_NODELAY, "true");
+        conf.put(BundleConstants.CONFIG_EXECUTION_MODE, BundleConstants.EXECUTION_MODE_POOL);
+        conf.put(BundleConstants.CONFIG_EXECUTOR_THREADS, "8");
+        conf.put(BundleConstants.CONFIG_EXECUTOR_CHANNEL_MEMORY, "1048576");
+        conf.put(BundleConstants.CONFIG_EXECUTOR_TOTAL_MEMORY, "67108864");
+        conf.put(BundleConstants.CONFIG_RESPONSE_CHUNK_SIZE, "8192");
+        conf.put(BundleConstants.CONFIG_RESPONSE_BUFFER_POOL_SIZE, "256");
+        conf.put(BundleConstants.CONFIG_MAX_CONNECTIONS, "10000");
+        conf.put(BundleConstants.CONFIG_MAX_PENDING_REQUESTS, "1000");
+        conf.put(BundleConstants.CONFIG_ADMISSION_MODE, BundleConstants.ADMISSION_MODE_PAUSE);
+        conf.put(BundleConstants.CONFIG_ADMISSION_WAIT, "0");
+        conf.put(BundleConstants.CONFIG_MAX_PIPELINED, "8");
+        conf.put(BundleConstants.CONFIG_MAX_REQUEST_CONTENT, "1048576");
+        conf.put(BundleConstants.CONFIG_HTTP2, "false");
+        conf.put(BundleConstants.CONFIG_HTTP2_MAX_STREAMS, "100");
+        conf.put(BundleConstants.CONFIG_SSL_SESSION_CACHE_SIZE, "20480");
+        conf.put(BundleConstants.CONFIG_SSL_SESSION_TIMEOUT, "86400");
+        conf.put(BundleConstants.CONFIG_COMPRESSION, "true");
+        conf.put(BundleConstants.CONFIG_COMPRESSION_LEVEL, "6");
+        conf.put(BundleConstants.CONFIG_COMPRESSION_MIN_SIZE, "1024");
+        conf.put(BundleConstants.CONFIG_RESOURCE_CACHE_SIZE, "16777216");
+        conf.put(BundleConstants.CONFIG_RESOURCE_CACHE_MAX_ENTRY, "1048576");
+        conf.put(BundleConstants.CONFIG_SESSION_TIMEOUT, "1800");
+        conf.put(BundleConstants.CONFIG_SESSION_OFF_HEAP_SIZE, "0");
+        conf.put(BundleConstants.CONFIG_SESSION_PERSISTENCE, "false");
 
         return conf;
     }
@@ -410,6 +410,12 @@ public class UtilsTest {
         // Write time out
         testProp(conf, BundleConstants.CONFIG_WRITE_TIMEOUT, "test", false);
 
+        // Idle timeouts
+        testProp(conf, BundleConstants.CONFIG_READ_IDLE_TIMEOUT, "1m", false);
+        testProp(conf, BundleConstants.CONFIG_WRITE_IDLE_TIMEOUT, "-5", false);
+        testProp(conf, BundleConstants.CONFIG_KEEP_ALIVE_TIMEOUT, "forever", false);
+        testProp(conf, BundleConstants.CONFIG_KEEP_ALIVE_TIMEOUT, "0", true);
+
         // reuse address
         testProp(conf, BundleConstants.CONFIG_REUSE_ADDRESS, "no", false);
 
@@ -424,6 +430,65 @@ public class UtilsTest {
 
         // Send buffer size
         testProp(conf, BundleConstants.CONFIG_SEND_BUFFER_SIZE, "NotANumber", false);
+
+        // Execution stage threads
+        testProp(conf, BundleConstants.CONFIG_EXECUTOR_THREADS, "0", false);
+        testProp(conf, BundleConstants.CONFIG_EXECUTOR_THREADS, "many", false);
+
+        // Execution mode
+        testProp(conf, BundleConstants.CONFIG_EXECUTION_MODE, "Virtual", true);
+        testProp(conf, BundleConstants.CONFIG_EXECUTION_MODE, "green", false);
+
+        // Execution stage memory limits
+        testProp(conf, BundleConstants.CONFIG_EXECUTOR_CHANNEL_MEMORY, "1MB", false);
+        testProp(conf, BundleConstants.CONFIG_EXECUTOR_TOTAL_MEMORY, "-1", false);
+
+        // Response buffers
+        testProp(conf, BundleConstants.CONFIG_RESPONSE_CHUNK_SIZE, "8", false);
+        testProp(conf, BundleConstants.CONFIG_RESPONSE_CHUNK_SIZE, "8k", false);
+        testProp(conf, BundleConstants.CONFIG_RESPONSE_BUFFER_POOL_SIZE, "lots", false);
+
+        // Admission control
+        testProp(conf, BundleConstants.CONFIG_MAX_CONNECTIONS, "unlimited", false);
+        testProp(conf, BundleConstants.CONFIG_MAX_PENDING_REQUESTS, "-5", false);
+        testProp(conf, BundleConstants.CONFIG_ADMISSION_MODE, "Reject", true);
+        testProp(conf, BundleConstants.CONFIG_ADMISSION_MODE, "drop", false);
+        testProp(conf, BundleConstants.CONFIG_ADMISSION_WAIT, "1s", false);
+
+        // Pipelining
+        testProp(conf, BundleConstants.CONFIG_MAX_PIPELINED, "0", false);
+        testProp(conf, BundleConstants.CONFIG_MAX_PIPELINED, "1", true);
+        testProp(conf, BundleConstants.CONFIG_MAX_REQUEST_CONTENT, "1MB", false);
+
+        // HTTP/2
+        testProp(conf, BundleConstants.CONFIG_HTTP2, "yes", false);
+        testProp(conf, BundleConstants.CONFIG_HTTP2, "True", true);
+        testProp(conf, BundleConstants.CONFIG_HTTP2_MAX_STREAMS, "0", false);
+
+        // SSL sessions
+        testProp(conf, BundleConstants.CONFIG_SSL_SESSION_CACHE_SIZE, "0", true);
+        testProp(conf, BundleConstants.CONFIG_SSL_SESSION_CACHE_SIZE, "big", false);
+        testProp(conf, BundleConstants.CONFIG_SSL_SESSION_TIMEOUT, "1h", false);
+
+        // Compression
+        testProp(conf, BundleConstants.CONFIG_COMPRESSION, "gzip", false);
+        testProp(conf, BundleConstants.CONFIG_COMPRESSION_LEVEL, "0", false);
+        testProp(conf, BundleConstants.CONFIG_COMPRESSION_LEVEL, "10", false);
+        testProp(conf, BundleConstants.CONFIG_COMPRESSION_LEVEL, "9", true);
+        testProp(conf, BundleConstants.CONFIG_COMPRESSION_MIN_SIZE, "1k", false);
+
+        // Resource cache
+        testProp(conf, BundleConstants.CONFIG_RESOURCE_CACHE_SIZE, "0", true);
+        testProp(conf, BundleConstants.CONFIG_RESOURCE_CACHE_SIZE, "16m", false);
+        testProp(conf, BundleConstants.CONFIG_RESOURCE_CACHE_MAX_ENTRY, "-1", false);
+
+        // Sessions
+        testProp(conf, BundleConstants.CONFIG_SESSION_TIMEOUT, "0", true);
+        testProp(conf, BundleConstants.CONFIG_SESSION_TIMEOUT, "30m", false);
+        testProp(conf, BundleConstants.CONFIG_SESSION_OFF_HEAP_SIZE, "1048576", true);
+        testProp(conf, BundleConstants.CONFIG_SESSION_OFF_HEAP_SIZE, "1024", false);
+        testProp(conf, BundleConstants.CONFIG_SESSION_PERSISTENCE, "true", true);
+        testProp(conf, BundleConstants.CONFIG_SESSION_PERSISTENCE, "yes", false);
         
     }
 
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2008 Richard Jackson <richard.jackson@gmail.com>
+ *
+ * This file is part of the org.jhserv.osgi.HttpService OSGi bundle
+ *
+ * This OSGi bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License as well
+ * as a copy of the additional permissions granted by the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jhserv.osgi.HttpService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jhserv.jacks.httpservice.server.VirtualThreadExecutor;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the VirtualThreadExecutor class. The JVMs we build on have
+ * no virtual threads so a cached thread pool stands in for them, the limits
+ * don't care what starts the threads.
+ *
+ * @author rjackson
+ */
+public class VirtualThreadExecutorTest {
+
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        threads.shutdownNow();
+    }
+
+    /**
+     * A channel with more queued than its limit stops being read until the
+     * events have run.
+     */
+    @Test
+    public void channelLimitTest() throws Exception {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor(threads, 100, 0);
+        Connection connection = new Connection();
+        executor.execute(connection.event(200));
+        assertEquals(Collections.singletonList(Boolean.FALSE), connection.holder.readable);
+        assertTrue(executor.getQueuedBytes() >= 200);
+
+        connection.holder.release.countDown();
+        waitForEmpty(executor);
+        assertEquals(Arrays.asList(Boolean.FALSE, Boolean.TRUE), connection.holder.readable);
+    }
+
+    /**
+     * Once the total limit is used up the thread handing us events waits
+     * until there is room.
+     */
+    @Test
+    public void totalLimitTest() throws Exception {
+        final VirtualThreadExecutor executor = new VirtualThreadExecutor(threads, 0, 100);
+        Connection one = new Connection();
+        final Connection two = new Connection();
+        two.holder.release.countDown();
+        executor.execute(one.event(200));
+        Thread io = new Thread() {
+            @Override
+            public void run() {
+                executor.execute(two.event(10));
+            }
+        };
+        io.start();
+        io.join(300);
+        assertTrue("Event accepted over the total limit", io.isAlive());
+        assertEquals(1, two.holder.received.getCount());
+
+        one.holder.release.countDown();
+        io.join(5000);
+        assertFalse(io.isAlive());
+        assertTrue(two.holder.received.await(5, TimeUnit.SECONDS));
+        waitForEmpty(executor);
+        assertTrue(one.holder.readable.isEmpty());
+    }
+
+    private void waitForEmpty(VirtualThreadExecutor executor) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while(executor.getQueuedBytes() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, executor.getQueuedBytes());
+    }
+
+    /**
+     * Embedded pipeline of a pass through handler, whose context the events
+     * are sent from, and a Holder.
+     */
+    private static class Connection extends DecoderEmbedder<Object> {
+        private final ChannelUpstreamHandler head;
+        private final Holder holder;
+
+        Connection() {
+            this(new SimpleChannelUpstreamHandler(), new Holder());
+        }
+
+        private Connection(ChannelUpstreamHandler head, Holder holder) {
+            super(head, holder);
+            this.head = head;
+            this.holder = holder;
+        }
+
+        ChannelEventRunnable event(int size) {
+            Channel channel = getChannel();
+            return new ChannelEventRunnable(channel.getPipeline().getContext(head),
+                    new UpstreamMessageEvent(channel,
+                    ChannelBuffers.wrappedBuffer(new byte[size]), null));
+        }
+    }
+
+    /**
+     * Holds every message until released and records the readable changes
+     * asked of its channel.
+     */
+    private static class Holder extends SimpleChannelHandler {
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final CountDownLatch received = new CountDownLatch(1);
+        private final List<Boolean> readable =
+                Collections.synchronizedList(new ArrayList<Boolean>());
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+                throws InterruptedException {
+            received.countDown();
+            release.await(5, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e)
+                throws Exception {
+            if(e instanceof ChannelStateEvent &&
+                    ((ChannelStateEvent)e).getState() == ChannelState.INTEREST_OPS) {
+                int ops = (Integer)((ChannelStateEvent)e).getValue();
+                readable.add((ops & Channel.OP_READ) != 0);
+            }
+            super.handleDownstream(ctx, e);
+        }
+    }
+}